@@ -2,12 +2,14 @@ package angelo.collins.smssender;
 
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -23,89 +25,96 @@ public class APIClient {
     private static final String TAG = "APIClient";
     private String baseUrl;
     private static final int TIMEOUT_SECONDS = 30;
-
     private OkHttpClient client;
     private Context context;
+    private final HttpCriticalFeed feed;
     public APIClient(Context context, String baseUrl) {
         this.context = context;
-        setBaseUrl(baseUrl);
-        this.client = new OkHttpClient.Builder()
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
                 .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
                 .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .build();
+                .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // Debug builds only, see FaultInjector
+        FaultInjector faults = MonitorLog.DEBUG ? FaultInjector.fromPreference(prefs.getString("fault_injection", null)) : null;
+        if (faults != null) {
+            clientBuilder.addInterceptor(new FaultInjectingInterceptor(faults));
+        }
+        this.client = clientBuilder.build();
+        this.feed = new HttpCriticalFeed(client, baseUrl,
+                new ContactDirectory(prefs.getString("default_country_code", PhoneNumbers.DEFAULT_COUNTRY_CODE)));
+        setBaseUrl(baseUrl);
     }
 
     /**
      * Optionally allow changing base URL at runtime
      */
-    public void setBaseUrl(String baseUrl) {
+    public synchronized void setBaseUrl(String baseUrl) {
         if (baseUrl != null && baseUrl.endsWith("/")) {
             this.baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
         } else {
             this.baseUrl = baseUrl;
         }
+        feed.setBaseUrl(this.baseUrl);
+    }
+    /**
+     * Cancel the critical-users poll in flight; used by the monitor's watchdog
+     */
+    public void cancelPoll() {
+        feed.cancelPoll();
     }
+
     public String getBaseUrl() {
         return this.baseUrl;
     }
 
+    public ContactDirectory getContactDirectory() {
+        return feed.getContactDirectory();
+    }
+
     /**
-     * Fetch all users with critical health status from the server
+     * The poller behind fetchCriticalUsers, usable on its own by the alert engine
      */
-    public List<CriticalUser> getCriticalUsers() {
-        List<CriticalUser> criticalUsers = new ArrayList<>();
-
-        try {
-            String url = baseUrl + "/api/critical-users";
-            Log.d(TAG, "Requesting: " + url);
-
-            Request request = new Request.Builder()
-                    .url(url)
-                    .get()
-                    .build();
-
-            Response response = client.newCall(request).execute();
-
-            if (response.isSuccessful() && response.body() != null) {
-                String responseBody = response.body().string();
-                Log.d(TAG, "Server response: " + responseBody);
-
-                JSONObject jsonResponse = new JSONObject(responseBody);
-                JSONArray usersArray = jsonResponse.getJSONArray("users");
-
-                for (int i = 0; i < usersArray.length(); i++) {
-                    JSONObject userJson = usersArray.getJSONObject(i);
-
-                    CriticalUser user = new CriticalUser();
-                    user.setUserId(userJson.getInt("user_id"));
-                    user.setName(userJson.getString("name"));
-                    user.setEmail(userJson.getString("email"));
-                    user.setEmergencyContact1(userJson.optString("emergency_contact1", null));
-                    user.setEmergencyPhone1(userJson.optString("emergency_phone1", null));
-                    user.setEmergencyContact2(userJson.optString("emergency_contact2", null));
-                    user.setEmergencyPhone2(userJson.optString("emergency_phone2", null));
-                    user.setEmergencyContact3(userJson.optString("emergency_contact3", null));
-                    user.setEmergencyPhone3(userJson.optString("emergency_phone3", null));
-                    user.setHeartRate(userJson.optInt("heart_rate", 0));
-                    user.setBloodPressure(userJson.optString("blood_pressure", null));
-                    user.setSpo2(userJson.optInt("spo2", 0));
-                    user.setTemperature(userJson.optDouble("temperature", 0.0));
-
-                    criticalUsers.add(user);
-                }
-
-                Log.d(TAG, "Successfully parsed " + criticalUsers.size() + " critical users");
+    public HttpCriticalFeed getFeed() {
+        return feed;
+    }
 
-            } else {
-                Log.e(TAG, "Server request failed with code: " + response.code());
-            }
+    /**
+     * Capture raw feed responses into the directory for FeedReplay. Off unless asked
+     * for, because the responses hold patients' names and numbers.
+     */
+    public synchronized void startCapture(File directory) {
+        if (feed.getRecorder() == null) {
+            feed.setRecorder(new FeedRecorder(directory, FeedRecorder.DEFAULT_SEGMENT_BYTES, FeedRecorder.DEFAULT_SEGMENTS));
+            Log.i(TAG, "Capturing feed responses to " + directory);
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error fetching critical users", e);
+    /**
+     * Stop capturing and close the capture file; blocks while queued responses are written
+     */
+    public synchronized void stopCapture() {
+        FeedRecorder recorder = feed.getRecorder();
+        if (recorder != null) {
+            feed.setRecorder(null);
+            recorder.close();
         }
+    }
 
-        return criticalUsers;
+    /**
+     * Fetch all users with critical health status from the server
+     */
+    public List<CriticalUser> getCriticalUsers() {
+        List<CriticalUser> criticalUsers = fetchCriticalUsers();
+        return criticalUsers != null ? criticalUsers : new ArrayList<CriticalUser>();
+    }
+
+    /**
+     * Fetch critical users, returning null instead of an empty list when the poll
+     * failed so callers can tell "nobody is critical" from "we don't know"
+     */
+    public List<CriticalUser> fetchCriticalUsers() {
+        return feed.fetchCriticalUsers();
     }
 
     /**
@@ -114,7 +123,7 @@ public class APIClient {
     public boolean testConnection() {
         try {
             String url = baseUrl + "/health";
-            Log.d(TAG, "Testing connection to: " + url);
+            if (MonitorLog.DEBUG) Log.d(TAG, "Testing connection to: " + url);
 
             Request request = new Request.Builder()
                     .url(url)
@@ -142,7 +151,7 @@ public class APIClient {
     public void reportSMSSent(int userId, int alertId, String phoneNumber, boolean success) {
         try {
             String url = baseUrl + "/api/sms-status";
-            Log.d(TAG, "Reporting SMS status to: " + url);
+            if (MonitorLog.DEBUG) Log.d(TAG, "Reporting SMS status to: " + url);
 
             JSONObject jsonBody = new JSONObject();
             jsonBody.put("user_id", userId);
@@ -163,7 +172,7 @@ public class APIClient {
             Response response = client.newCall(request).execute();
 
             if (response.isSuccessful()) {
-                Log.d(TAG, "SMS status reported successfully");
+                if (MonitorLog.DEBUG) Log.d(TAG, "SMS status reported successfully");
             } else {
                 Log.e(TAG, "Failed to report SMS status: " + response.code());
             }
@@ -0,0 +1,82 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Background reverse-geocode request for one coordinate cell
+ */
+public final class AddressLookup extends FutureTask<String> {
+    private static final String TAG = "AddressLookup";
+
+    /**
+     * Callback for an address lookup that completed after its deadline
+     */
+    public interface Listener {
+        void onAddressResolved(String address);
+    }
+
+    final long key;
+    private final long startedAtNanos = System.nanoTime();
+    private final List<Listener> listeners = new ArrayList<>();
+
+    AddressLookup(long key, Callable<String> callable) {
+        super(callable);
+        this.key = key;
+    }
+
+    /**
+     * Wait for the address until deadlineMs after the lookup was started, not after
+     * this call: while a slow lookup runs, the alerts behind the first one must not
+     * each wait the full deadline again.
+     */
+    public String await(long deadlineMs) throws InterruptedException, ExecutionException, TimeoutException {
+        long remainingNanos = startedAtNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMs) - System.nanoTime();
+        return get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run the listener once the address is known. Runs immediately on the calling
+     * thread if the lookup already finished, otherwise on the geocoder thread.
+     */
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onAddressResolved(getQuietly());
+    }
+
+    @Override
+    protected void done() {
+        String address = getQuietly();
+        List<Listener> pending;
+        synchronized (listeners) {
+            pending = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : pending) {
+            try {
+                listener.onAddressResolved(address);
+            } catch (Exception e) {
+                EngineLog.e(TAG, "Address listener failed", e);
+            }
+        }
+    }
+
+    String getQuietly() {
+        try {
+            return isDone() && !isCancelled() ? get() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package angelo.collins.smssender;
+
+
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the alert hot paths, run with BenchmarkRunner:
+ *
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar:sqlite-jdbc.jar:slf4j-api.jar \
+ *       angelo.collins.smssender.AlertBenchmarks
+ *   java ... angelo.collins.smssender.AlertBenchmarks --save=bench-baseline.tsv
+ *
+ * By default a run is compared with the committed bench-baseline.tsv and exits 1 on a
+ * regression. Its ops/s were measured on one machine, and back-to-back runs there
+ * differ by tens of percent, so throughput only fails beyond speed-threshold; B/op is
+ * portable and steady to a few dozen bytes and fails beyond threshold. Save a baseline
+ * on the machine that runs the check to compare throughput more tightly.
+ *
+ *   feed.decode        /api/critical-users body decoded by a warm decoder (every poll after the first)
+ *   feed.decodeCold    the same with a new decoder, like the first poll after a start
+ *   message.plain      SMSManager.formatEmergencyMessage, the free-form text
+ *   message.template   AlertMessage.emergency(...).render(), what the engine sends
+ *   phone.clean        SMSManager.cleanPhoneNumber on a mix of E.164 and formatted numbers
+ *   phone.isValid      SMSManager.isValidPhoneNumber on the same mix
+ *   dedup.index        hasSMSBeenSent with the in-memory index (JdbcAlertStore, DatabaseHelper once loaded)
+ *   dedup.query        DatabaseHelper's fallback COUNT(*) query on sqlite-jdbc
+ *   snapshot.diff      CriticalSnapshot.of plus SnapshotDiff.diff for a poll with 1 % churn
+ *
+ * Options (--name=value): filter (regex on the benchmark name), warmup-ms, iteration-ms,
+ * iterations, save (write a baseline instead of comparing), baseline (the file to compare
+ * with, default bench-baseline.tsv; a missing file fails), threshold (allocation growth,
+ * default 0.10), speed-threshold (throughput drop, default 0.50), db-dir (for the sqlite
+ * files, default the temp directory). The dedup benchmarks are skipped without
+ * sqlite-jdbc on the class path.
+ */
+public final class AlertBenchmarks {
+    private static final String[] USER_COUNTS = {"10", "1000", "10000"};
+    private static final String[] ROW_COUNTS = {"1k", "100k", "1M"};
+    private static final String[] NO_PARAMS = {"-"};
+    private static final int LOOKUP_KEYS = 1024;
+    private static final int DEDUP_USERS = 50000;
+    private static final String DEFAULT_BASELINE = "bench-baseline.tsv";
+    private static final String[] PHONES = {
+            "+639171234567", "0917 123 4567", "+63 (917) 123-4567", "09171234567", "+1-415-555-0100", "12345"
+    };
+
+    private AlertBenchmarks() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        File baseline = new File(option(options, "baseline", DEFAULT_BASELINE));
+        boolean save = options.containsKey("save");
+        if (!save && !baseline.isFile()) {
+            System.out.println("No baseline at " + baseline.getAbsolutePath()
+                    + "; run from the directory holding it, pass --baseline=FILE or write one with --save=FILE");
+            System.exit(1);
+        }
+        File dbDir = new File(option(options, "db-dir", System.getProperty("java.io.tmpdir")));
+        BenchmarkRunner runner = new BenchmarkRunner()
+                .setWarmupMs(Long.parseLong(option(options, "warmup-ms", "2000")))
+                .setIterationMs(Long.parseLong(option(options, "iteration-ms", "1000")))
+                .setIterations(Integer.parseInt(option(options, "iterations", "5")));
+        register(runner, dbDir);
+
+        String filter = options.get("filter");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out), true);
+        List<BenchmarkRunner.Result> results = runner.run(filter != null ? Pattern.compile(filter) : null, out);
+        if (save) {
+            BenchmarkRunner.save(results, new File(options.get("save")));
+            out.println("Baseline written to " + options.get("save"));
+            System.exit(0);
+        }
+        int regressions = BenchmarkRunner.compare(results, baseline,
+                Double.parseDouble(option(options, "speed-threshold", "0.50")),
+                Double.parseDouble(option(options, "threshold", "0.10")), out);
+        out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    static void register(BenchmarkRunner runner, File dbDir) {
+        runner.add("feed.decode", USER_COUNTS, param -> {
+            String json = new SyntheticFeed(Integer.parseInt(param), 2, 1).criticalUsersJson(false);
+            CriticalFeedDecoder decoder = new CriticalFeedDecoder();
+            return () -> decoder.decode(json).size();
+        });
+        runner.add("feed.decodeCold", USER_COUNTS, param -> {
+            String json = new SyntheticFeed(Integer.parseInt(param), 2, 1).criticalUsersJson(false);
+            return () -> new CriticalFeedDecoder().decode(json).size();
+        });
+
+        CriticalUser patient = new SyntheticFeed(1, 2, 1).criticalUsers().get(0);
+        String locationRef = AlertMessage.coordinateReference(14.5995, 120.9842);
+        runner.add("message.plain", NO_PARAMS, param -> () -> AlertMessage.plainEmergency(
+                patient.getName(), ResolvedLocation.formatCoordinates(14.5995, 120.9842), patient).length());
+        runner.add("message.template", NO_PARAMS, param -> () -> AlertMessage.emergency(patient, locationRef).render().length());
+
+        runner.add("phone.clean", NO_PARAMS, param -> {
+            int[] next = {0};
+            return () -> PhoneNumbers.clean(PHONES[next[0]++ % PHONES.length]).length();
+        });
+        runner.add("phone.isValid", NO_PARAMS, param -> {
+            int[] next = {0};
+            return () -> PhoneNumbers.isValid(PHONES[next[0]++ % PHONES.length]) ? 1 : 0;
+        });
+
+        runner.add("dedup.index", ROW_COUNTS, param -> {
+            JdbcAlertStore store = new JdbcAlertStore(populate(dbDir, rows(param)));
+            long[] keys = lookupKeys(rows(param));
+            int[] next = {0};
+            return () -> {
+                long key = keys[next[0]++ & (LOOKUP_KEYS - 1)];
+                return store.hasSMSBeenSent(ShardLeases.userIdOf(key), (int) key) ? 1 : 0;
+            };
+        });
+        runner.add("dedup.query", ROW_COUNTS, param -> {
+            Connection connection = DriverManager.getConnection(populate(dbDir, rows(param)));
+            PreparedStatement query = connection.prepareStatement(
+                    "SELECT COUNT(*) FROM sms_log WHERE user_id = ? AND alert_id = ?");
+            long[] keys = lookupKeys(rows(param));
+            int[] next = {0};
+            return () -> {
+                long key = keys[next[0]++ & (LOOKUP_KEYS - 1)];
+                query.setInt(1, ShardLeases.userIdOf(key));
+                query.setInt(2, (int) key);
+                try (ResultSet result = query.executeQuery()) {
+                    return result.next() && result.getInt(1) > 0 ? 1 : 0;
+                }
+            };
+        });
+
+        runner.add("snapshot.diff", USER_COUNTS, param -> {
+            SyntheticFeed feed = new SyntheticFeed(Integer.parseInt(param), 2, 1);
+            List<CriticalUser> before = feed.criticalUsers();
+            feed.churn(0.01);
+            List<CriticalUser> after = feed.criticalUsers();
+            CriticalSnapshot[] last = {CriticalSnapshot.of(before)};
+            boolean[] flip = {false};
+            return () -> {
+                flip[0] = !flip[0];
+                CriticalSnapshot snapshot = CriticalSnapshot.of(flip[0] ? after : before);
+                int changes = SnapshotDiff.diff(last[0], snapshot).size();
+                last[0] = snapshot;
+                return changes;
+            };
+        });
+    }
+
+    private static int rows(String param) {
+        switch (param) {
+            case "1k":
+                return 1000;
+            case "100k":
+                return 100000;
+            case "1M":
+                return 1000000;
+            default:
+                return Integer.parseInt(param);
+        }
+    }
+
+    /**
+     * An sms_log with the given number of rows, one per (user, alert) pair; returns its
+     * JDBC URL. The schema comes from JdbcAlertStore so it matches the phone's table.
+     */
+    private static String populate(File dbDir, int rows) throws Exception {
+        File file = new File(dbDir, "wristbud-bench-" + rows + ".db");
+        String url = "jdbc:sqlite:" + file.getAbsolutePath();
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Cannot replace " + file);
+        }
+        file.deleteOnExit();
+        new JdbcAlertStore(url).close();
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO sms_log (user_id, alert_id, phone_number, template_id, params) VALUES (?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < rows; i++) {
+                    int userId = i % DEDUP_USERS + 1;
+                    insert.setInt(1, userId);
+                    insert.setInt(2, i / DEDUP_USERS + 1);
+                    insert.setString(3, SyntheticFeed.contactPhone(userId, 1));
+                    insert.setInt(4, AlertMessage.TEMPLATE_EMERGENCY);
+                    insert.setString(5, "@14.5995,120.9842\u001fPatient " + userId);
+                    insert.addBatch();
+                    if (i % 10000 == 9999) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+        return url;
+    }
+
+    /**
+     * Keys to look up, half of them sent and half not
+     */
+    private static long[] lookupKeys(int rows) {
+        long[] keys = new long[LOOKUP_KEYS];
+        Random random = new Random(7);
+        for (int i = 0; i < keys.length; i++) {
+            int row = random.nextInt(rows);
+            int userId = row % DEDUP_USERS + 1;
+            int alertId = i % 2 == 0 ? row / DEDUP_USERS + 1 : rows / DEDUP_USERS + 2 + i;
+            keys[i] = ShardLeases.alertKey(userId, alertId);
+        }
+        return keys;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+}
@@ -0,0 +1,207 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges alerts bound for the same phone number during an alert storm.
+ *
+ * The first alert for a phone is delivered immediately and opens a window. Alerts
+ * for that phone arriving while the window is open are held and delivered together
+ * as one message when the window closes, or as soon as maxAlerts are waiting. A newer
+ * alert for a patient replaces the held one, so a flapping patient costs one SMS per
+ * window and a contact shared by several patients gets one SMS for all of them.
+ *
+ * All methods except the window timer must be called on the worker executor; the
+ * timer hands its work back to that executor, so no locking is needed.
+ */
+public class AlertCoalescer {
+    private static final String TAG = "AlertCoalescer";
+
+    /**
+     * Delivers one or more alerts to a phone as a single SMS; called on the worker
+     */
+    public interface Sink {
+        boolean deliver(String phone, List<Pending> alerts);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor worker;
+    private final Sink sink;
+    private final Map<String, Window> windows = new HashMap<>();
+    private long windowMs;
+    private int maxAlerts;
+
+    /**
+     * @param windowMs  how long a phone stays throttled after a send; 0 disables coalescing
+     * @param maxAlerts held alerts that force an early flush
+     */
+    public AlertCoalescer(ScheduledExecutorService scheduler, Executor worker, long windowMs, int maxAlerts, Sink sink) {
+        this.scheduler = scheduler;
+        this.worker = worker;
+        this.sink = sink;
+        configure(windowMs, maxAlerts);
+    }
+
+    public void configure(long windowMs, int maxAlerts) {
+        this.windowMs = Math.max(0, windowMs);
+        this.maxAlerts = Math.max(1, maxAlerts);
+    }
+
+    /**
+     * Deliver the alert now if the phone has no open window, otherwise hold it.
+     * Returns false only if an immediate delivery failed.
+     */
+    public boolean submit(String phone, Pending alert) {
+        Window window = windows.get(phone);
+        if (window == null) {
+            boolean delivered = deliver(phone, single(alert));
+            if (delivered && windowMs > 0) {
+                openWindow(phone);
+            }
+            return delivered;
+        }
+        window.hold(alert);
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Holding alert for user " + alert.user.getUserId()
+                + ", " + window.pending.size() + " waiting for " + EngineLog.maskPhone(phone));
+        if (window.pending.size() >= maxAlerts) {
+            flush(phone, window);
+        }
+        return true;
+    }
+
+    /**
+     * Deliver everything being held, e.g. before the service stops
+     */
+    public void flushAll() {
+        List<String> phones = new ArrayList<>(windows.keySet());
+        for (String phone : phones) {
+            Window window = windows.remove(phone);
+            if (window.timer != null) {
+                window.timer.cancel(false);
+            }
+            if (!window.pending.isEmpty()) {
+                deliver(phone, window.pending);
+            }
+        }
+    }
+
+    /**
+     * True if alerts for the phone are waiting for the window to close
+     */
+    public boolean isHolding(String phone) {
+        Window window = windows.get(phone);
+        return window != null && !window.pending.isEmpty();
+    }
+
+    public int heldCount() {
+        int held = 0;
+        for (Window window : windows.values()) {
+            held += window.pending.size();
+        }
+        return held;
+    }
+
+    private void openWindow(String phone) {
+        Window window = new Window();
+        windows.put(phone, window);
+        try {
+            window.timer = scheduler.schedule(() -> closeOnWorker(phone, window), windowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; flushAll delivers whatever gets held
+        }
+    }
+
+    private void closeOnWorker(String phone, Window window) {
+        try {
+            worker.execute(() -> close(phone, window));
+        } catch (RejectedExecutionException e) {
+            EngineLog.w(TAG, "Worker stopped, " + window.pending.size() + " held alerts not delivered");
+        }
+    }
+
+    /**
+     * Window expired: deliver what was held and keep the phone throttled for another
+     * window, or release it if nothing arrived
+     */
+    private void close(String phone, Window window) {
+        if (windows.get(phone) != window) {
+            return; // Already flushed by flushAll
+        }
+        windows.remove(phone);
+        if (!window.pending.isEmpty()) {
+            deliver(phone, window.pending);
+            openWindow(phone);
+        }
+    }
+
+    private void flush(String phone, Window window) {
+        List<Pending> batch = new ArrayList<>(window.pending);
+        window.pending.clear();
+        deliver(phone, batch);
+    }
+
+    private boolean deliver(String phone, List<Pending> alerts) {
+        try {
+            return sink.deliver(phone, alerts);
+        } catch (Exception e) {
+            EngineLog.e(TAG, "Failed to deliver " + alerts.size() + " alerts", e);
+            return false;
+        }
+    }
+
+    private static List<Pending> single(Pending alert) {
+        List<Pending> alerts = new ArrayList<>(1);
+        alerts.add(alert);
+        return alerts;
+    }
+
+    /**
+     * One alert for one contact, waiting to be sent
+     */
+    public static final class Pending {
+        public final CriticalUser user;
+        public final int contactSlot;
+        public final AlertMessage message;
+        public final String locationRef;
+        public final boolean firstContact;
+
+        /**
+         * @param locationRef  location in AlertMessage reference form
+         * @param firstContact true for the first contact alerted for this user and alert
+         */
+        public Pending(CriticalUser user, int contactSlot, AlertMessage message, String locationRef, boolean firstContact) {
+            this.user = user;
+            this.contactSlot = contactSlot;
+            this.message = message;
+            this.locationRef = locationRef;
+            this.firstContact = firstContact;
+        }
+    }
+
+    private static final class Window {
+        final List<Pending> pending = new ArrayList<>();
+        ScheduledFuture<?> timer;
+
+        /**
+         * Hold an alert, replacing an older one for the same patient
+         */
+        void hold(Pending alert) {
+            for (int i = 0; i < pending.size(); i++) {
+                if (pending.get(i).user.getUserId() == alert.user.getUserId()) {
+                    pending.set(i, alert);
+                    return;
+                }
+            }
+            pending.add(alert);
+        }
+    }
+}
@@ -0,0 +1,1087 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The poll, dedup, locate, render, send and record pipeline, free of Android.
+ *
+ * Polls a CriticalFeed on a fixed tick grid, diffs each result against the previous
+ * snapshot and alerts the contacts of users who became critical or got a new alert
+ * through an AlertCoalescer, recording every SMS in an AlertStore and reminding
+ * contacts through an AlertEscalator. CriticalMonitorService runs it on the phone with
+ * the SQLite, location and SIM adapters; AlertEngineMain runs it headless on a JVM.
+ *
+ * All engine state is confined to the single worker executor. The slow part of an
+ * alert, waiting for the location and rendering the text, runs on the alert executor
+ * if one was given (a virtual thread per alert on a server) and inline on the worker
+ * otherwise; the prepared alert is handed back to the worker to be sent.
+ *
+ * A MonitorWatchdog watches the worker: a task stuck past the stall threshold gets its
+ * stack logged and the cancel hook run, and if it stays stuck the worker moves to a
+ * fresh thread and every alert of the snapshot the store has not recorded is retried.
+ * This needs the default worker or a SupervisedWorker.
+ *
+ * With ShardLeases the engine is one node of a fleet: it only alerts for users whose
+ * shard it holds a lease on, claims each alert from the ShardCoordinator before sending
+ * it and confirms it once sent, and takes over the unsent alerts of shards it is handed.
+ */
+public class AlertEngine {
+    private static final String TAG = "AlertEngine";
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 1000;
+    public static final long DEFAULT_GEOCODE_DEADLINE_MS = 300; // Never hold the first SMS longer than this for an address
+    public static final int DEFAULT_COALESCE_WINDOW_MS = 15000; // Hold later alerts to the same phone this long
+    public static final int DEFAULT_COALESCE_MAX_ALERTS = 5; // Send early once this many alerts are held
+    public static final int DEFAULT_ESCALATION_INTERVAL_MIN = 5; // Remind contacts this often until acknowledged
+    public static final int DEFAULT_ESCALATION_MAX_STEPS = 3;
+    private static final long ESCALATION_TICK_MS = 1000;
+    private static final int ESCALATION_WHEEL_SIZE = 512;
+
+    /**
+     * Hooks for the host, all called on the worker thread
+     */
+    public interface Listener {
+        /** The first successful poll has been handled */
+        void onFirstCheck();
+
+        /** An alert reached this many contacts, sent now or held for a merged SMS */
+        void onAlertSent(CriticalUser user, int contactsSent);
+
+        /** The transport reported one SMS sent */
+        void onSmsSent();
+
+        /** The snapshot or the alerts sent for it changed; see sentUsers(). Keep it cheap, it runs on the worker. */
+        void onSnapshotChanged();
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onFirstCheck() {
+        }
+
+        @Override
+        public void onAlertSent(CriticalUser user, int contactsSent) {
+        }
+
+        @Override
+        public void onSmsSent() {
+        }
+
+        @Override
+        public void onSnapshotChanged() {
+        }
+    };
+
+    private final CriticalFeed feed;
+    private final AlertStore store;
+    private final LocationSource location;
+    private final SmsTransport transport;
+    private final Listener listener;
+    private final ExecutorService worker;
+    private final ScheduledExecutorService scheduler;
+    private final Executor alertExecutor; // Null: alerts are prepared inline on the worker
+    private final ShardLeases leases; // Null: this engine alerts for every user
+    private final long checkIntervalMs;
+    private final long geocodeDeadlineMs;
+    private final boolean addressFollowUp;
+    private final MonitorMetrics metrics = MonitorMetrics.get();
+    private final SpanTracer tracer = SpanTracer.shared();
+    private final AlertCoalescer alertCoalescer;
+    private final HashedWheelTimer escalationWheel; // Worker thread only
+    private final AlertEscalator alertEscalator;
+    private final MonitorWatchdog watchdog; // Null: the worker cannot be restarted, or stall detection is off
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean checkInFlight = new AtomicBoolean(false);
+    private final Runnable checkRunnable = this::tick;
+    private final Runnable checkTask = this::runCheck; // One instance, so a tick allocates no lambda
+    private long nextTickNanos; // Scheduler thread only
+    private boolean polledSinceStart;
+    private boolean firstCheckCompleted;
+    private volatile CriticalSnapshot lastSnapshot = CriticalSnapshot.EMPTY; // Written on the worker, read by sentUsers()
+    private final Map<Integer, CriticalUser> retryUsers = new HashMap<>(); // Alerts that could not be delivered yet
+    private final Set<Long> preparing = new HashSet<>(); // Alerts being prepared on the alert executor
+    private final Map<Long, Integer> sending = new HashMap<>(); // SMS per alert awaiting the transport's result
+    private final List<CriticalUser> claimQueue = new ArrayList<>(); // Alerts to claim at the end of the tick
+    private long leaseGeneration;
+
+    private AlertEngine(Builder builder) {
+        this.feed = builder.feed;
+        this.store = builder.store;
+        this.location = builder.location;
+        this.transport = builder.transport;
+        this.listener = builder.listener != null ? builder.listener : NO_LISTENER;
+        this.worker = builder.worker != null
+                ? builder.worker
+                : new SupervisedWorker("wristbud-monitor-worker");
+        this.scheduler = builder.scheduler != null
+                ? builder.scheduler
+                : Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "wristbud-monitor-scheduler");
+                    thread.setPriority(Thread.MAX_PRIORITY);
+                    return thread;
+                });
+        this.alertExecutor = builder.alertExecutor;
+        this.leases = builder.leases;
+        this.checkIntervalMs = builder.checkIntervalMs;
+        this.geocodeDeadlineMs = builder.geocodeDeadlineMs;
+        this.addressFollowUp = builder.addressFollowUp;
+        this.alertCoalescer = new AlertCoalescer(scheduler, worker,
+                builder.coalesceWindowMs, builder.coalesceMaxAlerts, this::deliverAlerts);
+        this.escalationWheel = new HashedWheelTimer(ESCALATION_TICK_MS, TimeUnit.MILLISECONDS, ESCALATION_WHEEL_SIZE);
+        this.alertEscalator = new AlertEscalator(store, escalationWheel,
+                builder.escalationIntervalMs, builder.escalationMaxSteps, this::escalate);
+        this.watchdog = worker instanceof SupervisedWorker && builder.stallThresholdMs > 0
+                ? new MonitorWatchdog((SupervisedWorker) worker, builder.stallThresholdMs, builder.cancelBlockedCalls,
+                        this::onWorkerRestarted)
+                : null;
+    }
+
+    /**
+     * Start polling; further calls are ignored. Persisted escalations are restored
+     * after the first successful poll.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        if (leases != null) {
+            leases.start();
+        }
+        nextTickNanos = System.nanoTime();
+        scheduler.execute(checkRunnable);
+        scheduler.scheduleAtFixedRate(() -> worker.execute(escalationWheel::advance),
+                ESCALATION_TICK_MS, ESCALATION_TICK_MS, TimeUnit.MILLISECONDS);
+        if (watchdog != null) {
+            scheduler.scheduleAtFixedRate(watchdog::check, MonitorWatchdog.CHECK_INTERVAL_MS,
+                    MonitorWatchdog.CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    /**
+     * Stop polling, deliver held alerts, release the shard leases, close the transport
+     * and shut down the worker and scheduler. Alerts still being prepared on the alert
+     * executor are dropped; that executor belongs to the caller.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            // Held alerts must still go out
+            worker.execute(() -> {
+                alertCoalescer.flushAll();
+                if (leases != null) {
+                    leases.stop();
+                }
+                transport.close();
+            });
+        } catch (RejectedExecutionException e) {
+            // Already stopped
+        }
+        worker.shutdown();
+    }
+
+    /**
+     * The watchdog's report of the last stall with the worker's stack, null if there was none
+     */
+    public String getLastStallReport() {
+        return watchdog != null ? watchdog.getLastReport() : null;
+    }
+
+    /**
+     * Wait for the worker to finish what stop() left it
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Take the users saved by a previous run as the last snapshot, so the first poll
+     * only alerts for what changed meanwhile. Worker thread only, before the first poll.
+     */
+    public void restoreSnapshot(List<CriticalUser> users) {
+        if (!users.isEmpty()) {
+            lastSnapshot = CriticalSnapshot.of(users);
+        }
+    }
+
+    /**
+     * Users of the last snapshot whose alert has been sent, for persisting. A user whose
+     * alert was not sent must look new after a restart so it is sent then. Asks the
+     * store about every user, so call it off the worker, e.g. on the thread that
+     * writes the state; safe from any thread if the store is.
+     */
+    public List<CriticalUser> sentUsers() {
+        List<CriticalUser> users = new ArrayList<>(lastSnapshot.size());
+        for (CriticalUser user : lastSnapshot.getUsers().values()) {
+            if (store.hasSMSBeenSent(user.getUserId(), user.getAlertId())) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private void tick() {
+        // Never queue a second check behind one that is still running
+        if (checkInFlight.compareAndSet(false, true)) {
+            try {
+                worker.execute(checkTask);
+            } catch (RejectedExecutionException e) {
+                checkInFlight.set(false);
+                return; // Stopped
+            }
+        } else {
+            long skipped = metrics.skippedTicks.incrementAndGet();
+            if (EngineLog.isDebug()) EngineLog.w(TAG, "Previous check still running, skipped tick (" + skipped + " total)");
+        }
+        scheduleNextTick();
+    }
+
+    private void runCheck() {
+        try {
+            checkForCriticalUsers();
+        } catch (Exception e) {
+            EngineLog.e(TAG, "Error checking for critical users", e);
+        } finally {
+            checkInFlight.set(false);
+        }
+    }
+
+    /**
+     * Schedule the next tick on a fixed grid of the monotonic clock. Delays in one tick
+     * do not push later ticks back, and missed ticks are dropped instead of bunching up.
+     */
+    private void scheduleNextTick() {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(checkIntervalMs);
+        long now = System.nanoTime();
+        nextTickNanos += intervalNanos;
+        if (now - nextTickNanos >= 0) {
+            long missed = (now - nextTickNanos) / intervalNanos + 1;
+            nextTickNanos += missed * intervalNanos;
+            metrics.skippedTicks.addAndGet(missed);
+            if (EngineLog.isDebug()) EngineLog.w(TAG, "Monitor fell behind, skipped " + missed + " tick(s)");
+        }
+        try {
+            scheduler.schedule(checkRunnable, nextTickNanos - now, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            EngineLog.d(TAG, "Scheduler stopped, not scheduling next tick");
+        }
+    }
+
+    private void checkForCriticalUsers() {
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Checking for critical users...");
+        long cycleStart = System.nanoTime();
+        long cycleSpan = beginStage(SpanTracer.CYCLE);
+        try {
+            List<CriticalUser> criticalUsers;
+            // Heartbeat only: the feed traces its own poll span
+            if (watchdog != null) watchdog.enter(SpanTracer.POLL);
+            try {
+                criticalUsers = feed.fetchCriticalUsers();
+            } finally {
+                if (watchdog != null) watchdog.leave(SpanTracer.POLL);
+            }
+            if (criticalUsers == null) {
+                return; // Poll failed, keep the last snapshot rather than treating everyone as cleared
+            }
+            polledSinceStart = true;
+            if (criticalUsers.isEmpty()) {
+                metrics.emptyPolls.incrementAndGet();
+            }
+            long stageStart = System.nanoTime();
+            long diffSpan = beginStage(SpanTracer.DIFF);
+            List<SnapshotDiff.Change> changes = Collections.emptyList();
+            try {
+                // Unless the feed handed back the last poll's users: nothing to hash or diff then
+                if (!lastSnapshot.isSnapshotOf(criticalUsers)) {
+                    CriticalSnapshot snapshot = CriticalSnapshot.of(criticalUsers);
+                    changes = SnapshotDiff.diff(lastSnapshot, snapshot);
+                    lastSnapshot = snapshot;
+                }
+            } finally {
+                endStage(SpanTracer.DIFF, diffSpan, 0, 0, changes.size());
+            }
+            metrics.diff.recordNanos(System.nanoTime() - stageStart);
+            if (leases != null) {
+                adoptOwnedUsers();
+            }
+            if (changes.isEmpty() && retryUsers.isEmpty()) {
+                metrics.unchangedPolls.incrementAndGet();
+                return;
+            }
+            if (EngineLog.isDebug()) {
+                EngineLog.d(TAG, "Critical users: " + lastSnapshot.size() + ", changes: " + changes.size());
+            }
+            if (lastSnapshot.isEmpty()) {
+                EngineLog.event(DebugEventRing.NO_CRITICAL_USERS, 0, 0, 0);
+            } else {
+                EngineLog.event(DebugEventRing.CRITICAL_USERS_FOUND, 0, 0, lastSnapshot.size());
+            }
+            // Start address lookups before any send so they run while earlier users are processed
+            for (SnapshotDiff.Change change : changes) {
+                if (change.getType() == SnapshotDiff.ChangeType.NEWLY_CRITICAL) {
+                    location.prefetch();
+                    break;
+                }
+            }
+            for (SnapshotDiff.Change change : changes) {
+                CriticalUser user = change.getUser();
+                switch (change.getType()) {
+                    case NEWLY_CRITICAL:
+                    case ALERT_CHANGED:
+                        retryUsers.remove(user.getUserId());
+                        processWithRetry(user);
+                        break;
+                    case VITALS_UPDATED:
+                        if (retryUsers.containsKey(user.getUserId())) {
+                            retryUsers.put(user.getUserId(), user);
+                        }
+                        if (user.isAcknowledged()) {
+                            alertEscalator.cancel(user.getUserId());
+                        }
+                        EngineLog.event(DebugEventRing.VITALS_UPDATED, user.getUserId(), user.getAlertId(), 0);
+                        break;
+                    case CLEARED:
+                        retryUsers.remove(user.getUserId());
+                        alertEscalator.cancel(user.getUserId());
+                        EngineLog.event(DebugEventRing.USER_CLEARED, user.getUserId(), user.getAlertId(), 0);
+                        break;
+                }
+            }
+            retryUndeliveredAlerts(changes);
+            claimQueuedAlerts();
+            listener.onSnapshotChanged();
+        } catch (Exception e) {
+            EngineLog.e(TAG, "Error checking critical users", e);
+            EngineLog.event(DebugEventRing.CHECK_ERROR, 0, 0, 0, e.getMessage());
+        } finally {
+            endStage(SpanTracer.CYCLE, cycleSpan, 0, 0, lastSnapshot.size());
+            metrics.cycle.recordNanos(System.nanoTime() - cycleStart);
+            if (polledSinceStart && !firstCheckCompleted) {
+                firstCheckCompleted = true;
+                listener.onFirstCheck();
+                alertEscalator.restore();
+            }
+        }
+    }
+
+    /**
+     * The watchdog gave up on a stuck worker thread (scheduler thread). The abandoned
+     * task never finishes its check, and may have been sending alerts, so retry on the
+     * new worker every alert of the snapshot the store has not recorded.
+     */
+    private void onWorkerRestarted() {
+        checkInFlight.set(false);
+        try {
+            worker.execute(this::retryAfterRestart);
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+        }
+    }
+
+    private void retryAfterRestart() {
+        int retried = 0;
+        for (CriticalUser user : lastSnapshot.getUsers().values()) {
+            int userId = user.getUserId();
+            if (retryUsers.containsKey(userId) || user.getContactCount() == 0 || isHeld(user)
+                    || (leases != null && !leases.owns(userId))) {
+                continue;
+            }
+            if (!isSentOrSending(user)) {
+                retryUsers.put(userId, user);
+                retried++;
+            }
+        }
+        if (retried > 0) {
+            EngineLog.w(TAG, "Retrying " + retried + " unsent alerts after the worker restart");
+        }
+    }
+
+    /**
+     * Whether the coalescer holds an alert for one of the user's contacts, which goes
+     * out with the next merged SMS anyway
+     */
+    private boolean isHeld(CriticalUser user) {
+        for (int i = 0; i < user.getContactCount(); i++) {
+            String phone = user.getContact(i).getPhone();
+            if (phone != null && alertCoalescer.isHolding(phone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void processWithRetry(CriticalUser user) {
+        if (!processCriticalUser(user)) {
+            retryUsers.put(user.getUserId(), user);
+        }
+    }
+
+    /**
+     * Try again for users whose alert reached no contact on an earlier tick,
+     * skipping those already handled in this tick
+     */
+    private void retryUndeliveredAlerts(List<SnapshotDiff.Change> handled) {
+        if (retryUsers.isEmpty()) {
+            return;
+        }
+        List<CriticalUser> pending = new ArrayList<>(retryUsers.values());
+        for (SnapshotDiff.Change change : handled) {
+            if (change.getType() == SnapshotDiff.ChangeType.NEWLY_CRITICAL
+                    || change.getType() == SnapshotDiff.ChangeType.ALERT_CHANGED) {
+                pending.remove(change.getUser());
+            }
+        }
+        for (CriticalUser user : pending) {
+            retryUsers.remove(user.getUserId());
+            processWithRetry(user);
+        }
+    }
+
+    /**
+     * After the leased shards changed, queue the unsent alerts of users that are now
+     * this node's. Alerts of a shard taken over from a node that went silent are
+     * claimed like new ones: the coordinator says whether that node got to send them.
+     */
+    private void adoptOwnedUsers() {
+        long generation = leases.generation();
+        if (generation == leaseGeneration) {
+            return;
+        }
+        leaseGeneration = generation;
+        int adopted = 0;
+        for (CriticalUser user : lastSnapshot.getUsers().values()) {
+            if (leases.owns(user.getUserId()) && !retryUsers.containsKey(user.getUserId())
+                    && !isSentOrSending(user)) {
+                retryUsers.put(user.getUserId(), user);
+                adopted++;
+            }
+        }
+        if (adopted > 0) {
+            EngineLog.i(TAG, "Took over " + adopted + " unsent alerts with " + leases.ownedShardCount() + " shards");
+        }
+    }
+
+    /**
+     * Claim every alert queued in this tick with one request and start those granted.
+     * Alerts the coordinator could not be asked about, or that another node may still
+     * be sending, are retried on the next tick.
+     */
+    private void claimQueuedAlerts() {
+        if (claimQueue.isEmpty()) {
+            return;
+        }
+        List<CriticalUser> batch = new ArrayList<>(claimQueue);
+        claimQueue.clear();
+        int[] statuses = leases.claim(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            CriticalUser user = batch.get(i);
+            int status = statuses != null ? statuses[i] : ShardCoordinator.CLAIM_HELD;
+            switch (status) {
+                case ShardCoordinator.CLAIM_GRANTED:
+                    if (!dispatch(user)) {
+                        retryUsers.put(user.getUserId(), user);
+                    }
+                    break;
+                case ShardCoordinator.CLAIM_SENT:
+                    // Sent by the shard's previous owner; only the reminders are this node's now
+                    metrics.claimsDenied.incrementAndGet();
+                    EngineLog.event(DebugEventRing.SMS_ALREADY_SENT, user.getUserId(), user.getAlertId(), 1);
+                    if (!user.isAcknowledged()) {
+                        alertEscalator.start(user.getUserId(), user.getAlertId());
+                    }
+                    break;
+                case ShardCoordinator.CLAIM_HELD:
+                    if (statuses != null) {
+                        metrics.claimsDenied.incrementAndGet();
+                    }
+                    retryUsers.put(user.getUserId(), user);
+                    break;
+                default:
+                    // The shard moved on; its new owner adopts the alert
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Start the alert for a user that became critical or got a new alert.
+     * Returns false if it should be retried on the next tick; an alert prepared on the
+     * alert executor reports its own outcome when it comes back to the worker.
+     */
+    private boolean processCriticalUser(CriticalUser user) {
+        long span = beginStage(SpanTracer.USER);
+        try {
+            return startAlert(user);
+        } finally {
+            endStage(SpanTracer.USER, span, user.getUserId(), user.getAlertId(), 0);
+        }
+    }
+
+    private boolean startAlert(CriticalUser user) {
+        EngineLog.event(DebugEventRing.PROCESSING_USER, user.getUserId(), user.getAlertId(), 0, user.getName());
+        // Only send for new alertId
+        long stageStart = System.nanoTime();
+        long span = beginStage(SpanTracer.DEDUP);
+        boolean alreadySent;
+        try {
+            alreadySent = isSentOrSending(user);
+        } finally {
+            endStage(SpanTracer.DEDUP, span, user.getUserId(), user.getAlertId(), 0);
+        }
+        metrics.dedup.recordNanos(System.nanoTime() - stageStart);
+        if (alreadySent) {
+            EngineLog.event(DebugEventRing.SMS_ALREADY_SENT, user.getUserId(), user.getAlertId(), 0);
+            return true;
+        }
+        if (user.isContactsPending()) {
+            // Contact directory refresh failed; retry once the contacts are known
+            EngineLog.event(DebugEventRing.CONTACTS_PENDING, user.getUserId(), user.getAlertId(), user.getProfileVersion());
+            return false;
+        }
+        if (leases != null) {
+            if (leases.owns(user.getUserId())) {
+                claimQueue.add(user);
+            }
+            return true; // Another node's user, adopted if its shard comes here
+        }
+        return dispatch(user);
+    }
+
+    /**
+     * Prepare and send an alert, inline or on the alert executor
+     */
+    private boolean dispatch(CriticalUser user) {
+        if (alertExecutor == null) {
+            return sendPrepared(prepare(user));
+        }
+        long key = alertKey(user.getUserId(), user.getAlertId());
+        if (!preparing.add(key)) {
+            return true; // Still being prepared; that attempt retries if it fails
+        }
+        try {
+            alertExecutor.execute(() -> prepareOffWorker(user, key));
+            return true;
+        } catch (RejectedExecutionException e) {
+            preparing.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * Locate and render on the alert executor, then send on the worker
+     */
+    private void prepareOffWorker(CriticalUser user, long key) {
+        PreparedAlert prepared = null;
+        try {
+            prepared = prepare(user);
+        } catch (Exception e) {
+            EngineLog.e(TAG, "Failed to prepare alert for user " + user.getUserId(), e);
+        }
+        PreparedAlert alert = prepared;
+        try {
+            worker.execute(() -> {
+                preparing.remove(key);
+                if (alert == null || !sendPrepared(alert)) {
+                    // Unless a newer poll cleared the user or superseded the alert meanwhile
+                    CriticalUser current = lastSnapshot.get(user.getUserId());
+                    if (current != null && current.getAlertId() == user.getAlertId()) {
+                        retryUsers.put(user.getUserId(), current);
+                    }
+                }
+                listener.onSnapshotChanged();
+            });
+        } catch (RejectedExecutionException e) {
+            EngineLog.w(TAG, "Engine stopped, alert for user " + user.getUserId() + " not sent");
+        }
+    }
+
+    /**
+     * The parts of an alert that may block: the location lookup and the message text
+     */
+    private PreparedAlert prepare(CriticalUser user) {
+        long stageStart = System.nanoTime();
+        long span = beginStage(SpanTracer.GEOCODE);
+        ResolvedLocation resolved;
+        try {
+            resolved = location.locate(geocodeDeadlineMs);
+        } finally {
+            endStage(SpanTracer.GEOCODE, span, user.getUserId(), user.getAlertId(), 0);
+        }
+        metrics.location.recordNanos(System.nanoTime() - stageStart);
+        stageStart = System.nanoTime();
+        span = beginStage(SpanTracer.RENDER);
+        String locationRef = resolved.getReference();
+        AlertMessage message = AlertMessage.emergency(user, locationRef);
+        try {
+            message.render();
+        } finally {
+            endStage(SpanTracer.RENDER, span, user.getUserId(), user.getAlertId(), 0);
+        }
+        metrics.render.recordNanos(System.nanoTime() - stageStart);
+        return new PreparedAlert(user, resolved, locationRef, message);
+    }
+
+    /**
+     * Hand a prepared alert for every contact to the coalescer; worker thread only.
+     * Returns false if it should be retried on the next tick.
+     */
+    private boolean sendPrepared(PreparedAlert prepared) {
+        CriticalUser user = prepared.user;
+        List<String> notifiedPhones = new ArrayList<>();
+        for (int i = 0; i < user.getContactCount(); i++) {
+            CriticalUser.Contact contact = user.getContact(i);
+            sendToContact(user, contact.getSlot(), contact.getPhone(), prepared.message, prepared.locationRef, notifiedPhones);
+        }
+        int contactsSent = notifiedPhones.size();
+        EngineLog.event(DebugEventRing.ALERT_SUMMARY, user.getUserId(), user.getAlertId(), contactsSent);
+        if (contactsSent > 0 && !user.isAcknowledged()) {
+            alertEscalator.start(user.getUserId(), user.getAlertId());
+        }
+        listener.onAlertSent(user, contactsSent);
+
+        if (addressFollowUp && prepared.location.getPendingLookup() != null && !notifiedPhones.isEmpty()) {
+            // Phones with a held alert get the newest location in the merged SMS instead
+            List<String> followUpPhones = new ArrayList<>(notifiedPhones.size());
+            for (String phone : notifiedPhones) {
+                if (!alertCoalescer.isHolding(phone)) {
+                    followUpPhones.add(phone);
+                }
+            }
+            if (!followUpPhones.isEmpty()) {
+                scheduleAddressFollowUp(user, prepared.location, followUpPhones);
+            }
+        }
+        return contactsSent > 0 || user.getContactCount() == 0;
+    }
+
+    /**
+     * Hand the alert for one emergency contact to the coalescer, adding the phone to
+     * notifiedPhones if it was sent or is being held for the next merged SMS
+     */
+    private void sendToContact(CriticalUser user, int contactSlot, String phone, AlertMessage message, String locationRef, List<String> notifiedPhones) {
+        if (phone == null || phone.isEmpty()) {
+            return;
+        }
+        AlertCoalescer.Pending alert = new AlertCoalescer.Pending(user, contactSlot, message, locationRef, notifiedPhones.isEmpty());
+        if (alertCoalescer.submit(phone, alert)) {
+            notifiedPhones.add(phone);
+        }
+    }
+
+    /**
+     * Send one SMS carrying one or more alerts to a phone; each alert is recorded once
+     * the transport reports the SMS sent. Called by the coalescer on the worker thread.
+     */
+    private boolean deliverAlerts(String phone, List<AlertCoalescer.Pending> alerts) {
+        if (leases != null) {
+            alerts = ownedAlerts(alerts);
+            if (alerts.isEmpty()) {
+                return false;
+            }
+        }
+        AlertMessage message = alerts.size() == 1 ? alerts.get(0).message : AlertMessage.coalesced(alerts);
+        AlertCoalescer.Pending first = alerts.get(0);
+        long stageStart = System.nanoTime();
+        long span = beginStage(SpanTracer.SEND);
+        boolean accepted;
+        try {
+            accepted = send(phone, alerts, message);
+        } finally {
+            endStage(SpanTracer.SEND, span, first.user.getUserId(), first.user.getAlertId(), first.contactSlot);
+        }
+        metrics.send.recordNanos(System.nanoTime() - stageStart);
+        if (!accepted) {
+            onSmsFailed(alerts);
+        }
+        return accepted;
+    }
+
+    /**
+     * Hand an SMS to the transport; until its result comes back its alerts count as
+     * being sent, so no other path sends them again meanwhile
+     */
+    private boolean send(String phone, List<AlertCoalescer.Pending> alerts, AlertMessage message) {
+        if (!transport.send(phone, message.render(), new Delivery(phone, alerts, message))) {
+            return false;
+        }
+        for (AlertCoalescer.Pending alert : alerts) {
+            sending.merge(alertKey(alert.user.getUserId(), alert.user.getAlertId()), 1, Integer::sum);
+        }
+        return true;
+    }
+
+    /**
+     * The transport's result for an SMS sent by deliverAlerts; worker thread only
+     */
+    private void onDelivered(Delivery delivery, boolean sent) {
+        List<AlertCoalescer.Pending> alerts = delivery.alerts;
+        for (AlertCoalescer.Pending alert : alerts) {
+            long key = alertKey(alert.user.getUserId(), alert.user.getAlertId());
+            Integer count = sending.get(key);
+            if (count == null || count <= 1) {
+                sending.remove(key);
+            } else {
+                sending.put(key, count - 1);
+            }
+        }
+        if (!sent) {
+            onSmsFailed(alerts);
+            return;
+        }
+        metrics.smsSent.incrementAndGet();
+        listener.onSmsSent();
+        AlertCoalescer.Pending first = alerts.get(0);
+        long stageStart = System.nanoTime();
+        long span = beginStage(SpanTracer.DB_WRITE);
+        try {
+            for (AlertCoalescer.Pending alert : alerts) {
+                CriticalUser user = alert.user;
+                if (alert.firstContact) {
+                    recordCriticalToFirstSms(user);
+                }
+                store.markSMSAsSent(user.getUserId(), user.getAlertId(), alert.contactSlot, delivery.phone, delivery.message);
+                if (leases != null) {
+                    leases.confirmSent(user.getUserId(), user.getAlertId());
+                }
+                EngineLog.event(DebugEventRing.SMS_SENT, user.getUserId(), user.getAlertId(), alert.contactSlot);
+            }
+        } finally {
+            endStage(SpanTracer.DB_WRITE, span, first.user.getUserId(), first.user.getAlertId(), alerts.size());
+        }
+        metrics.dbWrite.recordNanos(System.nanoTime() - stageStart);
+        if (alerts.size() > 1) {
+            metrics.coalescedAlerts.addAndGet(alerts.size() - 1);
+            EngineLog.event(DebugEventRing.ALERTS_COALESCED, 0, first.contactSlot, alerts.size());
+        }
+        listener.onSnapshotChanged();
+    }
+
+    /**
+     * An SMS was rejected or reported failed: retry its alerts on the next tick unless
+     * another SMS for them went out, or the poll cleared or superseded them meanwhile
+     */
+    private void onSmsFailed(List<AlertCoalescer.Pending> alerts) {
+        metrics.smsFailed.incrementAndGet();
+        for (AlertCoalescer.Pending alert : alerts) {
+            CriticalUser user = alert.user;
+            EngineLog.e(TAG, "Failed to send SMS to contact " + alert.contactSlot + " for user " + user.getUserId());
+            EngineLog.event(DebugEventRing.SMS_FAILED, user.getUserId(), user.getAlertId(), alert.contactSlot);
+            // A held alert has no caller left to retry it
+            CriticalUser current = lastSnapshot.get(user.getUserId());
+            if (current != null && current.getAlertId() == user.getAlertId() && !isSentOrSending(current)) {
+                retryUsers.put(current.getUserId(), current);
+            }
+        }
+    }
+
+    /**
+     * Whether an SMS for the user's alert was recorded sent or is waiting for its result
+     */
+    private boolean isSentOrSending(CriticalUser user) {
+        return sending.containsKey(alertKey(user.getUserId(), user.getAlertId()))
+                || store.hasSMSBeenSent(user.getUserId(), user.getAlertId());
+    }
+
+    /**
+     * Drop held alerts whose shard was handed to another node while they waited;
+     * that node claims them again
+     */
+    private List<AlertCoalescer.Pending> ownedAlerts(List<AlertCoalescer.Pending> alerts) {
+        List<AlertCoalescer.Pending> owned = new ArrayList<>(alerts.size());
+        for (AlertCoalescer.Pending alert : alerts) {
+            if (leases.owns(alert.user.getUserId())) {
+                owned.add(alert);
+            } else {
+                EngineLog.w(TAG, "Lost the shard of user " + alert.user.getUserId() + ", not sending");
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Remind the contacts of a user whose alert is still unacknowledged.
+     * Called by the escalator on the worker thread.
+     */
+    private AlertEscalator.Outcome escalate(int userId, int alertId, int step) {
+        if (!polledSinceStart) {
+            return AlertEscalator.Outcome.RETRY_LATER; // Restored after a restart, no snapshot yet
+        }
+        CriticalUser user = lastSnapshot.get(userId);
+        if (user == null || user.isAcknowledged() || user.getAlertId() != alertId) {
+            return AlertEscalator.Outcome.STOP; // Cleared, acknowledged or superseded by a newer alert
+        }
+        if (user.isContactsPending() || (leases != null && !leases.owns(userId))) {
+            return AlertEscalator.Outcome.RETRY_LATER; // Or the shard's current owner reminds instead
+        }
+        long span = beginStage(SpanTracer.ESCALATION);
+        try {
+            String locationRef = location.locate(geocodeDeadlineMs).getReference();
+            AlertMessage message = AlertMessage.reminder(user, locationRef, step);
+            for (int i = 0; i < user.getContactCount(); i++) {
+                CriticalUser.Contact contact = user.getContact(i);
+                alertCoalescer.submit(contact.getPhone(),
+                        new AlertCoalescer.Pending(user, contact.getSlot(), message, locationRef, false));
+            }
+        } finally {
+            endStage(SpanTracer.ESCALATION, span, userId, alertId, step);
+        }
+        metrics.escalations.incrementAndGet();
+        EngineLog.event(DebugEventRing.ESCALATION, userId, alertId, step);
+        return AlertEscalator.Outcome.SENT;
+    }
+
+    /**
+     * Record the time from the server's critical reading to the first SMS for it.
+     * Uses wall clocks on both ends, so it includes any server/host clock skew.
+     */
+    private void recordCriticalToFirstSms(CriticalUser user) {
+        if (user.getRecordedAtMillis() <= 0) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - user.getRecordedAtMillis();
+        if (elapsed >= 0) {
+            metrics.criticalToFirstSms.recordMillis(elapsed);
+        }
+    }
+
+    /**
+     * Send the street address in a second SMS once the late geocoder lookup completes
+     */
+    private void scheduleAddressFollowUp(CriticalUser user, ResolvedLocation resolved, List<String> phones) {
+        resolved.getPendingLookup().addListener(address -> {
+            if (address == null || address.isEmpty() || worker.isShutdown()) {
+                return;
+            }
+            try {
+                worker.execute(() -> {
+                    AlertMessage followUp = AlertMessage.addressFollowUp(user.getName(), address,
+                            resolved.getLatitude(), resolved.getLongitude());
+                    List<AlertCoalescer.Pending> alerts = Collections.singletonList(
+                            new AlertCoalescer.Pending(user, 0, followUp, null, false));
+                    for (String phone : phones) {
+                        if (!send(phone, alerts, followUp)) {
+                            metrics.smsFailed.incrementAndGet();
+                            EngineLog.e(TAG, "Failed to send address follow-up for user " + user.getUserId());
+                        }
+                    }
+                    EngineLog.event(DebugEventRing.ADDRESS_FOLLOW_UP, user.getUserId(), user.getAlertId(), phones.size());
+                });
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+            }
+        });
+    }
+
+    /**
+     * Start a traced stage and beat its heartbeat for the watchdog
+     */
+    private long beginStage(int stage) {
+        if (watchdog != null) watchdog.enter(stage);
+        return tracer.begin(stage);
+    }
+
+    /**
+     * End a stage started with beginStage(); on a worker thread the watchdog abandoned
+     * meanwhile this throws to unwind the stuck task
+     */
+    private void endStage(int stage, long span, int userId, int alertId, long value) {
+        tracer.end(stage, span, userId, alertId, value);
+        if (watchdog != null) watchdog.leave(stage);
+    }
+
+    private static long alertKey(int userId, int alertId) {
+        return ((long) userId << 32) | (alertId & 0xffffffffL);
+    }
+
+    /**
+     * Hands the transport's result for one SMS back to the worker. If the engine has
+     * stopped meanwhile, a sent SMS is still recorded from the reporting thread so a
+     * restart does not send it again.
+     */
+    private final class Delivery implements SmsTransport.Callback {
+        final String phone;
+        final List<AlertCoalescer.Pending> alerts;
+        final AlertMessage message;
+
+        Delivery(String phone, List<AlertCoalescer.Pending> alerts, AlertMessage message) {
+            this.phone = phone;
+            this.alerts = alerts;
+            this.message = message;
+        }
+
+        @Override
+        public void onResult(boolean sent) {
+            try {
+                worker.execute(() -> onDelivered(this, sent));
+            } catch (RejectedExecutionException e) {
+                if (sent) {
+                    for (AlertCoalescer.Pending alert : alerts) {
+                        store.markSMSAsSent(alert.user.getUserId(), alert.user.getAlertId(), alert.contactSlot, phone, message);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class PreparedAlert {
+        final CriticalUser user;
+        final ResolvedLocation location;
+        final String locationRef;
+        final AlertMessage message;
+
+        PreparedAlert(CriticalUser user, ResolvedLocation location, String locationRef, AlertMessage message) {
+            this.user = user;
+            this.location = location;
+            this.locationRef = locationRef;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Feed, store, location and transport are required; everything else has the
+     * defaults the phone runs with
+     */
+    public static final class Builder {
+        private CriticalFeed feed;
+        private AlertStore store;
+        private LocationSource location;
+        private SmsTransport transport;
+        private Listener listener;
+        private ExecutorService worker;
+        private ScheduledExecutorService scheduler;
+        private Executor alertExecutor;
+        private ShardLeases leases;
+        private long checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+        private long geocodeDeadlineMs = DEFAULT_GEOCODE_DEADLINE_MS;
+        private boolean addressFollowUp = true; // Send the address in a second SMS if it resolves late
+        private long coalesceWindowMs = DEFAULT_COALESCE_WINDOW_MS;
+        private int coalesceMaxAlerts = DEFAULT_COALESCE_MAX_ALERTS;
+        private long escalationIntervalMs = TimeUnit.MINUTES.toMillis(DEFAULT_ESCALATION_INTERVAL_MIN);
+        private int escalationMaxSteps = DEFAULT_ESCALATION_MAX_STEPS;
+        private long stallThresholdMs = MonitorWatchdog.DEFAULT_STALL_THRESHOLD_MS;
+        private Runnable cancelBlockedCalls;
+
+        public Builder setFeed(CriticalFeed feed) {
+            this.feed = feed;
+            return this;
+        }
+
+        public Builder setStore(AlertStore store) {
+            this.store = store;
+            return this;
+        }
+
+        public Builder setLocation(LocationSource location) {
+            this.location = location;
+            return this;
+        }
+
+        public Builder setTransport(SmsTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setListener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Single-threaded executor all engine state is confined to; created if not set.
+         * Only a SupervisedWorker can be restarted by the watchdog.
+         */
+        public Builder setWorker(ExecutorService worker) {
+            this.worker = worker;
+            return this;
+        }
+
+        /**
+         * Timer for ticks and coalescing windows; created if not set
+         */
+        public Builder setScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Where alerts wait for their location and are rendered, e.g. one virtual
+         * thread per alert; null (the default) prepares them inline on the worker
+         */
+        public Builder setAlertExecutor(Executor alertExecutor) {
+            this.alertExecutor = alertExecutor;
+            return this;
+        }
+
+        /**
+         * Share the users with other nodes; null (the default) alerts for every user
+         */
+        public Builder setShardLeases(ShardLeases leases) {
+            this.leases = leases;
+            return this;
+        }
+
+        public Builder setCheckIntervalMs(long checkIntervalMs) {
+            this.checkIntervalMs = Math.max(1, checkIntervalMs);
+            return this;
+        }
+
+        public Builder setGeocodeDeadlineMs(long geocodeDeadlineMs) {
+            this.geocodeDeadlineMs = Math.max(0, geocodeDeadlineMs);
+            return this;
+        }
+
+        public Builder setAddressFollowUp(boolean addressFollowUp) {
+            this.addressFollowUp = addressFollowUp;
+            return this;
+        }
+
+        public Builder setCoalescing(long windowMs, int maxAlerts) {
+            this.coalesceWindowMs = windowMs;
+            this.coalesceMaxAlerts = maxAlerts;
+            return this;
+        }
+
+        public Builder setEscalation(long intervalMs, int maxSteps) {
+            this.escalationIntervalMs = intervalMs;
+            this.escalationMaxSteps = maxSteps;
+            return this;
+        }
+
+        /**
+         * Watch the worker for tasks running longer than stallThresholdMs (0 turns the
+         * watchdog off); cancelBlockedCalls, if not null, is run on the scheduler when
+         * one does and must not block, e.g. HttpCriticalFeed.cancelPoll
+         */
+        public Builder setWatchdog(long stallThresholdMs, Runnable cancelBlockedCalls) {
+            this.stallThresholdMs = stallThresholdMs;
+            this.cancelBlockedCalls = cancelBlockedCalls;
+            return this;
+        }
+
+        public AlertEngine build() {
+            if (feed == null || store == null || location == null || transport == null) {
+                throw new IllegalStateException("AlertEngine needs a feed, store, location and transport");
+            }
+            return new AlertEngine(this);
+        }
+    }
+}
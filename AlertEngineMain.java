@@ -0,0 +1,191 @@
+package angelo.collins.smssender;
+
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the alert engine headless on a JVM, one deployment for every monitored user.
+ *
+ * Needs only the Android-free classes plus okhttp, org.json and sqlite-jdbc on the
+ * class path:
+ *
+ *   java -Dwristbud.debug=true -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar:sqlite-jdbc.jar \
+ *       angelo.collins.smssender.AlertEngineMain --server=http://localhost:5000 \
+ *       --gateway=https://sms-gateway.example.com/messages
+ *
+ * Options (--name=value):
+ *   server         base URL of the WristBud server (required)
+ *   db             JDBC URL of the alert store, default jdbc:sqlite:wristbud-engine.db
+ *   gateway        HTTP SMS gateway URL; without it messages are only logged (dry run)
+ *   gateway-key    bearer token for the gateway
+ *   location       text put in alerts as the location, default "Location unavailable"
+ *   country-code   for national contact numbers, default 63
+ *   interval-ms    poll interval, default 1000
+ *   metrics-dir    where monitor_metrics.json/txt are written every minute, default .,
+ *                  with monitor_stall.txt once the watchdog has seen the worker stuck
+ *   stall-ms       how long one worker task may run before the watchdog steps in,
+ *                  default 20000; 0 turns it off
+ *   threads        "virtual" (default where available) or "platform" for alert preparation
+ *   fleet          share the users with other engines through the server's /api/shards leases
+ *   node-id        this engine's name in the fleet, default a random UUID
+ *   capture        record every feed response into this directory for FeedReplay
+ *   trace          record spans and write the last ten minutes of them to
+ *                  metrics-dir/wristbud-trace.json with every metrics dump, for Perfetto
+ *
+ * On Java 21+ every in-flight alert gets its own virtual thread named wristbud-alert-N,
+ * so thread dumps, JFR and async-profiler show the alerts by name.
+ */
+public final class AlertEngineMain {
+    private static final String TAG = "AlertEngineMain";
+    private static final long METRICS_DUMP_INTERVAL_MS = 60000;
+    private static final int PLATFORM_ALERT_THREADS = 16;
+
+    private AlertEngineMain() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String server = options.get("server");
+        if (server == null || server.isEmpty()) {
+            System.err.println("Usage: AlertEngineMain --server=URL [--db=JDBC_URL] [--gateway=URL] [--gateway-key=KEY]"
+                    + " [--location=TEXT] [--country-code=CC] [--interval-ms=N] [--metrics-dir=DIR] [--threads=virtual|platform]"
+                    + " [--fleet] [--node-id=NAME] [--capture=DIR] [--trace]");
+            System.exit(2);
+            return;
+        }
+
+        JdbcAlertStore store = new JdbcAlertStore(option(options, "db", "jdbc:sqlite:wristbud-engine.db"));
+        HttpCriticalFeed feed = new HttpCriticalFeed(server, option(options, "country-code", "63"));
+        String capture = options.get("capture");
+        if (capture != null && !capture.isEmpty()) {
+            feed.setRecorder(new FeedRecorder(new File(capture), FeedRecorder.DEFAULT_SEGMENT_BYTES, FeedRecorder.DEFAULT_SEGMENTS));
+        }
+        String gateway = options.get("gateway");
+        SmsTransport transport = gateway != null && !gateway.isEmpty()
+                ? new HttpGatewaySmsTransport(gateway, options.get("gateway-key"),
+                        HttpGatewaySmsTransport.DEFAULT_MAX_BATCH, HttpGatewaySmsTransport.DEFAULT_LINGER_MS)
+                : new DryRunSmsTransport();
+
+        ExecutorService alertExecutor = "platform".equals(options.get("threads"))
+                ? null
+                : VirtualThreads.newPerTaskExecutor("wristbud-alert-");
+        if (alertExecutor == null) {
+            alertExecutor = Executors.newFixedThreadPool(PLATFORM_ALERT_THREADS, r -> new Thread(r, "wristbud-alert"));
+        }
+
+        ShardLeases leases = null;
+        if (Boolean.parseBoolean(option(options, "fleet", "false"))) {
+            leases = new ShardLeases(option(options, "node-id", UUID.randomUUID().toString()), new HttpShardCoordinator(server));
+        }
+
+        AlertEngine engine = new AlertEngine.Builder()
+                .setFeed(feed)
+                .setStore(store)
+                .setLocation(new FixedLocationSource(option(options, "location", "Location unavailable")))
+                .setTransport(transport)
+                .setAlertExecutor(alertExecutor)
+                .setShardLeases(leases)
+                .setCheckIntervalMs(Long.parseLong(option(options, "interval-ms", "1000")))
+                .setWatchdog(Long.parseLong(option(options, "stall-ms", String.valueOf(MonitorWatchdog.DEFAULT_STALL_THRESHOLD_MS))),
+                        feed::cancelPoll)
+                .build();
+
+        File metricsDir = new File(option(options, "metrics-dir", "."));
+        SpanTracer.shared().setEnabled(Boolean.parseBoolean(option(options, "trace", "false")));
+        ScheduledExecutorService metricsDumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wristbud-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsDumper.scheduleWithFixedDelay(() -> dumpMetrics(metricsDir, engine),
+                METRICS_DUMP_INTERVAL_MS, METRICS_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        ExecutorService alerts = alertExecutor;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            EngineLog.i(TAG, "Stopping");
+            engine.stop();
+            try {
+                engine.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            alerts.shutdown();
+            if (feed.getRecorder() != null) {
+                feed.getRecorder().close();
+            }
+            store.close();
+            dumpMetrics(metricsDir, engine);
+        }, "wristbud-shutdown"));
+
+        engine.start();
+        EngineLog.i(TAG, "Polling " + server + " every " + option(options, "interval-ms", "1000") + " ms, sending via "
+                + transport.getName() + ", " + store.sentAlertCount() + " alerts already sent"
+                + (leases != null ? ", fleet node " + leases.getNodeId() : ""));
+    }
+
+    private static void dumpMetrics(File directory, AlertEngine engine) {
+        try {
+            MonitorMetrics.get().dump(directory);
+            String stall = engine.getLastStallReport();
+            if (stall != null) {
+                MonitorMetrics.writeAtomically(new File(directory, MonitorWatchdog.STALL_REPORT_FILE), stall);
+            }
+            if (SpanTracer.shared().isEnabled()) {
+                SpanTracer.shared().export(directory, SpanTracer.DEFAULT_WINDOW_MS);
+            }
+        } catch (Exception e) {
+            EngineLog.w(TAG, "Failed to dump monitor metrics", e);
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+
+    /**
+     * Logs each SMS instead of sending it
+     */
+    private static final class DryRunSmsTransport implements SmsTransport {
+        @Override
+        public String getName() {
+            return "dry-run";
+        }
+
+        @Override
+        public boolean send(String phone, String message, Callback callback) {
+            EngineLog.i(TAG, "SMS to " + EngineLog.maskPhone(phone)
+                    + (EngineLog.verbosePayloads() ? ": " + message : " (" + message.length() + " chars)"));
+            if (callback != null) {
+                callback.onResult(true);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
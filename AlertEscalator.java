@@ -0,0 +1,142 @@
+package angelo.collins.smssender;
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-notifies contacts while a critical alert stays unacknowledged.
+ *
+ * Each alert that reached a contact arms one escalation. Every interval it asks the
+ * listener to send a reminder, up to maxSteps times, unless the alert is
+ * acknowledged or the patient is no longer critical. Timers live in a
+ * HashedWheelTimer and every pending step is mirrored in the AlertStore, so
+ * escalations survive a service restart or reboot. Confined to the monitor worker
+ * thread like the wheel itself.
+ */
+public class AlertEscalator {
+    private static final String TAG = "AlertEscalator";
+    private static final long RETRY_DELAY_MS = 1000;
+
+    public enum Outcome {
+        /** Reminder sent; schedule the next step */
+        SENT,
+        /** Not enough information yet (e.g. no poll since restart); try the same step again shortly */
+        RETRY_LATER,
+        /** Acknowledged or cleared; drop the escalation */
+        STOP
+    }
+
+    public interface Listener {
+        Outcome onEscalate(int userId, int alertId, int step);
+    }
+
+    private final AlertStore store;
+    private final HashedWheelTimer wheel;
+    private final Listener listener;
+    private final Map<Integer, HashedWheelTimer.Timeout> active = new HashMap<>();
+    private final long intervalMs;
+    private final int maxSteps;
+
+    /**
+     * @param intervalMs time between reminders; 0 disables escalation
+     * @param maxSteps   reminders sent at most per alert
+     */
+    public AlertEscalator(AlertStore store, HashedWheelTimer wheel, long intervalMs, int maxSteps, Listener listener) {
+        this.store = store;
+        this.wheel = wheel;
+        this.intervalMs = intervalMs;
+        this.maxSteps = maxSteps;
+        this.listener = listener;
+    }
+
+    public boolean isEnabled() {
+        return intervalMs > 0 && maxSteps > 0;
+    }
+
+    /**
+     * Arm the first reminder for an alert that was just sent, replacing any
+     * escalation still pending for the user
+     */
+    public void start(int userId, int alertId) {
+        if (!isEnabled()) {
+            return;
+        }
+        schedule(new PendingEscalation(userId, alertId, 1, System.currentTimeMillis() + intervalMs), true);
+    }
+
+    /**
+     * Stop escalating for the user, e.g. on acknowledgement or when cleared
+     */
+    public void cancel(int userId) {
+        HashedWheelTimer.Timeout timeout = active.remove(userId);
+        if (timeout != null) {
+            timeout.cancel();
+            store.deleteEscalation(userId);
+            if (EngineLog.isDebug()) EngineLog.d(TAG, "Escalation cancelled for user " + userId);
+        }
+    }
+
+    /**
+     * Re-arm escalations persisted by a previous run. Overdue ones fire on the next tick.
+     */
+    public void restore() {
+        List<PendingEscalation> pending = store.getPendingEscalations();
+        for (PendingEscalation escalation : pending) {
+            if (!isEnabled() || escalation.getStep() > maxSteps) {
+                store.deleteEscalation(escalation.getUserId());
+                continue;
+            }
+            schedule(escalation, false);
+        }
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Restored " + active.size() + " pending escalations");
+    }
+
+    public int activeCount() {
+        return active.size();
+    }
+
+    private void schedule(PendingEscalation escalation, boolean persist) {
+        HashedWheelTimer.Timeout previous = active.remove(escalation.getUserId());
+        if (previous != null) {
+            previous.cancel();
+        }
+        long delay = escalation.getDueAtMillis() - System.currentTimeMillis();
+        active.put(escalation.getUserId(), wheel.schedule(() -> fire(escalation), delay, TimeUnit.MILLISECONDS));
+        if (persist) {
+            store.saveEscalation(escalation);
+        }
+    }
+
+    private void fire(PendingEscalation escalation) {
+        int userId = escalation.getUserId();
+        active.remove(userId);
+        Outcome outcome;
+        try {
+            outcome = listener.onEscalate(userId, escalation.getAlertId(), escalation.getStep());
+        } catch (Exception e) {
+            EngineLog.e(TAG, "Escalation failed for user " + userId, e);
+            outcome = Outcome.RETRY_LATER;
+        }
+        switch (outcome) {
+            case SENT:
+                if (escalation.getStep() < maxSteps) {
+                    schedule(new PendingEscalation(userId, escalation.getAlertId(), escalation.getStep() + 1,
+                            System.currentTimeMillis() + intervalMs), true);
+                } else {
+                    store.deleteEscalation(userId);
+                }
+                break;
+            case RETRY_LATER:
+                // Same step, not persisted again: the stored row is already overdue
+                schedule(new PendingEscalation(userId, escalation.getAlertId(), escalation.getStep(),
+                        System.currentTimeMillis() + RETRY_DELAY_MS), false);
+                break;
+            case STOP:
+                store.deleteEscalation(userId);
+                break;
+        }
+    }
+}
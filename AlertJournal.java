@@ -0,0 +1,317 @@
+package angelo.collins.smssender;
+
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped, append-only journal of SMS send outcomes.
+ *
+ * The send path writes one fixed-size record into a mapped ring instead of running
+ * an SQLite insert, which takes microseconds and survives the process being killed
+ * (the page cache is flushed by the kernel; force() is called off the send path for
+ * power loss). A background indexer folds records into sms_log and advances the
+ * indexed watermark in the file header. After a crash, open() finds every record with
+ * a valid CRC, so the dedup state can be rebuilt and unfolded records indexed.
+ * Records carry the message as an AlertMessage template id and parameters, so a
+ * replayed record renders the same text that was sent.
+ */
+public class AlertJournal implements Closeable {
+    private static final String TAG = "AlertJournal";
+    public static final String FILE_NAME = "alert_journal.bin";
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int MAGIC = 0x57424a4c; // "WBJL"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 64;
+    private static final int RECORD_BYTES = 256;
+    private static final int MAX_PHONE_BYTES = 24;
+    private static final int MAX_PARAMS_BYTES = 198;
+    private static final short PARAMS_IN_MEMORY = -1;
+
+    // Header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_INDEXED_SEQ = 16;
+
+    // Record layout
+    private static final int R_SEQ = 0;
+    private static final int R_TIME = 8;
+    private static final int R_USER_ID = 16;
+    private static final int R_ALERT_ID = 20;
+    private static final int R_STATUS = 24;
+    private static final int R_SLOT = 25;
+    private static final int R_PHONE_LENGTH = 26;
+    private static final int R_TEMPLATE = 27;
+    private static final int R_PHONE = 28;
+    private static final int R_PARAMS_LENGTH = 52;
+    private static final int R_PARAMS = 54;
+    private static final int R_CRC = 252;
+
+    // Only sends are journaled: sms_log is the dedup record, so a failed send must not appear in it
+    public static final int STATUS_SENT = 1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final ByteBuffer view; // Positioned copy of map for bulk record access, guarded by this
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+    private final byte[] record = new byte[RECORD_BYTES];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    // Parameters too long for a record, by sequence, until those records are folded
+    private final Map<Long, String> overflow = new ConcurrentHashMap<>();
+    private final List<Entry> recovered;
+    private long nextSeq;
+    private long indexedSeq;
+
+    private AlertJournal(File path, int capacity) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        long size = HEADER_BYTES + (long) capacity * RECORD_BYTES;
+        boolean fresh = file.length() == 0;
+        if (!fresh && !hasValidHeader(file, capacity)) {
+            Log.w(TAG, "Journal header does not match, starting a new journal");
+            file.setLength(0);
+            fresh = true;
+        }
+        file.setLength(size);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        view = map.duplicate();
+        this.capacity = capacity;
+        if (fresh) {
+            map.putInt(H_MAGIC, MAGIC);
+            map.putInt(H_VERSION, FORMAT_VERSION);
+            map.putInt(H_CAPACITY, capacity);
+            map.putLong(H_INDEXED_SEQ, 0);
+            map.force();
+        }
+        indexedSeq = map.getLong(H_INDEXED_SEQ);
+        recovered = scan();
+        nextSeq = Math.max(indexedSeq, recovered.isEmpty() ? 0 : recovered.get(recovered.size() - 1).seq) + 1;
+    }
+
+    public static AlertJournal open(File directory) throws IOException {
+        return new AlertJournal(new File(directory, FILE_NAME), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Number new records after seq, the highest journal_seq already in sms_log. A
+     * journal started over (new format, damaged header) would otherwise reuse
+     * sequences that folded rows still hold, and its records would be dropped by the
+     * fold as duplicates. No-op when the journal is already past seq.
+     */
+    public synchronized void continueAfter(long seq) {
+        if (seq < nextSeq) {
+            return;
+        }
+        Log.i(TAG, "Journal continues after sequence " + seq + " already in sms_log");
+        indexedSeq = seq;
+        nextSeq = seq + 1;
+        map.putLong(H_INDEXED_SEQ, seq);
+        map.force();
+    }
+
+    /**
+     * Every intact record found when the journal was opened, oldest first
+     */
+    public List<Entry> recovered() {
+        return recovered;
+    }
+
+    /**
+     * Append a send outcome. Returns false if the ring is full of records the
+     * indexer has not folded yet; the caller must then write to SQLite directly.
+     */
+    public synchronized boolean append(int userId, int alertId, int contactSlot, String phone, int status, AlertMessage message) {
+        if (nextSeq - indexedSeq > capacity) {
+            return false;
+        }
+        long seq = nextSeq++;
+        byte[] params = message.getParams().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = recordBuffer;
+        out.putLong(R_SEQ, seq);
+        out.putLong(R_TIME, System.currentTimeMillis());
+        out.putInt(R_USER_ID, userId);
+        out.putInt(R_ALERT_ID, alertId);
+        record[R_STATUS] = (byte) status;
+        record[R_SLOT] = (byte) contactSlot;
+        int phoneLength = phone != null ? Math.min(phone.length(), MAX_PHONE_BYTES) : 0;
+        record[R_PHONE_LENGTH] = (byte) phoneLength;
+        record[R_TEMPLATE] = (byte) message.getTemplateId();
+        for (int i = 0; i < MAX_PHONE_BYTES; i++) {
+            record[R_PHONE + i] = i < phoneLength ? (byte) phone.charAt(i) : 0;
+        }
+        if (params.length <= MAX_PARAMS_BYTES) {
+            out.putShort(R_PARAMS_LENGTH, (short) params.length);
+            System.arraycopy(params, 0, record, R_PARAMS, params.length);
+        } else {
+            // Rare (a large coalesced alert): kept in memory, lost if the process dies first
+            out.putShort(R_PARAMS_LENGTH, PARAMS_IN_MEMORY);
+            overflow.put(seq, message.getParams());
+        }
+        out.putInt(R_CRC, checksum(record));
+        view.position(offsetOf(seq));
+        view.put(record);
+        return true;
+    }
+
+    /**
+     * Records appended (or recovered) since the last markIndexed, oldest first
+     */
+    public synchronized List<Entry> unindexed() {
+        List<Entry> entries = new ArrayList<>((int) (nextSeq - indexedSeq - 1));
+        byte[] copy = new byte[RECORD_BYTES];
+        for (long seq = indexedSeq + 1; seq < nextSeq; seq++) {
+            view.position(offsetOf(seq));
+            view.get(copy);
+            Entry entry = decode(copy);
+            if (entry != null && entry.seq == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Record that everything up to seq is in sms_log, freeing those slots
+     */
+    public synchronized void markIndexed(long seq) {
+        if (seq <= indexedSeq) {
+            return;
+        }
+        indexedSeq = seq;
+        map.putLong(H_INDEXED_SEQ, seq);
+        for (Iterator<Long> keys = overflow.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next() <= seq) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Flush mapped pages to storage; call from a background thread
+     */
+    public void force() {
+        map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+        file.close();
+    }
+
+    private List<Entry> scan() {
+        List<Entry> entries = new ArrayList<>();
+        byte[] copy = new byte[RECORD_BYTES];
+        for (int slot = 0; slot < capacity; slot++) {
+            view.position(HEADER_BYTES + slot * RECORD_BYTES);
+            view.get(copy);
+            Entry entry = decode(copy);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.seq, b.seq);
+            }
+        });
+        if (MonitorLog.DEBUG) Log.d(TAG, "Recovered " + entries.size() + " journal records, indexed through " + indexedSeq);
+        return entries;
+    }
+
+    private Entry decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        long seq = in.getLong(R_SEQ);
+        if (seq <= 0 || in.getInt(R_CRC) != checksum(bytes)) {
+            return null;
+        }
+        int phoneLength = Math.min(bytes[R_PHONE_LENGTH], MAX_PHONE_BYTES);
+        char[] phone = new char[Math.max(0, phoneLength)];
+        for (int i = 0; i < phone.length; i++) {
+            phone[i] = (char) (bytes[R_PHONE + i] & 0xff);
+        }
+        int paramsLength = in.getShort(R_PARAMS_LENGTH);
+        String params;
+        if (paramsLength == PARAMS_IN_MEMORY) {
+            params = overflow.get(seq);
+        } else if (paramsLength >= 0 && paramsLength <= MAX_PARAMS_BYTES) {
+            params = new String(bytes, R_PARAMS, paramsLength, StandardCharsets.UTF_8);
+        } else {
+            return null;
+        }
+        return new Entry(seq, in.getLong(R_TIME), in.getInt(R_USER_ID), in.getInt(R_ALERT_ID),
+                bytes[R_SLOT], new String(phone), bytes[R_STATUS], bytes[R_TEMPLATE] & 0xff, params);
+    }
+
+    private int checksum(byte[] bytes) {
+        crc.reset();
+        crc.update(bytes, 0, R_CRC);
+        return (int) crc.getValue();
+    }
+
+    private int offsetOf(long seq) {
+        return HEADER_BYTES + (int) ((seq - 1) % capacity) * RECORD_BYTES;
+    }
+
+    private static boolean hasValidHeader(RandomAccessFile file, int capacity) throws IOException {
+        if (file.length() < HEADER_BYTES) {
+            return false;
+        }
+        file.seek(H_MAGIC);
+        int magic = file.readInt();
+        int version = file.readInt();
+        int storedCapacity = file.readInt();
+        return magic == MAGIC && version == FORMAT_VERSION && storedCapacity == capacity;
+    }
+
+    /**
+     * One decoded journal record
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long timeMillis;
+        public final int userId;
+        public final int alertId;
+        public final int contactSlot;
+        public final String phone;
+        public final int status;
+        public final int templateId;
+        /** AlertMessage parameters, or null if they were too long for the record and lost */
+        public final String params;
+
+        Entry(long seq, long timeMillis, int userId, int alertId, int contactSlot, String phone, int status,
+              int templateId, String params) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.userId = userId;
+            this.alertId = alertId;
+            this.contactSlot = contactSlot;
+            this.phone = phone;
+            this.status = status;
+            this.templateId = templateId;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An SMS body as a template id plus compact parameters.
+ *
+ * The send path renders the text once; sms_log and the alert journal store only the
+ * template id and the parameters (patient name, vitals and a location reference),
+ * which are a fraction of the ~250 characters of a rendered alert. getSMSLog()
+ * re-renders the text when it is actually read. Parameters are fields separated by
+ * FIELD; the coalesced template repeats the patient fields once per patient.
+ *
+ * Templates must stay stable once shipped: rows written by older versions are
+ * rendered by this class. Change wording by adding a template id.
+ */
+public final class AlertMessage {
+    /** Verbatim text, e.g. rows written before templates existed */
+    public static final int TEMPLATE_TEXT = 0;
+    public static final int TEMPLATE_EMERGENCY = 1;
+    public static final int TEMPLATE_REMINDER = 2;
+    public static final int TEMPLATE_COALESCED = 3;
+    public static final int TEMPLATE_ADDRESS_FOLLOW_UP = 4;
+
+    private static final char FIELD = '\u001f';
+    private static final int PATIENT_FIELDS = 6; // name, hr, systolic, diastolic, spo2, temperature
+    private static final String UNKNOWN_USER = "A WRISTBUD USER";
+    private static final String LOCATION_UNAVAILABLE = "Location unavailable";
+
+    private final int templateId;
+    private final String params;
+    private String text;
+
+    private AlertMessage(int templateId, String params) {
+        this.templateId = templateId;
+        this.params = params;
+    }
+
+    /**
+     * A message read back from storage
+     */
+    public static AlertMessage of(int templateId, String params) {
+        return new AlertMessage(templateId, params != null ? params : "");
+    }
+
+    public static AlertMessage text(String text) {
+        AlertMessage message = new AlertMessage(TEMPLATE_TEXT, text);
+        message.text = text;
+        return message;
+    }
+
+    public static AlertMessage emergency(CriticalUser user, String locationRef) {
+        StringBuilder params = new StringBuilder(64);
+        params.append(locationRef);
+        appendPatient(params, user);
+        return new AlertMessage(TEMPLATE_EMERGENCY, params.toString());
+    }
+
+    public static AlertMessage reminder(CriticalUser user, String locationRef, int step) {
+        StringBuilder params = new StringBuilder(64);
+        params.append(step).append(FIELD).append(locationRef);
+        appendPatient(params, user);
+        return new AlertMessage(TEMPLATE_REMINDER, params.toString());
+    }
+
+    /**
+     * One SMS for several alerts held for the same phone; the newest alert's location wins
+     */
+    public static AlertMessage coalesced(List<AlertCoalescer.Pending> alerts) {
+        StringBuilder params = new StringBuilder(32 + 32 * alerts.size());
+        params.append(alerts.get(alerts.size() - 1).locationRef);
+        for (AlertCoalescer.Pending alert : alerts) {
+            appendPatient(params, alert.user);
+        }
+        return new AlertMessage(TEMPLATE_COALESCED, params.toString());
+    }
+
+    public static AlertMessage addressFollowUp(String userName, String address, double latitude, double longitude) {
+        return new AlertMessage(TEMPLATE_ADDRESS_FOLLOW_UP, nullToEmpty(userName) + FIELD + address + FIELD
+                + coordinateReference(latitude, longitude).substring(1));
+    }
+
+    /**
+     * Reference for a location whose text is known, e.g. a geocoded address
+     */
+    public static String locationReference(String description) {
+        if (description == null || description.isEmpty()) {
+            return "";
+        }
+        // A leading '@' marks coordinates, so escape text that starts with one
+        return description.charAt(0) == '@' ? "@" + description : description;
+    }
+
+    /**
+     * Reference for bare coordinates; rendered with a maps link
+     */
+    public static String coordinateReference(double latitude, double longitude) {
+        return "@" + ResolvedLocation.formatCoordinates(latitude, longitude).replace(" ", "");
+    }
+
+    /**
+     * The older free-form alert text, built directly without a template. Kept for
+     * SMSManager.formatEmergencyMessage and as a reference in AlertBenchmarks.
+     */
+    public static String plainEmergency(String userName, String location, CriticalUser user) {
+        StringBuilder message = new StringBuilder();
+
+        // Core message
+        message.append("WRISTBUD EMERGENCY: Critical vitals detected for ");
+        message.append(userName != null ? userName.toUpperCase() : UNKNOWN_USER);
+        message.append(". Location: ").append(location);
+
+        // Add vital signs if space allows
+        if (user != null) {
+            StringBuilder vitals = new StringBuilder();
+
+            if (user.getHeartRate() > 0) {
+                vitals.append(" HR:").append(user.getHeartRate());
+            }
+            if (user.getBloodPressure() != null && !user.getBloodPressure().isEmpty()) {
+                vitals.append(" BP:").append(user.getBloodPressure());
+            }
+            if (user.getSpo2() > 0) {
+                vitals.append(" O2:").append(user.getSpo2()).append("%");
+            }
+            if (user.getTemperature() > 0) {
+                vitals.append(" T:").append(String.format("%.1f", user.getTemperature())).append("F");
+            }
+
+            // Only add vitals if total message length is reasonable
+            if (message.length() + vitals.length() < 300) {
+                message.append(vitals);
+            }
+        }
+
+        message.append(". Please check immediately!");
+        return message.toString();
+    }
+
+    public int getTemplateId() {
+        return templateId;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    /**
+     * The SMS text; rendered on first use
+     */
+    public String render() {
+        if (text == null) {
+            text = templateId == TEMPLATE_TEXT ? params : render(templateId, split(params));
+        }
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+
+    private static String render(int templateId, String[] fields) {
+        StringBuilder message = new StringBuilder(256);
+        switch (templateId) {
+            case TEMPLATE_EMERGENCY:
+                message.append("THIS IS MESSAGE IS FROM WRISTBUD: ");
+                message.append("WE WOULD LIKE TO INFORM YOU THAT WE HAVE DETECTED A CRITICAL VITALS FOR ");
+                message.append(upperName(field(fields, 1)));
+                message.append(". LAST LOCATION SEEN IS ").append(describeLocation(field(fields, 0))).append(".");
+                appendVitals(message, fields, 1);
+                message.append(" Please check on them immediately.");
+                break;
+            case TEMPLATE_REMINDER:
+                message.append("WRISTBUD REMINDER ").append(field(fields, 0)).append(": THE CRITICAL ALERT FOR ");
+                message.append(upperName(field(fields, 2)));
+                message.append(" HAS NOT BEEN ACKNOWLEDGED. LAST LOCATION SEEN IS ")
+                        .append(describeLocation(field(fields, 1))).append(".");
+                appendVitals(message, fields, 2);
+                message.append(" Please check on them immediately.");
+                break;
+            case TEMPLATE_COALESCED:
+                int patients = (fields.length - 1) / PATIENT_FIELDS;
+                message.append("THIS IS MESSAGE IS FROM WRISTBUD: ");
+                message.append("WE HAVE DETECTED CRITICAL VITALS FOR ").append(patients).append(" USERS.");
+                for (int i = 0; i < patients; i++) {
+                    int first = 1 + i * PATIENT_FIELDS;
+                    message.append(' ').append(upperName(field(fields, first))).append(':');
+                    appendVitals(message, fields, first);
+                    message.append(';');
+                }
+                message.append(" LAST LOCATION SEEN IS ").append(describeLocation(field(fields, 0))).append(".");
+                message.append(" Please check on them immediately.");
+                break;
+            case TEMPLATE_ADDRESS_FOLLOW_UP:
+                String[] coordinates = field(fields, 2).split(",");
+                message.append("WRISTBUD LOCATION UPDATE FOR ").append(upperName(field(fields, 0))).append(": ")
+                        .append(field(fields, 1)).append(" (");
+                if (coordinates.length == 2) {
+                    message.append(ResolvedLocation.mapsLink(parseDouble(coordinates[0]), parseDouble(coordinates[1])));
+                }
+                message.append(")");
+                break;
+            default:
+                // A template from a newer version; show the raw parameters
+                for (String field : fields) {
+                    message.append(field).append(' ');
+                }
+                return message.toString().trim();
+        }
+        return message.toString();
+    }
+
+    private static void appendPatient(StringBuilder params, CriticalUser user) {
+        params.append(FIELD).append(nullToEmpty(user.getName()));
+        params.append(FIELD);
+        if (user.getHeartRate() > 0) {
+            params.append(user.getHeartRate());
+        }
+        params.append(FIELD);
+        if (user.getBloodPressure() != null) {
+            params.append(user.getSystolic()).append(FIELD).append(user.getDiastolic());
+        } else {
+            params.append(FIELD);
+        }
+        params.append(FIELD);
+        if (user.getSpo2() > 0) {
+            params.append(user.getSpo2());
+        }
+        params.append(FIELD);
+        if (user.getTemperature() > 0) {
+            // Stored as rendered so re-rendering is exact
+            params.append(String.format("%.1f", user.getTemperature()));
+        }
+    }
+
+    /**
+     * Vitals of the patient whose name is at fields[first]
+     */
+    private static void appendVitals(StringBuilder message, String[] fields, int first) {
+        String heartRate = field(fields, first + 1);
+        String systolic = field(fields, first + 2);
+        String spo2 = field(fields, first + 4);
+        String temperature = field(fields, first + 5);
+        if (!heartRate.isEmpty()) {
+            message.append(" HR: ").append(heartRate).append(" BPM");
+        }
+        if (!systolic.isEmpty()) {
+            message.append(" BP: ").append(systolic).append('/').append(field(fields, first + 3));
+        }
+        if (!spo2.isEmpty()) {
+            message.append(" SpO2: ").append(spo2).append("%");
+        }
+        if (!temperature.isEmpty()) {
+            message.append(" Temp: ").append(temperature).append("°F");
+        }
+    }
+
+    private static String describeLocation(String reference) {
+        if (reference.isEmpty()) {
+            return LOCATION_UNAVAILABLE;
+        }
+        if (reference.charAt(0) != '@') {
+            return reference;
+        }
+        if (reference.startsWith("@@")) {
+            return reference.substring(1);
+        }
+        String[] coordinates = reference.substring(1).split(",");
+        if (coordinates.length != 2) {
+            return reference;
+        }
+        double latitude = parseDouble(coordinates[0]);
+        double longitude = parseDouble(coordinates[1]);
+        return ResolvedLocation.formatCoordinates(latitude, longitude) + " (" + ResolvedLocation.mapsLink(latitude, longitude) + ")";
+    }
+
+    private static String upperName(String name) {
+        return name.isEmpty() ? UNKNOWN_USER : name.toUpperCase();
+    }
+
+    private static String field(String[] fields, int index) {
+        return index < fields.length ? fields[index] : "";
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static String[] split(String params) {
+        List<String> fields = new ArrayList<>(8);
+        int start = 0;
+        for (int i = 0; i < params.length(); i++) {
+            if (params.charAt(i) == FIELD) {
+                fields.add(params.substring(start, i));
+                start = i + 1;
+            }
+        }
+        fields.add(params.substring(start));
+        return fields.toArray(new String[0]);
+    }
+}
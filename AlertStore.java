@@ -0,0 +1,35 @@
+package angelo.collins.smssender;
+
+
+import java.util.List;
+
+/**
+ * Where the alert engine records what it sent and which reminders are pending.
+ *
+ * hasSMSBeenSent is the dedup check on the send path and must stay cheap; the others
+ * run once per SMS or escalation step. Implementations must be thread-safe.
+ */
+public interface AlertStore {
+
+    /**
+     * Whether an SMS was already sent for this user and alert
+     */
+    boolean hasSMSBeenSent(int userId, int alertId);
+
+    /**
+     * Record a sent SMS by its template and parameters
+     */
+    void markSMSAsSent(int userId, int alertId, int contactSlot, String phoneNumber, AlertMessage message);
+
+    /**
+     * Store the next escalation step for a user, replacing the previous one
+     */
+    void saveEscalation(PendingEscalation escalation);
+
+    void deleteEscalation(int userId);
+
+    /**
+     * All escalations persisted by earlier runs, soonest first
+     */
+    List<PendingEscalation> getPendingEscalations();
+}
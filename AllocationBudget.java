@@ -0,0 +1,277 @@
+package angelo.collins.smssender;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Allocation gate for the idle monitor cycle: the engine polls a feed in which
+ * nothing changes, and the bytes its worker and scheduler threads allocate per cycle
+ * are held against a committed budget.
+ *
+ *   java -cp classes angelo.collins.smssender.AllocationBudget
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar angelo.collins.smssender.AllocationBudget --feed=http
+ *
+ * Scenarios:
+ *   idle    every patient critical for the same alert, only the server's timestamp
+ *           moves between polls
+ *   empty   nobody critical
+ *
+ * The alerts of the first poll go out during warm-up; coalescing and escalation are
+ * off so nothing but polling happens while measuring. The counts come from
+ * ThreadMXBean, looked up reflectively as in BenchmarkRunner, so this needs a
+ * HotSpot-like JVM. They are read on the worker at the start of two polls, which
+ * costs a few boxed longs over the whole measurement.
+ *
+ * Options (--name=value):
+ *   feed           "direct" (default: the decoder on in-process JSON) or "http"
+ *                  (HttpCriticalFeed against a LoadTestServer, okhttp included)
+ *   users          patients in the idle scenario, default 1000
+ *   interval-ms    poll interval, default 10; polls of many patients need longer, or
+ *                  skipped ticks are counted into the cycle
+ *   warmup         polls before measuring, enough for the JIT, default 1000
+ *   cycles         polls measured, default 300
+ *   only           regex on scenario names
+ *   budget         budget file, default allocation-budget.tsv (tab-separated:
+ *                  scenario, bytes per cycle)
+ *   save           write the measured bytes per cycle to this budget file, with 64
+ *                  bytes or 2% of headroom, whichever is more, rounded up to a multiple
+ *                  of 64 (okhttp's per-poll garbage varies by a hundred bytes or so
+ *                  between runs); lines of scenarios not measured in this run are kept
+ *
+ * Exits 1 if a scenario allocates more per cycle than its budget, has no budget line
+ * or cannot be measured, or if the budget file is missing, so a build can run it as a
+ * check. With --save nothing is held against the budget.
+ */
+public final class AllocationBudget {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CONTACTS = 2;
+    private static final int PAYLOAD_VARIANTS = 4; // Bodies that differ only in the server timestamp
+    private static final long HEADROOM_BYTES = 64;
+    private static final double HEADROOM_SHARE = 0.02;
+
+    private static final class Measurement {
+        final String name;
+        final double workerBytes;
+        final double schedulerBytes;
+
+        Measurement(String name, double workerBytes, double schedulerBytes) {
+            this.name = name;
+            this.workerBytes = workerBytes;
+            this.schedulerBytes = schedulerBytes;
+        }
+
+        double total() {
+            return workerBytes + schedulerBytes;
+        }
+    }
+
+    private AllocationBudget() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        boolean http = "http".equals(option(options, "feed", "direct"));
+        int users = Integer.parseInt(option(options, "users", "1000"));
+        long intervalMs = Long.parseLong(option(options, "interval-ms", "10"));
+        int warmup = Integer.parseInt(option(options, "warmup", "1000"));
+        int cycles = Math.max(1, Integer.parseInt(option(options, "cycles", "300")));
+        Pattern only = options.containsKey("only") ? Pattern.compile(options.get("only")) : null;
+        File budgetFile = new File(option(options, "budget", "allocation-budget.tsv"));
+        boolean save = options.containsKey("save");
+        if (!save && !budgetFile.isFile()) {
+            System.out.println("No budget file at " + budgetFile.getAbsolutePath()
+                    + "; run from the directory holding it, pass --budget=FILE or write one with --save=FILE");
+            System.exit(1);
+        }
+
+        if (BenchmarkRunner.Allocation.threadAllocatedBytes() < 0) {
+            System.out.println("Thread allocation counters are not available on this JVM");
+            System.exit(1);
+        }
+
+        List<Measurement> results = new ArrayList<>();
+        String prefix = http ? "http." : "direct.";
+        String[] scenarios = {"idle", "empty"};
+        for (String scenario : scenarios) {
+            if (only != null && !only.matcher(prefix + scenario).find()) {
+                continue;
+            }
+            int patients = "empty".equals(scenario) ? 0 : users;
+            results.add(measure(prefix + scenario, patients, http, intervalMs, warmup, cycles));
+        }
+
+        Map<String, Double> budget = budgetFile.isFile() ? readBudget(budgetFile) : new LinkedHashMap<String, Double>();
+        int failures = 0;
+        System.out.println(String.format(Locale.US, "%-14s %12s %12s %12s %12s", "Scenario", "worker B", "scheduler B", "B/cycle", "budget"));
+        for (Measurement result : results) {
+            Double limit = budget.get(result.name);
+            String verdict = limit == null ? "  NO BUDGET" : result.total() > limit ? "  OVER BUDGET" : "";
+            if (!verdict.isEmpty() && !save) {
+                failures++;
+            }
+            System.out.println(String.format(Locale.US, "%-14s %12.1f %12.1f %12.1f %12s%s", result.name,
+                    result.workerBytes, result.schedulerBytes, result.total(),
+                    limit != null ? String.format(Locale.US, "%.0f", limit) : "none", verdict));
+        }
+        if (save) {
+            File saveFile = new File(options.get("save"));
+            saveBudget(results, saveFile.isFile() ? readBudget(saveFile) : new LinkedHashMap<String, Double>(), saveFile);
+            System.out.println("Saved budget to " + options.get("save"));
+        } else {
+            System.out.println(failures == 0 ? "Within budget" : failures + " scenario(s) over budget or without one");
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Run the engine until warm, then count what its threads allocate over the
+     * measured polls
+     */
+    private static Measurement measure(String name, int patients, boolean http, long intervalMs,
+                                       int warmup, int cycles) throws Exception {
+        SyntheticFeed feed = new SyntheticFeed(patients, CONTACTS, 42);
+        // As on the phone, so the watchdog's heartbeats are part of the cycle
+        SupervisedWorker worker = new SupervisedWorker("wristbud-budget-worker");
+        Thread[] scheduler = new Thread[1];
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            scheduler[0] = new Thread(r, "wristbud-budget-scheduler");
+            return scheduler[0];
+        });
+
+        LoadTestServer server = null;
+        CriticalFeed source;
+        if (http) {
+            server = new LoadTestServer(feed, 0);
+            server.start();
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .connectTimeout(10, TimeUnit.SECONDS)
+                    .readTimeout(10, TimeUnit.SECONDS)
+                    .build();
+            source = new HttpCriticalFeed(client, server.getBaseUrl(), new ContactDirectory("63"));
+        } else {
+            String[] payloads = new String[PAYLOAD_VARIANTS];
+            for (int i = 0; i < payloads.length; i++) {
+                payloads[i] = feed.criticalUsersJson(false);
+                Thread.sleep(2); // A new server timestamp
+            }
+            CriticalFeedDecoder decoder = new CriticalFeedDecoder();
+            AtomicInteger next = new AtomicInteger();
+            source = () -> decoder.decode(payloads[next.getAndIncrement() % payloads.length]);
+        }
+
+        // Sample both threads at the start of the first and the last measured poll
+        long[] samples = new long[4];
+        AtomicInteger polls = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        CriticalFeed sampled = () -> {
+            int poll = polls.getAndIncrement();
+            if (poll == warmup || poll == warmup + cycles) {
+                int at = poll == warmup ? 0 : 2;
+                samples[at] = BenchmarkRunner.Allocation.threadAllocatedBytes(worker.getThread().getId());
+                samples[at + 1] = BenchmarkRunner.Allocation.threadAllocatedBytes(scheduler[0].getId());
+                if (at == 2) {
+                    done.countDown();
+                }
+            }
+            return source.fetchCriticalUsers();
+        };
+
+        AlertEngine engine = new AlertEngine.Builder()
+                .setFeed(sampled)
+                .setStore(new MemoryAlertStore())
+                .setLocation(new FixedLocationSource(14.5995, 120.9842, "Manila"))
+                .setTransport(new RecordingSmsTransport("budget"))
+                .setWorker(worker)
+                .setScheduler(timer)
+                .setCheckIntervalMs(intervalMs)
+                .setCoalescing(0, AlertEngine.DEFAULT_COALESCE_MAX_ALERTS)
+                .setEscalation(0, 0)
+                .build();
+        try {
+            engine.start();
+            long timeoutMs = (warmup + cycles) * intervalMs * 4 + TimeUnit.SECONDS.toMillis(60);
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException(name + ": only " + polls.get() + " polls in " + timeoutMs + " ms");
+            }
+        } finally {
+            engine.stop();
+            engine.awaitTermination(10, TimeUnit.SECONDS);
+            if (server != null) {
+                server.close();
+            }
+        }
+        for (long sample : samples) {
+            if (sample < 0) {
+                throw new IllegalStateException(name + ": allocation counters unavailable");
+            }
+        }
+        return new Measurement(name, (double) (samples[2] - samples[0]) / cycles, (double) (samples[3] - samples[1]) / cycles);
+    }
+
+    private static Map<String, Double> readBudget(File file) throws IOException {
+        Map<String, Double> budget = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length >= 2) {
+                    budget.put(fields[0], Double.parseDouble(fields[1]));
+                }
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Write the measured scenarios over the budget read from the file, keeping the others
+     */
+    private static void saveBudget(List<Measurement> results, Map<String, Double> budget, File file) throws IOException {
+        for (Measurement result : results) {
+            long headroom = Math.max(HEADROOM_BYTES, (long) Math.ceil(result.total() * HEADROOM_SHARE));
+            long limit = (long) Math.ceil(result.total()) + headroom;
+            budget.put(result.name, (double) ((limit + HEADROOM_BYTES - 1) / HEADROOM_BYTES * HEADROOM_BYTES));
+        }
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            writer.println("# scenario\tbytes_per_cycle");
+            for (Map.Entry<String, Double> entry : budget.entrySet()) {
+                writer.println(entry.getKey() + "\t" + entry.getValue().longValue());
+            }
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+}
@@ -0,0 +1,335 @@
+package angelo.collins.smssender;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Small JMH-style harness for the benchmarks in AlertBenchmarks: time-boxed warmup,
+ * several measured iterations, throughput with its spread, and the bytes allocated
+ * per operation and GC activity during measurement.
+ *
+ * Results can be saved as a baseline file (tab-separated: name, param, ops/s, B/op)
+ * and a later run compared against it; a benchmark regresses when its throughput drops
+ * or its allocation grows by more than the threshold for each.
+ *
+ * The allocation and GC counters come from java.lang.management, looked up
+ * reflectively because Android does not have it; without them B/op reads n/a.
+ */
+public final class BenchmarkRunner {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long ALLOCATION_NOISE_BYTES = 32; // Below this a B/op change is not a regression (JDBC varies by ~24 B)
+
+    /**
+     * One operation; return something derived from the work so it is not optimized away
+     */
+    public interface Body {
+        long run() throws Exception;
+    }
+
+    /**
+     * Builds the state a benchmark needs for one parameter, outside the measurement
+     */
+    public interface Setup {
+        Body create(String param) throws Exception;
+    }
+
+    public static final class Result {
+        public final String name;
+        public final String param;
+        public final double opsPerSecond;
+        public final double error; // Standard deviation across iterations, ops/s
+        public final double bytesPerOp; // -1 if unknown
+        public final long gcCount;
+        public final long gcMillis;
+
+        Result(String name, String param, double opsPerSecond, double error, double bytesPerOp, long gcCount, long gcMillis) {
+            this.name = name;
+            this.param = param;
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        String key() {
+            return name + "\t" + param;
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final String[] params;
+        final Setup setup;
+
+        Entry(String name, String[] params, Setup setup) {
+            this.name = name;
+            this.params = params;
+            this.setup = setup;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long warmupMs = 2000;
+    private long iterationMs = 1000;
+    private int iterations = 5;
+    private long sink; // Keeps benchmark results alive
+
+    public BenchmarkRunner add(String name, String[] params, Setup setup) {
+        entries.add(new Entry(name, params, setup));
+        return this;
+    }
+
+    public BenchmarkRunner setWarmupMs(long warmupMs) {
+        this.warmupMs = warmupMs;
+        return this;
+    }
+
+    public BenchmarkRunner setIterationMs(long iterationMs) {
+        this.iterationMs = iterationMs;
+        return this;
+    }
+
+    public BenchmarkRunner setIterations(int iterations) {
+        this.iterations = Math.max(1, iterations);
+        return this;
+    }
+
+    /**
+     * Run the benchmarks whose name matches the filter (null for all), printing each
+     * result as it completes. A benchmark whose setup fails is reported and skipped.
+     */
+    public List<Result> run(Pattern filter, PrintWriter out) {
+        List<Result> results = new ArrayList<>();
+        out.println(String.format(Locale.US, "%-28s %-10s %14s %12s %12s %8s",
+                "Benchmark", "Param", "ops/s", "error", "B/op", "gc ms"));
+        out.flush();
+        for (Entry entry : entries) {
+            if (filter != null && !filter.matcher(entry.name).find()) {
+                continue;
+            }
+            for (String param : entry.params) {
+                try {
+                    Result result = measure(entry.name, param, entry.setup.create(param));
+                    results.add(result);
+                    out.println(String.format(Locale.US, "%-28s %-10s %14.1f %12.1f %12s %8d",
+                            result.name, result.param, result.opsPerSecond, result.error,
+                            result.bytesPerOp < 0 ? "n/a" : String.format(Locale.US, "%.1f", result.bytesPerOp),
+                            result.gcMillis));
+                } catch (Exception e) {
+                    out.println(String.format(Locale.US, "%-28s %-10s skipped: %s", entry.name, param, e));
+                }
+                out.flush();
+            }
+        }
+        return results;
+    }
+
+    private Result measure(String name, String param, Body body) throws Exception {
+        long batch = calibrate(body);
+        runFor(body, batch, warmupMs);
+        double[] rates = new double[iterations];
+        long ops = 0;
+        long allocatedBefore = Allocation.threadAllocatedBytes();
+        long[] gcBefore = Allocation.gcTotals();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long done = runFor(body, batch, iterationMs);
+            rates[i] = done / ((System.nanoTime() - start) / 1e9);
+            ops += done;
+        }
+        long allocatedAfter = Allocation.threadAllocatedBytes();
+        long[] gcAfter = Allocation.gcTotals();
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / rates.length;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / rates.length;
+        }
+        double bytesPerOp = allocatedBefore >= 0 && allocatedAfter >= 0
+                ? (double) (allocatedAfter - allocatedBefore) / ops
+                : -1;
+        return new Result(name, param, mean, Math.sqrt(variance), bytesPerOp,
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    /**
+     * Operations per clock check, so that reading the clock stays a small share of
+     * fast benchmarks
+     */
+    private long calibrate(Body body) throws Exception {
+        long batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sink += body.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > TimeUnit.MILLISECONDS.toNanos(10) || batch >= 1 << 20) {
+                return batch;
+            }
+            batch *= 2;
+        }
+    }
+
+    private long runFor(Body body, long batch, long millis) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long done = 0;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sink += body.run();
+            }
+            done += batch;
+        } while (System.nanoTime() - deadline < 0);
+        return done;
+    }
+
+    public long sink() {
+        return sink;
+    }
+
+    /**
+     * Write results as a baseline for later runs
+     */
+    public static void save(List<Result> results, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            writer.println("# benchmark\tparam\tops_per_s\tbytes_per_op");
+            for (Result result : results) {
+                writer.println(String.format(Locale.US, "%s\t%.3f\t%.3f", result.key(), result.opsPerSecond, result.bytesPerOp));
+            }
+        }
+    }
+
+    /**
+     * Compare with a saved baseline; returns the number of regressions beyond the
+     * thresholds (0.10 = 10 %). Throughput only compares on the machine the baseline was
+     * saved on and is noisier than B/op, so it takes its own threshold.
+     */
+    public static int compare(List<Result> results, File baselineFile, double speedThreshold,
+                              double allocationThreshold, PrintWriter out) throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(baselineFile), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length >= 4) {
+                    baseline.put(fields[0] + "\t" + fields[1],
+                            new double[] {Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+                }
+            }
+        }
+        int regressions = 0;
+        out.println();
+        out.println(String.format(Locale.US, "%-28s %-10s %10s %10s  vs %s", "Benchmark", "Param", "ops/s", "B/op", baselineFile));
+        for (Result result : results) {
+            double[] base = baseline.get(result.key());
+            if (base == null) {
+                out.println(String.format(Locale.US, "%-28s %-10s %10s %10s", result.name, result.param, "new", "new"));
+                continue;
+            }
+            double speed = result.opsPerSecond / base[0] - 1;
+            boolean slower = speed < -speedThreshold;
+            boolean fatter = base[1] >= 0 && result.bytesPerOp >= 0
+                    && result.bytesPerOp - base[1] > Math.max(ALLOCATION_NOISE_BYTES, base[1] * allocationThreshold);
+            String allocation = base[1] >= 0 && result.bytesPerOp >= 0
+                    ? String.format(Locale.US, "%+.1f", result.bytesPerOp - base[1])
+                    : "n/a";
+            out.println(String.format(Locale.US, "%-28s %-10s %+9.1f%% %10s%s", result.name, result.param,
+                    speed * 100, allocation, slower || fatter ? "  REGRESSION" : ""));
+            if (slower || fatter) {
+                regressions++;
+            }
+        }
+        out.flush();
+        return regressions;
+    }
+
+    /**
+     * Reflective access to the JVM's allocation and GC counters
+     */
+    static final class Allocation {
+        private static final Object THREAD_BEAN;
+        private static final Method ALLOCATED_BYTES;
+        private static final List<Object> GC_BEANS = new ArrayList<>();
+        private static final Method GC_COUNT;
+        private static final Method GC_TIME;
+
+        static {
+            Object threadBean = null;
+            Method allocatedBytes = null;
+            Method gcCount = null;
+            Method gcTime = null;
+            try {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+                allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+                Class<?> gcBean = Class.forName("java.lang.management.GarbageCollectorMXBean");
+                gcCount = gcBean.getMethod("getCollectionCount");
+                gcTime = gcBean.getMethod("getCollectionTime");
+                GC_BEANS.addAll((List<?>) factory.getMethod("getGarbageCollectorMXBeans").invoke(null));
+            } catch (Exception | LinkageError e) {
+                // Not a HotSpot-like JVM; allocation is reported as n/a
+            }
+            THREAD_BEAN = threadBean;
+            ALLOCATED_BYTES = allocatedBytes;
+            GC_COUNT = gcCount;
+            GC_TIME = gcTime;
+        }
+
+        static long threadAllocatedBytes() {
+            return threadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        /**
+         * Bytes the thread has allocated so far, -1 if unknown
+         */
+        static long threadAllocatedBytes(long threadId) {
+            if (ALLOCATED_BYTES == null) {
+                return -1;
+            }
+            try {
+                return (Long) ALLOCATED_BYTES.invoke(THREAD_BEAN, threadId);
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        static long[] gcTotals() {
+            long count = 0;
+            long millis = 0;
+            if (GC_COUNT != null) {
+                for (Object bean : GC_BEANS) {
+                    try {
+                        count += Math.max(0, (Long) GC_COUNT.invoke(bean));
+                        millis += Math.max(0, (Long) GC_TIME.invoke(bean));
+                    } catch (Exception e) {
+                        // Skip this collector
+                    }
+                }
+            }
+            return new long[] {count, millis};
+        }
+    }
+}
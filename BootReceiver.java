@@ -4,6 +4,7 @@ package angelo.collins.smssender;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class BootReceiver extends BroadcastReceiver {
@@ -22,6 +23,7 @@ public class BootReceiver extends BroadcastReceiver {
             
             // Start the critical monitoring service
             Intent serviceIntent = new Intent(context, CriticalMonitorService.class);
+            serviceIntent.putExtra(CriticalMonitorService.EXTRA_BOOT_RECEIVED_AT, SystemClock.elapsedRealtime());
             context.startForegroundService(serviceIntent);
             
             Log.i(TAG, "WristBud SMS monitoring service started automatically");
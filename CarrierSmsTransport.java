@@ -0,0 +1,202 @@
+package angelo.collins.smssender;
+
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends through the radio using the SmsManager of one SIM subscription.
+ *
+ * Every part carries a sent PendingIntent, so the carrier's verdict (including
+ * throttling and "no service") comes back to the callback instead of being lost the
+ * way getDefault().sendTextMessage(..., null, null) lost it.
+ */
+public class CarrierSmsTransport implements SmsTransport {
+    private static final String TAG = "CarrierSmsTransport";
+    private static final String ACTION_SENT = "angelo.collins.smssender.SMS_SENT";
+    private static final String EXTRA_TOKEN = "token";
+    private static final int MAX_SMS_LENGTH = 160;
+    // A sent report that has not arrived by then is assumed lost; the SMS most likely went out
+    private static final long REPORT_TIMEOUT_MS = 120_000;
+    private static final AtomicInteger nextRequestCode = new AtomicInteger();
+
+    private final Context context;
+    private final SmsManager smsManager;
+    private final String name;
+    private final String action;
+    private final AtomicInteger nextToken = new AtomicInteger();
+    private final Map<Integer, Outstanding> outstanding = new ConcurrentHashMap<>();
+    private BroadcastReceiver receiver;
+
+    /**
+     * @param subscriptionId SIM subscription, or -1 for the default SMS subscription
+     */
+    public CarrierSmsTransport(Context context, int subscriptionId, String name) {
+        this.context = context.getApplicationContext();
+        this.smsManager = subscriptionId >= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+                ? SmsManager.getSmsManagerForSubscriptionId(subscriptionId)
+                : SmsManager.getDefault();
+        this.name = name;
+        this.action = ACTION_SENT + "." + name;
+    }
+
+    /**
+     * One transport per active SIM, or the default SmsManager alone if subscriptions
+     * cannot be listed (single SIM, old Android or no READ_PHONE_STATE)
+     */
+    public static List<CarrierSmsTransport> forActiveSubscriptions(Context context) {
+        List<CarrierSmsTransport> transports = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            try {
+                List<SubscriptionInfo> subscriptions = SubscriptionManager.from(context).getActiveSubscriptionInfoList();
+                if (subscriptions != null) {
+                    for (SubscriptionInfo info : subscriptions) {
+                        transports.add(new CarrierSmsTransport(context, info.getSubscriptionId(),
+                                "sim" + (info.getSimSlotIndex() + 1)));
+                    }
+                }
+            } catch (SecurityException e) {
+                Log.w(TAG, "Cannot list SIM subscriptions without READ_PHONE_STATE, using default SIM");
+            }
+        }
+        if (transports.isEmpty()) {
+            transports.add(new CarrierSmsTransport(context, -1, "sim"));
+        }
+        if (MonitorLog.DEBUG) Log.d(TAG, "SMS transports: " + transports.size() + " SIM(s)");
+        return transports;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean send(String phone, String message, Callback callback) {
+        ensureReceiver();
+        expireStaleReports();
+        ArrayList<String> parts = message.length() <= MAX_SMS_LENGTH ? null : smsManager.divideMessage(message);
+        int token = nextToken.incrementAndGet();
+        outstanding.put(token, new Outstanding(callback, parts != null ? parts.size() : 1));
+        try {
+            if (parts == null) {
+                smsManager.sendTextMessage(phone, null, message, sentIntent(token), null);
+                if (MonitorLog.DEBUG) Log.i(TAG, name + ": single SMS queued for " + MonitorLog.maskPhone(phone));
+            } else {
+                ArrayList<PendingIntent> sentIntents = new ArrayList<>(parts.size());
+                for (int i = 0; i < parts.size(); i++) {
+                    sentIntents.add(sentIntent(token));
+                }
+                smsManager.sendMultipartTextMessage(phone, null, parts, sentIntents, null);
+                if (MonitorLog.DEBUG) Log.i(TAG, name + ": " + parts.size() + "-part SMS queued for " + MonitorLog.maskPhone(phone));
+            }
+            return true;
+        } catch (SecurityException e) {
+            outstanding.remove(token);
+            Log.e(TAG, "SMS permission not granted", e);
+            return false;
+        } catch (RuntimeException e) {
+            outstanding.remove(token);
+            Log.e(TAG, name + ": failed to send SMS", e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+
+    private PendingIntent sentIntent(int token) {
+        Intent intent = new Intent(action).setPackage(context.getPackageName()).putExtra(EXTRA_TOKEN, token);
+        // Each part needs its own request code, or the system would merge the intents
+        return PendingIntent.getBroadcast(context, nextRequestCode.incrementAndGet(), intent,
+                PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * Registered on first send, so creating an SMSManager that never sends costs nothing
+     */
+    private synchronized void ensureReceiver() {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onSentReport(intent.getIntExtra(EXTRA_TOKEN, -1), getResultCode());
+            }
+        };
+        IntentFilter filter = new IntentFilter(action);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(receiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, filter);
+        }
+    }
+
+    private void onSentReport(int token, int resultCode) {
+        Outstanding report = outstanding.get(token);
+        if (report == null) {
+            return;
+        }
+        boolean sent = resultCode == Activity.RESULT_OK;
+        if (!sent) {
+            Log.w(TAG, name + ": carrier rejected SMS part, result " + resultCode);
+        }
+        if (report.partDone(sent) && outstanding.remove(token, report) && report.callback != null) {
+            report.callback.onResult(report.allSent);
+        }
+    }
+
+    private void expireStaleReports() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Outstanding> entry : outstanding.entrySet()) {
+            Outstanding report = entry.getValue();
+            if (now - report.sentAtMillis > REPORT_TIMEOUT_MS && outstanding.remove(entry.getKey(), report)) {
+                Log.w(TAG, name + ": no sent report after " + REPORT_TIMEOUT_MS + " ms, assuming sent");
+                if (report.callback != null) {
+                    report.callback.onResult(report.allSent);
+                }
+            }
+        }
+    }
+
+    private static final class Outstanding {
+        final Callback callback;
+        final long sentAtMillis = System.currentTimeMillis();
+        int partsLeft;
+        boolean allSent = true;
+
+        Outstanding(Callback callback, int parts) {
+            this.callback = callback;
+            this.partsLeft = parts;
+        }
+
+        /**
+         * Returns true once the last part has reported
+         */
+        synchronized boolean partDone(boolean sent) {
+            allSent &= sent;
+            return --partsLeft == 0;
+        }
+    }
+}
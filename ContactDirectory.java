@@ -0,0 +1,141 @@
+package angelo.collins.smssender;
+
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client-side cache of each user's emergency contacts, keyed by user id and the
+ * server's profile version.
+ *
+ * The critical feed only carries a profile_version per user. Contacts are fetched
+ * from /api/contacts when a version is seen for the first time, normalized to E.164
+ * once, and then attached to every later poll of that user without any parsing or
+ * phone number work.
+ */
+public class ContactDirectory {
+    private static final String TAG = "ContactDirectory";
+    private static final int MAX_CONTACTS = 3;
+
+    private static final int MAX_INLINE_PHONES = 16 * 1024;
+
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    // Raw phone sent inline in the feed -> E.164, or "" if it cannot be one
+    private final ConcurrentHashMap<String, String> inlinePhones = new ConcurrentHashMap<>();
+    private volatile String defaultCountryCode;
+
+    public ContactDirectory(String defaultCountryCode) {
+        this.defaultCountryCode = defaultCountryCode;
+    }
+
+    public void setDefaultCountryCode(String defaultCountryCode) {
+        if (defaultCountryCode != null && !defaultCountryCode.equals(this.defaultCountryCode)) {
+            this.defaultCountryCode = defaultCountryCode;
+            // Cached numbers were normalized with the old code
+            entries.clear();
+            inlinePhones.clear();
+        }
+    }
+
+    /**
+     * A contact phone the feed sent inline, in E.164, or null if it cannot be one.
+     * Remembered per raw number, so a phone is normalized, and an invalid one logged,
+     * once rather than on every poll.
+     */
+    public String normalizeInline(int slot, String raw) {
+        if (raw == null || raw.isEmpty()) {
+            return null;
+        }
+        String phone = inlinePhones.get(raw);
+        if (phone == null) {
+            phone = PhoneNumbers.toE164(raw, defaultCountryCode);
+            if (phone == null) {
+                EngineLog.w(TAG, "Dropping invalid inline phone in slot " + slot + ": " + EngineLog.maskPhone(raw));
+                phone = "";
+            }
+            if (inlinePhones.size() >= MAX_INLINE_PHONES) {
+                inlinePhones.clear();
+            }
+            inlinePhones.put(raw, phone);
+        }
+        return phone.isEmpty() ? null : phone;
+    }
+
+    /**
+     * Contacts for the user at exactly this profile version, or null if they have
+     * to be fetched
+     */
+    public CriticalUser.Contact[] lookup(int userId, long profileVersion) {
+        Entry entry = entries.get(userId);
+        return entry != null && entry.version == profileVersion ? entry.contacts : null;
+    }
+
+    /**
+     * Store the contacts of one profile version. Phones are normalized here, once;
+     * numbers that cannot be normalized are dropped and logged.
+     *
+     * @param names  contact names by 0-based slot, entries may be null
+     * @param phones raw contact phones by 0-based slot, entries may be null
+     */
+    public void update(int userId, long profileVersion, String[] names, String[] phones) {
+        CriticalUser.Contact[] contacts = new CriticalUser.Contact[MAX_CONTACTS];
+        int count = 0;
+        for (int i = 0; i < MAX_CONTACTS && i < phones.length; i++) {
+            String raw = phones[i];
+            if (raw == null || raw.isEmpty()) {
+                continue;
+            }
+            String phone = PhoneNumbers.toE164(raw, defaultCountryCode);
+            if (phone == null) {
+                EngineLog.w(TAG, "Dropping invalid phone in slot " + (i + 1) + " for user " + userId
+                        + ": " + EngineLog.maskPhone(raw));
+                continue;
+            }
+            contacts[count++] = new CriticalUser.Contact(i + 1, i < names.length ? names[i] : null, phone);
+        }
+        CriticalUser.Contact[] trimmed = new CriticalUser.Contact[count];
+        System.arraycopy(contacts, 0, trimmed, 0, count);
+        entries.put(userId, new Entry(profileVersion, trimmed));
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Cached " + count + " contacts for user " + userId + " v" + profileVersion);
+    }
+
+    /**
+     * Put back contacts saved by an earlier run; their phones are already normalized
+     */
+    public void restore(int userId, long profileVersion, CriticalUser.Contact[] contacts) {
+        entries.putIfAbsent(userId, new Entry(profileVersion, contacts));
+    }
+
+    public void remove(int userId) {
+        entries.remove(userId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Read-only view of the cached entries, e.g. for persisting the directory
+     */
+    public Map<Integer, Entry> entries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Contacts of one profile version; phones are already E.164
+     */
+    public static final class Entry {
+        public final long version;
+        public final CriticalUser.Contact[] contacts;
+
+        Entry(long version, CriticalUser.Contact[] contacts) {
+            this.version = version;
+            this.contacts = contacts;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package angelo.collins.smssender;
+
+
+import java.util.List;
+
+/**
+ * Source of the users who are currently critical, polled by the alert engine
+ */
+public interface CriticalFeed {
+
+    /**
+     * Users currently critical, or null if the source could not be polled, so callers
+     * can tell "nobody is critical" from "we don't know". A feed may return the same
+     * list as on the previous poll to say that nothing changed, so a list must not be
+     * modified once returned.
+     */
+    List<CriticalUser> fetchCriticalUsers();
+}
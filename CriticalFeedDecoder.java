@@ -0,0 +1,737 @@
+package angelo.collins.smssender;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Streaming decoder for the /api/critical-users response.
+ *
+ * Reads the body into a reusable char buffer and scans it in place, writing each
+ * user straight into a reusable CriticalUser.Builder. No JSON tree or per-field
+ * strings are created: names, emails and phones come from a StringPool, and a
+ * user whose data did not change since the previous poll is returned as the same
+ * CriticalUser instance. When no user changed at all, the same unmodifiable list is
+ * returned as well, so an idle poll allocates nothing and callers can tell an
+ * unchanged feed by identity. Not thread-safe; one decoder per poller.
+ *
+ * Each user's alert id is the health_data_id of the critical reading, as the server's
+ * query names it; "alert_id" is read the same way.
+ *
+ * Contacts sent inline have their phones normalized to E.164 like the directory's;
+ * each distinct raw number is normalized once.
+ *
+ * When the feed references contacts by profile_version, they are attached from the
+ * ContactDirectory; users whose version is not cached yet are built with
+ * contactsPending set and listed in missingContacts() so the caller can fetch them
+ * and decode the same buffer again.
+ */
+public final class CriticalFeedDecoder {
+    private static final int INITIAL_BUFFER = 16 * 1024;
+    private static final int MAX_POOL_SLOTS = 128 * 1024; // Every string of ~9000 patients at about seven each
+    private static final int[] UTF8_MIN = {0, 0x80, 0x800, 0x10000}; // Smallest code point per continuation count
+
+    private final StringPool pool = new StringPool(4096, MAX_POOL_SLOTS);
+    private final CriticalUser.Builder builder = new CriticalUser.Builder();
+    private final ContactDirectory directory;
+    private final ContactDirectory inlinePhones; // Normalizes contacts sent inline; the directory if there is one
+    private final ArrayList<Integer> missingContacts = new ArrayList<>();
+    private final ArrayList<CriticalUser> decoded = new ArrayList<>();
+    private List<CriticalUser> lastUsers = Collections.emptyList();
+    private HashMap<Integer, CriticalUser> lastById; // Built when users arrive out of their last order
+
+    private byte[] bytes = new byte[INITIAL_BUFFER];
+    private char[] buffer = new char[INITIAL_BUFFER];
+    private int length;
+    private int pos;
+
+    private char[] scratch = new char[256];
+    // Location of the last string token: either a region of buffer or of scratch
+    private char[] tokenChars;
+    private int tokenStart;
+    private int tokenLength;
+
+    public CriticalFeedDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param directory source of contacts for users sent by profile version, or null
+     *                  if the server always sends contacts inline
+     */
+    public CriticalFeedDecoder(ContactDirectory directory) {
+        this.directory = directory;
+        this.inlinePhones = directory != null ? directory : new ContactDirectory(PhoneNumbers.DEFAULT_COUNTRY_CODE);
+    }
+
+    /**
+     * Read and decode the whole response from the reader
+     */
+    public List<CriticalUser> decode(Reader reader) throws IOException {
+        read(reader);
+        return decode();
+    }
+
+    /**
+     * Read the whole response into the internal buffer without decoding it yet
+     */
+    public void read(Reader reader) throws IOException {
+        length = 0;
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = grow(buffer, buffer.length * 2);
+            }
+        }
+    }
+
+    /**
+     * Read the whole UTF-8 response into the internal buffer without decoding it yet.
+     * Unlike read(Reader) over an InputStreamReader, this allocates nothing once the
+     * buffers have grown to the response size.
+     */
+    public void read(InputStream in) throws IOException {
+        int count = 0;
+        int read;
+        while ((read = in.read(bytes, count, bytes.length - count)) != -1) {
+            count += read;
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+        // Never more chars than bytes
+        if (buffer.length < count) {
+            buffer = new char[Math.max(count, buffer.length * 2)];
+        }
+        length = decodeUtf8(bytes, count, buffer);
+    }
+
+    /**
+     * Decode the response previously loaded with read()
+     */
+    public List<CriticalUser> decode() {
+        return decodeBuffer();
+    }
+
+    public List<CriticalUser> decode(CharSequence json) {
+        length = json.length();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[i] = json.charAt(i);
+        }
+        return decodeBuffer();
+    }
+
+    /**
+     * The raw text of the last decoded response, for verbose payload logging
+     */
+    public String lastPayload() {
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * User ids from the last decode whose profile version is not in the directory
+     */
+    public List<Integer> missingContacts() {
+        return missingContacts;
+    }
+
+    /**
+     * Forget pooled strings and previous users, e.g. after switching servers
+     */
+    public void reset() {
+        pool.clear();
+        lastUsers = Collections.emptyList();
+        lastById = null;
+    }
+
+    private List<CriticalUser> decodeBuffer() {
+        pos = 0;
+        decoded.clear();
+        missingContacts.clear();
+        try {
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    readKey();
+                    if (tokenIs("users")) {
+                        readUsers();
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            if (!sameAsLast(decoded)) {
+                lastUsers = Collections.unmodifiableList(new ArrayList<>(decoded));
+                lastById = null;
+            }
+            return lastUsers;
+        } finally {
+            decoded.clear();
+        }
+    }
+
+    /**
+     * True if the users are the instances of the last decode, in the same order
+     */
+    private boolean sameAsLast(List<CriticalUser> users) {
+        if (users.size() != lastUsers.size()) {
+            return false;
+        }
+        for (int i = 0; i < users.size(); i++) {
+            if (users.get(i) != lastUsers.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The user's state from the last decode; the feed keeps its order between polls,
+     * so the user at the same position is tried before the index
+     */
+    private CriticalUser previousUser(int userId, int index) {
+        if (index < lastUsers.size()) {
+            CriticalUser candidate = lastUsers.get(index);
+            if (candidate.getUserId() == userId) {
+                return candidate;
+            }
+        }
+        if (lastById == null) {
+            lastById = new HashMap<>(lastUsers.size() * 2);
+            for (CriticalUser user : lastUsers) {
+                lastById.put(user.getUserId(), user);
+            }
+        }
+        return lastById.get(userId);
+    }
+
+    private void readUsers() {
+        if (peekLiteral('n')) {
+            skipValue();
+            return;
+        }
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        do {
+            decoded.add(readUser(decoded.size()));
+        } while (consume(','));
+        expect(']');
+    }
+
+    private CriticalUser readUser(int index) {
+        builder.reset();
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                if (tokenIs("user_id")) {
+                    builder.setUserId((int) readNumber());
+                } else if (tokenIs("name")) {
+                    builder.setName(readPooledString());
+                } else if (tokenIs("email")) {
+                    builder.setEmail(readPooledString());
+                } else if (tokenIs("health_data_id") || tokenIs("alert_id")) {
+                    // The server sends the critical reading's health_data row id; it is the alert id
+                    builder.setAlertId((int) readNumber());
+                } else if (tokenIs("heart_rate")) {
+                    builder.setHeartRate((int) Math.round(readNumber()));
+                } else if (tokenIs("systolic")) {
+                    builder.setSystolic((int) Math.round(readNumber()));
+                } else if (tokenIs("diastolic")) {
+                    builder.setDiastolic((int) Math.round(readNumber()));
+                } else if (tokenIs("blood_pressure")) {
+                    readBloodPressure();
+                } else if (tokenIs("spo2")) {
+                    builder.setSpo2((int) Math.round(readNumber()));
+                } else if (tokenIs("temperature")) {
+                    builder.setTemperature(readNumber());
+                } else if (tokenIs("recorded_at")) {
+                    builder.setRecordedAtMillis(readTimestamp());
+                } else if (tokenIs("alert_message")) {
+                    builder.setAlertMessage(readPooledString());
+                } else if (tokenIs("acknowledged_at")) {
+                    builder.setAcknowledged(readStringToken());
+                } else if (tokenIs("profile_version")) {
+                    builder.setProfileVersion((long) readNumber());
+                } else if (tokenStartsWith("emergency_contact") && contactSlot("emergency_contact") > 0) {
+                    int slot = contactSlot("emergency_contact");
+                    builder.setContactName(slot, readPooledString());
+                } else if (tokenStartsWith("emergency_phone") && contactSlot("emergency_phone") > 0) {
+                    int slot = contactSlot("emergency_phone");
+                    builder.setContactPhone(slot, inlinePhones.normalizeInline(slot, readPooledString()));
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        attachContacts();
+        return builder.build(previousUser(builder.getUserId(), index));
+    }
+
+    private void attachContacts() {
+        long version = builder.getProfileVersion();
+        if (directory == null || version == 0 || builder.hasInlineContacts()) {
+            return;
+        }
+        CriticalUser.Contact[] contacts = directory.lookup(builder.getUserId(), version);
+        if (contacts == null) {
+            builder.setContactsPending(true);
+            missingContacts.add(builder.getUserId());
+            return;
+        }
+        for (CriticalUser.Contact contact : contacts) {
+            builder.addContact(contact);
+        }
+    }
+
+    /**
+     * Legacy "120/80" string; only used when the server did not send systolic/diastolic
+     */
+    private void readBloodPressure() {
+        if (!readStringToken()) {
+            return;
+        }
+        int slash = -1;
+        for (int i = 0; i < tokenLength; i++) {
+            if (tokenChars[tokenStart + i] == '/') {
+                slash = i;
+                break;
+            }
+        }
+        if (slash <= 0 || builder.hasBloodPressure()) {
+            return;
+        }
+        builder.setBloodPressure(
+                (int) parseNumber(tokenChars, tokenStart, tokenStart + slash),
+                (int) parseNumber(tokenChars, tokenStart + slash + 1, tokenStart + tokenLength));
+    }
+
+    // --- Tokens ---
+
+    private void readKey() {
+        if (!readStringToken()) {
+            throw error("Expected key");
+        }
+        expect(':');
+    }
+
+    private boolean tokenIs(String key) {
+        if (tokenLength != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (tokenChars[tokenStart + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tokenStartsWith(String prefix) {
+        if (tokenLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (tokenChars[tokenStart + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 1-3 for keys like "emergency_phone2", otherwise 0
+     */
+    private int contactSlot(String prefix) {
+        if (tokenLength != prefix.length() + 1) {
+            return 0;
+        }
+        int slot = tokenChars[tokenStart + prefix.length()] - '0';
+        return slot >= 1 && slot <= 3 ? slot : 0;
+    }
+
+    private String readPooledString() {
+        if (!readStringToken()) {
+            return null;
+        }
+        return pool.intern(tokenChars, tokenStart, tokenLength);
+    }
+
+    /**
+     * Read a string (or null) and point the token fields at its characters.
+     * Returns false for null.
+     */
+    private boolean readStringToken() {
+        skipWhitespace();
+        if (peekLiteral('n')) {
+            skipValue();
+            return false;
+        }
+        expect('"');
+        int start = pos;
+        while (pos < length) {
+            char c = buffer[pos];
+            if (c == '"') {
+                tokenChars = buffer;
+                tokenStart = start;
+                tokenLength = pos - start;
+                pos++;
+                return true;
+            }
+            if (c == '\\') {
+                readEscapedString(start);
+                return true;
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+
+    private void readEscapedString(int start) {
+        int count = pos - start;
+        ensureScratch(count + 16);
+        System.arraycopy(buffer, start, scratch, 0, count);
+        while (pos < length) {
+            char c = buffer[pos++];
+            if (c == '"') {
+                tokenChars = scratch;
+                tokenStart = 0;
+                tokenLength = count;
+                return;
+            }
+            if (c == '\\') {
+                if (pos >= length) {
+                    break;
+                }
+                char escaped = buffer[pos++];
+                switch (escaped) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        if (pos + 4 > length) {
+                            throw error("Bad unicode escape");
+                        }
+                        c = (char) Integer.parseInt(new String(buffer, pos, 4), 16);
+                        pos += 4;
+                        break;
+                    default: c = escaped; break;
+                }
+            }
+            ensureScratch(count + 1);
+            scratch[count++] = c;
+        }
+        throw error("Unterminated string");
+    }
+
+    /**
+     * Read a number, a numeric string (MySQL DECIMAL columns arrive as strings),
+     * or null/true/false as 0
+     */
+    private double readNumber() {
+        skipWhitespace();
+        if (pos >= length) {
+            throw error("Expected value");
+        }
+        char c = buffer[pos];
+        if (c == '"') {
+            readStringToken();
+            return parseNumber(tokenChars, tokenStart, tokenStart + tokenLength);
+        }
+        if (c == 'n' || c == 't' || c == 'f') {
+            skipValue();
+            return 0;
+        }
+        int start = pos;
+        while (pos < length && isNumberChar(buffer[pos])) {
+            pos++;
+        }
+        return parseNumber(buffer, start, pos);
+    }
+
+    /**
+     * Parse an ISO-8601 UTC timestamp such as 2024-05-01T10:00:00.000Z (or with a
+     * space instead of T) into epoch millis, or 0 if it cannot be parsed
+     */
+    private long readTimestamp() {
+        if (!readStringToken()) {
+            return 0;
+        }
+        char[] c = tokenChars;
+        int s = tokenStart;
+        int n = tokenLength;
+        if (n < 19 || c[s + 4] != '-' || c[s + 7] != '-' || c[s + 13] != ':' || c[s + 16] != ':') {
+            return 0;
+        }
+        int year = digits(c, s, 4);
+        int month = digits(c, s + 5, 2);
+        int day = digits(c, s + 8, 2);
+        int hour = digits(c, s + 11, 2);
+        int minute = digits(c, s + 14, 2);
+        int second = digits(c, s + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || minute < 0 || second < 0) {
+            return 0;
+        }
+        int i = 19;
+        int millis = 0;
+        if (i < n && c[s + i] == '.') {
+            i++;
+            int scale = 100;
+            while (i < n && c[s + i] >= '0' && c[s + i] <= '9') {
+                millis += (c[s + i] - '0') * scale;
+                scale /= 10;
+                i++;
+            }
+        }
+        long offsetMinutes = 0;
+        if (i < n && (c[s + i] == '+' || c[s + i] == '-') && i + 6 <= n) {
+            int sign = c[s + i] == '-' ? -1 : 1;
+            int offsetHours = digits(c, s + i + 1, 2);
+            int offsetMins = digits(c, s + i + 4, 2);
+            if (offsetHours >= 0 && offsetMins >= 0) {
+                offsetMinutes = sign * (offsetHours * 60L + offsetMins);
+            }
+        }
+        long days = daysFromCivil(year, month, day);
+        long seconds = days * 86400L + hour * 3600L + minute * 60L + second - offsetMinutes * 60L;
+        return seconds * 1000L + millis;
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        if (pos >= length) {
+            throw error("Expected value");
+        }
+        char c = buffer[pos];
+        if (c == '"') {
+            readStringToken();
+        } else if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            pos++;
+            if (consume(close)) {
+                return;
+            }
+            do {
+                if (c == '{') {
+                    readKey();
+                }
+                skipValue();
+            } while (consume(','));
+            expect(close);
+        } else {
+            while (pos < length) {
+                c = buffer[pos];
+                if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+        }
+    }
+
+    private boolean peekLiteral(char first) {
+        skipWhitespace();
+        return pos < length && buffer[pos] == first;
+    }
+
+    private boolean consume(char expected) {
+        skipWhitespace();
+        if (pos < length && buffer[pos] == expected) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) {
+        if (!consume(expected)) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && isWhitespace(buffer[pos])) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos);
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.length < size) {
+            scratch = grow(scratch, Math.max(size, scratch.length * 2));
+        }
+    }
+
+    // --- Helpers ---
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    /**
+     * Parse a decimal number from a char range without allocating; 0 if malformed
+     */
+    static double parseNumber(char[] chars, int start, int end) {
+        while (start < end && isWhitespace(chars[start])) start++;
+        while (end > start && isWhitespace(chars[end - 1])) end--;
+        if (start >= end) {
+            return 0;
+        }
+        int i = start;
+        boolean negative = false;
+        if (chars[i] == '-' || chars[i] == '+') {
+            negative = chars[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+        for (; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+            seenDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (chars[i] - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                scale++;
+            }
+        }
+        if (i < end && chars[i] == '.') {
+            for (i++; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                seenDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (chars[i] - '0');
+                    if (mantissa != 0) digits++;
+                    scale--;
+                }
+            }
+        }
+        if (!seenDigit) {
+            return 0;
+        }
+        if (i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+            int exponent = 0;
+            for (; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                exponent = Math.min(exponent * 10 + (chars[i] - '0'), 1000);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if (i != end) {
+            return 0;
+        }
+        double value = scale >= 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decode UTF-8 into chars, each malformed byte becoming U+FFFD; returns the char count
+     */
+    private static int decodeUtf8(byte[] in, int count, char[] out) {
+        int n = 0;
+        int i = 0;
+        while (i < count) {
+            int b = in[i];
+            if (b >= 0) {
+                out[n++] = (char) b;
+                i++;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xe0) == 0xc0) {
+                extra = 1;
+                codePoint = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                extra = 2;
+                codePoint = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                out[n++] = '\uFFFD';
+                i++;
+                continue;
+            }
+            int end = i + 1 + extra;
+            boolean valid = end <= count;
+            for (int j = i + 1; valid && j < end; j++) {
+                valid = (in[j] & 0xc0) == 0x80;
+                codePoint = (codePoint << 6) | (in[j] & 0x3f);
+            }
+            // Reject overlong forms, surrogates and values past U+10FFFF
+            if (!valid || codePoint < UTF8_MIN[extra] || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                out[n++] = '\uFFFD';
+                i++;
+                continue;
+            }
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                out[n++] = Character.highSurrogate(codePoint);
+                out[n++] = Character.lowSurrogate(codePoint);
+            } else {
+                out[n++] = (char) codePoint;
+            }
+            i = end;
+        }
+        return n;
+    }
+
+    private static int digits(char[] chars, int start, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            char c = chars[start + i];
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date (Howard Hinnant's algorithm)
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static char[] grow(char[] source, int size) {
+        char[] grown = new char[size];
+        System.arraycopy(source, 0, grown, 0, source.length);
+        return grown;
+    }
+}
@@ -8,56 +8,173 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Foreground service running the alert engine. It is declared in its own process,
+ *   <service android:name=".CriticalMonitorService" android:process=":monitor" ... />
+ * so its heap holds the engine and nothing of the UI; MainActivity sees it only
+ * through MonitorStatusChannel.
+ */
 public class CriticalMonitorService extends Service {
+    /** SystemClock.elapsedRealtime() when BootReceiver started the service */
+    public static final String EXTRA_BOOT_RECEIVED_AT = "angelo.collins.smssender.BOOT_RECEIVED_AT";
+    /**
+     * The API base URL as the UI last saved it. Preferences are cached per process,
+     * so the UI hands the monitor process its edits instead of relying on the file.
+     */
+    public static final String EXTRA_API_BASE_URL = "angelo.collins.smssender.API_BASE_URL";
+    /**
+     * Write the recent SpanTracer spans to files/wristbud-trace.json for Perfetto:
+     *   adb shell am start-foreground-service -n angelo.collins.smssender/.CriticalMonitorService \
+     *       -a angelo.collins.smssender.EXPORT_TRACE --ei angelo.collins.smssender.TRACE_MINUTES 5
+     *   adb exec-out run-as angelo.collins.smssender cat files/wristbud-trace.json > trace.json
+     * Spans are only recorded while the span_tracing preference is on.
+     */
+    public static final String ACTION_EXPORT_TRACE = "angelo.collins.smssender.EXPORT_TRACE";
+    public static final String EXTRA_TRACE_MINUTES = "angelo.collins.smssender.TRACE_MINUTES";
     private static final String TAG = "CriticalMonitorService";
     private static final String CHANNEL_ID = "WristBudCriticalMonitor";
     private static final int NOTIFICATION_ID = 1001;
-    private static final int CHECK_INTERVAL_MS = 1000; // Check every 1 second
+    private static final long METRICS_DUMP_INTERVAL_MS = 60000;
+    private static final long STATE_SAVE_DELAY_MS = 2000; // Batch state file writes after bursts of changes
+    private static final long ENGINE_STOP_TIMEOUT_MS = 5000; // Longest onDestroy's cleanup waits for held alerts
+    private static final long JOURNAL_FOLD_INTERVAL_MS = 1000;
     
-    private static boolean isRunning = false;
-    
-    private Handler handler;
-    private Runnable checkRunnable;
+    private Handler mainHandler; // UI work only (notification updates)
+    private ScheduledExecutorService scheduler;
     private ExecutorService executorService;
+    private ExecutorService backgroundExecutor;
+    private final MonitorMetrics metrics = MonitorMetrics.get();
     private DatabaseHelper dbHelper;
-    private SMSManager smsManager;
-    private LocationHelper locationHelper;
+    // Built off the critical path after the first check, or on demand by the first alert
+    private FutureTask<SMSManager> smsManagerInit;
+    private FutureTask<LocationHelper> locationHelperInit;
+    private MonitorStateFile stateFile;
+    private final AtomicBoolean stateSaveScheduled = new AtomicBoolean(false);
+    private long createdAtNanos;
+    private long bootReceivedAtMs; // 0 unless started by BootReceiver
+    private AlertEngine engine;
+    private MonitorStatusChannel.Server statusChannel;
     
     @Override
     public void onCreate() {
         super.onCreate();
-        Log.d(TAG, "Service created");
+        MonitorLog.refresh();
+        if (MonitorLog.DEBUG) Log.d(TAG, "Service created");
+        createdAtNanos = System.nanoTime();
         
+        // Stage 1: only what the first poll needs. The helper's constructor is cheap and
+        // builds the APIClient the poll uses; SMS and location wait for stage 2.
         dbHelper = new DatabaseHelper(this);
-        smsManager = new SMSManager(this);
-        locationHelper = new LocationHelper(this);
-        executorService = Executors.newSingleThreadExecutor();
-        handler = new Handler(Looper.getMainLooper());
+        smsManagerInit = new FutureTask<>(() -> new SMSManager(this));
+        locationHelperInit = new FutureTask<>(() -> new LocationHelper(this));
+        stateFile = new MonitorStateFile(getFilesDir());
+        executorService = new SupervisedWorker("wristbud-monitor-worker"); // Restarted by the engine's watchdog
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wristbud-monitor-scheduler");
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        backgroundExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "wristbud-monitor-background");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        mainHandler = new Handler(Looper.getMainLooper());
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        SpanTracer.shared().setEnabled(prefs.getBoolean("span_tracing", false));
+        AlertStore store = dbHelper;
+        LocationSource location = new DeferredLocation();
+        SmsTransport transport = new DeferredTransport();
+        // Debug builds only: slow or failing dependencies on purpose, see FaultInjector
+        FaultInjector faults = MonitorLog.DEBUG ? FaultInjector.fromPreference(prefs.getString("fault_injection", null)) : null;
+        if (faults != null) {
+            store = faults.wrap(store);
+            location = faults.wrap(location);
+            transport = faults.wrap(transport);
+        }
+        engine = new AlertEngine.Builder()
+                .setFeed(dbHelper::fetchCriticalUsers)
+                .setStore(store)
+                .setLocation(location)
+                .setTransport(transport)
+                .setListener(new EngineListener())
+                .setWorker(executorService)
+                .setScheduler(scheduler)
+                .setCoalescing(prefs.getInt("coalesce_window_ms", AlertEngine.DEFAULT_COALESCE_WINDOW_MS),
+                        prefs.getInt("coalesce_max_alerts", AlertEngine.DEFAULT_COALESCE_MAX_ALERTS))
+                .setEscalation(TimeUnit.MINUTES.toMillis(prefs.getInt("escalation_interval_min", AlertEngine.DEFAULT_ESCALATION_INTERVAL_MIN)),
+                        prefs.getInt("escalation_max_steps", AlertEngine.DEFAULT_ESCALATION_MAX_STEPS))
+                .setShardLeases(fleetLeases(prefs))
+                .setWatchdog(prefs.getInt("watchdog_stall_ms", (int) MonitorWatchdog.DEFAULT_STALL_THRESHOLD_MS),
+                        dbHelper.getApiClient()::cancelPoll)
+                .build();
+        if (prefs.getBoolean("feed_capture", false)) {
+            // Raw responses for replaying this session later with FeedReplay
+            dbHelper.getApiClient().startCapture(new File(getFilesDir(), "feed-capture"));
+        }
+        statusChannel = new MonitorStatusChannel.Server(new StatusHost(), DebugEventRing.shared(), metrics);
         
-        createNotificationChannel();
-        setupCheckRunnable();
+        createNotificationChannel(); // startForeground() needs it right away
     }
     
+    /**
+     * Leases on a share of the users when this phone is one of several senders
+     * (fleet_mode), null when it alerts for everyone
+     */
+    private ShardLeases fleetLeases(SharedPreferences prefs) {
+        if (!prefs.getBoolean("fleet_mode", false)) {
+            return null;
+        }
+        String nodeId = prefs.getString("fleet_node_id", null);
+        if (nodeId == null || nodeId.isEmpty()) {
+            nodeId = UUID.randomUUID().toString();
+            prefs.edit().putString("fleet_node_id", nodeId).apply();
+        }
+        Log.i(TAG, "Fleet mode, node " + nodeId);
+        return new ShardLeases(nodeId, new HttpShardCoordinator(dbHelper.getApiBaseUrl()));
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "Service started");
-        isRunning = true;
+        if (MonitorLog.DEBUG) Log.d(TAG, "Service started");
+        if (intent != null && bootReceivedAtMs == 0) {
+            bootReceivedAtMs = intent.getLongExtra(EXTRA_BOOT_RECEIVED_AT, 0);
+        }
+        if (intent != null) {
+            applyApiBaseUrl(intent.getStringExtra(EXTRA_API_BASE_URL));
+        }
+        if (intent != null && ACTION_EXPORT_TRACE.equals(intent.getAction())) {
+            long windowMs = TimeUnit.MINUTES.toMillis(intent.getIntExtra(EXTRA_TRACE_MINUTES,
+                    (int) TimeUnit.MILLISECONDS.toMinutes(SpanTracer.DEFAULT_WINDOW_MS)));
+            backgroundExecutor.execute(() -> exportTrace(windowMs));
+        }
         
         try {
             startForeground(NOTIFICATION_ID, createNotification());
-            Log.d(TAG, "Service started in foreground successfully");
+            if (MonitorLog.DEBUG) Log.d(TAG, "Service started in foreground successfully");
         } catch (Exception e) {
             Log.e(TAG, "Failed to start foreground service: " + e.getMessage());
             // Continue running as a background service
@@ -72,29 +189,56 @@ public class CriticalMonitorService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        Log.d(TAG, "Service destroyed");
-        isRunning = false;
+        if (MonitorLog.DEBUG) Log.d(TAG, "Service destroyed");
         
-        if (handler != null && checkRunnable != null) {
-            handler.removeCallbacks(checkRunnable);
+        if (statusChannel != null) {
+            statusChannel.close();
         }
         
-        if (executorService != null) {
-            executorService.shutdown();
+        if (engine != null) {
+            // Held alerts still go out on the worker before it stops
+            engine.stop();
         }
         
-        if (dbHelper != null) {
+        if (backgroundExecutor != null) {
+            // In order on the background thread: the last sends are journaled before the
+            // fold, and the database is closed only after the fold and the state save
+            backgroundExecutor.execute(this::awaitEngine);
+            backgroundExecutor.execute(this::foldJournal);
+            backgroundExecutor.execute(this::saveState);
+            backgroundExecutor.execute(this::dumpMetrics);
+            backgroundExecutor.execute(dbHelper.getApiClient()::stopCapture);
+            backgroundExecutor.execute(this::closeStorage);
+            backgroundExecutor.shutdown();
+        } else if (dbHelper != null) {
             dbHelper.close();
         }
+        
+        if (mainHandler != null) {
+            mainHandler.removeCallbacksAndMessages(null);
+        }
+        
+        if (locationHelperInit != null && locationHelperInit.isDone()) {
+            locationHelper().shutdown();
+        }
     }
     
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // Not a bound service
+        return statusChannel.getBinder();
     }
     
-    public static boolean isServiceRunning() {
-        return isRunning;
+    /**
+     * Point the poll at a base URL the UI saved, and keep this process's copy of the
+     * preference in step so a later write from here does not put the old one back
+     */
+    private void applyApiBaseUrl(String baseUrl) {
+        if (baseUrl == null || baseUrl.isEmpty() || baseUrl.equals(dbHelper.getApiBaseUrl())) {
+            return;
+        }
+        dbHelper.getApiClient().setBaseUrl(baseUrl);
+        PreferenceManager.getDefaultSharedPreferences(this).edit().putString("api_base_url", baseUrl).apply();
+        Log.i(TAG, "API base URL changed to " + baseUrl);
     }
     
     private void createNotificationChannel() {
@@ -125,150 +269,188 @@ public class CriticalMonitorService extends Service {
             .build();
     }
     
-    private void setupCheckRunnable() {
-        checkRunnable = new Runnable() {
-            @Override
-            public void run() {
-                executorService.execute(() -> {
-                    try {
-                        checkForCriticalUsers();
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error checking for critical users", e);
-                    }
-                });
-                
-                // Schedule next check
-                handler.postDelayed(this, CHECK_INTERVAL_MS);
-            }
-        };
+    private void startPeriodicCheck() {
+        if (engine.isStarted()) {
+            return; // Already ticking, onStartCommand can be delivered more than once
+        }
+        // Warm state goes in ahead of the first check on the worker
+        executorService.execute(this::restoreState);
+        engine.start();
+        scheduler.scheduleWithFixedDelay(() -> backgroundExecutor.execute(this::foldJournal),
+                JOURNAL_FOLD_INTERVAL_MS, JOURNAL_FOLD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> backgroundExecutor.execute(this::dumpMetrics),
+                METRICS_DUMP_INTERVAL_MS, METRICS_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
     
-    private void startPeriodicCheck() {
-        handler.post(checkRunnable);
+    private SMSManager smsManager() {
+        return await(smsManagerInit);
     }
     
-    private void checkForCriticalUsers() {
-        Log.d(TAG, "Checking for critical users...");
+    private LocationHelper locationHelper() {
+        return await(locationHelperInit);
+    }
+    
+    /**
+     * Result of a deferred init, running it on the calling thread if the background
+     * thread has not started it yet
+     */
+    private static <T> T await(FutureTask<T> init) {
+        init.run(); // No-op if it already ran or is running elsewhere
         try {
-            List<CriticalUser> criticalUsers = dbHelper.getCriticalUsers();
-            if (criticalUsers.isEmpty()) {
-                Log.d(TAG, "No critical users found");
-                MainActivity.appendServiceDebug("No critical users found");
-                return;
-            }
-            // Log user IDs for debugging
-            StringBuilder userIds = new StringBuilder();
-            for (CriticalUser user : criticalUsers) {
-                if (userIds.length() > 0) userIds.append(",");
-                userIds.append(user.getUserId());
-            }
-            String logMsg = "Critical data found: " + criticalUsers.size() + " - time checked: " + new java.util.Date();
-            String userListMsg = "Critical Users: [" + userIds + "]";
-            Log.w(TAG, logMsg);
-            Log.w(TAG, userListMsg);
-            MainActivity.appendServiceDebug(logMsg);
-            MainActivity.appendServiceDebug(userListMsg);
-            for (CriticalUser user : criticalUsers) {
-                processCriticalUser(user);
+            return init.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during init", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Init failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Restore the dedup index, last snapshot and contact directory saved by the
+     * previous run, so the first poll only sends for what changed meanwhile
+     */
+    private void restoreState() {
+        long start = System.nanoTime();
+        MonitorStateFile.State state = stateFile.load();
+        dbHelper.seedDedupIndex(state.dedupKeys);
+        try {
+            // Sends recorded after the state file was written are replayed from the journal
+            dbHelper.attachJournal(AlertJournal.open(getFilesDir()));
+        } catch (IOException e) {
+            Log.w(TAG, "Alert journal unavailable, writing sms_log directly", e);
+        }
+        ContactDirectory directory = dbHelper.getContactDirectory();
+        for (MonitorStateFile.DirectoryEntry entry : state.directory) {
+            directory.restore(entry.userId, entry.version, entry.contacts);
+        }
+        engine.restoreSnapshot(state.users);
+        if (MonitorLog.DEBUG) Log.d(TAG, "Restored " + state.users.size() + " users, " + state.dedupKeys.length
+                + " sent alerts and " + state.directory.size() + " contact sets in "
+                + (System.nanoTime() - start) / 1000 + " us");
+    }
+    
+    /**
+     * Write the state file shortly after; called on the worker, so the sent users are
+     * only collected when the save runs on the background thread
+     */
+    private void scheduleStateSave() {
+        if (stateSaveScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(() -> backgroundExecutor.execute(this::saveState), STATE_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                stateSaveScheduled.set(false);
             }
+        }
+    }
+    
+    private void saveState() {
+        stateSaveScheduled.set(false);
+        try {
+            stateFile.save(dbHelper.dedupKeys(), engine.sentUsers(), dbHelper.getContactDirectory().entries());
         } catch (Exception e) {
-            Log.e(TAG, "Error checking critical users", e);
-            MainActivity.appendServiceDebug("Error checking critical users: " + e.getMessage());
+            Log.w(TAG, "Failed to save monitor state", e);
         }
     }
-
-    private void processCriticalUser(CriticalUser user) {
-        Log.w(TAG, "Processing critical user: " + user.getName() + " (ID: " + user.getUserId() + ")");
-        MainActivity.appendServiceDebug("Processing critical user: " + user.getName() + " (ID: " + user.getUserId() + ")");
-        // Only send for new alertId
-        if (dbHelper.hasSMSBeenSent(user.getUserId(), user.getAlertId())) {
-            Log.d(TAG, "SMS already sent for user " + user.getUserId() + " alert " + user.getAlertId());
-            MainActivity.appendServiceDebug("SMS already sent for user " + user.getUserId() + " alert " + user.getAlertId());
+    
+    /**
+     * Wait for the held alerts the stopped engine still sends; runs on the background thread
+     */
+    private void awaitEngine() {
+        if (engine == null) {
             return;
         }
-        String location = locationHelper.getLastKnownLocation();
-        if (location == null || location.isEmpty()) {
-            location = "Location unavailable";
-        }
-        String message = formatEmergencyMessage(user.getName(), location, user);
-        int contactsSent = 0;
-        // Emergency Contact 1
-        if (user.getEmergencyPhone1() != null && !user.getEmergencyPhone1().isEmpty()) {
-            boolean smsSent = smsManager.sendSMS(user.getEmergencyPhone1(), message);
-            if (smsSent) {
-                dbHelper.markSMSAsSent(user.getUserId(), user.getAlertId(), user.getEmergencyPhone1(), message);
-                incrementSMSCount();
-                Log.i(TAG, "Sent alert to user " + user.getUserId() + " / contact 1: " + user.getEmergencyPhone1());
-                MainActivity.appendServiceDebug("Sent alert to user " + user.getUserId() + " / contact 1: " + user.getEmergencyPhone1());
-                contactsSent++;
-            } else {
-                Log.e(TAG, "Failed to send SMS to contact 1 for user " + user.getUserId());
-                MainActivity.appendServiceDebug("Failed to send SMS to contact 1 for user " + user.getUserId());
+        try {
+            if (!engine.awaitTermination(ENGINE_STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Engine still running after " + ENGINE_STOP_TIMEOUT_MS + " ms, closing storage anyway");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        // Emergency Contact 2
-        if (user.getEmergencyPhone2() != null && !user.getEmergencyPhone2().isEmpty()) {
-            boolean smsSent = smsManager.sendSMS(user.getEmergencyPhone2(), message);
-            if (smsSent) {
-                dbHelper.markSMSAsSent(user.getUserId(), user.getAlertId(), user.getEmergencyPhone2(), message);
-                incrementSMSCount();
-                Log.i(TAG, "Sent alert to user " + user.getUserId() + " / contact 2: " + user.getEmergencyPhone2());
-                MainActivity.appendServiceDebug("Sent alert to user " + user.getUserId() + " / contact 2: " + user.getEmergencyPhone2());
-                contactsSent++;
-            } else {
-                Log.e(TAG, "Failed to send SMS to contact 2 for user " + user.getUserId());
-                MainActivity.appendServiceDebug("Failed to send SMS to contact 2 for user " + user.getUserId());
-            }
+    }
+    
+    /**
+     * Fold and close the journal, then the database; the last task on the background thread
+     */
+    private void closeStorage() {
+        try {
+            dbHelper.closeJournal();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to fold alert journal", e);
         }
-        // Emergency Contact 3 (optional)
-        if (user.getEmergencyPhone3() != null && !user.getEmergencyPhone3().isEmpty()) {
-            boolean smsSent = smsManager.sendSMS(user.getEmergencyPhone3(), message);
-            if (smsSent) {
-                dbHelper.markSMSAsSent(user.getUserId(), user.getAlertId(), user.getEmergencyPhone3(), message);
-                incrementSMSCount();
-                Log.i(TAG, "Sent alert to user " + user.getUserId() + " / contact 3: " + user.getEmergencyPhone3());
-                MainActivity.appendServiceDebug("Sent alert to user " + user.getUserId() + " / contact 3: " + user.getEmergencyPhone3());
-                contactsSent++;
-            } else {
-                Log.e(TAG, "Failed to send SMS to contact 3 for user " + user.getUserId());
-                MainActivity.appendServiceDebug("Failed to send SMS to contact 3 for user " + user.getUserId());
+        dbHelper.close();
+    }
+    
+    /**
+     * Move journaled send outcomes into sms_log; runs on the background thread
+     */
+    private void foldJournal() {
+        try {
+            int folded = dbHelper.foldJournal();
+            if (folded > 0) {
+                metrics.journalFolded.addAndGet(folded);
             }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to fold alert journal", e);
         }
-        Log.w(TAG, "Sending alert to user " + user.getUserId() + " / registered contacts: " + contactsSent);
-        MainActivity.appendServiceDebug("Sending alert to user " + user.getUserId() + " / registered contacts: " + contactsSent);
-        updateNotification("Emergency SMS sent for " + user.getName() + " (" + contactsSent + " contacts)");
     }
     
-    private String formatEmergencyMessage(String userName, String location, CriticalUser user) {
-        StringBuilder message = new StringBuilder();
-        message.append("THIS IS MESSAGE IS FROM WRISTBUD: ");
-        message.append("WE WOULD LIKE TO INFORM YOU THAT WE HAVE DETECTED A CRITICAL VITALS FOR ");
-        message.append(userName.toUpperCase());
-        message.append(". LAST LOCATION SEEN IS ");
-        message.append(location);
-        message.append(".");
-        
-        // Add vital signs if available
-        if (user.getHeartRate() > 0) {
-            message.append(" HR: ").append(user.getHeartRate()).append(" BPM");
+    /**
+     * Report startup latency and start stage 2: everything the first poll did not need
+     */
+    private void onFirstCheckCompleted() {
+        long sinceStartMs = (System.nanoTime() - createdAtNanos) / 1000000;
+        metrics.startToFirstCheckMs.set(sinceStartMs);
+        if (bootReceivedAtMs > 0) {
+            long sinceBootMs = SystemClock.elapsedRealtime();
+            metrics.bootToFirstCheckMs.set(sinceBootMs);
+            metrics.bootReceiverToFirstCheckMs.set(sinceBootMs - bootReceivedAtMs);
+            Log.i(TAG, "First check completed " + sinceBootMs + " ms after boot, " + sinceStartMs + " ms after service start");
+        } else {
+            Log.i(TAG, "First check completed " + sinceStartMs + " ms after service start");
         }
-        if (user.getBloodPressure() != null && !user.getBloodPressure().isEmpty()) {
-            message.append(" BP: ").append(user.getBloodPressure());
+        backgroundExecutor.execute(smsManagerInit);
+        backgroundExecutor.execute(locationHelperInit);
+        backgroundExecutor.execute(dbHelper::loadDedupIndex);
+        backgroundExecutor.execute(this::dumpMetrics);
+    }
+    
+    /**
+     * Write the metrics snapshot where it can be pulled with adb run-as
+     */
+    private void dumpMetrics() {
+        try {
+            metrics.dump(getFilesDir());
+            String stall = engine.getLastStallReport();
+            if (stall != null) {
+                MonitorMetrics.writeAtomically(new File(getFilesDir(), MonitorWatchdog.STALL_REPORT_FILE), stall);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to dump monitor metrics", e);
         }
-        if (user.getSpo2() > 0) {
-            message.append(" SpO2: ").append(user.getSpo2()).append("%");
+    }
+    
+    /**
+     * Write the spans of the last windowMs where they can be pulled with adb run-as
+     */
+    private void exportTrace(long windowMs) {
+        if (!SpanTracer.shared().isEnabled()) {
+            Log.w(TAG, "Span tracing is off (span_tracing), the trace will only hold older spans");
         }
-        if (user.getTemperature() > 0) {
-            message.append(" Temp: ").append(String.format("%.1f", user.getTemperature())).append("°F");
+        try {
+            File file = SpanTracer.shared().export(getFilesDir(), windowMs);
+            Log.i(TAG, "Exported spans to " + file);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to export spans", e);
         }
-        
-        message.append(" Please check on them immediately.");
-        
-        return message.toString();
+    }
+    
+    private int getSMSCount() {
+        return getSharedPreferences("WristBudSMS", MODE_PRIVATE).getInt("sms_sent_count", 0);
     }
     
     private void incrementSMSCount() {
-        int currentCount = getSharedPreferences("WristBudSMS", MODE_PRIVATE).getInt("sms_sent_count", 0);
+        int currentCount = getSMSCount();
         getSharedPreferences("WristBudSMS", MODE_PRIVATE)
             .edit()
             .putInt("sms_sent_count", currentCount + 1)
@@ -276,6 +458,11 @@ public class CriticalMonitorService extends Service {
     }
     
     private void updateNotification(String message) {
+        // Notification updates are UI work, keep them off the monitor threads
+        mainHandler.post(() -> showNotification(message));
+    }
+    
+    private void showNotification(String message) {
         NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         
         Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
@@ -286,4 +473,81 @@ public class CriticalMonitorService extends Service {
             
         manager.notify(NOTIFICATION_ID, notification);
     }
-}
\ No newline at end of file
+    
+    /**
+     * What MonitorStatusChannel reports to the UI and lets it change
+     */
+    private final class StatusHost implements MonitorStatusChannel.Host {
+        @Override
+        public int getSmsSentCount() {
+            return getSMSCount();
+        }
+        
+        @Override
+        public void setApiBaseUrl(String baseUrl) {
+            mainHandler.post(() -> applyApiBaseUrl(baseUrl));
+        }
+    }
+    
+    /**
+     * Engine hooks: notification, SMS counter, state file and stage 2 startup
+     */
+    private final class EngineListener implements AlertEngine.Listener {
+        @Override
+        public void onFirstCheck() {
+            onFirstCheckCompleted();
+        }
+        
+        @Override
+        public void onAlertSent(CriticalUser user, int contactsSent) {
+            updateNotification("Emergency SMS sent for " + user.getName() + " (" + contactsSent + " contacts)");
+        }
+        
+        @Override
+        public void onSmsSent() {
+            incrementSMSCount();
+        }
+        
+        @Override
+        public void onSnapshotChanged() {
+            scheduleStateSave();
+        }
+    }
+    
+    /**
+     * LocationHelper as the engine's location, built by the first alert if stage 2 has not
+     */
+    private final class DeferredLocation implements LocationSource {
+        @Override
+        public void prefetch() {
+            locationHelper().prefetch();
+        }
+        
+        @Override
+        public ResolvedLocation locate(long deadlineMs) {
+            return locationHelper().locate(deadlineMs);
+        }
+    }
+    
+    /**
+     * SMSManager as the engine's transport, built by the first send if stage 2 has not
+     */
+    private final class DeferredTransport implements SmsTransport {
+        @Override
+        public String getName() {
+            return smsManager().getName();
+        }
+        
+        @Override
+        public boolean send(String phone, String message, Callback callback) {
+            return smsManager().send(phone, message, callback);
+        }
+        
+        @Override
+        public void close() {
+            if (smsManagerInit.isDone()) {
+                smsManager().close();
+            }
+        }
+    }
+}
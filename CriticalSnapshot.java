@@ -0,0 +1,129 @@
+package angelo.collins.smssender;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of one critical-users poll, keyed by user id.
+ *
+ * Each user gets an alert hash (which alert they are critical for) and a vitals
+ * hash, and the whole poll folds into one order-independent fingerprint, so an
+ * unchanged feed is detected with a single comparison.
+ */
+public final class CriticalSnapshot {
+    public static final CriticalSnapshot EMPTY = new CriticalSnapshot(Collections.<CriticalUser>emptyList(),
+            Collections.<Integer, CriticalUser>emptyMap(), Collections.<Integer, long[]>emptyMap(), 0);
+
+    private final List<CriticalUser> source;
+    private final Map<Integer, CriticalUser> users;
+    private final Map<Integer, long[]> hashes; // userId -> {alertHash, vitalsHash}
+    private final long fingerprint;
+
+    private CriticalSnapshot(List<CriticalUser> source, Map<Integer, CriticalUser> users, Map<Integer, long[]> hashes,
+                             long fingerprint) {
+        this.source = source;
+        this.users = users;
+        this.hashes = hashes;
+        this.fingerprint = fingerprint;
+    }
+
+    public static CriticalSnapshot of(List<CriticalUser> criticalUsers) {
+        if (criticalUsers.isEmpty()) {
+            return EMPTY;
+        }
+        Map<Integer, CriticalUser> users = new HashMap<>(criticalUsers.size() * 2);
+        Map<Integer, long[]> hashes = new HashMap<>(criticalUsers.size() * 2);
+        long fingerprint = 0;
+        for (CriticalUser user : criticalUsers) {
+            long alertHash = alertHash(user);
+            long vitalsHash = vitalsHash(user);
+            long[] previous = hashes.put(user.getUserId(), new long[] {alertHash, vitalsHash});
+            CriticalUser replaced = users.put(user.getUserId(), user);
+            if (previous != null && replaced != null) {
+                // Duplicate row for the same user, keep the last one
+                fingerprint -= mix(previous[0] * 31 + previous[1]);
+            }
+            fingerprint += mix(alertHash * 31 + vitalsHash);
+        }
+        return new CriticalSnapshot(criticalUsers, Collections.unmodifiableMap(users), Collections.unmodifiableMap(hashes),
+                fingerprint);
+    }
+
+    /**
+     * True if this snapshot was taken of exactly this list, which a feed hands back
+     * again when no user changed (see CriticalFeed), or both are empty. Needs no
+     * hashing, so an idle poll is recognized without building a new snapshot.
+     */
+    public boolean isSnapshotOf(List<CriticalUser> criticalUsers) {
+        return criticalUsers == source || (criticalUsers.isEmpty() && users.isEmpty());
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    public boolean isEmpty() {
+        return users.isEmpty();
+    }
+
+    public CriticalUser get(int userId) {
+        return users.get(userId);
+    }
+
+    public Map<Integer, CriticalUser> getUsers() {
+        return users;
+    }
+
+    /**
+     * True when both snapshots describe the same users, alerts and vitals
+     */
+    public boolean sameAs(CriticalSnapshot other) {
+        return other != null && fingerprint == other.fingerprint && users.size() == other.users.size();
+    }
+
+    long alertHashOf(int userId) {
+        return hashes.get(userId)[0];
+    }
+
+    long vitalsHashOf(int userId) {
+        return hashes.get(userId)[1];
+    }
+
+    private static long alertHash(CriticalUser user) {
+        return mix(((long) user.getUserId() << 32) | (user.getAlertId() & 0xffffffffL));
+    }
+
+    private static long vitalsHash(CriticalUser user) {
+        long hash = user.getHeartRate();
+        hash = hash * 31 + user.getSystolic();
+        hash = hash * 31 + user.getDiastolic();
+        hash = hash * 31 + user.getSpo2();
+        hash = hash * 31 + Double.doubleToLongBits(user.getTemperature());
+        hash = hash * 31 + user.getRecordedAtMillis();
+        // Contacts arriving for a pending profile version must reach the retry queue
+        hash = hash * 31 + user.getProfileVersion();
+        hash = hash * 31 + (user.isContactsPending() ? 1 : 0);
+        // An acknowledgement must reach the escalation timers
+        hash = hash * 31 + (user.isAcknowledged() ? 1 : 0);
+        return mix(hash);
+    }
+
+    /**
+     * 64-bit finalizer from MurmurHash3, spreads bits so summed hashes rarely collide
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
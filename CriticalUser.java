@@ -1,202 +1,427 @@
 package angelo.collins.smssender;
 
 
-public class CriticalUser {
-    private int userId;
-    private String name;
-    private String email;
-    private String emergencyContact;
-    private String emergencyPhone;
-    private int alertId;
-    private int heartRate;
-    private String bloodPressure;
-    private int spo2;
-    private double temperature;
-    private String alertMessage;
-    private String createdAt;
-    private String emergencyContact1;
-    private String emergencyPhone1;
-    private String emergencyContact2;
-    private String emergencyPhone2;
-    private String emergencyContact3;
-    private String emergencyPhone3;
-    
-    // Constructors
-    public CriticalUser() {}
-    
-    public CriticalUser(int userId, String name, String email, String emergencyContact, 
-                       String emergencyPhone, int alertId) {
-        this.userId = userId;
-        this.name = name;
-        this.email = email;
-        this.emergencyContact = emergencyContact;
-        this.emergencyPhone = emergencyPhone;
-        this.alertId = alertId;
-    }
-    
+/**
+ * Immutable snapshot of one critical user as reported by the server.
+ *
+ * Vitals are stored as primitives and emergency contacts as a compact array.
+ * Instances are built by CriticalFeedDecoder, which reuses the previous instance
+ * (and its pooled strings) when a user's data did not change between polls.
+ */
+public final class CriticalUser {
+    private static final Contact[] NO_CONTACTS = new Contact[0];
+
+    private final int userId;
+    private final String name;
+    private final String email;
+    private final int alertId;
+    private final int heartRate;
+    private final int systolic;
+    private final int diastolic;
+    private final int spo2;
+    private final double temperature;
+    private final String alertMessage;
+    private final long recordedAtMillis;
+    private final long profileVersion;
+    private final boolean contactsPending;
+    private final boolean acknowledged;
+    private final Contact[] contacts;
+
+    private CriticalUser(Builder builder) {
+        this.userId = builder.userId;
+        this.name = builder.name;
+        this.email = builder.email;
+        this.alertId = builder.alertId;
+        this.heartRate = builder.heartRate;
+        this.systolic = builder.systolic;
+        this.diastolic = builder.diastolic;
+        this.spo2 = builder.spo2;
+        this.temperature = builder.temperature;
+        this.alertMessage = builder.alertMessage;
+        this.recordedAtMillis = builder.recordedAtMillis;
+        this.profileVersion = builder.profileVersion;
+        this.contactsPending = builder.contactsPending;
+        this.acknowledged = builder.acknowledged;
+        this.contacts = builder.contactCount == 0 ? NO_CONTACTS : copyOf(builder.contacts, builder.contactCount);
+    }
+
     public int getUserId() {
         return userId;
     }
-    
-    public void setUserId(int userId) {
-        this.userId = userId;
-    }
-    
+
     public String getName() {
         return name;
     }
-    
-    public void setName(String name) {
-        this.name = name;
-    }
-    
+
     public String getEmail() {
         return email;
     }
-    
-    public void setEmail(String email) {
-        this.email = email;
-    }
-    
-    public String getEmergencyContact() {
-        return emergencyContact;
-    }
-    
-    public void setEmergencyContact(String emergencyContact) {
-        this.emergencyContact = emergencyContact;
-    }
-    
-    public String getEmergencyPhone() {
-        return emergencyPhone;
-    }
-    
-    public void setEmergencyPhone(String emergencyPhone) {
-        this.emergencyPhone = emergencyPhone;
-    }
-    
+
     public int getAlertId() {
         return alertId;
     }
-    
-    public void setAlertId(int alertId) {
-        this.alertId = alertId;
-    }
-    
+
     public int getHeartRate() {
         return heartRate;
     }
-    
-    public void setHeartRate(int heartRate) {
-        this.heartRate = heartRate;
+
+    public int getSystolic() {
+        return systolic;
     }
-    
-    public String getBloodPressure() {
-        return bloodPressure;
+
+    public int getDiastolic() {
+        return diastolic;
     }
-    
-    public void setBloodPressure(String bloodPressure) {
-        this.bloodPressure = bloodPressure;
+
+    /**
+     * Blood pressure as "systolic/diastolic", or null if not reported
+     */
+    public String getBloodPressure() {
+        if (systolic <= 0 && diastolic <= 0) {
+            return null;
+        }
+        return systolic + "/" + diastolic;
     }
-    
+
     public int getSpo2() {
         return spo2;
     }
-    
-    public void setSpo2(int spo2) {
-        this.spo2 = spo2;
-    }
-    
+
     public double getTemperature() {
         return temperature;
     }
-    
-    public void setTemperature(double temperature) {
-        this.temperature = temperature;
-    }
-    
+
     public String getAlertMessage() {
         return alertMessage;
     }
-    
-    public void setAlertMessage(String alertMessage) {
-        this.alertMessage = alertMessage;
-    }
-    
-    public String getCreatedAt() {
-        return createdAt;
-    }
-    
-    public void setCreatedAt(String createdAt) {
-        this.createdAt = createdAt;
-    }
-    
-    public String getEmergencyContact1() {
-        return emergencyContact1;
-    }
-    
-    public void setEmergencyContact1(String emergencyContact1) {
-        this.emergencyContact1 = emergencyContact1;
-    }
-    
-    public String getEmergencyPhone1() {
-        return emergencyPhone1;
-    }
-    
-    public void setEmergencyPhone1(String emergencyPhone1) {
-        this.emergencyPhone1 = emergencyPhone1;
-    }
-    
-    public String getEmergencyContact2() {
-        return emergencyContact2;
-    }
-    
-    public void setEmergencyContact2(String emergencyContact2) {
-        this.emergencyContact2 = emergencyContact2;
+
+    /**
+     * When the server recorded the critical reading, in epoch millis, or 0 if unknown
+     */
+    public long getRecordedAtMillis() {
+        return recordedAtMillis;
     }
-    
-    public String getEmergencyPhone2() {
-        return emergencyPhone2;
+
+    /**
+     * Version of the user's profile (contacts) on the server, or 0 if the feed sent
+     * contacts inline
+     */
+    public long getProfileVersion() {
+        return profileVersion;
     }
-    
-    public void setEmergencyPhone2(String emergencyPhone2) {
-        this.emergencyPhone2 = emergencyPhone2;
+
+    /**
+     * True if the feed referenced a profile version whose contacts could not be
+     * loaded yet; such a user must not be treated as having no contacts
+     */
+    public boolean isContactsPending() {
+        return contactsPending;
     }
-    
-    public String getEmergencyContact3() {
-        return emergencyContact3;
+
+    /**
+     * True once someone acknowledged the critical reading on the server
+     */
+    public boolean isAcknowledged() {
+        return acknowledged;
     }
-    
-    public void setEmergencyContact3(String emergencyContact3) {
-        this.emergencyContact3 = emergencyContact3;
+
+    public int getContactCount() {
+        return contacts.length;
     }
-    
-    public String getEmergencyPhone3() {
-        return emergencyPhone3;
+
+    public Contact getContact(int index) {
+        return contacts[index];
     }
-    
-    public void setEmergencyPhone3(String emergencyPhone3) {
-        this.emergencyPhone3 = emergencyPhone3;
+
+    private static Contact[] copyOf(Contact[] source, int count) {
+        Contact[] copy = new Contact[count];
+        System.arraycopy(source, 0, copy, 0, count);
+        return copy;
     }
-    
+
     @Override
     public String toString() {
         return "CriticalUser{" +
                 "userId=" + userId +
                 ", name='" + name + '\'' +
-                ", email='" + email + '\'' +
-                ", emergencyContact1='" + emergencyContact1 + '\'' +
-                ", emergencyPhone1='" + emergencyPhone1 + '\'' +
-                ", emergencyContact2='" + emergencyContact2 + '\'' +
-                ", emergencyPhone2='" + emergencyPhone2 + '\'' +
-                ", emergencyContact3='" + emergencyContact3 + '\'' +
-                ", emergencyPhone3='" + emergencyPhone3 + '\'' +
                 ", alertId=" + alertId +
                 ", heartRate=" + heartRate +
-                ", bloodPressure='" + bloodPressure + '\'' +
+                ", bloodPressure='" + getBloodPressure() + '\'' +
                 ", spo2=" + spo2 +
                 ", temperature=" + temperature +
-                ", alertMessage='" + alertMessage + '\'' +
-                ", createdAt='" + createdAt + '\'' +
+                ", recordedAtMillis=" + recordedAtMillis +
+                ", acknowledged=" + acknowledged +
+                ", profileVersion=" + profileVersion +
+                ", contacts=" + (contactsPending ? "pending" : String.valueOf(contacts.length)) +
                 '}';
     }
-}
\ No newline at end of file
+
+    /**
+     * One emergency contact. Slot is the 1-based position in the user's profile.
+     */
+    public static final class Contact {
+        private final int slot;
+        private final String name;
+        private final String phone;
+
+        public Contact(int slot, String name, String phone) {
+            this.slot = slot;
+            this.name = name;
+            this.phone = phone;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPhone() {
+            return phone;
+        }
+
+        boolean sameAs(int slot, String name, String phone) {
+            return this.slot == slot && equal(this.name, name) && equal(this.phone, phone);
+        }
+    }
+
+    /**
+     * Mutable scratch record the decoder fills in; reusable across users and polls
+     */
+    public static final class Builder {
+        private static final int MAX_CONTACTS = 3;
+
+        private int userId;
+        private String name;
+        private String email;
+        private int alertId;
+        private int heartRate;
+        private int systolic;
+        private int diastolic;
+        private int spo2;
+        private double temperature;
+        private String alertMessage;
+        private long recordedAtMillis;
+        private long profileVersion;
+        private boolean contactsPending;
+        private boolean acknowledged;
+        private final Contact[] contacts = new Contact[MAX_CONTACTS];
+        private final String[] contactNames = new String[MAX_CONTACTS];
+        private final String[] contactPhones = new String[MAX_CONTACTS];
+        private int contactCount;
+
+        public Builder reset() {
+            userId = 0;
+            name = null;
+            email = null;
+            alertId = 0;
+            heartRate = 0;
+            systolic = 0;
+            diastolic = 0;
+            spo2 = 0;
+            temperature = 0;
+            alertMessage = null;
+            recordedAtMillis = 0;
+            profileVersion = 0;
+            contactsPending = false;
+            acknowledged = false;
+            for (int i = 0; i < MAX_CONTACTS; i++) {
+                contacts[i] = null;
+                contactNames[i] = null;
+                contactPhones[i] = null;
+            }
+            contactCount = 0;
+            return this;
+        }
+
+        public Builder setUserId(int userId) {
+            this.userId = userId;
+            return this;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public Builder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder setEmail(String email) {
+            this.email = email;
+            return this;
+        }
+
+        public Builder setAlertId(int alertId) {
+            this.alertId = alertId;
+            return this;
+        }
+
+        public Builder setHeartRate(int heartRate) {
+            this.heartRate = heartRate;
+            return this;
+        }
+
+        public Builder setBloodPressure(int systolic, int diastolic) {
+            this.systolic = systolic;
+            this.diastolic = diastolic;
+            return this;
+        }
+
+        public Builder setSystolic(int systolic) {
+            this.systolic = systolic;
+            return this;
+        }
+
+        public Builder setDiastolic(int diastolic) {
+            this.diastolic = diastolic;
+            return this;
+        }
+
+        public boolean hasBloodPressure() {
+            return systolic > 0 || diastolic > 0;
+        }
+
+        public Builder setSpo2(int spo2) {
+            this.spo2 = spo2;
+            return this;
+        }
+
+        public Builder setTemperature(double temperature) {
+            this.temperature = temperature;
+            return this;
+        }
+
+        public Builder setAlertMessage(String alertMessage) {
+            this.alertMessage = alertMessage;
+            return this;
+        }
+
+        public Builder setRecordedAtMillis(long recordedAtMillis) {
+            this.recordedAtMillis = recordedAtMillis;
+            return this;
+        }
+
+        public Builder setProfileVersion(long profileVersion) {
+            this.profileVersion = profileVersion;
+            return this;
+        }
+
+        public long getProfileVersion() {
+            return profileVersion;
+        }
+
+        public Builder setAcknowledged(boolean acknowledged) {
+            this.acknowledged = acknowledged;
+            return this;
+        }
+
+        public Builder setContactsPending(boolean contactsPending) {
+            this.contactsPending = contactsPending;
+            return this;
+        }
+
+        /**
+         * True if contacts were sent inline rather than by profile version
+         */
+        public boolean hasInlineContacts() {
+            for (int i = 0; i < MAX_CONTACTS; i++) {
+                if (contactPhones[i] != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Set the name of the contact in the given 1-based profile slot
+         */
+        public Builder setContactName(int slot, String contactName) {
+            contactNames[slot - 1] = contactName;
+            return this;
+        }
+
+        /**
+         * Set the phone of the contact in the given 1-based profile slot
+         */
+        public Builder setContactPhone(int slot, String phone) {
+            contactPhones[slot - 1] = phone;
+            return this;
+        }
+
+        /**
+         * Add a contact that already exists, e.g. from the contact directory
+         */
+        public Builder addContact(Contact contact) {
+            if (contactCount < MAX_CONTACTS && contact != null) {
+                contacts[contactCount++] = contact;
+            }
+            return this;
+        }
+
+        /**
+         * Return previous if it holds exactly the data in this builder, otherwise a new
+         * immutable user. Contacts are reused from previous whenever they match.
+         */
+        public CriticalUser build(CriticalUser previous) {
+            collectContacts(previous);
+            if (previous != null && matches(previous)) {
+                return previous;
+            }
+            return new CriticalUser(this);
+        }
+
+        public CriticalUser build() {
+            return build(null);
+        }
+
+        private void collectContacts(CriticalUser previous) {
+            for (int i = 0; i < MAX_CONTACTS; i++) {
+                String phone = contactPhones[i];
+                if (phone == null || phone.isEmpty() || contactCount >= MAX_CONTACTS) {
+                    continue;
+                }
+                int slot = i + 1;
+                Contact contact = null;
+                if (previous != null) {
+                    for (Contact existing : previous.contacts) {
+                        if (existing.sameAs(slot, contactNames[i], phone)) {
+                            contact = existing;
+                            break;
+                        }
+                    }
+                }
+                contacts[contactCount++] = contact != null ? contact : new Contact(slot, contactNames[i], phone);
+                contactPhones[i] = null;
+                contactNames[i] = null;
+            }
+        }
+
+        private boolean matches(CriticalUser user) {
+            if (user.userId != userId || user.alertId != alertId || user.heartRate != heartRate
+                    || user.systolic != systolic || user.diastolic != diastolic || user.spo2 != spo2
+                    || Double.compare(user.temperature, temperature) != 0
+                    || user.recordedAtMillis != recordedAtMillis
+                    || user.profileVersion != profileVersion || user.contactsPending != contactsPending
+                    || user.acknowledged != acknowledged
+                    || !equal(user.name, name) || !equal(user.email, email)
+                    || !equal(user.alertMessage, alertMessage)
+                    || user.contacts.length != contactCount) {
+                return false;
+            }
+            for (int i = 0; i < contactCount; i++) {
+                if (user.contacts[i] != contacts[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == b || (a != null && a.equals(b));
+    }
+}
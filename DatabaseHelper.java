@@ -10,23 +10,46 @@ import android.util.Log;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
-public class DatabaseHelper extends SQLiteOpenHelper {
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+public class DatabaseHelper extends SQLiteOpenHelper implements AlertStore {
     private static final String TAG = "DatabaseHelper";
     private static final String DATABASE_NAME = "wristbud_sms.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
 
     private static final String TABLE_SMS_LOG = "sms_log";
     private static final String COLUMN_ID = "id";
     private static final String COLUMN_USER_ID = "user_id";
     private static final String COLUMN_ALERT_ID = "alert_id";
     private static final String COLUMN_PHONE_NUMBER = "phone_number";
+    // Before version 4: the full rendered text
     private static final String COLUMN_MESSAGE = "message";
+    // Version 4: AlertMessage template and parameters instead of the text
+    private static final String COLUMN_TEMPLATE_ID = "template_id";
+    private static final String COLUMN_PARAMS = "params";
     private static final String COLUMN_SENT_AT = "sent_at";
     private static final String COLUMN_STATUS = "status";
+    // Version 3: sequence of the journal record a row was folded from, for idempotent folds
+    private static final String COLUMN_JOURNAL_SEQ = "journal_seq";
+
+    // Version 2: acknowledgement escalations that must survive restarts
+    private static final String TABLE_ESCALATIONS = "pending_escalations";
+    private static final String COLUMN_STEP = "step";
+    private static final String COLUMN_DUE_AT = "due_at";
 
     private APIClient apiClient;
+    // (user_id, alert_id) pairs known to have been sent; see hasSMSBeenSent
+    private final Set<Long> dedupIndex = ConcurrentHashMap.newKeySet();
+    private volatile boolean dedupIndexComplete;
+    private volatile AlertJournal journal;
 
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -40,24 +63,74 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String createSMSLogTable = "CREATE TABLE " + TABLE_SMS_LOG + " (" +
+        createSMSLogTable(db);
+        createJournalSeqIndex(db);
+        Log.d(TAG, "SMS log table created");
+        createEscalationsTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Upgrade step by step so the SMS log (the dedup record) is kept
+        if (oldVersion < 2) {
+            createEscalationsTable(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_SMS_LOG + " ADD COLUMN " + COLUMN_JOURNAL_SEQ + " INTEGER");
+            createJournalSeqIndex(db);
+        }
+        if (oldVersion < 4) {
+            migrateToTemplates(db);
+        }
+    }
+
+    private void createSMSLogTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SMS_LOG + " (" +
                 COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 COLUMN_USER_ID + " INTEGER NOT NULL, " +
                 COLUMN_ALERT_ID + " INTEGER NOT NULL, " +
                 COLUMN_PHONE_NUMBER + " TEXT NOT NULL, " +
-                COLUMN_MESSAGE + " TEXT NOT NULL, " +
+                COLUMN_TEMPLATE_ID + " INTEGER NOT NULL DEFAULT " + AlertMessage.TEMPLATE_TEXT + ", " +
+                COLUMN_PARAMS + " TEXT NOT NULL, " +
                 COLUMN_SENT_AT + " DATETIME DEFAULT CURRENT_TIMESTAMP, " +
-                COLUMN_STATUS + " TEXT DEFAULT 'sent'" +
-                ")";
+                COLUMN_STATUS + " TEXT DEFAULT 'sent', " +
+                COLUMN_JOURNAL_SEQ + " INTEGER" +
+                ")");
+    }
 
-        db.execSQL(createSMSLogTable);
-        Log.d(TAG, "SMS log table created");
+    /**
+     * Rebuild sms_log without the message column. Existing rows keep their text as
+     * TEMPLATE_TEXT parameters and render unchanged; ids and journal sequences are kept.
+     */
+    private void migrateToTemplates(SQLiteDatabase db) {
+        String oldTable = TABLE_SMS_LOG + "_v3";
+        db.execSQL("ALTER TABLE " + TABLE_SMS_LOG + " RENAME TO " + oldTable);
+        createSMSLogTable(db);
+        db.execSQL("INSERT INTO " + TABLE_SMS_LOG + " (" + COLUMN_ID + ", " + COLUMN_USER_ID + ", " + COLUMN_ALERT_ID + ", "
+                + COLUMN_PHONE_NUMBER + ", " + COLUMN_TEMPLATE_ID + ", " + COLUMN_PARAMS + ", " + COLUMN_SENT_AT + ", "
+                + COLUMN_STATUS + ", " + COLUMN_JOURNAL_SEQ + ") SELECT " + COLUMN_ID + ", " + COLUMN_USER_ID + ", "
+                + COLUMN_ALERT_ID + ", " + COLUMN_PHONE_NUMBER + ", " + AlertMessage.TEMPLATE_TEXT + ", " + COLUMN_MESSAGE + ", "
+                + COLUMN_SENT_AT + ", " + COLUMN_STATUS + ", " + COLUMN_JOURNAL_SEQ + " FROM " + oldTable);
+        // Drops the old journal_seq index with it, so the new one can take its name
+        db.execSQL("DROP TABLE " + oldTable);
+        createJournalSeqIndex(db);
+        Log.d(TAG, "SMS log migrated to template storage");
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SMS_LOG);
-        onCreate(db);
+    private void createJournalSeqIndex(SQLiteDatabase db) {
+        // NULLs (rows written directly) do not collide
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_sms_log_journal_seq ON " + TABLE_SMS_LOG
+                + " (" + COLUMN_JOURNAL_SEQ + ")");
+    }
+
+    private void createEscalationsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_ESCALATIONS + " (" +
+                COLUMN_USER_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_ALERT_ID + " INTEGER NOT NULL, " +
+                COLUMN_STEP + " INTEGER NOT NULL, " +
+                COLUMN_DUE_AT + " INTEGER NOT NULL" +
+                ")");
+        Log.d(TAG, "Escalations table created");
     }
 
     /**
@@ -69,7 +142,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             // Fetch critical users from the server API
             criticalUsers = apiClient.getCriticalUsers();
-            Log.d(TAG, "Fetched " + criticalUsers.size() + " critical users from server");
+            if (MonitorLog.DEBUG) Log.d(TAG, "Fetched " + criticalUsers.size() + " critical users from server");
 
         } catch (Exception e) {
             Log.e(TAG, "Error fetching critical users from server", e);
@@ -78,10 +151,172 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return criticalUsers;
     }
 
+    /**
+     * Get critical users from the server, or null if the server could not be polled
+     */
+    public List<CriticalUser> fetchCriticalUsers() {
+        return apiClient.fetchCriticalUsers();
+    }
+
+    public ContactDirectory getContactDirectory() {
+        return apiClient.getContactDirectory();
+    }
+
+    public String getApiBaseUrl() {
+        return apiClient.getBaseUrl();
+    }
+
+    public APIClient getApiClient() {
+        return apiClient;
+    }
+
+    private static long dedupKey(int userId, int alertId) {
+        return ((long) userId << 32) | (alertId & 0xffffffffL);
+    }
+
+    /**
+     * Seed the dedup index with keys restored from the state file, before the full
+     * index has been loaded
+     */
+    public void seedDedupIndex(long[] keys) {
+        for (long key : keys) {
+            dedupIndex.add(key);
+        }
+    }
+
+    /**
+     * Load every (user, alert) pair from sms_log so hasSMSBeenSent no longer needs to
+     * query. Meant for a background thread after the first poll.
+     */
+    public void loadDedupIndex() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + COLUMN_USER_ID + ", " + COLUMN_ALERT_ID
+                + " FROM " + TABLE_SMS_LOG, null);
+        int loaded = 0;
+        while (cursor.moveToNext()) {
+            dedupIndex.add(dedupKey(cursor.getInt(0), cursor.getInt(1)));
+            loaded++;
+        }
+        cursor.close();
+        dedupIndexComplete = true;
+        if (MonitorLog.DEBUG) Log.d(TAG, "Dedup index loaded: " + loaded + " alerts");
+    }
+
+    public long[] dedupKeys() {
+        long[] keys = new long[dedupIndex.size()];
+        int count = 0;
+        for (Long key : dedupIndex) {
+            if (count == keys.length) {
+                break;
+            }
+            keys[count++] = key;
+        }
+        return count == keys.length ? keys : Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Route markSMSAsSent through the journal and rebuild dedup state from its records
+     */
+    public void attachJournal(AlertJournal journal) {
+        journal.continueAfter(maxJournalSeq());
+        this.journal = journal;
+        for (AlertJournal.Entry entry : journal.recovered()) {
+            if (entry.status == AlertJournal.STATUS_SENT) {
+                dedupIndex.add(dedupKey(entry.userId, entry.alertId));
+            }
+        }
+    }
+
+    /**
+     * Highest journal sequence folded into sms_log, 0 if none; an index lookup
+     */
+    private long maxJournalSeq() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT MAX(" + COLUMN_JOURNAL_SEQ + ") FROM " + TABLE_SMS_LOG, null);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fold what is left in the journal and close it; later sends are written to
+     * sms_log directly. Call before close().
+     */
+    public void closeJournal() {
+        AlertJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        this.journal = null;
+        fold(journal);
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close alert journal", e);
+        }
+    }
+
+    /**
+     * Copy journal records that are not in sms_log yet into it, in one transaction.
+     * Safe to repeat: rows are keyed by journal sequence. Returns the number folded.
+     */
+    public int foldJournal() {
+        AlertJournal journal = this.journal;
+        return journal != null ? fold(journal) : 0;
+    }
+
+    private int fold(AlertJournal journal) {
+        List<AlertJournal.Entry> entries = journal.unindexed();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        // When the SMS was sent, not when it was folded; as CURRENT_TIMESTAMP writes it
+        SimpleDateFormat sentAt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        sentAt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        db.beginTransaction();
+        try {
+            for (AlertJournal.Entry entry : entries) {
+                values.clear();
+                values.put(COLUMN_USER_ID, entry.userId);
+                values.put(COLUMN_ALERT_ID, entry.alertId);
+                values.put(COLUMN_PHONE_NUMBER, entry.phone);
+                if (entry.params != null) {
+                    values.put(COLUMN_TEMPLATE_ID, entry.templateId);
+                    values.put(COLUMN_PARAMS, entry.params);
+                } else {
+                    values.put(COLUMN_TEMPLATE_ID, AlertMessage.TEMPLATE_TEXT);
+                    values.put(COLUMN_PARAMS, "(message not recovered)");
+                }
+                values.put(COLUMN_SENT_AT, sentAt.format(new Date(entry.timeMillis)));
+                values.put(COLUMN_STATUS, "sent");
+                values.put(COLUMN_JOURNAL_SEQ, entry.seq);
+                db.insertWithOnConflict(TABLE_SMS_LOG, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        journal.markIndexed(entries.get(entries.size() - 1).seq);
+        journal.force();
+        if (MonitorLog.DEBUG) Log.d(TAG, "Folded " + entries.size() + " journal records into sms_log");
+        return entries.size();
+    }
+
     /**
      * Check if SMS has already been sent for this user and alert
      */
+    @Override
     public boolean hasSMSBeenSent(int userId, int alertId) {
+        long key = dedupKey(userId, alertId);
+        if (dedupIndex.contains(key)) {
+            return true;
+        }
+        if (dedupIndexComplete) {
+            return false;
+        }
         SQLiteDatabase db = this.getReadableDatabase();
 
         String query = "SELECT COUNT(*) FROM " + TABLE_SMS_LOG +
@@ -95,6 +330,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
 
         cursor.close();
+        if (hasSent) {
+            dedupIndex.add(key);
+        }
         return hasSent;
     }
 
@@ -102,26 +340,44 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Mark SMS as sent in the local database
      */
     public void markSMSAsSent(int userId, int alertId, String phoneNumber, String message) {
+        markSMSAsSent(userId, alertId, 0, phoneNumber, AlertMessage.text(message));
+    }
+
+    /**
+     * Record a sent SMS. With a journal attached this is a mapped append and the row
+     * reaches sms_log when the journal is folded. Only the message's template and
+     * parameters are stored.
+     */
+    @Override
+    public void markSMSAsSent(int userId, int alertId, int contactSlot, String phoneNumber, AlertMessage message) {
+        AlertJournal journal = this.journal;
+        if (journal != null && journal.append(userId, alertId, contactSlot, phoneNumber, AlertJournal.STATUS_SENT, message)) {
+            dedupIndex.add(dedupKey(userId, alertId));
+            return;
+        }
         SQLiteDatabase db = this.getWritableDatabase();
 
         ContentValues values = new ContentValues();
         values.put(COLUMN_USER_ID, userId);
         values.put(COLUMN_ALERT_ID, alertId);
         values.put(COLUMN_PHONE_NUMBER, phoneNumber);
-        values.put(COLUMN_MESSAGE, message);
+        values.put(COLUMN_TEMPLATE_ID, message.getTemplateId());
+        values.put(COLUMN_PARAMS, message.getParams());
         values.put(COLUMN_STATUS, "sent");
 
         long result = db.insert(TABLE_SMS_LOG, null, values);
 
         if (result != -1) {
-            Log.d(TAG, "SMS marked as sent for user " + userId + " alert " + alertId);
+            dedupIndex.add(dedupKey(userId, alertId));
+            if (MonitorLog.DEBUG) Log.d(TAG, "SMS marked as sent for user " + userId + " alert " + alertId);
         } else {
             Log.e(TAG, "Failed to mark SMS as sent");
         }
     }
 
     /**
-     * Get SMS log for debugging/monitoring
+     * Get SMS log for debugging/monitoring. Message text is rendered from the stored
+     * template when an entry's getMessage() is first called.
      */
     public List<SMSLogEntry> getSMSLog(int limit) {
         List<SMSLogEntry> logEntries = new ArrayList<>();
@@ -138,7 +394,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             entry.setUserId(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_USER_ID)));
             entry.setAlertId(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_ALERT_ID)));
             entry.setPhoneNumber(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PHONE_NUMBER)));
-            entry.setMessage(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE)));
+            entry.setStoredMessage(AlertMessage.of(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_TEMPLATE_ID)),
+                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PARAMS))));
             entry.setSentAt(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_SENT_AT)));
             entry.setStatus(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_STATUS)));
 
@@ -153,6 +410,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Clean up old SMS log entries (keep only last 1000)
      */
     public void cleanupOldSMSLogs() {
+        foldJournal();
         SQLiteDatabase db = this.getWritableDatabase();
 
         String deleteQuery = "DELETE FROM " + TABLE_SMS_LOG +
@@ -165,6 +423,55 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                         " ORDER BY " + COLUMN_SENT_AT + " DESC LIMIT 1000)", null);
 
         Log.d(TAG, "Cleaned up " + deletedRows + " old SMS log entries");
+        if (deletedRows > 0) {
+            // Forgotten alerts may be sent again, as before the index existed
+            dedupIndexComplete = false;
+            dedupIndex.clear();
+            loadDedupIndex();
+        }
+    }
+
+    /**
+     * Store the next escalation step for a user, replacing the previous one
+     */
+    @Override
+    public void saveEscalation(PendingEscalation escalation) {
+        SQLiteDatabase db = this.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_USER_ID, escalation.getUserId());
+        values.put(COLUMN_ALERT_ID, escalation.getAlertId());
+        values.put(COLUMN_STEP, escalation.getStep());
+        values.put(COLUMN_DUE_AT, escalation.getDueAtMillis());
+
+        if (db.insertWithOnConflict(TABLE_ESCALATIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+            Log.e(TAG, "Failed to save escalation for user " + escalation.getUserId());
+        }
+    }
+
+    @Override
+    public void deleteEscalation(int userId) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(TABLE_ESCALATIONS, COLUMN_USER_ID + " = ?", new String[]{String.valueOf(userId)});
+    }
+
+    /**
+     * All escalations persisted by earlier runs, soonest first
+     */
+    @Override
+    public List<PendingEscalation> getPendingEscalations() {
+        List<PendingEscalation> escalations = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_USER_ID + ", " + COLUMN_ALERT_ID + ", " + COLUMN_STEP + ", "
+                + COLUMN_DUE_AT + " FROM " + TABLE_ESCALATIONS + " ORDER BY " + COLUMN_DUE_AT, null);
+
+        while (cursor.moveToNext()) {
+            escalations.add(new PendingEscalation(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getLong(3)));
+        }
+
+        cursor.close();
+        return escalations;
     }
 
     /**
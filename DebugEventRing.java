@@ -0,0 +1,232 @@
+package angelo.collins.smssender;
+
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity, lock-free ring of structured debug events.
+ *
+ * The monitor service records events from its worker threads without locking or
+ * building strings; the debug console reads the newest events, which
+ * MonitorStatusChannel carries over from the monitor process, and renders them on
+ * the UI thread. Old events are overwritten, so memory stays flat no matter how long
+ * the service runs.
+ *
+ * Each slot is a seqlock: a writer unpublishes it, stores the fields and publishes it
+ * again; a reader copies the fields between two checks of the published sequence. The
+ * fields are atomic arrays (release stores, acquire loads; VarHandle fences need Java
+ * 9) so a reader that saw a field of a newer event also fails its second check.
+ */
+public class DebugEventRing {
+    public static final int NOTE = 0;
+    public static final int NO_CRITICAL_USERS = 1;
+    public static final int CRITICAL_USERS_FOUND = 2;
+    public static final int PROCESSING_USER = 3;
+    public static final int SMS_ALREADY_SENT = 4;
+    public static final int SMS_SENT = 5;
+    public static final int SMS_FAILED = 6;
+    public static final int ALERT_SUMMARY = 7;
+    public static final int ADDRESS_FOLLOW_UP = 8;
+    public static final int CHECK_ERROR = 9;
+    public static final int VITALS_UPDATED = 10;
+    public static final int USER_CLEARED = 11;
+    public static final int CONTACTS_PENDING = 12;
+    public static final int ALERTS_COALESCED = 13;
+    public static final int ESCALATION = 14;
+    public static final int WORKER_STALL = 15;
+    public static final int WORKER_RESTARTED = 16;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final DebugEventRing SHARED = new DebugEventRing(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicLongArray published;
+    private final AtomicLongArray timestamps;
+    private final AtomicIntegerArray types;
+    private final AtomicIntegerArray userIds;
+    private final AtomicIntegerArray alertIds;
+    private final AtomicLongArray values;
+    private final AtomicReferenceArray<String> texts;
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public DebugEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        timestamps = new AtomicLongArray(size);
+        types = new AtomicIntegerArray(size);
+        userIds = new AtomicIntegerArray(size);
+        alertIds = new AtomicIntegerArray(size);
+        values = new AtomicLongArray(size);
+        texts = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Process-wide ring. The monitor process records into its own; the debug console
+     * renders the UI process's, into which MonitorStatusChannel copies the monitor's.
+     */
+    public static DebugEventRing shared() {
+        return SHARED;
+    }
+
+    public void record(int type, int userId, int alertId, long value) {
+        record(type, userId, alertId, value, null);
+    }
+
+    public void note(String text) {
+        record(NOTE, 0, 0, 0, text);
+    }
+
+    /**
+     * Append an event. Safe to call from any thread; never blocks and never allocates.
+     * The text is stored by reference, so pass constants or strings that already exist.
+     */
+    public void record(int type, int userId, int alertId, long value, String text) {
+        write(System.currentTimeMillis(), type, userId, alertId, value, text);
+    }
+
+    /**
+     * Append a copy of an event read from another ring, keeping its timestamp; used
+     * to mirror the monitor process's events into the console's ring
+     */
+    public void append(Event event) {
+        write(event.timestamp, event.type, event.userId, event.alertId, event.value, event.text);
+    }
+
+    private void write(long timestamp, int type, int userId, int alertId, long value, String text) {
+        long sequence = writeSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        // Mark the slot as being written so readers skip it until it is published
+        published.set(slot, -1);
+        timestamps.lazySet(slot, timestamp);
+        types.lazySet(slot, type);
+        userIds.lazySet(slot, userId);
+        alertIds.lazySet(slot, alertId);
+        values.lazySet(slot, value);
+        texts.lazySet(slot, text);
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Sequence number the next event will get; readers use it as an exclusive upper bound
+     */
+    public long head() {
+        return writeSequence.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Copy the event with the given sequence number into the holder.
+     * Returns false if it has not been published yet or was already overwritten.
+     */
+    public boolean read(long sequence, Event into) {
+        int slot = (int) (sequence & mask);
+        if (published.get(slot) != sequence) {
+            return false;
+        }
+        into.sequence = sequence;
+        into.timestamp = timestamps.get(slot);
+        into.type = types.get(slot);
+        into.userId = userIds.get(slot);
+        into.alertId = alertIds.get(slot);
+        into.value = values.get(slot);
+        into.text = texts.get(slot);
+        // A writer may have lapped us while copying
+        return published.get(slot) == sequence;
+    }
+
+    /**
+     * Render an event as a single console line, without the timestamp
+     */
+    public static void format(Event event, StringBuilder out) {
+        switch (event.type) {
+            case NO_CRITICAL_USERS:
+                out.append("[Service] No critical users found");
+                break;
+            case CRITICAL_USERS_FOUND:
+                out.append("[Service] Critical data found: ").append(event.value);
+                break;
+            case PROCESSING_USER:
+                out.append("[Service] Processing critical user: ").append(event.text)
+                        .append(" (ID: ").append(event.userId).append(')');
+                break;
+            case SMS_ALREADY_SENT:
+                out.append("[Service] SMS already sent for user ").append(event.userId)
+                        .append(" alert ").append(event.alertId);
+                break;
+            case SMS_SENT:
+                out.append("[Service] Sent alert to user ").append(event.userId)
+                        .append(" / contact ").append(event.value);
+                break;
+            case SMS_FAILED:
+                out.append("[Service] Failed to send SMS to contact ").append(event.value)
+                        .append(" for user ").append(event.userId);
+                break;
+            case ALERT_SUMMARY:
+                out.append("[Service] Sending alert to user ").append(event.userId)
+                        .append(" / registered contacts: ").append(event.value);
+                break;
+            case ADDRESS_FOLLOW_UP:
+                out.append("[Service] Sent address follow-up for user ").append(event.userId)
+                        .append(" to ").append(event.value).append(" contacts");
+                break;
+            case VITALS_UPDATED:
+                out.append("[Service] Vitals updated for user ").append(event.userId);
+                break;
+            case USER_CLEARED:
+                out.append("[Service] User ").append(event.userId).append(" is no longer critical");
+                break;
+            case CONTACTS_PENDING:
+                out.append("[Service] Contacts not loaded yet for user ").append(event.userId)
+                        .append(" (profile v").append(event.value).append("), will retry");
+                break;
+            case ALERTS_COALESCED:
+                out.append("[Service] Merged ").append(event.value)
+                        .append(" alerts into one SMS to contact ").append(event.alertId);
+                break;
+            case ESCALATION:
+                out.append("[Service] Unacknowledged alert for user ").append(event.userId)
+                        .append(", reminder ").append(event.value).append(" sent");
+                break;
+            case WORKER_STALL:
+                out.append("[Service] Monitor stuck for ").append(event.value)
+                        .append(" ms in ").append(event.text);
+                break;
+            case WORKER_RESTARTED:
+                out.append("[Service] Monitor restarted after being stuck for ").append(event.value).append(" ms");
+                break;
+            case CHECK_ERROR:
+                out.append("[Service] Error checking critical users: ").append(event.text);
+                break;
+            case NOTE:
+            default:
+                out.append(event.text);
+                break;
+        }
+    }
+
+    /**
+     * Reusable holder for reading events out of the ring
+     */
+    public static final class Event {
+        public long sequence;
+        public long timestamp;
+        public int type;
+        public int userId;
+        public int alertId;
+        public long value;
+        public String text;
+    }
+}
@@ -0,0 +1,151 @@
+package angelo.collins.smssender;
+
+
+/**
+ * Logging for the Android-free alert engine classes.
+ *
+ * Lines go to a pluggable Sink: stderr on a plain JVM, logcat once MonitorLog.refresh()
+ * has installed its sink on the phone. Debug lines are meant to be guarded with
+ * isDebug(), which is off unless setDebug() or -Dwristbud.debug=true switched it on.
+ * Structured events always go to the preallocated DebugEventRing and only reach the
+ * sink in debug mode. Full HTTP bodies and SMS text are logged only with verbose
+ * payloads on (-Dwristbud.payloads=true, or the WristBudPayload property on a phone).
+ */
+public final class EngineLog {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String EVENT_TAG = "WristBudEvent";
+    private static final String[] LEVEL_NAMES = {"?", "?", "V", "D", "I", "W", "E"};
+
+    /**
+     * Destination of log lines; must be thread-safe
+     */
+    public interface Sink {
+        void log(int level, String tag, String message, Throwable error);
+    }
+
+    private static volatile Sink sink = EngineLog::printToStderr;
+    private static volatile boolean debug = Boolean.getBoolean("wristbud.debug");
+    private static volatile boolean verbosePayloads = Boolean.getBoolean("wristbud.payloads");
+
+    private static final ThreadLocal<StringBuilder> EVENT_LINE = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+    private static final ThreadLocal<DebugEventRing.Event> EVENT_RECORD = new ThreadLocal<DebugEventRing.Event>() {
+        @Override
+        protected DebugEventRing.Event initialValue() {
+            return new DebugEventRing.Event();
+        }
+    };
+
+    private EngineLog() {}
+
+    public static void setSink(Sink sink) {
+        EngineLog.sink = sink != null ? sink : EngineLog::printToStderr;
+    }
+
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    public static void setDebug(boolean debug) {
+        EngineLog.debug = debug;
+    }
+
+    /**
+     * Whether full request/response bodies and SMS text may be logged
+     */
+    public static boolean verbosePayloads() {
+        return verbosePayloads;
+    }
+
+    public static void setVerbosePayloads(boolean verbosePayloads) {
+        EngineLog.verbosePayloads = verbosePayloads;
+    }
+
+    public static void v(String tag, String message) {
+        sink.log(VERBOSE, tag, message, null);
+    }
+
+    public static void d(String tag, String message) {
+        sink.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        sink.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        sink.log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        sink.log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        sink.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        sink.log(ERROR, tag, message, error);
+    }
+
+    /**
+     * Record a structured event in the debug ring; echoed to the sink in debug mode only
+     */
+    public static void event(int type, int userId, int alertId, long value) {
+        event(type, userId, alertId, value, null);
+    }
+
+    public static void event(int type, int userId, int alertId, long value, String text) {
+        DebugEventRing.shared().record(type, userId, alertId, value, text);
+        if (debug) {
+            DebugEventRing.Event event = EVENT_RECORD.get();
+            event.type = type;
+            event.userId = userId;
+            event.alertId = alertId;
+            event.value = value;
+            event.text = text;
+            StringBuilder line = EVENT_LINE.get();
+            line.setLength(0);
+            DebugEventRing.format(event, line);
+            sink.log(DEBUG, EVENT_TAG, line.toString(), null);
+        }
+    }
+
+    /**
+     * Mask a phone number for logs, keeping only the last three digits
+     */
+    public static String maskPhone(String phoneNumber) {
+        if (phoneNumber == null) {
+            return "null";
+        }
+        int length = phoneNumber.length();
+        if (length <= 3) {
+            return "***";
+        }
+        return "***" + phoneNumber.substring(length - 3);
+    }
+
+    private static void printToStderr(int level, String tag, String message, Throwable error) {
+        StringBuilder line = new StringBuilder(message.length() + tag.length() + 40);
+        line.append(System.currentTimeMillis()).append(' ')
+                .append(LEVEL_NAMES[Math.max(0, Math.min(level, LEVEL_NAMES.length - 1))]).append('/')
+                .append(tag).append(" [").append(Thread.currentThread().getName()).append("] ")
+                .append(message);
+        synchronized (System.err) {
+            System.err.println(line);
+            if (error != null) {
+                error.printStackTrace(System.err);
+            }
+        }
+    }
+}
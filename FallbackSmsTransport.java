@@ -0,0 +1,48 @@
+package angelo.collins.smssender;
+
+/**
+ * Sends through a primary transport and hands any message it rejects or fails to a
+ * fallback, e.g. an HTTP gateway backed by the phone's SIMs
+ */
+public class FallbackSmsTransport implements SmsTransport {
+    private static final String TAG = "FallbackSmsTransport";
+
+    private final SmsTransport primary;
+    private final SmsTransport fallback;
+
+    public FallbackSmsTransport(SmsTransport primary, SmsTransport fallback) {
+        this.primary = primary;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public String getName() {
+        return primary.getName() + "+" + fallback.getName();
+    }
+
+    @Override
+    public boolean send(String phone, String message, Callback callback) {
+        boolean accepted = primary.send(phone, message, sent -> {
+            if (sent) {
+                if (callback != null) {
+                    callback.onResult(true);
+                }
+            } else if (!fallBack(phone, message, callback) && callback != null) {
+                callback.onResult(false);
+            }
+        });
+        return accepted || fallBack(phone, message, callback);
+    }
+
+    @Override
+    public void close() {
+        primary.close();
+        fallback.close();
+    }
+
+    private boolean fallBack(String phone, String message, Callback callback) {
+        MonitorMetrics.get().smsFailovers.incrementAndGet();
+        EngineLog.w(TAG, primary.getName() + " did not send to " + EngineLog.maskPhone(phone) + ", using " + fallback.getName());
+        return fallback.send(phone, message, callback);
+    }
+}
@@ -0,0 +1,60 @@
+package angelo.collins.smssender;
+
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * OkHttp interceptor applying a FaultInjector's http rules to every call of a client:
+ * a slow server (delay, jitter), one that answers 503 (error), one whose connection
+ * drops mid-body (partial) and one that resets the connection after it has handled
+ * the request (reset), so the client cannot tell whether a POST went through.
+ */
+public class FaultInjectingInterceptor implements Interceptor {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final FaultInjector faults;
+
+    public FaultInjectingInterceptor(FaultInjector faults) {
+        this.faults = faults;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        FaultInjector.Rule rule = faults.find(FaultInjector.HTTP, request.url().toString());
+        if (rule == null) {
+            return chain.proceed(request);
+        }
+        if (faults.delayAndRoll(rule)) {
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(503)
+                    .message("Injected failure")
+                    .body(ResponseBody.create("{\"error\":\"Injected failure\"}", JSON))
+                    .build();
+        }
+        Response response = chain.proceed(request);
+        if (faults.roll(rule.resetRate)) {
+            response.close();
+            throw new SocketException("Connection reset (injected)");
+        }
+        if (response.body() != null && faults.roll(rule.partialRate)) {
+            ResponseBody body = response.body();
+            byte[] bytes = body.bytes();
+            return response.newBuilder()
+                    .body(ResponseBody.create(Arrays.copyOf(bytes, bytes.length / 2), body.contentType()))
+                    .build();
+        }
+        return response;
+    }
+}
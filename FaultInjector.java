@@ -0,0 +1,390 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the engine's dependencies slow or unreliable on purpose, to check that one
+ * slow dependency only delays the alerts that need it.
+ *
+ * Faults are rules written as "target[@match] key=value ..." separated by ';', e.g.
+ *
+ *   http@/api/contacts delay=20000; sms@+639171000007 result-delay=10000; location delay=8000
+ *
+ * Targets and what they match against:
+ *   http      request URL (substring), see FaultInjectingInterceptor
+ *   store     user id of the AlertStore call (exact); getPendingEscalations only
+ *             matches rules without @
+ *   location  nothing; the delay is how long the address lookup takes
+ *   sms       destination phone (exact)
+ *
+ * Keys, all optional:
+ *   delay, jitter   milliseconds added to each matching call, jitter at random on top
+ *   error           share of calls that fail: HTTP 503, store exception, geocoder
+ *                   without an address, SMS rejected by send()
+ *   partial, reset  HTTP only: share of responses cut in half, share of connections
+ *                   reset after the server has handled the request
+ *   result-delay    SMS only: the carrier's result arrives this much later
+ *   fail            SMS only: share of accepted messages whose result is a failure
+ *
+ * The first matching rule of a target applies. An SMS delay blocks send(), which the
+ * SmsTransport contract forbids; result-delay is the well-behaved slow carrier.
+ */
+public final class FaultInjector {
+    private static final String TAG = "FaultInjector";
+
+    public static final String HTTP = "http";
+    public static final String STORE = "store";
+    public static final String LOCATION = "location";
+    public static final String SMS = "sms";
+
+    /**
+     * One parsed rule
+     */
+    public static final class Rule {
+        public final String target;
+        public final String match; // Null matches everything
+        long delayMs;
+        long jitterMs;
+        double errorRate;
+        double partialRate;
+        double resetRate;
+        long resultDelayMs;
+        double failRate;
+
+        Rule(String target, String match) {
+            this.target = target;
+            this.match = match;
+        }
+
+        boolean matches(String target, String subject) {
+            if (!this.target.equals(target)) {
+                return false;
+            }
+            if (match == null) {
+                return true;
+            }
+            return subject != null && (HTTP.equals(target) ? subject.contains(match) : subject.equals(match));
+        }
+
+        @Override
+        public String toString() {
+            return target + (match != null ? "@" + match : "")
+                    + String.format(Locale.US, " delay=%d jitter=%d error=%.2f partial=%.2f reset=%.2f result-delay=%d fail=%.2f",
+                    delayMs, jitterMs, errorRate, partialRate, resetRate, resultDelayMs, failRate);
+        }
+    }
+
+    private final List<Rule> rules;
+    private final Random random;
+    private volatile boolean active = true;
+    public final AtomicLong delays = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+
+    public FaultInjector(List<Rule> rules, long seed) {
+        this.rules = new ArrayList<>(rules);
+        this.random = new Random(seed);
+        for (Rule rule : rules) {
+            EngineLog.w(TAG, "Injecting faults: " + rule);
+        }
+    }
+
+    /**
+     * Parse rules in the format above; an empty spec injects nothing
+     */
+    public static FaultInjector parse(String spec) {
+        List<Rule> rules = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            String[] words = part.trim().split("\\s+");
+            if (words.length == 0 || words[0].isEmpty()) {
+                continue;
+            }
+            int at = words[0].indexOf('@');
+            String target = (at < 0 ? words[0] : words[0].substring(0, at)).toLowerCase(Locale.US);
+            if (!HTTP.equals(target) && !STORE.equals(target) && !LOCATION.equals(target) && !SMS.equals(target)) {
+                throw new IllegalArgumentException("Unknown fault target: " + target);
+            }
+            Rule rule = new Rule(target, at < 0 ? null : words[0].substring(at + 1));
+            for (int i = 1; i < words.length; i++) {
+                int equals = words[i].indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + words[i]);
+                }
+                String key = words[i].substring(0, equals);
+                String value = words[i].substring(equals + 1);
+                switch (key) {
+                    case "delay":
+                        rule.delayMs = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        rule.jitterMs = Long.parseLong(value);
+                        break;
+                    case "error":
+                        rule.errorRate = Double.parseDouble(value);
+                        break;
+                    case "partial":
+                        rule.partialRate = Double.parseDouble(value);
+                        break;
+                    case "reset":
+                        rule.resetRate = Double.parseDouble(value);
+                        break;
+                    case "result-delay":
+                        rule.resultDelayMs = Long.parseLong(value);
+                        break;
+                    case "fail":
+                        rule.failRate = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown fault key: " + key);
+                }
+            }
+            rules.add(rule);
+        }
+        return new FaultInjector(rules, 17);
+    }
+
+    /**
+     * Rules from a setting such as the fault_injection preference; null if it is empty
+     * or does not parse, so a typo never breaks the host
+     */
+    public static FaultInjector fromPreference(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return parse(spec);
+        } catch (IllegalArgumentException e) {
+            EngineLog.e(TAG, "Ignoring fault rules: " + spec, e);
+            return null;
+        }
+    }
+
+    public List<Rule> getRules() {
+        return new ArrayList<>(rules);
+    }
+
+    /**
+     * Switch all rules on or off, e.g. to let a scenario warm up undisturbed
+     */
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * The rule for a call, or null if it runs undisturbed
+     */
+    Rule find(String target, String subject) {
+        if (!active) {
+            return null;
+        }
+        for (Rule rule : rules) {
+            if (rule.matches(target, subject)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sleep for the rule's delay; true if the call should then fail
+     */
+    boolean delayAndRoll(Rule rule) {
+        long delayMs = rule.delayMs + (rule.jitterMs > 0 ? (long) (nextDouble() * rule.jitterMs) : 0);
+        if (delayMs > 0) {
+            delays.incrementAndGet();
+            sleep(delayMs);
+        }
+        return roll(rule.errorRate);
+    }
+
+    boolean roll(double rate) {
+        if (rate <= 0 || nextDouble() >= rate) {
+            return false;
+        }
+        errors.incrementAndGet();
+        return true;
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public AlertStore wrap(AlertStore store) {
+        return new FaultyStore(store);
+    }
+
+    public LocationSource wrap(LocationSource location) {
+        return new FaultyLocation(location);
+    }
+
+    public SmsTransport wrap(SmsTransport transport) {
+        return new FaultyTransport(transport);
+    }
+
+    private final class FaultyStore implements AlertStore {
+        private final AlertStore delegate;
+
+        FaultyStore(AlertStore delegate) {
+            this.delegate = delegate;
+        }
+
+        private void inject(int userId) {
+            Rule rule = find(STORE, userId != 0 ? String.valueOf(userId) : null);
+            if (rule != null && delayAndRoll(rule)) {
+                throw new IllegalStateException("Injected store failure for user " + userId);
+            }
+        }
+
+        @Override
+        public boolean hasSMSBeenSent(int userId, int alertId) {
+            inject(userId);
+            return delegate.hasSMSBeenSent(userId, alertId);
+        }
+
+        @Override
+        public void markSMSAsSent(int userId, int alertId, int contactSlot, String phoneNumber, AlertMessage message) {
+            inject(userId);
+            delegate.markSMSAsSent(userId, alertId, contactSlot, phoneNumber, message);
+        }
+
+        @Override
+        public void saveEscalation(PendingEscalation escalation) {
+            inject(escalation.getUserId());
+            delegate.saveEscalation(escalation);
+        }
+
+        @Override
+        public void deleteEscalation(int userId) {
+            inject(userId);
+            delegate.deleteEscalation(userId);
+        }
+
+        @Override
+        public List<PendingEscalation> getPendingEscalations() {
+            inject(0);
+            return delegate.getPendingEscalations();
+        }
+    }
+
+    /**
+     * A geocoder that takes the rule's delay: the address arrives in time or the
+     * alert goes out with coordinates and the lookup still pending, as with
+     * LocationHelper
+     */
+    private final class FaultyLocation implements LocationSource {
+        private final LocationSource delegate;
+        private final ExecutorService geocoder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "wristbud-fault-geocoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private AddressLookup currentLookup;
+
+        FaultyLocation(LocationSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void prefetch() {
+            delegate.prefetch();
+        }
+
+        @Override
+        public ResolvedLocation locate(long deadlineMs) {
+            ResolvedLocation location = delegate.locate(deadlineMs);
+            Rule rule = find(LOCATION, null);
+            if (rule == null || !location.hasCoordinates()) {
+                return location;
+            }
+            AddressLookup lookup = lookup(rule, location);
+            try {
+                String address = lookup.await(deadlineMs);
+                return new ResolvedLocation(location.getLatitude(), location.getLongitude(), address, null);
+            } catch (TimeoutException e) {
+                return new ResolvedLocation(location.getLatitude(), location.getLongitude(), null, lookup);
+            } catch (Exception e) {
+                return new ResolvedLocation(location.getLatitude(), location.getLongitude(), null, null);
+            }
+        }
+
+        /**
+         * One lookup at a time, reused until it fails, like LocationHelper's cache
+         */
+        private synchronized AddressLookup lookup(Rule rule, ResolvedLocation location) {
+            AddressLookup lookup = currentLookup;
+            if (lookup != null && (!lookup.isDone() || lookup.getQuietly() != null)) {
+                return lookup;
+            }
+            String address = location.hasAddress() ? location.getDescription() : null;
+            lookup = new AddressLookup(0, () -> delayAndRoll(rule) ? null : address);
+            currentLookup = lookup;
+            geocoder.execute(lookup);
+            return lookup;
+        }
+    }
+
+    private final class FaultyTransport implements SmsTransport {
+        private final SmsTransport delegate;
+        private final ScheduledExecutorService results = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wristbud-fault-sms");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        FaultyTransport(SmsTransport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        @Override
+        public boolean send(String phone, String message, Callback callback) {
+            Rule rule = find(SMS, phone);
+            if (rule == null) {
+                return delegate.send(phone, message, callback);
+            }
+            if (delayAndRoll(rule)) {
+                return false;
+            }
+            return delegate.send(phone, message, sent -> {
+                boolean result = sent && !roll(rule.failRate);
+                if (callback == null) {
+                    return;
+                }
+                if (rule.resultDelayMs > 0) {
+                    results.schedule(() -> callback.onResult(result), rule.resultDelayMs, TimeUnit.MILLISECONDS);
+                } else {
+                    callback.onResult(result);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            results.shutdown();
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Scenarios that make one dependency slow or unreliable with a FaultInjector and
+ * check how long the alerts of every patient take:
+ *
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar angelo.collins.smssender.FaultScenarios
+ *   java -cp classes angelo.collins.smssender.FaultScenarios --only='geocoder|store|sms'
+ *
+ * Each scenario runs the engine as on the phone (alerts prepared inline on the worker,
+ * no coalescing, so every alert is one SMS per contact) against a SyntheticFeed, and
+ * measures for every patient the time from their alert appearing to their first SMS.
+ * Faults aimed at one patient (the victim, user 1) may delay that patient up to its
+ * own bound; everybody else has to be alerted within the scenario's bound, and every
+ * contact gets exactly one SMS.
+ *
+ * Options (--name=value): users (default 200), only (regex on scenario names), list.
+ * The http scenarios poll a LoadTestServer through HttpCriticalFeed and need okhttp
+ * and org.json; the others need nothing but the engine classes. Exits 1 if a
+ * scenario fails.
+ */
+public final class FaultScenarios {
+    private static final int CONTACTS = 2;
+    private static final int VICTIM = 1;
+    private static final long INTERVAL_MS = 250;
+
+    private static final class Scenario {
+        final String name;
+        final String description;
+        final boolean http;
+        final String faults;
+        final boolean warmUp; // Alert everyone once undisturbed, then raise new alerts with the faults on
+        final boolean victimNewContacts;
+        final long boundMs;
+        final long victimBoundMs;
+
+        Scenario(String name, String description, boolean http, String faults, boolean warmUp,
+                 boolean victimNewContacts, long boundMs, long victimBoundMs) {
+            this.name = name;
+            this.description = description;
+            this.http = http;
+            this.faults = faults;
+            this.warmUp = warmUp;
+            this.victimNewContacts = victimNewContacts;
+            this.boundMs = boundMs;
+            this.victimBoundMs = victimBoundMs;
+        }
+    }
+
+    private static final List<Scenario> SCENARIOS = Arrays.asList(
+            new Scenario("baseline", "no faults", false, "", false, false, 2000, 2000),
+            new Scenario("slow-geocoder", "every address lookup takes 8 s; alerts go out with coordinates",
+                    false, "location delay=8000", false, false,
+                    AlertEngine.DEFAULT_GEOCODE_DEADLINE_MS + 2000, AlertEngine.DEFAULT_GEOCODE_DEADLINE_MS + 2000),
+            new Scenario("slow-sms-results", "the carrier reports on the victim's SMS 10 s late, as failures",
+                    false, "sms@" + SyntheticFeed.contactPhone(VICTIM, 1) + " result-delay=10000 fail=1;"
+                    + " sms@" + SyntheticFeed.contactPhone(VICTIM, 2) + " result-delay=10000 fail=1",
+                    false, false, 2000, 2000),
+            new Scenario("slow-store", "every store call for the victim takes 1 s; the store is on the worker, so the"
+                    + " others wait once for the victim's four (dedup check, two sends, escalation), never more",
+                    false, "store@" + VICTIM + " delay=1000", false, false, 2000 + 4000, 2000 + 4000),
+            new Scenario("slow-contacts", "the victim's contacts changed and /api/contacts takes 20 s;"
+                    + " the others are alerted after the poll's contacts deadline",
+                    true, "http@/api/contacts delay=20000", true, true, 2000 + 2000, 20000 + 5000),
+            new Scenario("flaky-feed", "a tenth of polls get a 503, a fifth are cut short, a fifth reset",
+                    true, "http@/api/critical-users error=0.1 partial=0.2 reset=0.2 jitter=200", false, false, 8000, 8000),
+            new Scenario("slow-server", "every response takes 3 s, the first poll's contacts included; nobody's"
+                    + " contacts are known yet, so that poll waits for them: about 3 s + 3 s",
+                    true, "http delay=3000", false, false, 3000 + 3000 + 2000, 3000 + 3000 + 2000)
+    );
+
+    private FaultScenarios() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        if (options.containsKey("list")) {
+            for (Scenario scenario : SCENARIOS) {
+                System.out.println(String.format(Locale.US, "%-18s %s", scenario.name, scenario.description));
+            }
+            return;
+        }
+        int users = Integer.parseInt(options.containsKey("users") ? options.get("users") : "200");
+        Pattern only = options.containsKey("only") ? Pattern.compile(options.get("only")) : null;
+
+        List<String> failed = new ArrayList<>();
+        for (Scenario scenario : SCENARIOS) {
+            if (only != null && !only.matcher(scenario.name).find()) {
+                continue;
+            }
+            System.out.println();
+            System.out.println("== " + scenario.name + ": " + scenario.description);
+            List<String> problems = run(scenario, users);
+            for (String problem : problems) {
+                System.out.println("   FAIL " + problem);
+            }
+            System.out.println(problems.isEmpty() ? "   PASS" : "   FAILED");
+            if (!problems.isEmpty()) {
+                failed.add(scenario.name);
+            }
+        }
+        System.out.println();
+        System.out.println(failed.isEmpty() ? "All scenarios passed" : "Failed: " + failed);
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Run one scenario; returns what went wrong, empty if nothing
+     */
+    private static List<String> run(Scenario scenario, int users) throws Exception {
+        SyntheticFeed feed = new SyntheticFeed(users, CONTACTS, 42);
+        FaultInjector faults = FaultInjector.parse(scenario.faults);
+        faults.setActive(!scenario.warmUp);
+
+        LoadTestServer server = null;
+        CriticalFeed criticalFeed;
+        if (scenario.http) {
+            server = new LoadTestServer(feed, 0);
+            server.start();
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .connectTimeout(30, TimeUnit.SECONDS)
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(30, TimeUnit.SECONDS)
+                    .addInterceptor(new FaultInjectingInterceptor(faults))
+                    .build();
+            criticalFeed = new HttpCriticalFeed(client, server.getBaseUrl(), new ContactDirectory("63"));
+        } else {
+            CriticalFeedDecoder decoder = new CriticalFeedDecoder();
+            criticalFeed = () -> decoder.decode(feed.criticalUsersJson(false));
+        }
+
+        RecordingSmsTransport transport = new RecordingSmsTransport("scenario");
+        AlertEngine engine = new AlertEngine.Builder()
+                .setFeed(criticalFeed)
+                .setStore(faults.wrap(new MemoryAlertStore()))
+                .setLocation(faults.wrap(new FixedLocationSource(14.5995, 120.9842, "Manila")))
+                .setTransport(faults.wrap(transport))
+                .setCheckIntervalMs(INTERVAL_MS)
+                .setCoalescing(0, AlertEngine.DEFAULT_COALESCE_MAX_ALERTS)
+                .build();
+        MonitorMetrics.get().reset();
+
+        List<String> problems = new ArrayList<>();
+        long timeoutMs = Math.max(scenario.boundMs, scenario.victimBoundMs) + 10000;
+        try {
+            long phaseStart = System.nanoTime();
+            engine.start();
+            if (scenario.warmUp) {
+                if (!awaitSent(transport, 0, users, timeoutMs)) {
+                    problems.add("warm-up incomplete: " + transport.sentCount() + " of " + users * CONTACTS + " SMS");
+                    return problems;
+                }
+                faults.setActive(true);
+                phaseStart = System.nanoTime();
+                for (int userId = 1; userId <= users; userId++) {
+                    feed.raiseAlert(userId, userId == VICTIM && scenario.victimNewContacts);
+                }
+            }
+            int phaseFrom = scenario.warmUp ? users * CONTACTS : 0;
+            awaitSent(transport, phaseFrom, users, timeoutMs);
+            check(scenario, transport.sent().subList(phaseFrom, transport.sentCount()), phaseStart, users, problems);
+        } finally {
+            engine.stop();
+            engine.awaitTermination(10, TimeUnit.SECONDS);
+            if (server != null) {
+                server.close();
+            }
+        }
+        System.out.println(String.format(Locale.US, "   faults: %d delays, %d errors injected%s", faults.delays.get(), faults.errors.get(),
+                scenario.http ? String.format(Locale.US, "; %d polls, %d failed",
+                        MonitorMetrics.get().polls.get(), MonitorMetrics.get().pollFailures.get()) : ""));
+        return problems;
+    }
+
+    private static boolean awaitSent(RecordingSmsTransport transport, int from, int users, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (transport.sentCount() - from < users * CONTACTS) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Hold the SMS of one phase against the scenario's bounds
+     */
+    private static void check(Scenario scenario, List<RecordingSmsTransport.Sent> sent, long phaseStart, int users,
+                              List<String> problems) {
+        long[] firstSms = new long[users + 1];
+        Arrays.fill(firstSms, -1);
+        Map<String, Integer> perPhone = new HashMap<>();
+        for (RecordingSmsTransport.Sent sms : sent) {
+            int userId = SyntheticFeed.userOfPhone(sms.phone);
+            if (userId >= 1 && userId <= users && firstSms[userId] < 0) {
+                firstSms[userId] = TimeUnit.NANOSECONDS.toMillis(sms.atNanos - phaseStart);
+            }
+            Integer count = perPhone.get(sms.phone);
+            perPhone.put(sms.phone, count == null ? 1 : count + 1);
+        }
+
+        long[] others = new long[users - 1];
+        int unalerted = 0;
+        for (int userId = 1; userId <= users; userId++) {
+            if (userId == VICTIM) {
+                continue;
+            }
+            if (firstSms[userId] < 0) {
+                unalerted++;
+                others[userId - 2] = Long.MAX_VALUE;
+            } else {
+                others[userId - 2] = firstSms[userId];
+            }
+        }
+        Arrays.sort(others);
+        long p50 = others[others.length / 2];
+        long max = others[others.length - 1];
+        System.out.println(String.format(Locale.US, "   others: p50 %s, max %s (bound %d ms); victim: %s (bound %d ms); %d SMS",
+                format(p50), format(max), scenario.boundMs, format(firstSms[VICTIM]), scenario.victimBoundMs, sent.size()));
+
+        if (unalerted > 0) {
+            problems.add(unalerted + " patients never alerted");
+        } else if (max > scenario.boundMs) {
+            problems.add("slowest other patient alerted after " + max + " ms");
+        }
+        if (firstSms[VICTIM] < 0) {
+            problems.add("victim never alerted");
+        } else if (firstSms[VICTIM] > scenario.victimBoundMs) {
+            problems.add("victim alerted after " + firstSms[VICTIM] + " ms");
+        }
+        int duplicates = 0;
+        for (int count : perPhone.values()) {
+            duplicates += count - 1;
+        }
+        if (duplicates > 0) {
+            problems.add(duplicates + " duplicate SMS");
+        }
+        if (perPhone.size() != users * CONTACTS) {
+            problems.add(perPhone.size() + " of " + users * CONTACTS + " contacts reached");
+        }
+    }
+
+    private static String format(long millis) {
+        return millis < 0 || millis == Long.MAX_VALUE ? "never" : millis + " ms";
+    }
+}
@@ -0,0 +1,133 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks the decoder against bodies shaped exactly like the rows server.cjs sends,
+ * so a field renamed on either side fails here instead of silently decoding to 0:
+ *
+ *   java -cp classes angelo.collins.smssender.FeedContractCheck
+ *
+ * The payloads below use the server's own column names (health_data_id, DECIMAL
+ * temperature as a string, mysql2's ISO timestamps) and phones as users type them.
+ * SyntheticFeed, which the load test, replay and allocation harnesses run against,
+ * is checked to speak the same contract. Exits 1 if a check fails.
+ */
+public final class FeedContractCheck {
+    // One row of GET /api/critical-users as the server's query returns it
+    private static final String SERVER_INLINE = "{\"users\":[{\"user_id\":7,\"name\":\"Maria Santos\","
+            + "\"email\":\"maria@example.com\",\"emergency_contact1\":\"Jose\",\"emergency_phone1\":\"0917-123-4567\","
+            + "\"emergency_contact2\":\"Ana\",\"emergency_phone2\":\"12-34\",\"emergency_contact3\":null,"
+            + "\"emergency_phone3\":null,\"profile_version\":1234567,\"health_data_id\":4821,\"heart_rate\":151,"
+            + "\"systolic\":182,\"diastolic\":111,\"spo2\":86,\"temperature\":\"39.4\",\"status\":\"critical\","
+            + "\"recorded_at\":\"2024-05-01T10:00:00.000Z\",\"acknowledged_at\":null,\"context_tag\":null,"
+            + "\"activity\":\"resting\"}],\"user_ids\":[7],\"count\":1,\"timestamp\":\"2024-05-01T10:00:02.113Z\"}";
+    // The same reading with ?contacts=ref, and the next reading of that patient
+    private static final String SERVER_REF = "{\"users\":[{\"user_id\":7,\"name\":\"Maria Santos\","
+            + "\"email\":\"maria@example.com\",\"profile_version\":1234567,\"health_data_id\":%d,\"heart_rate\":151,"
+            + "\"systolic\":182,\"diastolic\":111,\"spo2\":86,\"temperature\":\"39.4\",\"status\":\"critical\","
+            + "\"recorded_at\":\"2024-05-01T10:00:00.000Z\",\"acknowledged_at\":null,\"context_tag\":null,"
+            + "\"activity\":null}],\"user_ids\":[7],\"count\":1,\"timestamp\":\"2024-05-01T10:00:02.113Z\"}";
+
+    private static final List<String> failures = new ArrayList<>();
+
+    private FeedContractCheck() {}
+
+    public static void main(String[] args) {
+        checkServerRow();
+        checkPhones();
+        checkNewReading();
+        checkSyntheticFeed();
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void checkServerRow() {
+        List<CriticalUser> users = new CriticalFeedDecoder().decode(SERVER_INLINE);
+        check("server row decodes to one user", users.size(), 1);
+        if (users.isEmpty()) {
+            return;
+        }
+        CriticalUser user = users.get(0);
+        check("user_id", user.getUserId(), 7);
+        check("alert id from health_data_id", user.getAlertId(), 4821);
+        check("DECIMAL temperature sent as a string", user.getTemperature(), 39.4);
+        check("blood pressure", user.getBloodPressure(), "182/111");
+        check("recorded_at", user.getRecordedAtMillis(), 1714557600000L);
+        check("not acknowledged", user.isAcknowledged(), false);
+        check("contacts with a valid phone", user.getContactCount(), 1);
+        if (user.getContactCount() > 0) {
+            check("contact slot", user.getContact(0).getSlot(), 1);
+            check("contact name", user.getContact(0).getName(), "Jose");
+            check("inline phone normalized", user.getContact(0).getPhone(), "+639171234567");
+        }
+    }
+
+    private static void checkPhones() {
+        String[][] cases = {
+                {"0917-123-4567", "+639171234567"},
+                {"0917 123 4567", "+639171234567"},
+                {"9171234567", "+639171234567"},
+                {"639171234567", "+639171234567"},
+                {"+63 917 123 4567", "+639171234567"},
+                {"00639171234567", "+639171234567"},
+                {"14155551234", "+14155551234"},
+                {"+1 (415) 555-1234", "+14155551234"},
+                {"12-34", null},
+                {"", null},
+        };
+        for (String[] phone : cases) {
+            check("toE164(\"" + phone[0] + "\")", PhoneNumbers.toE164(phone[0], "63"), phone[1]);
+        }
+        ContactDirectory directory = new ContactDirectory("63");
+        directory.update(1, 1, new String[]{"Jose", "Ana"}, new String[]{"14155551234", "0917-123-4567"});
+        CriticalUser.Contact[] contacts = directory.lookup(1, 1);
+        check("directory phones", contacts.length == 2 ? contacts[0].getPhone() + " " + contacts[1].getPhone() : contacts.length,
+                "+14155551234 +639171234567");
+    }
+
+    /**
+     * A new critical reading is a new alert for the same patient
+     */
+    private static void checkNewReading() {
+        ContactDirectory directory = new ContactDirectory("63");
+        directory.update(7, 1234567, new String[]{"Jose"}, new String[]{"0917 123 4567"});
+        CriticalFeedDecoder decoder = new CriticalFeedDecoder(directory);
+        CriticalSnapshot first = CriticalSnapshot.of(decoder.decode(String.format(Locale.US, SERVER_REF, 4821)));
+        CriticalSnapshot second = CriticalSnapshot.of(decoder.decode(String.format(Locale.US, SERVER_REF, 4822)));
+        CriticalUser user = first.get(7);
+        CriticalUser next = second.get(7);
+        if (user == null || next == null) {
+            failures.add("contacts=ref rows: user 7 missing");
+            return;
+        }
+        check("contacts=ref row attaches cached contacts", user.getContactCount(), 1);
+        check("first reading's alert id", user.getAlertId(), 4821);
+        check("next reading's alert id", next.getAlertId(), 4822);
+        List<SnapshotDiff.Change> changes = SnapshotDiff.diff(first, second);
+        check("next reading is a new alert", changes.size() == 1 ? changes.get(0).getType() : changes,
+                SnapshotDiff.ChangeType.ALERT_CHANGED);
+    }
+
+    private static void checkSyntheticFeed() {
+        SyntheticFeed feed = new SyntheticFeed(3, 2, 42);
+        feed.raiseAlert(2, false);
+        List<CriticalUser> users = new CriticalFeedDecoder().decode(feed.criticalUsersJson(false));
+        check("synthetic feed users", users.size(), 3);
+        for (CriticalUser user : users) {
+            check("synthetic user " + user.getUserId() + " alert id", user.getAlertId(), user.getUserId() == 2 ? 2 : 1);
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
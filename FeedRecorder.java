@@ -0,0 +1,347 @@
+package angelo.collins.smssender;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captures the raw feed responses the engine polled, with their wall-clock time, so a
+ * production session can be replayed later with FeedReplay.
+ *
+ * Records go to gzip segments feed-NNNNNNNN.wbf in one directory; a segment is closed
+ * once it reaches maxSegmentBytes on disk and the oldest are deleted beyond
+ * maxSegments. Successive bodies mostly differ only in the server's timestamp and the
+ * few users who changed, so a body is stored as the span that differs from the
+ * previous one. Writing happens on a thread of its own; when it falls behind, records
+ * are dropped and counted rather than holding up the poll.
+ *
+ * The payloads hold names and phone numbers, so capture is opt-in and the directory
+ * should be app-private.
+ */
+public class FeedRecorder implements Closeable {
+    private static final String TAG = "FeedRecorder";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x57424631; // "WBF1"
+    private static final String PREFIX = "feed-";
+    private static final String SUFFIX = ".wbf";
+    private static final int QUEUE_CAPACITY = 16;
+
+    public static final long DEFAULT_SEGMENT_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    /** /api/critical-users body */
+    public static final int FEED = 1;
+    /** A FEED body as the previous one with a middle span replaced; only in files, read back as FEED */
+    static final int DELTA = 2;
+    /** The poll failed, no body */
+    public static final int FAILED = 3;
+    /** /api/contacts body fetched during the preceding poll */
+    public static final int CONTACTS = 4;
+
+    /**
+     * One captured response
+     */
+    public static final class Record {
+        public final int type;
+        public final long timestampMillis;
+        public final String payload; // Null for FAILED
+
+        Record(int type, long timestampMillis, String payload) {
+            this.type = type;
+            this.timestampMillis = timestampMillis;
+            this.payload = payload;
+        }
+    }
+
+    private static final Record STOP = new Record(0, 0, null);
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final int maxSegments;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private long nextSequence;
+    private CountingOutputStream segmentBytes;
+    private DataOutputStream segment;
+    private String previousFeed;
+
+    public FeedRecorder(File directory, long maxSegmentBytes, int maxSegments) {
+        this.directory = directory;
+        this.maxSegmentBytes = Math.max(64 * 1024, maxSegmentBytes);
+        this.maxSegments = Math.max(1, maxSegments);
+        File[] existing = segments(directory);
+        this.nextSequence = existing.length > 0 ? sequenceOf(existing[existing.length - 1]) + 1 : 1;
+        this.writerThread = new Thread(this::writeLoop, "wristbud-feed-recorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void recordFeed(long timestampMillis, String payload) {
+        offer(new Record(FEED, timestampMillis, payload));
+    }
+
+    public void recordFailure(long timestampMillis) {
+        offer(new Record(FAILED, timestampMillis, null));
+    }
+
+    public void recordContacts(long timestampMillis, String payload) {
+        offer(new Record(CONTACTS, timestampMillis, payload));
+    }
+
+    /**
+     * Records not written because the writer was behind
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Write out what is queued and close the current segment
+     */
+    @Override
+    public void close() {
+        try {
+            queue.put(STOP);
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void offer(Record record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Record record = queue.take();
+                if (record == STOP) {
+                    break;
+                }
+                try {
+                    write(record);
+                } catch (IOException e) {
+                    EngineLog.w(TAG, "Failed to write feed capture", e);
+                    closeSegment();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        }
+        closeSegment();
+    }
+
+    private void write(Record record) throws IOException {
+        if (segment == null) {
+            openSegment();
+        }
+        String payload = record.payload;
+        if (record.type == FEED && previousFeed != null) {
+            segment.writeByte(DELTA);
+            segment.writeLong(record.timestampMillis);
+            int prefix = commonPrefix(previousFeed, payload);
+            int suffix = commonSuffix(previousFeed, payload, prefix);
+            segment.writeInt(prefix);
+            segment.writeInt(suffix);
+            payload = payload.substring(prefix, payload.length() - suffix);
+        } else {
+            segment.writeByte(record.type);
+            segment.writeLong(record.timestampMillis);
+        }
+        if (payload != null) {
+            byte[] bytes = payload.getBytes(UTF_8);
+            segment.writeInt(bytes.length);
+            segment.write(bytes);
+        }
+        if (record.type == FEED) {
+            previousFeed = record.payload;
+        }
+        // Sync flush: a crash loses at most the record being written
+        segment.flush();
+        if (segmentBytes.count >= maxSegmentBytes) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Length of the shared start, not splitting a surrogate pair
+     */
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Length of the shared end that does not overlap the shared start
+     */
+    private static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int i = 0;
+        while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+            i++;
+        }
+        if (i > 0 && Character.isLowSurrogate(a.charAt(a.length() - i))) {
+            i--;
+        }
+        return i;
+    }
+
+    private void openSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, String.format(Locale.US, "%s%08d%s", PREFIX, nextSequence++, SUFFIX));
+        segmentBytes = new CountingOutputStream(new FileOutputStream(file));
+        segment = new DataOutputStream(new GZIPOutputStream(segmentBytes, 8192, true));
+        segment.writeInt(MAGIC);
+        // Every segment starts with a full body so it can be read without its predecessors
+        previousFeed = null;
+
+        File[] existing = segments(directory);
+        for (int i = 0; i < existing.length - maxSegments; i++) {
+            if (!existing[i].delete()) {
+                EngineLog.w(TAG, "Cannot delete old capture " + existing[i]);
+            }
+        }
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Capturing to " + file);
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            EngineLog.w(TAG, "Failed to close feed capture", e);
+        }
+        segment = null;
+        segmentBytes = null;
+        previousFeed = null;
+    }
+
+    /**
+     * Every record in the directory's segments, oldest first. A segment cut short by a
+     * crash is read up to its last complete record.
+     */
+    public static List<Record> read(File directory) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (File file : segments(directory)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file), 8192)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a feed capture");
+                }
+                String previous = null;
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    long timestampMillis = in.readLong();
+                    String payload = null;
+                    if (type == DELTA) {
+                        int prefix = in.readInt();
+                        int suffix = in.readInt();
+                        if (previous == null || prefix + suffix > previous.length()) {
+                            throw new IOException(file + " has a delta without its base");
+                        }
+                        type = FEED;
+                        payload = previous.substring(0, prefix) + readString(in) + previous.substring(previous.length() - suffix);
+                    } else if (type == FEED || type == CONTACTS) {
+                        payload = readString(in);
+                    } else if (type != FAILED) {
+                        throw new IOException(file + " has an unknown record type " + type);
+                    }
+                    if (type == FEED) {
+                        previous = payload;
+                    }
+                    records.add(new Record(type, timestampMillis, payload));
+                }
+            } catch (EOFException e) {
+                EngineLog.w(TAG, file + " ends in a partial record");
+            }
+        }
+        return records;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static File[] segments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(new BufferedOutputStream(out));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
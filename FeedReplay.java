@@ -0,0 +1,466 @@
+package angelo.collins.smssender;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a FeedRecorder capture through the alert engine and reports how fast and
+ * how often it alerted:
+ *
+ *   java -cp classes:json.jar angelo.collins.smssender.FeedReplay --capture=feed-capture --speed=max \
+ *       --baseline=replay-baseline.tsv
+ *
+ * The engine gets the captured responses in place of the server, a MemoryAlertStore
+ * and a RecordingSmsTransport, so nothing is sent. Time is virtual: a poll happens at
+ * the time its response was captured, and the engine's own processing time is added
+ * on top of that, unscaled.
+ *
+ * Options (--name=value):
+ *   capture      directory of feed-NNNNNNNN.wbf segments (required)
+ *   speed        1 (default) replays at the captured pace, N that many times faster; polls
+ *                fall on the virtual clock, so responses between two polls are skipped as
+ *                they would have been. "max" replays every response exactly once as fast
+ *                as the engine takes them, with coalescing and escalation off, which makes
+ *                the alert and SMS counts repeatable.
+ *   coalesce-ms  coalescing window in virtual time, default the engine's (0 under max)
+ *   save         write the report as a baseline
+ *   baseline     compare with a saved report; exit 1 if the counts differ or the p99
+ *                alert latency grew by more than the threshold
+ *   threshold    default 0.10
+ *
+ * Captures that used ?contacts=ref need org.json on the class path for the contact
+ * responses; full-contact captures need nothing but the engine classes.
+ */
+public final class FeedReplay {
+    private static final String TAG = "FeedReplay";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long LATENCY_NOISE_MS = 50; // Below this a p99 change is not a regression
+
+    private FeedReplay() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String capture = options.get("capture");
+        if (capture == null || capture.isEmpty()) {
+            System.err.println("Usage: FeedReplay --capture=DIR [--speed=1|N|max] [--coalesce-ms=N]"
+                    + " [--save=FILE] [--baseline=FILE] [--threshold=0.10]");
+            System.exit(2);
+            return;
+        }
+        List<FeedRecorder.Record> records = FeedRecorder.read(new File(capture));
+        String speedOption = option(options, "speed", "1");
+        boolean lockstep = "max".equals(speedOption);
+        double speed = lockstep ? 0 : Double.parseDouble(speedOption);
+        if (!lockstep && speed <= 0) {
+            throw new IllegalArgumentException("--speed must be positive or max");
+        }
+
+        ReplayFeed feed = new ReplayFeed(records, lockstep, speed);
+        if (feed.pollCount() == 0) {
+            System.err.println("No feed responses in " + capture);
+            System.exit(2);
+            return;
+        }
+        long capturedIntervalMs = feed.medianIntervalMs();
+        long coalesceMs = options.containsKey("coalesce-ms")
+                ? Long.parseLong(options.get("coalesce-ms"))
+                : lockstep ? 0 : AlertEngine.DEFAULT_COALESCE_WINDOW_MS;
+
+        MemoryAlertStore store = new MemoryAlertStore();
+        RecordingSmsTransport transport = new RecordingSmsTransport("replay");
+        AlertLatency latency = new AlertLatency(feed);
+        AlertEngine engine = new AlertEngine.Builder()
+                .setFeed(feed)
+                .setStore(store)
+                .setLocation(new FixedLocationSource(14.5995, 120.9842, "Replay"))
+                .setTransport(transport)
+                .setListener(latency)
+                .setCheckIntervalMs(lockstep ? 1 : Math.max(1, (long) (capturedIntervalMs / speed)))
+                .setCoalescing(lockstep ? coalesceMs : (long) (coalesceMs / speed), AlertEngine.DEFAULT_COALESCE_MAX_ALERTS)
+                .setEscalation(lockstep ? TimeUnit.MINUTES.toMillis(AlertEngine.DEFAULT_ESCALATION_INTERVAL_MIN)
+                                : (long) (TimeUnit.MINUTES.toMillis(AlertEngine.DEFAULT_ESCALATION_INTERVAL_MIN) / speed),
+                        lockstep ? 0 : AlertEngine.DEFAULT_ESCALATION_MAX_STEPS)
+                .build();
+        MonitorMetrics.get().reset();
+
+        EngineLog.i(TAG, records.size() + " records, " + feed.pollCount() + " polls over "
+                + formatDuration(feed.capturedSpanMs()) + ", replaying " + (lockstep ? "at max speed" : "at " + speedOption + "x"));
+        long startNanos = System.nanoTime();
+        engine.start();
+        feed.awaitEnd();
+        // Windows still open go out when the engine stops; give them their virtual time first
+        if (!lockstep && coalesceMs > 0) {
+            Thread.sleep((long) (coalesceMs / speed));
+        }
+        engine.stop();
+        engine.awaitTermination(10, TimeUnit.SECONDS);
+        long wallNanos = System.nanoTime() - startNanos;
+
+        Map<String, Long> report = new LinkedHashMap<>();
+        report.put("polls", (long) feed.served);
+        report.put("failed_polls", (long) feed.failedServed);
+        report.put("alerts", (long) latency.sentAlerts.size());
+        report.put("sms", (long) transport.sentCount());
+        report.put("latency_p50_ms", latency.histogram.getPercentileMicros(50) / 1000);
+        report.put("latency_p99_ms", latency.histogram.getPercentileMicros(99) / 1000);
+        report.put("latency_max_ms", latency.histogram.getMaxMicros() / 1000);
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, UTF_8), true);
+        out.println();
+        out.println(String.format(Locale.US, "captured           %s, %d polls (%d failed), %d contact responses",
+                formatDuration(feed.capturedSpanMs()), feed.pollCount(), feed.failedCount(), feed.contactsCount()));
+        out.println(String.format(Locale.US, "replayed           %d polls (%d failed) in %.1f s",
+                feed.served, feed.failedServed, wallNanos / 1e9));
+        out.println(String.format(Locale.US, "alerts             %d sent, %d never sent", latency.sentAlerts.size(), latency.unsent()));
+        out.println(String.format(Locale.US, "SMS                %d", transport.sentCount()));
+        out.println(String.format(Locale.US, "alert latency      p50 %d ms, p90 %d ms, p99 %d ms, max %d ms (virtual, critical in feed to first contact)",
+                report.get("latency_p50_ms"), latency.histogram.getPercentileMicros(90) / 1000,
+                report.get("latency_p99_ms"), report.get("latency_max_ms")));
+        out.println();
+        out.print(MonitorMetrics.get().toText());
+        out.flush();
+
+        if (options.containsKey("save")) {
+            save(report, new File(options.get("save")));
+            out.println("Baseline written to " + options.get("save"));
+        }
+        int regressions = 0;
+        if (options.containsKey("baseline")) {
+            regressions = compare(report, new File(options.get("baseline")),
+                    Double.parseDouble(option(options, "threshold", "0.10")), lockstep, out);
+        }
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Serves the capture to the engine, one response per poll
+     */
+    private static final class ReplayFeed implements CriticalFeed {
+        private final List<FeedRecorder.Record> records;
+        private final boolean lockstep;
+        private final double speed;
+        private final ContactDirectory directory = new ContactDirectory("63");
+        private final CriticalFeedDecoder decoder = new CriticalFeedDecoder(directory);
+        private final MonitorMetrics metrics = MonitorMetrics.get();
+        private final CountDownLatch end = new CountDownLatch(1);
+        private final Map<Long, Long> firstSeenMillis = new HashMap<>(); // Alert key -> virtual time
+        private final int lastPoll;
+        private int next; // Next record not yet served or applied
+        private long startNanos;
+        private volatile long servedAtMillis; // Virtual time of the response being handled
+        private volatile long servedAtNanos;
+        private List<CriticalUser> current;
+        int served;
+        int failedServed;
+
+        ReplayFeed(List<FeedRecorder.Record> records, boolean lockstep, double speed) {
+            this.records = records;
+            this.lockstep = lockstep;
+            this.speed = speed;
+            int last = -1;
+            for (int i = 0; i < records.size(); i++) {
+                if (isPoll(records.get(i))) {
+                    last = i;
+                }
+            }
+            this.lastPoll = last;
+        }
+
+        @Override
+        public List<CriticalUser> fetchCriticalUsers() {
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            int poll = nextPoll();
+            if (poll < 0) {
+                // Nothing new on the virtual clock yet, or the capture is over
+                metrics.polls.incrementAndGet();
+                return current;
+            }
+            FeedRecorder.Record record = records.get(poll);
+            // Contacts fetched during a poll follow it in the capture
+            int contacts = poll + 1;
+            while (contacts < records.size() && records.get(contacts).type == FeedRecorder.CONTACTS) {
+                applyContacts(records.get(contacts));
+                contacts++;
+            }
+            next = contacts;
+            servedAtMillis = record.timestampMillis;
+            servedAtNanos = System.nanoTime();
+            served++;
+            metrics.polls.incrementAndGet();
+            try {
+                if (record.type == FeedRecorder.FAILED) {
+                    failedServed++;
+                    metrics.pollFailures.incrementAndGet();
+                    return null;
+                }
+                long parseStart = System.nanoTime();
+                current = decoder.decode(record.payload);
+                metrics.parse.recordNanos(System.nanoTime() - parseStart);
+                for (CriticalUser user : current) {
+                    Long key = ShardLeases.alertKey(user.getUserId(), user.getAlertId());
+                    if (!firstSeenMillis.containsKey(key)) {
+                        firstSeenMillis.put(key, record.timestampMillis);
+                    }
+                }
+                return current;
+            } finally {
+                if (poll == lastPoll) {
+                    end.countDown();
+                }
+            }
+        }
+
+        /**
+         * Index of the poll to serve now, applying the contacts of any skipped on the way;
+         * -1 if there is none
+         */
+        private int nextPoll() {
+            int candidate = -1;
+            long virtualNow = lockstep ? Long.MAX_VALUE
+                    : records.get(0).timestampMillis + (long) ((System.nanoTime() - startNanos) / 1e6 * speed);
+            for (int i = next; i < records.size(); i++) {
+                FeedRecorder.Record record = records.get(i);
+                if (record.timestampMillis > virtualNow) {
+                    break;
+                }
+                if (isPoll(record)) {
+                    if (candidate >= 0) {
+                        // Skipped over; its contacts still reached the directory back then
+                        for (int j = candidate + 1; j < i; j++) {
+                            applyContacts(records.get(j));
+                        }
+                    }
+                    candidate = i;
+                    if (lockstep) {
+                        break;
+                    }
+                }
+            }
+            return candidate;
+        }
+
+        private void applyContacts(FeedRecorder.Record record) {
+            try {
+                HttpCriticalFeed.applyContacts(record.payload, directory);
+            } catch (Exception e) {
+                EngineLog.w(TAG, "Skipping unreadable contacts response", e);
+            }
+        }
+
+        /**
+         * Virtual time on the worker: when the response being handled was captured,
+         * plus how long the engine has been at it
+         */
+        long virtualNowMillis() {
+            return servedAtMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - servedAtNanos);
+        }
+
+        Long firstSeenMillis(long key) {
+            return firstSeenMillis.get(key);
+        }
+
+        Set<Long> seenAlerts() {
+            return firstSeenMillis.keySet();
+        }
+
+        void awaitEnd() throws InterruptedException {
+            end.await();
+        }
+
+        int pollCount() {
+            int count = 0;
+            for (FeedRecorder.Record record : records) {
+                if (isPoll(record)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int failedCount() {
+            int count = 0;
+            for (FeedRecorder.Record record : records) {
+                if (record.type == FeedRecorder.FAILED) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int contactsCount() {
+            return records.size() - pollCount();
+        }
+
+        long capturedSpanMs() {
+            return records.isEmpty() ? 0 : records.get(records.size() - 1).timestampMillis - records.get(0).timestampMillis;
+        }
+
+        /**
+         * The usual time between captured polls, which is the engine's poll interval at 1x
+         */
+        long medianIntervalMs() {
+            List<Long> gaps = new ArrayList<>();
+            long previous = -1;
+            for (FeedRecorder.Record record : records) {
+                if (!isPoll(record)) {
+                    continue;
+                }
+                if (previous >= 0) {
+                    gaps.add(record.timestampMillis - previous);
+                }
+                previous = record.timestampMillis;
+            }
+            if (gaps.isEmpty()) {
+                return AlertEngine.DEFAULT_CHECK_INTERVAL_MS;
+            }
+            Collections.sort(gaps);
+            return Math.max(1, gaps.get(gaps.size() / 2));
+        }
+
+        private static boolean isPoll(FeedRecorder.Record record) {
+            return record.type == FeedRecorder.FEED || record.type == FeedRecorder.FAILED;
+        }
+    }
+
+    /**
+     * Virtual time from an alert's first appearance in the feed to its first contact
+     */
+    private static final class AlertLatency implements AlertEngine.Listener {
+        final LatencyHistogram histogram = new LatencyHistogram("replay_alert_latency");
+        final Set<Long> sentAlerts = new HashSet<>();
+        private final ReplayFeed feed;
+
+        AlertLatency(ReplayFeed feed) {
+            this.feed = feed;
+        }
+
+        @Override
+        public void onFirstCheck() {
+        }
+
+        @Override
+        public void onAlertSent(CriticalUser user, int contactsSent) {
+            long key = ShardLeases.alertKey(user.getUserId(), user.getAlertId());
+            if (contactsSent <= 0 || !sentAlerts.add(key)) {
+                return;
+            }
+            Long firstSeen = feed.firstSeenMillis(key);
+            if (firstSeen != null) {
+                histogram.recordMillis(Math.max(0, feed.virtualNowMillis() - firstSeen));
+            }
+        }
+
+        @Override
+        public void onSmsSent() {
+        }
+
+        @Override
+        public void onSnapshotChanged() {
+        }
+
+        int unsent() {
+            int unsent = 0;
+            for (Long key : feed.seenAlerts()) {
+                if (!sentAlerts.contains(key)) {
+                    unsent++;
+                }
+            }
+            return unsent;
+        }
+    }
+
+    private static void save(Map<String, Long> report, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            writer.println("# metric\tvalue");
+            for (Map.Entry<String, Long> entry : report.entrySet()) {
+                writer.println(entry.getKey() + "\t" + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Counts must match exactly, which only holds for --speed=max; at other speeds a
+     * count difference is reported but not failed. Returns the number of regressions.
+     */
+    private static int compare(Map<String, Long> report, File baselineFile, double threshold, boolean lockstep,
+                               PrintWriter out) throws IOException {
+        Map<String, Long> baseline = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(baselineFile), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (!line.startsWith("#") && fields.length >= 2) {
+                    baseline.put(fields[0], Long.parseLong(fields[1].trim()));
+                }
+            }
+        }
+        int regressions = 0;
+        out.println();
+        out.println(String.format(Locale.US, "%-16s %10s %10s  vs %s", "Metric", "baseline", "now", baselineFile));
+        for (Map.Entry<String, Long> entry : report.entrySet()) {
+            Long base = baseline.get(entry.getKey());
+            long now = entry.getValue();
+            boolean regressed = false;
+            if (base == null) {
+                // New metric, nothing to compare
+            } else if (entry.getKey().startsWith("latency_")) {
+                regressed = "latency_p99_ms".equals(entry.getKey())
+                        && now - base > Math.max(LATENCY_NOISE_MS, base * threshold);
+            } else {
+                regressed = lockstep && now != base;
+            }
+            out.println(String.format(Locale.US, "%-16s %10s %10d%s", entry.getKey(), base != null ? base.toString() : "new", now,
+                    regressed ? "  REGRESSION" : base != null && now != base ? "  changed" : ""));
+            if (regressed) {
+                regressions++;
+            }
+        }
+        out.flush();
+        return regressions;
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return seconds >= 3600
+                ? String.format(Locale.US, "%dh%02dm", seconds / 3600, seconds / 60 % 60)
+                : String.format(Locale.US, "%dm%02ds", seconds / 60, seconds % 60);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+}
@@ -0,0 +1,29 @@
+package angelo.collins.smssender;
+
+/**
+ * Location for hosts without a GPS, e.g. a server alerting for patients whose location
+ * is not known: always the same address or coordinates, resolved at once
+ */
+public class FixedLocationSource implements LocationSource {
+    private final ResolvedLocation location;
+
+    /**
+     * @param description address or note put into every alert, e.g. "Location unavailable"
+     */
+    public FixedLocationSource(String description) {
+        this.location = new ResolvedLocation(description);
+    }
+
+    public FixedLocationSource(double latitude, double longitude, String address) {
+        this.location = new ResolvedLocation(latitude, longitude, address, null);
+    }
+
+    @Override
+    public void prefetch() {
+    }
+
+    @Override
+    public ResolvedLocation locate(long deadlineMs) {
+        return location;
+    }
+}
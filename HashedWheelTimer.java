@@ -0,0 +1,178 @@
+package angelo.collins.smssender;
+
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for large numbers of coarse timers.
+ *
+ * Timers are bucketed by deadline tick into a fixed ring, so scheduling and
+ * cancelling are O(1) no matter how many are pending, and each tick only touches
+ * one bucket. The wheel does not own a thread: the owner calls advanceTo() from its
+ * worker, and expired tasks run inline there. Not thread-safe; confine all calls to
+ * that one thread.
+ */
+public class HashedWheelTimer {
+    private final long tickNanos;
+    private final Timeout[] heads;
+    private final int mask;
+    private final long startNanos;
+    private long nextTick;
+    private int pending;
+    private boolean advancing;
+    private long advancingTo;
+
+    /**
+     * @param tickDuration timer resolution
+     * @param wheelSize    number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        this(tickDuration, unit, wheelSize, System.nanoTime());
+    }
+
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize, long startNanos) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.heads = new Timeout[size];
+        this.mask = size - 1;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Run task once the delay has passed, rounded up to the next tick
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduleAt(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+    }
+
+    Timeout scheduleAt(Runnable task, long deadlineNanos) {
+        long deadlineTick = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+        // Timers added by a running task wait for the next advance
+        long earliest = advancing ? advancingTo + 1 : nextTick;
+        Timeout timeout = new Timeout(this, task, Math.max(deadlineTick, earliest));
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Process every tick up to now and run the tasks that expired.
+     * Returns the number of tasks run.
+     */
+    public int advanceTo(long nowNanos) {
+        long lastTick = (nowNanos - startNanos) / tickNanos;
+        int expired = 0;
+        // Once every bucket has been visited, later ticks would only revisit them
+        long stop = Math.min(lastTick, nextTick + mask);
+        advancing = true;
+        advancingTo = lastTick;
+        try {
+            while (nextTick <= stop) {
+                expired += expireBucket((int) (nextTick & mask), lastTick);
+                nextTick++;
+            }
+        } finally {
+            advancing = false;
+        }
+        if (nextTick <= lastTick) {
+            nextTick = lastTick + 1;
+        }
+        return expired;
+    }
+
+    public int advance() {
+        return advanceTo(System.nanoTime());
+    }
+
+    /**
+     * Number of scheduled timers that have neither run nor been cancelled
+     */
+    public int pendingCount() {
+        return pending;
+    }
+
+    private int expireBucket(int slot, long lastTick) {
+        Timeout timeout = heads[slot];
+        int expired = 0;
+        while (timeout != null) {
+            if (timeout.deadlineTick > lastTick) {
+                timeout = timeout.next;
+                continue;
+            }
+            unlink(timeout);
+            timeout.state = Timeout.EXPIRED;
+            expired++;
+            timeout.task.run();
+            // The task may have cancelled neighbours; rescan what is left
+            timeout = heads[slot];
+        }
+        return expired;
+    }
+
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & mask);
+        Timeout head = heads[slot];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        heads[slot] = timeout;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            heads[slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    /**
+     * Handle to one scheduled task
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private int state = WAITING;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineTick) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Returns false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            if (state != WAITING) {
+                return false;
+            }
+            state = CANCELLED;
+            timer.unlink(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package angelo.collins.smssender;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Polls /api/critical-users and keeps the contact directory it refers to up to date.
+ *
+ * The feed only carries a profile_version per user; contacts of versions the
+ * directory has not seen are fetched from /api/contacts in the same poll, in parallel
+ * batches the server accepts, and the poll waits a short while for them.
+ */
+public class HttpCriticalFeed implements CriticalFeed {
+    private static final String TAG = "HttpCriticalFeed";
+    private static final int TIMEOUT_SECONDS = 30;
+    private static final long CONTACTS_DEADLINE_MS = 2000; // Longest a poll waits for new contacts
+    // Longest a poll waits when none of its users' contacts are known; well under the
+    // watchdog's stall threshold
+    private static final long COLD_CONTACTS_DEADLINE_MS = 8000;
+    /** Most user ids server.cjs answers per /api/contacts request (MAX_CONTACT_IDS) */
+    public static final int DEFAULT_CONTACTS_BATCH = 500;
+    private static final String[] CONTACT_NAME_KEYS = {"emergency_contact1", "emergency_contact2", "emergency_contact3"};
+    private static final String[] CONTACT_PHONE_KEYS = {"emergency_phone1", "emergency_phone2", "emergency_phone3"};
+
+    private final OkHttpClient client;
+    private final MonitorMetrics metrics = MonitorMetrics.get();
+    private final SpanTracer tracer = SpanTracer.shared();
+    private final ContactDirectory contactDirectory;
+    private final CriticalFeedDecoder feedDecoder;
+    // Users whose contacts have been asked for and not arrived yet
+    private final Set<Integer> contactsRequested = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile int contactsBatchSize = DEFAULT_CONTACTS_BATCH;
+    private final ReentrantLock pollLock = new ReentrantLock();
+    private volatile Call pollCall; // The poll being loaded, for cancelPoll()
+    private volatile String baseUrl;
+    private volatile FeedRecorder recorder; // Null unless capture is on
+    private String pollBaseUrl; // Base URL pollRequest was built for
+    private Request pollRequest; // Reused while the base URL stays the same
+
+    /**
+     * @param defaultCountryCode used to turn national contact numbers into E.164
+     */
+    public HttpCriticalFeed(String baseUrl, String defaultCountryCode) {
+        this(new OkHttpClient.Builder()
+                .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build(), baseUrl, new ContactDirectory(defaultCountryCode));
+    }
+
+    public HttpCriticalFeed(OkHttpClient client, String baseUrl, ContactDirectory contactDirectory) {
+        this.client = client;
+        this.contactDirectory = contactDirectory;
+        this.feedDecoder = new CriticalFeedDecoder(contactDirectory);
+        setBaseUrl(baseUrl);
+    }
+
+    public void setBaseUrl(String baseUrl) {
+        if (baseUrl != null && baseUrl.endsWith("/")) {
+            this.baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        } else {
+            this.baseUrl = baseUrl;
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public ContactDirectory getContactDirectory() {
+        return contactDirectory;
+    }
+
+    /**
+     * Capture every response from now on for FeedReplay; null stops capturing
+     */
+    public void setRecorder(FeedRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public FeedRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Most user ids per /api/contacts request; must not exceed what the server accepts
+     */
+    public void setContactsBatchSize(int contactsBatchSize) {
+        this.contactsBatchSize = Math.max(1, contactsBatchSize);
+    }
+
+    /**
+     * Fetch critical users, returning null instead of an empty list when the poll
+     * failed. One poll at a time because the decoder's buffers are reused between
+     * polls; a poll that finds another still running, e.g. on a worker the watchdog
+     * abandoned, fails at once rather than waiting behind it.
+     */
+    @Override
+    public List<CriticalUser> fetchCriticalUsers() {
+        if (!pollLock.tryLock()) {
+            metrics.pollFailures.incrementAndGet();
+            EngineLog.w(TAG, "Previous poll still running, skipping this one");
+            return null;
+        }
+        try {
+            return poll();
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the poll in flight, if any, so it fails now instead of at its timeout.
+     * Safe from any thread.
+     */
+    public void cancelPoll() {
+        Call call = pollCall;
+        if (call != null) {
+            EngineLog.w(TAG, "Cancelling poll " + call.request().url());
+            call.cancel();
+        }
+    }
+
+    private List<CriticalUser> poll() {
+        List<CriticalUser> criticalUsers;
+        String baseUrl = this.baseUrl;
+        FeedRecorder recorder = this.recorder;
+
+        try {
+            Request request = pollRequest(baseUrl);
+            if (EngineLog.isDebug()) EngineLog.d(TAG, "Requesting: " + request.url());
+
+            metrics.polls.incrementAndGet();
+            long pollStart = System.nanoTime();
+            if (load(request)) {
+                long parseStart = System.nanoTime();
+                metrics.poll.recordNanos(parseStart - pollStart);
+                if (EngineLog.verbosePayloads()) EngineLog.v(TAG, "Server response: " + feedDecoder.lastPayload());
+                if (recorder != null) {
+                    recorder.recordFeed(System.currentTimeMillis(), feedDecoder.lastPayload());
+                }
+
+                criticalUsers = decode();
+                metrics.parse.recordNanos(System.nanoTime() - parseStart);
+
+                List<Integer> missing = feedDecoder.missingContacts();
+                if (!missing.isEmpty()) {
+                    // Nobody to alert first when no user's contacts are known, e.g. on a cold start
+                    long waitMs = missing.size() < criticalUsers.size() ? CONTACTS_DEADLINE_MS : COLD_CONTACTS_DEADLINE_MS;
+                    if (fetchContacts(baseUrl, new ArrayList<>(missing), recorder, waitMs)) {
+                        // Same buffer, now with the directory filled in
+                        criticalUsers = decode();
+                    }
+                }
+
+                if (EngineLog.isDebug()) EngineLog.d(TAG, "Successfully parsed " + criticalUsers.size() + " critical users");
+
+            } else {
+                metrics.pollFailures.incrementAndGet();
+                if (recorder != null) {
+                    recorder.recordFailure(System.currentTimeMillis());
+                }
+                return null;
+            }
+
+        } catch (Exception e) {
+            metrics.pollFailures.incrementAndGet();
+            if (recorder != null) {
+                recorder.recordFailure(System.currentTimeMillis());
+            }
+            EngineLog.e(TAG, "Error fetching critical users", e);
+            return null;
+        }
+
+        return criticalUsers;
+    }
+
+    /**
+     * Run the poll and read a successful response into the decoder; false if the
+     * server answered with an error
+     */
+    private boolean load(Request request) throws IOException {
+        long span = tracer.begin(SpanTracer.POLL);
+        Call call = client.newCall(request);
+        pollCall = call;
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                EngineLog.e(TAG, "Server request failed with code: " + response.code());
+                return false;
+            }
+            try (InputStream body = response.body().byteStream()) {
+                feedDecoder.read(body);
+            }
+            return true;
+        } finally {
+            pollCall = null;
+            tracer.end(SpanTracer.POLL, span, 0, 0, 0);
+        }
+    }
+
+    private List<CriticalUser> decode() {
+        long span = tracer.begin(SpanTracer.PARSE);
+        List<CriticalUser> users = null;
+        try {
+            users = feedDecoder.decode();
+            return users;
+        } finally {
+            tracer.end(SpanTracer.PARSE, span, 0, 0, users != null ? users.size() : 0);
+        }
+    }
+
+    /**
+     * The poll request, built once per base URL rather than on every poll
+     */
+    private Request pollRequest(String baseUrl) {
+        if (pollRequest == null || !pollBaseUrl.equals(baseUrl)) {
+            // Contacts come from the directory; the feed only carries profile_version
+            pollRequest = new Request.Builder()
+                    .url(baseUrl + "/api/critical-users?contacts=ref")
+                    .get()
+                    .build();
+            pollBaseUrl = baseUrl;
+        }
+        return pollRequest;
+    }
+
+    /**
+     * Load the current contacts of the given users into the contact directory.
+     * Only called for profile versions the directory has not seen, so this is rare
+     * outside a cold start.
+     *
+     * The ids go out in batches of at most contactsBatchSize, the most the server
+     * answers per request, all at once. Users whose contacts are already on their way
+     * from an earlier poll are not asked for again.
+     *
+     * The poll waits at most waitMs: a slow contacts response must not hold up the
+     * alerts of users whose contacts are known. Users still without contacts stay
+     * pending and are alerted on the poll after their response lands. Returns true if
+     * the directory was updated in time.
+     */
+    private boolean fetchContacts(String baseUrl, List<Integer> userIds, FeedRecorder recorder, long waitMs) {
+        List<Integer> wanted = new ArrayList<>(userIds.size());
+        for (Integer userId : userIds) {
+            if (contactsRequested.add(userId)) {
+                wanted.add(userId);
+            }
+        }
+        if (wanted.isEmpty()) {
+            if (EngineLog.isDebug()) EngineLog.d(TAG, "Contacts of " + userIds.size() + " users still on their way");
+            return false;
+        }
+        int batchSize = contactsBatchSize;
+        CountDownLatch done = new CountDownLatch((wanted.size() + batchSize - 1) / batchSize);
+        AtomicBoolean applied = new AtomicBoolean();
+        for (int from = 0; from < wanted.size(); from += batchSize) {
+            requestContacts(baseUrl, new ArrayList<>(wanted.subList(from, Math.min(wanted.size(), from + batchSize))),
+                    recorder, done, applied);
+        }
+
+        long span = tracer.begin(SpanTracer.CONTACTS); // The time the poll waits
+        try {
+            if (!done.await(waitMs, TimeUnit.MILLISECONDS)) {
+                EngineLog.w(TAG, "Contacts of " + wanted.size() + " users not all loaded within "
+                        + waitMs + " ms, alerting the others first");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            tracer.end(SpanTracer.CONTACTS, span, 0, 0, wanted.size());
+        }
+        return applied.get();
+    }
+
+    /**
+     * Request one batch of contacts; counts down done once it is applied or failed
+     */
+    private void requestContacts(String baseUrl, List<Integer> batch, FeedRecorder recorder,
+                                 CountDownLatch done, AtomicBoolean applied) {
+        StringBuilder ids = new StringBuilder(batch.size() * 6);
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) ids.append(',');
+            ids.append(batch.get(i));
+        }
+        String url = baseUrl + "/api/contacts?user_ids=" + ids;
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Refreshing contacts of " + batch.size() + " users");
+
+        Request request = new Request.Builder()
+                .url(url)
+                .get()
+                .build();
+
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                EngineLog.e(TAG, "Error refreshing contacts", e);
+                contactsRequested.removeAll(batch);
+                done.countDown();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    if (!response.isSuccessful() || response.body() == null) {
+                        EngineLog.e(TAG, "Contact refresh failed with code: " + response.code());
+                        return;
+                    }
+                    String body = response.body().string();
+                    if (recorder != null) {
+                        recorder.recordContacts(System.currentTimeMillis(), body);
+                    }
+                    applyContacts(body, contactDirectory);
+                    applied.set(true);
+                } catch (Exception e) {
+                    EngineLog.e(TAG, "Error refreshing contacts", e);
+                } finally {
+                    response.close();
+                    contactsRequested.removeAll(batch);
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Put the entries of an /api/contacts body into the directory
+     */
+    static void applyContacts(String body, ContactDirectory directory) throws JSONException {
+        JSONArray contacts = new JSONObject(body).getJSONArray("contacts");
+        String[] names = new String[CONTACT_NAME_KEYS.length];
+        String[] phones = new String[CONTACT_PHONE_KEYS.length];
+        for (int i = 0; i < contacts.length(); i++) {
+            JSONObject entry = contacts.getJSONObject(i);
+            for (int slot = 0; slot < phones.length; slot++) {
+                names[slot] = entry.isNull(CONTACT_NAME_KEYS[slot]) ? null : entry.optString(CONTACT_NAME_KEYS[slot], null);
+                phones[slot] = entry.isNull(CONTACT_PHONE_KEYS[slot]) ? null : entry.optString(CONTACT_PHONE_KEYS[slot], null);
+            }
+            directory.update(entry.getInt("user_id"), entry.getLong("profile_version"), names, phones);
+        }
+    }
+}
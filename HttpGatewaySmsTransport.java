@@ -0,0 +1,211 @@
+package angelo.collins.smssender;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Sends through an HTTP SMS gateway, many recipients per request.
+ *
+ * Messages are queued and posted as one batch when maxBatch are waiting or lingerMs
+ * after the first one arrived, whichever is first. Requests go out one at a time on
+ * a dedicated thread over the client's kept-alive connection. The gateway answers
+ * with a result per message id; a message missing from the answer, or a batch whose
+ * request failed, reports failure so the caller can fall back to the SIM.
+ *
+ * Request:  POST url {"messages":[{"id":"1","to":"+639171234567","text":"..."}]}
+ * Response: {"results":[{"id":"1","status":"sent"},{"id":"2","status":"failed","error":"..."}]}
+ */
+public class HttpGatewaySmsTransport implements SmsTransport {
+    private static final String TAG = "HttpGatewaySmsTransport";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final int TIMEOUT_SECONDS = 15;
+    private static final int MAX_QUEUED = 2000;
+    public static final int DEFAULT_MAX_BATCH = 50;
+    public static final long DEFAULT_LINGER_MS = 200;
+
+    private final OkHttpClient client;
+    private final String url;
+    private final String apiKey;
+    private final int maxBatch;
+    private final long lingerMs;
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "wristbud-sms-gateway"));
+    private final ArrayDeque<Item> queue = new ArrayDeque<>(); // Guarded by this
+    private boolean flushScheduled;
+    private boolean closed;
+    private long nextId;
+
+    /**
+     * @param apiKey sent as a bearer token, may be null
+     */
+    public HttpGatewaySmsTransport(String url, String apiKey, int maxBatch, long lingerMs) {
+        this(new OkHttpClient.Builder()
+                .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build(), url, apiKey, maxBatch, lingerMs);
+    }
+
+    public HttpGatewaySmsTransport(OkHttpClient client, String url, String apiKey, int maxBatch, long lingerMs) {
+        this.client = client;
+        this.url = url;
+        this.apiKey = apiKey != null && !apiKey.isEmpty() ? apiKey : null;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerMs = Math.max(0, lingerMs);
+    }
+
+    @Override
+    public String getName() {
+        return "gateway";
+    }
+
+    @Override
+    public synchronized boolean send(String phone, String message, Callback callback) {
+        if (closed || queue.size() >= MAX_QUEUED) {
+            EngineLog.w(TAG, closed ? "Gateway transport closed" : "Gateway queue full, rejecting SMS");
+            return false;
+        }
+        queue.add(new Item(Long.toString(++nextId), phone, message, callback));
+        if (queue.size() >= maxBatch) {
+            scheduleFlush(0);
+        } else if (!flushScheduled) {
+            scheduleFlush(lingerMs);
+        }
+        return true;
+    }
+
+    /**
+     * Post whatever is queued and stop; the last batch still reports its results
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            sender.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Already stopped
+        }
+        sender.shutdown();
+    }
+
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+
+    private void scheduleFlush(long delayMs) {
+        flushScheduled = true;
+        try {
+            sender.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            flushScheduled = false;
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            List<Item> batch;
+            synchronized (this) {
+                flushScheduled = false;
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(Math.min(queue.size(), maxBatch));
+                while (batch.size() < maxBatch && !queue.isEmpty()) {
+                    batch.add(queue.poll());
+                }
+            }
+            post(batch);
+        }
+    }
+
+    private void post(List<Item> batch) {
+        Map<String, Boolean> results = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            Request.Builder request = new Request.Builder()
+                    .url(url)
+                    .post(RequestBody.create(encode(batch), JSON));
+            if (apiKey != null) {
+                request.header("Authorization", "Bearer " + apiKey);
+            }
+            try (Response response = client.newCall(request.build()).execute()) {
+                if (response.isSuccessful() && response.body() != null) {
+                    decode(response.body().string(), results);
+                } else {
+                    EngineLog.e(TAG, "Gateway answered " + response.code() + " for " + batch.size() + " messages");
+                }
+            }
+        } catch (IOException | JSONException e) {
+            EngineLog.e(TAG, "Gateway request for " + batch.size() + " messages failed", e);
+        }
+        if (EngineLog.isDebug()) EngineLog.d(TAG, "Posted " + batch.size() + " messages in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        for (Item item : batch) {
+            Boolean sent = results.get(item.id);
+            if (item.callback != null) {
+                item.callback.onResult(sent != null && sent);
+            }
+        }
+    }
+
+    private static String encode(List<Item> batch) throws JSONException {
+        JSONArray messages = new JSONArray();
+        for (Item item : batch) {
+            messages.put(new JSONObject()
+                    .put("id", item.id)
+                    .put("to", item.phone)
+                    .put("text", item.message));
+        }
+        return new JSONObject().put("messages", messages).toString();
+    }
+
+    private static void decode(String body, Map<String, Boolean> results) throws JSONException {
+        JSONArray items = new JSONObject(body).getJSONArray("results");
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            boolean sent = "sent".equals(item.optString("status", null));
+            if (!sent) {
+                EngineLog.w(TAG, "Gateway did not send message " + item.optString("id", "?") + ": " + item.optString("error", "unknown error"));
+            }
+            results.put(item.getString("id"), sent);
+        }
+    }
+
+    private static final class Item {
+        final String id;
+        final String phone;
+        final String message;
+        final Callback callback;
+
+        Item(String id, String phone, String message, Callback callback) {
+            this.id = id;
+            this.phone = phone;
+            this.message = message;
+            this.callback = callback;
+        }
+    }
+}
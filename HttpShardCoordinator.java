@@ -0,0 +1,136 @@
+package angelo.collins.smssender;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * ShardCoordinator backed by the server's /api/shards endpoints.
+ *
+ * POST /api/shards/heartbeat {"node_id":"a","sent":[{"user_id":7,"alert_id":3}]}
+ *   -> {"shard_count":64,"lease_ms":15000,"shards":[0,5,9],"live_nodes":3}
+ * POST /api/shards/claims {"node_id":"a","claims":[{"user_id":7,"alert_id":4}],"sent":[]}
+ *   -> {"results":[{"user_id":7,"alert_id":4,"status":"granted"}]}  (granted|sent|held|not_owner)
+ * POST /api/shards/release {"node_id":"a","sent":[]}
+ *
+ * Timeouts are kept well under the lease so a hung request cannot outlive it.
+ */
+public class HttpShardCoordinator implements ShardCoordinator {
+    private static final String TAG = "HttpShardCoordinator";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final int TIMEOUT_SECONDS = 5;
+
+    private final OkHttpClient client;
+    private final String baseUrl;
+
+    public HttpShardCoordinator(String baseUrl) {
+        this(new OkHttpClient.Builder()
+                .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build(), baseUrl);
+    }
+
+    public HttpShardCoordinator(OkHttpClient client, String baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    @Override
+    public Grant heartbeat(String nodeId, long[] sent) throws IOException {
+        try {
+            JSONObject response = post("/api/shards/heartbeat", request(nodeId, sent));
+            JSONArray shardArray = response.getJSONArray("shards");
+            int[] shards = new int[shardArray.length()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = shardArray.getInt(i);
+            }
+            return new Grant(response.getInt("shard_count"), response.getLong("lease_ms"), shards,
+                    response.optInt("live_nodes", 1));
+        } catch (JSONException e) {
+            throw new IOException("Malformed heartbeat response", e);
+        }
+    }
+
+    @Override
+    public int[] claim(String nodeId, long[] alerts, long[] sent) throws IOException {
+        try {
+            JSONObject request = request(nodeId, sent).put("claims", alertArray(alerts));
+            JSONArray results = post("/api/shards/claims", request).getJSONArray("results");
+            if (results.length() != alerts.length) {
+                throw new IOException("Asked for " + alerts.length + " claims, got " + results.length());
+            }
+            int[] statuses = new int[alerts.length];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = status(results.getJSONObject(i).getString("status"));
+            }
+            return statuses;
+        } catch (JSONException e) {
+            throw new IOException("Malformed claims response", e);
+        }
+    }
+
+    @Override
+    public void release(String nodeId, long[] sent) throws IOException {
+        try {
+            post("/api/shards/release", request(nodeId, sent));
+        } catch (JSONException e) {
+            throw new IOException("Malformed release response", e);
+        }
+    }
+
+    private JSONObject post(String path, JSONObject body) throws IOException, JSONException {
+        Request request = new Request.Builder()
+                .url(baseUrl + path)
+                .post(RequestBody.create(body.toString(), JSON))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException(path + " answered " + response.code());
+            }
+            return new JSONObject(response.body().string());
+        }
+    }
+
+    private static JSONObject request(String nodeId, long[] sent) throws JSONException {
+        return new JSONObject()
+                .put("node_id", nodeId)
+                .put("sent", alertArray(sent));
+    }
+
+    private static JSONArray alertArray(long[] alerts) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (long alert : alerts) {
+            array.put(new JSONObject()
+                    .put("user_id", ShardLeases.userIdOf(alert))
+                    .put("alert_id", (int) alert));
+        }
+        return array;
+    }
+
+    private static int status(String status) {
+        switch (status) {
+            case "granted":
+                return CLAIM_GRANTED;
+            case "sent":
+                return CLAIM_SENT;
+            case "held":
+                return CLAIM_HELD;
+            case "not_owner":
+                return CLAIM_NOT_OWNER;
+            default:
+                EngineLog.w(TAG, "Unknown claim status " + status + ", treating it as held");
+                return CLAIM_HELD;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package angelo.collins.smssender;
+
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AlertStore over JDBC for the headless engine, e.g. jdbc:sqlite:wristbud.db with the
+ * sqlite-jdbc driver on the class path. Uses the phone's sms_log and
+ * pending_escalations tables, so a database file can be inspected with the same queries.
+ *
+ * Every sent (user, alert) pair is loaded into memory when the store opens, so the
+ * dedup check on the send path never queries. Writes share one connection and are
+ * serialized on this object.
+ */
+public class JdbcAlertStore implements AlertStore, Closeable {
+    private static final String TAG = "JdbcAlertStore";
+
+    private final Connection connection;
+    private final Set<Long> dedupIndex = ConcurrentHashMap.newKeySet();
+    private final PreparedStatement insertSMS;
+    private final PreparedStatement saveEscalation;
+    private final PreparedStatement deleteEscalation;
+
+    public JdbcAlertStore(String jdbcUrl) throws SQLException {
+        connection = DriverManager.getConnection(jdbcUrl);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS sms_log ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "user_id INTEGER NOT NULL, "
+                    + "alert_id INTEGER NOT NULL, "
+                    + "phone_number TEXT NOT NULL, "
+                    + "template_id INTEGER NOT NULL DEFAULT " + AlertMessage.TEMPLATE_TEXT + ", "
+                    + "params TEXT NOT NULL, "
+                    + "sent_at DATETIME DEFAULT CURRENT_TIMESTAMP, "
+                    + "status TEXT DEFAULT 'sent', "
+                    + "journal_seq INTEGER)");
+            statement.execute("CREATE TABLE IF NOT EXISTS pending_escalations ("
+                    + "user_id INTEGER PRIMARY KEY, "
+                    + "alert_id INTEGER NOT NULL, "
+                    + "step INTEGER NOT NULL, "
+                    + "due_at INTEGER NOT NULL)");
+            try (ResultSet rows = statement.executeQuery("SELECT DISTINCT user_id, alert_id FROM sms_log")) {
+                while (rows.next()) {
+                    dedupIndex.add(dedupKey(rows.getInt(1), rows.getInt(2)));
+                }
+            }
+        }
+        insertSMS = connection.prepareStatement(
+                "INSERT INTO sms_log (user_id, alert_id, phone_number, template_id, params, status) VALUES (?, ?, ?, ?, ?, 'sent')");
+        saveEscalation = connection.prepareStatement(
+                "INSERT OR REPLACE INTO pending_escalations (user_id, alert_id, step, due_at) VALUES (?, ?, ?, ?)");
+        deleteEscalation = connection.prepareStatement("DELETE FROM pending_escalations WHERE user_id = ?");
+        EngineLog.i(TAG, "Opened " + jdbcUrl + " with " + dedupIndex.size() + " sent alerts");
+    }
+
+    private static long dedupKey(int userId, int alertId) {
+        return ((long) userId << 32) | (alertId & 0xffffffffL);
+    }
+
+    @Override
+    public boolean hasSMSBeenSent(int userId, int alertId) {
+        return dedupIndex.contains(dedupKey(userId, alertId));
+    }
+
+    @Override
+    public synchronized void markSMSAsSent(int userId, int alertId, int contactSlot, String phoneNumber, AlertMessage message) {
+        try {
+            insertSMS.setInt(1, userId);
+            insertSMS.setInt(2, alertId);
+            insertSMS.setString(3, phoneNumber);
+            insertSMS.setInt(4, message.getTemplateId());
+            insertSMS.setString(5, message.getParams());
+            insertSMS.executeUpdate();
+        } catch (SQLException e) {
+            EngineLog.e(TAG, "Failed to mark SMS as sent for user " + userId, e);
+        }
+        // Even if the row was lost, this run must not send the alert again
+        dedupIndex.add(dedupKey(userId, alertId));
+    }
+
+    @Override
+    public synchronized void saveEscalation(PendingEscalation escalation) {
+        try {
+            saveEscalation.setInt(1, escalation.getUserId());
+            saveEscalation.setInt(2, escalation.getAlertId());
+            saveEscalation.setInt(3, escalation.getStep());
+            saveEscalation.setLong(4, escalation.getDueAtMillis());
+            saveEscalation.executeUpdate();
+        } catch (SQLException e) {
+            EngineLog.e(TAG, "Failed to save escalation for user " + escalation.getUserId(), e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteEscalation(int userId) {
+        try {
+            deleteEscalation.setInt(1, userId);
+            deleteEscalation.executeUpdate();
+        } catch (SQLException e) {
+            EngineLog.e(TAG, "Failed to delete escalation for user " + userId, e);
+        }
+    }
+
+    @Override
+    public synchronized List<PendingEscalation> getPendingEscalations() {
+        List<PendingEscalation> escalations = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(
+                     "SELECT user_id, alert_id, step, due_at FROM pending_escalations ORDER BY due_at")) {
+            while (rows.next()) {
+                escalations.add(new PendingEscalation(rows.getInt(1), rows.getInt(2), rows.getInt(3), rows.getLong(4)));
+            }
+        } catch (SQLException e) {
+            EngineLog.e(TAG, "Failed to load pending escalations", e);
+        }
+        return escalations;
+    }
+
+    public int sentAlertCount() {
+        return dedupIndex.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            EngineLog.w(TAG, "Failed to close " + TAG, e);
+        }
+    }
+}
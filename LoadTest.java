@@ -0,0 +1,234 @@
+package angelo.collins.smssender;
+
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test: every user of a SyntheticFeed goes critical at once and the
+ * alert engine, configured as on the phone, has to alert all of their contacts.
+ *
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar angelo.collins.smssender.LoadTest \
+ *       --users=5000 --latency-ms=200 --error-rate=0.05 --churn=0.01 --duration-s=30
+ *
+ * The engine polls a LoadTestServer through HttpCriticalFeed, as the phone polls the
+ * real server, and sends into a RecordingSmsTransport. --feed=direct skips HTTP and
+ * decodes the feed's JSON in process, which needs neither okhttp nor org.json and
+ * ignores the network options.
+ *
+ * Options (--name=value):
+ *   users            patients, all critical at the start, default 5000
+ *   contacts         emergency contacts per patient (1-3), default 2
+ *   feed             "http" (default) or "direct"
+ *   interval-ms      poll interval, default 1000
+ *   threads          "inline" (default, as on the phone), "virtual" or "platform" alert preparation
+ *   coalesce-ms      coalescing window, default the engine's
+ *   latency-ms       added to every server response, default 0
+ *   jitter-ms        random extra latency up to this, default 0
+ *   error-rate       share of responses that are a 500, default 0
+ *   contacts-limit   users per /api/contacts request the server accepts, and the
+ *                    feed's batch size, default 500 like server.cjs
+ *   churn            share of patients that change state every churn-interval-ms after the burst
+ *   churn-interval-ms default 1000
+ *   duration-s       how long the churn phase runs, default 0 (burst only)
+ *   timeout-s        give up on the burst after this, default 120
+ *   capture          record the feed responses into this directory for FeedReplay
+ *   trace            record spans and write them to this directory as wristbud-trace.json
+ *                    for Perfetto; raise -Dwristbud.spans for big bursts
+ *
+ * Reports time to first and last SMS of the burst, burst sends per second, the
+ * alerts still unsent after the churn phase, and the engine's stage metrics. Exits 1
+ * if the burst did not complete or an alert was never sent.
+ */
+public final class LoadTest {
+    private static final String TAG = "LoadTest";
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int users = Integer.parseInt(option(options, "users", "5000"));
+        int contacts = Math.max(1, Math.min(3, Integer.parseInt(option(options, "contacts", "2"))));
+        long intervalMs = Long.parseLong(option(options, "interval-ms", "1000"));
+        double churn = Double.parseDouble(option(options, "churn", "0"));
+        long churnIntervalMs = Long.parseLong(option(options, "churn-interval-ms", "1000"));
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "duration-s", "0")));
+        long timeoutMs = TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "timeout-s", "120")));
+        boolean direct = "direct".equals(options.get("feed"));
+
+        SyntheticFeed feed = new SyntheticFeed(users, contacts, 42);
+        FeedRecorder recorder = options.containsKey("capture")
+                ? new FeedRecorder(new File(options.get("capture")), FeedRecorder.DEFAULT_SEGMENT_BYTES, FeedRecorder.DEFAULT_SEGMENTS)
+                : null;
+        LoadTestServer server = null;
+        CriticalFeed criticalFeed;
+        if (direct) {
+            CriticalFeedDecoder decoder = new CriticalFeedDecoder();
+            criticalFeed = () -> {
+                String json = feed.criticalUsersJson(false);
+                if (recorder != null) {
+                    recorder.recordFeed(System.currentTimeMillis(), json);
+                }
+                return decoder.decode(json);
+            };
+        } else {
+            server = new LoadTestServer(feed, Integer.parseInt(option(options, "port", "0")))
+                    .setLatency(Long.parseLong(option(options, "latency-ms", "0")), Long.parseLong(option(options, "jitter-ms", "0")))
+                    .setErrorRate(Double.parseDouble(option(options, "error-rate", "0")))
+                    .setContactsLimit(Integer.parseInt(option(options, "contacts-limit", String.valueOf(LoadTestServer.DEFAULT_CONTACTS_LIMIT))));
+            server.start();
+            HttpCriticalFeed httpFeed = new HttpCriticalFeed(server.getBaseUrl(), "63");
+            httpFeed.setContactsBatchSize(Integer.parseInt(option(options, "contacts-limit",
+                    String.valueOf(LoadTestServer.DEFAULT_CONTACTS_LIMIT))));
+            httpFeed.setRecorder(recorder);
+            criticalFeed = httpFeed;
+        }
+
+        String threads = option(options, "threads", "inline");
+        ExecutorService alertExecutor = null;
+        if ("virtual".equals(threads)) {
+            alertExecutor = VirtualThreads.newPerTaskExecutor("wristbud-alert-");
+        }
+        if (alertExecutor == null && !"inline".equals(threads)) {
+            alertExecutor = Executors.newFixedThreadPool(16, r -> new Thread(r, "wristbud-alert"));
+        }
+
+        MemoryAlertStore store = new MemoryAlertStore();
+        RecordingSmsTransport transport = new RecordingSmsTransport("recording");
+        AlertEngine.Builder builder = new AlertEngine.Builder()
+                .setFeed(criticalFeed)
+                .setStore(store)
+                .setLocation(new FixedLocationSource(14.5995, 120.9842, "Manila"))
+                .setTransport(transport)
+                .setAlertExecutor(alertExecutor)
+                .setCheckIntervalMs(intervalMs);
+        if (options.containsKey("coalesce-ms")) {
+            builder.setCoalescing(Long.parseLong(options.get("coalesce-ms")), AlertEngine.DEFAULT_COALESCE_MAX_ALERTS);
+        }
+        AlertEngine engine = builder.build();
+        MonitorMetrics.get().reset();
+        SpanTracer.shared().setEnabled(options.containsKey("trace"));
+
+        int expected = users * contacts;
+        EngineLog.i(TAG, users + " users critical, " + expected + " SMS expected, feed " + (direct ? "direct" : "http")
+                + ", alerts prepared " + threads);
+        long startNanos = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        engine.start();
+        boolean burstComplete = awaitSent(transport, expected, startNanos, timeoutMs);
+        List<RecordingSmsTransport.Sent> burst = transport.sent();
+        int burstSent = Math.min(burst.size(), expected);
+
+        int missing = 0;
+        if (burstComplete && churn > 0 && durationMs > 0) {
+            ScheduledExecutorService churner = Executors.newSingleThreadScheduledExecutor();
+            churner.scheduleAtFixedRate(() -> feed.churn(churn), churnIntervalMs, churnIntervalMs, TimeUnit.MILLISECONDS);
+            Thread.sleep(durationMs);
+            churner.shutdownNow();
+            missing = awaitCaughtUp(feed, store, intervalMs, timeoutMs);
+        }
+
+        engine.stop();
+        engine.awaitTermination(10, TimeUnit.SECONDS);
+        if (alertExecutor != null) {
+            alertExecutor.shutdown();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (recorder != null) {
+            recorder.close();
+        }
+        File trace = null;
+        if (options.containsKey("trace")) {
+            trace = SpanTracer.shared().export(new File(options.get("trace")), System.currentTimeMillis() - startMillis);
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "users %d, contacts %d, SMS %d of %d in the burst", users, contacts, burstSent, expected));
+        if (burstSent > 0) {
+            long first = burst.get(0).atNanos - startNanos;
+            long last = burst.get(burstSent - 1).atNanos - startNanos;
+            System.out.println(String.format(Locale.US, "time to first SMS  %10.1f ms", first / 1e6));
+            System.out.println(String.format(Locale.US, "time to last SMS   %10.1f ms", last / 1e6));
+            System.out.println(String.format(Locale.US, "sends per second   %10.1f (first to last), %.1f (from start)",
+                    last > first ? (burstSent - 1) / ((last - first) / 1e9) : 0.0, burstSent / (last / 1e9)));
+        }
+        if (churn > 0 && durationMs > 0) {
+            System.out.println(String.format(Locale.US, "churn phase        %d SMS, %d current alerts unsent",
+                    transport.sentCount() - burstSent, missing));
+        }
+        if (recorder != null) {
+            System.out.println(String.format(Locale.US, "capture            %s, %d records dropped",
+                    recorder.getDirectory(), recorder.droppedCount()));
+        }
+        if (trace != null) {
+            System.out.println(String.format(Locale.US, "trace              %s", trace));
+        }
+        if (server != null) {
+            System.out.println(String.format(Locale.US, "server             %d polls, %d contact requests, %d injected errors",
+                    server.feedRequests.get(), server.contactRequests.get(), server.injectedErrors.get()));
+        }
+        System.out.println();
+        System.out.print(MonitorMetrics.get().toText());
+        System.exit(burstComplete && missing == 0 ? 0 : 1);
+    }
+
+    private static boolean awaitSent(RecordingSmsTransport transport, int expected, long startNanos, long timeoutMs)
+            throws InterruptedException {
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (transport.sentCount() < expected) {
+            if (System.nanoTime() - deadline >= 0) {
+                EngineLog.w(TAG, "Burst incomplete after " + timeoutMs + " ms: " + transport.sentCount() + " of " + expected);
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every current alert has been sent; returns how many still were not
+     */
+    private static int awaitCaughtUp(SyntheticFeed feed, MemoryAlertStore store, long intervalMs, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int missing;
+        do {
+            Thread.sleep(intervalMs);
+            Set<Long> sent = store.sentAlerts();
+            missing = 0;
+            for (long alert : feed.criticalAlerts()) {
+                if (!sent.contains(alert)) {
+                    missing++;
+                }
+            }
+        } while (missing > 0 && System.nanoTime() - deadline < 0);
+        return missing;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals), equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? value : defaultValue;
+    }
+}
@@ -0,0 +1,348 @@
+package angelo.collins.smssender;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Stand-in for the WristBud server in load tests, serving a SyntheticFeed on the
+ * loopback interface:
+ *
+ *   GET  /api/critical-users[?contacts=ref]
+ *   GET  /api/contacts?user_ids=1,2   (more than contactsLimit users is a 400, like server.cjs)
+ *   POST /api/sms-status              (counted and acknowledged)
+ *   POST /sms-gateway/messages        (a stub HTTP SMS gateway, see HttpGatewaySmsTransport)
+ *
+ * Every response can be delayed by a fixed latency plus random jitter, and a share
+ * of them replaced by a 500. Plain HTTP/1.1 with keep-alive over java.net sockets,
+ * so it runs anywhere the engine does.
+ *
+ * The stub gateway sends nothing. It answers "sent" for every valid message except
+ * those to phones set with failGatewayPhone, can require a bearer key, and can answer
+ * every batch with an error status to simulate an outage.
+ */
+public class LoadTestServer implements Closeable {
+    private static final String TAG = "LoadTestServer";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final int DEFAULT_CONTACTS_LIMIT = 500;
+    public static final String GATEWAY_PATH = "/sms-gateway/messages";
+    private static final Pattern E164 = Pattern.compile("\\+[1-9]\\d{7,14}");
+
+    private final SyntheticFeed feed;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "wristbud-load-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Random random = new Random(11);
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile double errorRate;
+    private volatile int contactsLimit = DEFAULT_CONTACTS_LIMIT;
+    private volatile String gatewayKey;
+    private volatile int gatewayStatus = 200;
+    private final Set<String> gatewayFailing = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    public final AtomicLong feedRequests = new AtomicLong();
+    public final AtomicLong contactRequests = new AtomicLong();
+    public final AtomicLong statusReports = new AtomicLong();
+    public final AtomicLong injectedErrors = new AtomicLong();
+    public final AtomicLong gatewayBatches = new AtomicLong();
+    public final AtomicLong gatewaySent = new AtomicLong();
+    public final AtomicLong gatewayFailed = new AtomicLong();
+
+    public LoadTestServer(SyntheticFeed feed, int port) throws IOException {
+        this.feed = feed;
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    }
+
+    public LoadTestServer setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = Math.max(0, latencyMs);
+        this.jitterMs = Math.max(0, jitterMs);
+        return this;
+    }
+
+    /**
+     * Share of requests answered with a 500, 0 to 1
+     */
+    public LoadTestServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public LoadTestServer setContactsLimit(int contactsLimit) {
+        this.contactsLimit = Math.max(1, contactsLimit);
+        return this;
+    }
+
+    /**
+     * Bearer key the stub gateway requires, null for none
+     */
+    public LoadTestServer setGatewayKey(String gatewayKey) {
+        this.gatewayKey = gatewayKey;
+        return this;
+    }
+
+    /**
+     * Answer every gateway batch with this status instead of results; 200 to recover
+     */
+    public LoadTestServer setGatewayStatus(int gatewayStatus) {
+        this.gatewayStatus = gatewayStatus;
+        return this;
+    }
+
+    /**
+     * Report every gateway message to this phone as failed
+     */
+    public LoadTestServer failGatewayPhone(String phone) {
+        gatewayFailing.add(phone);
+        return this;
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public String getGatewayUrl() {
+        return getBaseUrl() + GATEWAY_PATH;
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(this::accept, "wristbud-load-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        EngineLog.i(TAG, "Serving " + feed.userCount() + " users on " + getBaseUrl());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    EngineLog.w(TAG, "Accept failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer requests on one connection until the client closes it
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                int contentLength = 0;
+                boolean keepAlive = true;
+                String authorization = null;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    String lower = header.toLowerCase(Locale.US);
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        keepAlive = false;
+                    } else if (lower.startsWith("authorization:")) {
+                        authorization = header.substring(14).trim();
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength; ) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                String[] parts = requestLine.split(" ");
+                respond(out, parts[0], parts.length > 1 ? parts[1] : "/", new String(body, UTF_8), authorization);
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                EngineLog.w(TAG, "Connection failed", e);
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String method, String target, String body, String authorization)
+            throws IOException {
+        delay();
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        String params = query < 0 ? "" : target.substring(query + 1);
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            write(out, 500, "{\"error\":\"Injected failure\"}");
+            return;
+        }
+        if ("GET".equals(method) && "/api/critical-users".equals(path)) {
+            feedRequests.incrementAndGet();
+            write(out, 200, feed.criticalUsersJson(params.contains("contacts=ref")));
+        } else if ("GET".equals(method) && "/api/contacts".equals(path)) {
+            contactRequests.incrementAndGet();
+            List<Integer> userIds = userIds(params);
+            if (userIds.size() > contactsLimit) {
+                write(out, 400, "{\"error\":\"At most " + contactsLimit + " user_ids per request\"}");
+            } else {
+                write(out, 200, feed.contactsJson(userIds));
+            }
+        } else if ("POST".equals(method) && "/api/sms-status".equals(path)) {
+            statusReports.incrementAndGet();
+            write(out, 200, "{\"message\":\"SMS status recorded successfully\"}");
+        } else if ("POST".equals(method) && GATEWAY_PATH.equals(path)) {
+            gatewayBatches.incrementAndGet();
+            String key = gatewayKey;
+            if (key != null && !("Bearer " + key).equals(authorization)) {
+                write(out, 401, "{\"error\":\"Invalid API key\"}");
+            } else if (gatewayStatus != 200) {
+                write(out, gatewayStatus, "{\"error\":\"Gateway unavailable\"}");
+            } else {
+                respondGateway(out, body);
+            }
+        } else {
+            write(out, 404, "{\"error\":\"Endpoint not found\"}");
+        }
+    }
+
+    /**
+     * A result per message id, like a real gateway; nothing is sent or logged
+     */
+    private void respondGateway(OutputStream out, String body) throws IOException {
+        JSONArray results = new JSONArray();
+        try {
+            JSONArray messages = new JSONObject(body).getJSONArray("messages");
+            for (int i = 0; i < messages.length(); i++) {
+                JSONObject message = messages.getJSONObject(i);
+                String to = message.optString("to", "");
+                String error = !E164.matcher(to).matches() ? "invalid_number"
+                        : message.optString("text", "").isEmpty() ? "empty_text"
+                        : gatewayFailing.contains(to) ? "rejected"
+                        : null;
+                JSONObject result = new JSONObject().put("id", message.optString("id", null));
+                if (error == null) {
+                    gatewaySent.incrementAndGet();
+                    result.put("status", "sent");
+                } else {
+                    gatewayFailed.incrementAndGet();
+                    result.put("status", "failed").put("error", error);
+                }
+                results.put(result);
+            }
+        } catch (JSONException e) {
+            write(out, 400, "{\"error\":\"messages array is required\"}");
+            return;
+        }
+        write(out, 200, "{\"results\":" + results + "}");
+    }
+
+    private List<Integer> userIds(String params) {
+        List<Integer> ids = new ArrayList<>();
+        for (String param : params.split("&")) {
+            if (!param.startsWith("user_ids=")) {
+                continue;
+            }
+            for (String id : param.substring(9).split("(,|%2C)")) {
+                try {
+                    ids.add(Integer.parseInt(id));
+                } catch (NumberFormatException e) {
+                    // Skipped, like the server does
+                }
+            }
+        }
+        return ids;
+    }
+
+    private void delay() {
+        long delayMs = latencyMs + (jitterMs > 0 ? (long) (nextDouble() * jitterMs) : 0);
+        if (delayMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private static void write(OutputStream out, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        String reason = status == 200 ? "OK" : status == 400 ? "Bad Request" : status == 401 ? "Unauthorized"
+                : status == 404 ? "Not Found" : status == 503 ? "Service Unavailable" : "Internal Server Error";
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + bytes.length + "\r\n\r\n";
+        out.write(head.getBytes(ASCII));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, ASCII);
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? new String(line.toByteArray(), ASCII) : null;
+    }
+}
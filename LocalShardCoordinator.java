@@ -0,0 +1,174 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process ShardCoordinator with the same lease and claim rules as the server's
+ * /api/shards endpoints in server.cjs. Stands in for the server in ShardSimulation and
+ * can coordinate several engines in one JVM.
+ *
+ * A shard handed from one node to another is fenced for one lease period: an alert
+ * the previous owner claimed but never confirmed stays CLAIM_HELD until the previous
+ * owner can no longer believe it holds the shard, and is then granted to the new owner.
+ */
+public class LocalShardCoordinator implements ShardCoordinator {
+    private static final long SENT_CLAIM_RETENTION_MS = TimeUnit.HOURS.toMillis(24);
+    private static final long PRUNE_INTERVAL_MS = 60000;
+
+    private final int shardCount;
+    private final long leaseMs;
+    private final String[] owners;
+    private final long[] expiresAt;
+    private final long[] fencedUntil; // The previous owner may be sending until then
+    private final Map<String, Long> lastSeen = new HashMap<>();
+    private final Map<Long, Claim> claims = new HashMap<>();
+    private long lastPruneMs;
+
+    public LocalShardCoordinator(int shardCount, long leaseMs) {
+        this.shardCount = shardCount;
+        this.leaseMs = leaseMs;
+        this.owners = new String[shardCount];
+        this.expiresAt = new long[shardCount];
+        this.fencedUntil = new long[shardCount];
+    }
+
+    @Override
+    public synchronized Grant heartbeat(String nodeId, long[] sent) {
+        long now = nowMs();
+        confirm(nodeId, sent, now);
+        lastSeen.put(nodeId, now);
+        for (Iterator<Map.Entry<String, Long>> it = lastSeen.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() + leaseMs <= now) {
+                it.remove();
+            }
+        }
+        int fairShare = (shardCount + lastSeen.size() - 1) / lastSeen.size();
+        List<Integer> held = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (nodeId.equals(owners[shard]) && expiresAt[shard] > now) {
+                held.add(shard);
+            }
+        }
+        // Give back shards above the fair share so that a node that just joined gets some
+        while (held.size() > fairShare) {
+            int shard = held.remove(held.size() - 1);
+            owners[shard] = null;
+            expiresAt[shard] = 0;
+            fencedUntil[shard] = now + leaseMs;
+        }
+        for (int shard = 0; shard < shardCount && held.size() < fairShare; shard++) {
+            if (owners[shard] == null || expiresAt[shard] <= now) {
+                if (owners[shard] != null) {
+                    // The old owner stopped sending by the time its lease ran out
+                    fencedUntil[shard] = Math.max(fencedUntil[shard], expiresAt[shard]);
+                }
+                owners[shard] = nodeId;
+                held.add(shard);
+            }
+        }
+        int[] shards = new int[held.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = held.get(i);
+            expiresAt[shards[i]] = now + leaseMs;
+        }
+        if (now - lastPruneMs > PRUNE_INTERVAL_MS) {
+            pruneClaims(now);
+        }
+        return new Grant(shardCount, leaseMs, shards, lastSeen.size());
+    }
+
+    @Override
+    public synchronized int[] claim(String nodeId, long[] alerts, long[] sent) {
+        long now = nowMs();
+        confirm(nodeId, sent, now);
+        int[] statuses = new int[alerts.length];
+        for (int i = 0; i < alerts.length; i++) {
+            int shard = ShardLeases.shardOf(ShardLeases.userIdOf(alerts[i]), shardCount);
+            if (!nodeId.equals(owners[shard]) || expiresAt[shard] <= now) {
+                statuses[i] = CLAIM_NOT_OWNER;
+                continue;
+            }
+            Claim claim = claims.get(alerts[i]);
+            if (claim == null) {
+                claims.put(alerts[i], new Claim(nodeId, now));
+                statuses[i] = CLAIM_GRANTED;
+            } else if (claim.sent) {
+                statuses[i] = CLAIM_SENT;
+            } else if (claim.nodeId.equals(nodeId) || now >= fencedUntil[shard]) {
+                claims.put(alerts[i], new Claim(nodeId, now));
+                statuses[i] = CLAIM_GRANTED;
+            } else {
+                statuses[i] = CLAIM_HELD;
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public synchronized void release(String nodeId, long[] sent) {
+        long now = nowMs();
+        confirm(nodeId, sent, now);
+        lastSeen.remove(nodeId);
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (nodeId.equals(owners[shard])) {
+                owners[shard] = null;
+                expiresAt[shard] = 0;
+                // Released after its last send was confirmed, so nothing is in flight
+            }
+        }
+    }
+
+    /**
+     * Owner of each shard with a live lease, null for free shards
+     */
+    public synchronized String[] owners() {
+        long now = nowMs();
+        String[] current = new String[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            current[shard] = expiresAt[shard] > now ? owners[shard] : null;
+        }
+        return current;
+    }
+
+    private void confirm(String nodeId, long[] sent, long now) {
+        if (sent == null) {
+            return;
+        }
+        for (long alert : sent) {
+            Claim claim = new Claim(nodeId, now);
+            claim.sent = true;
+            claims.put(alert, claim);
+        }
+    }
+
+    private void pruneClaims(long now) {
+        lastPruneMs = now;
+        for (Iterator<Claim> it = claims.values().iterator(); it.hasNext(); ) {
+            Claim claim = it.next();
+            if (claim.sent && now - claim.atMs > SENT_CLAIM_RETENTION_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Claim {
+        final String nodeId;
+        final long atMs;
+        boolean sent;
+
+        Claim(String nodeId, long atMs) {
+            this.nodeId = nodeId;
+            this.atMs = atMs;
+        }
+    }
+}
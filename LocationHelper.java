@@ -14,18 +14,27 @@ import androidx.core.app.ActivityCompat;
 
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
-public class LocationHelper {
+public class LocationHelper implements LocationSource {
     private static final String TAG = "LocationHelper";
     
+    private static final String PERMISSION_NOT_GRANTED = "Location permission not granted";
+    private static final String LOCATION_UNAVAILABLE = "Location unavailable";
+    
     private Context context;
     private LocationManager locationManager;
     private Geocoder geocoder;
+    private final ExecutorService geocodeExecutor;
+    private AddressLookup currentLookup;
     
     public LocationHelper(Context context) {
         this.context = context;
         this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
         this.geocoder = new Geocoder(context, Locale.getDefault());
+        this.geocodeExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "wristbud-geocoder"));
     }
     
     /**
@@ -33,38 +42,18 @@ public class LocationHelper {
      */
     public String getLastKnownLocation() {
         try {
-            // Check for location permissions
-            if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED &&
-                ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            if (!hasLocationPermission()) {
                 Log.w(TAG, "Location permissions not granted");
-                return "Location permission not granted";
-            }
-            
-            Location location = null;
-            
-            // Try to get location from GPS first
-            if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-                location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-                Log.d(TAG, "GPS location: " + (location != null ? "available" : "null"));
+                return PERMISSION_NOT_GRANTED;
             }
             
-            // If GPS location is not available, try network location
-            if (location == null && locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
-                location = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-                Log.d(TAG, "Network location: " + (location != null ? "available" : "null"));
-            }
-            
-            // If still no location, try passive provider
-            if (location == null && locationManager.isProviderEnabled(LocationManager.PASSIVE_PROVIDER)) {
-                location = locationManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
-                Log.d(TAG, "Passive location: " + (location != null ? "available" : "null"));
-            }
+            Location location = getLastKnownFix();
             
             if (location != null) {
                 return formatLocation(location);
             } else {
                 Log.w(TAG, "No location available from any provider");
-                return "Location unavailable";
+                return LOCATION_UNAVAILABLE;
             }
             
         } catch (Exception e) {
@@ -73,6 +62,141 @@ public class LocationHelper {
         }
     }
     
+    /**
+     * Resolve the current location, waiting for the geocoder until at most deadlineMs
+     * after its lookup started.
+     * If the address is not ready in time the result carries coordinates and a maps
+     * link, plus the still-running lookup so the caller can follow up later.
+     */
+    public ResolvedLocation resolveLocation(long deadlineMs) {
+        try {
+            if (!hasLocationPermission()) {
+                Log.w(TAG, "Location permissions not granted");
+                return new ResolvedLocation(PERMISSION_NOT_GRANTED);
+            }
+            
+            Location location = getLastKnownFix();
+            if (location == null) {
+                Log.w(TAG, "No location available from any provider");
+                return new ResolvedLocation(LOCATION_UNAVAILABLE);
+            }
+            
+            double latitude = location.getLatitude();
+            double longitude = location.getLongitude();
+            AddressLookup lookup = startLookup(latitude, longitude);
+            if (lookup == null) {
+                return new ResolvedLocation(latitude, longitude, null, null);
+            }
+            
+            try {
+                String address = lookup.await(deadlineMs);
+                return new ResolvedLocation(latitude, longitude, address, null);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Geocoder missed " + deadlineMs + " ms deadline, using coordinates");
+                return new ResolvedLocation(latitude, longitude, null, lookup);
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error resolving location", e);
+            return new ResolvedLocation("Location error");
+        }
+    }
+    
+    /**
+     * Start resolving the address for the current fix in the background so that a
+     * later resolveLocation() call finds it already cached.
+     */
+    public void prefetchAddress() {
+        try {
+            if (!hasLocationPermission()) {
+                return;
+            }
+            Location location = getLastKnownFix();
+            if (location != null) {
+                startLookup(location.getLatitude(), location.getLongitude());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Address prefetch failed", e);
+        }
+    }
+    
+    @Override
+    public void prefetch() {
+        prefetchAddress();
+    }
+    
+    @Override
+    public ResolvedLocation locate(long deadlineMs) {
+        return resolveLocation(deadlineMs);
+    }
+    
+    /**
+     * Stop the background geocoder thread
+     */
+    public void shutdown() {
+        geocodeExecutor.shutdownNow();
+    }
+    
+    private boolean hasLocationPermission() {
+        return ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED ||
+               ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+    
+    /**
+     * Return the in-flight or cached lookup for these coordinates, starting a new one
+     * when the device has moved or the previous attempt failed
+     */
+    private synchronized AddressLookup startLookup(double latitude, double longitude) {
+        if (!Geocoder.isPresent()) {
+            return null;
+        }
+        long key = cellKey(latitude, longitude);
+        AddressLookup lookup = currentLookup;
+        if (lookup != null && lookup.key == key && (!lookup.isDone() || lookup.getQuietly() != null)) {
+            return lookup;
+        }
+        lookup = new AddressLookup(key, () -> geocode(latitude, longitude));
+        currentLookup = lookup;
+        geocodeExecutor.execute(lookup);
+        return lookup;
+    }
+    
+    /**
+     * Round coordinates to roughly 10 m cells so small GPS jitter reuses the cached address
+     */
+    private static long cellKey(double latitude, double longitude) {
+        long lat = Math.round(latitude * 10000d);
+        long lon = Math.round(longitude * 10000d);
+        return (lat << 32) ^ (lon & 0xffffffffL);
+    }
+    
+    /**
+     * Get the freshest last known fix from GPS, network or passive providers
+     */
+    private Location getLastKnownFix() throws SecurityException {
+        Location location = null;
+        
+        // Try to get location from GPS first
+        if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
+            location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+            if (MonitorLog.DEBUG) Log.d(TAG, "GPS location: " + (location != null ? "available" : "null"));
+        }
+        
+        // If GPS location is not available, try network location
+        if (location == null && locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+            location = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+            if (MonitorLog.DEBUG) Log.d(TAG, "Network location: " + (location != null ? "available" : "null"));
+        }
+        
+        // If still no location, try passive provider
+        if (location == null && locationManager.isProviderEnabled(LocationManager.PASSIVE_PROVIDER)) {
+            location = locationManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+            if (MonitorLog.DEBUG) Log.d(TAG, "Passive location: " + (location != null ? "available" : "null"));
+        }
+        
+        return location;
+    }
+    
     /**
      * Format location into a readable string
      */
@@ -81,56 +205,16 @@ public class LocationHelper {
             double latitude = location.getLatitude();
             double longitude = location.getLongitude();
             
-            Log.d(TAG, "Location coordinates: " + latitude + ", " + longitude);
-            
             // Try to get address from coordinates
             if (Geocoder.isPresent()) {
-                try {
-                    List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
-                    
-                    if (addresses != null && !addresses.isEmpty()) {
-                        Address address = addresses.get(0);
-                        
-                        StringBuilder locationString = new StringBuilder();
-                        
-                        // Add street address if available
-                        if (address.getAddressLine(0) != null) {
-                            locationString.append(address.getAddressLine(0));
-                        } else {
-                            // Build address from components
-                            if (address.getSubThoroughfare() != null) {
-                                locationString.append(address.getSubThoroughfare()).append(" ");
-                            }
-                            if (address.getThoroughfare() != null) {
-                                locationString.append(address.getThoroughfare());
-                            }
-                        }
-                        
-                        // Add city and state
-                        if (address.getLocality() != null) {
-                            if (locationString.length() > 0) locationString.append(", ");
-                            locationString.append(address.getLocality());
-                        }
-                        
-                        if (address.getAdminArea() != null) {
-                            if (locationString.length() > 0) locationString.append(", ");
-                            locationString.append(address.getAdminArea());
-                        }
-                        
-                        String formattedAddress = locationString.toString();
-                        if (!formattedAddress.isEmpty()) {
-                            Log.d(TAG, "Formatted address: " + formattedAddress);
-                            return formattedAddress;
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Geocoding failed, using coordinates", e);
+                String formattedAddress = geocode(latitude, longitude);
+                if (formattedAddress != null) {
+                    return formattedAddress;
                 }
             }
             
             // Fallback to coordinates if geocoding fails
-            String coordinates = String.format(Locale.US, "%.6f, %.6f", latitude, longitude);
-            Log.d(TAG, "Using coordinates: " + coordinates);
+            String coordinates = ResolvedLocation.formatCoordinates(latitude, longitude);
             return coordinates;
             
         } catch (Exception e) {
@@ -139,6 +223,54 @@ public class LocationHelper {
         }
     }
     
+    /**
+     * Reverse geocode coordinates into a street address, or null if none is available.
+     * This may block on the network for several seconds.
+     */
+    private String geocode(double latitude, double longitude) {
+        try {
+            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+            
+            if (addresses != null && !addresses.isEmpty()) {
+                Address address = addresses.get(0);
+                
+                StringBuilder locationString = new StringBuilder();
+                
+                // Add street address if available
+                if (address.getAddressLine(0) != null) {
+                    locationString.append(address.getAddressLine(0));
+                } else {
+                    // Build address from components
+                    if (address.getSubThoroughfare() != null) {
+                        locationString.append(address.getSubThoroughfare()).append(" ");
+                    }
+                    if (address.getThoroughfare() != null) {
+                        locationString.append(address.getThoroughfare());
+                    }
+                }
+                
+                // Add city and state
+                if (address.getLocality() != null) {
+                    if (locationString.length() > 0) locationString.append(", ");
+                    locationString.append(address.getLocality());
+                }
+                
+                if (address.getAdminArea() != null) {
+                    if (locationString.length() > 0) locationString.append(", ");
+                    locationString.append(address.getAdminArea());
+                }
+                
+                String formattedAddress = locationString.toString();
+                if (!formattedAddress.isEmpty()) {
+                    return formattedAddress;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Geocoding failed, using coordinates", e);
+        }
+        return null;
+    }
+    
     /**
      * Check if location services are enabled
      */
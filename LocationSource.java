@@ -0,0 +1,18 @@
+package angelo.collins.smssender;
+
+
+/**
+ * Where the alert engine gets the location it puts into alert messages
+ */
+public interface LocationSource {
+
+    /**
+     * Start resolving the current address so a later locate() finds it ready
+     */
+    void prefetch();
+
+    /**
+     * Location for an alert message, waiting at most deadlineMs for the address
+     */
+    ResolvedLocation locate(long deadlineMs);
+}
@@ -8,6 +8,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Switch;
@@ -28,6 +29,8 @@ import java.util.Locale;
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "WristBudSMSSender";
     private static final int PERMISSION_REQUEST_CODE = 100;
+    private static final int DEBUG_CONSOLE_MAX_LINES = 200;
+    private static final long DEBUG_CONSOLE_REFRESH_MS = 250; // At most 4 console redraws per second
 
     private Switch serviceSwitch;
     private TextView statusText;
@@ -40,18 +43,38 @@ public class MainActivity extends AppCompatActivity {
 
     private angelo.collins.smssender.DatabaseHelper dbHelper;
     private angelo.collins.smssender.SMSManager smsManager;
-
-    public static MainActivity instance;
+    private MonitorStatusChannel.Client monitor;
+    private boolean showingStatus; // Switch changes made by showStatus(), not by the user
+
+    private final DebugEventRing debugEvents = DebugEventRing.shared();
+    private final DebugEventRing.Event debugEvent = new DebugEventRing.Event();
+    private final StringBuilder debugConsoleBuffer = new StringBuilder();
+    private final SimpleDateFormat debugTimeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+    private final Date debugTime = new Date();
+    private long renderedSequence = -1;
+    private boolean debugConsoleVisible;
+    private final Choreographer.FrameCallback debugConsoleRefresh = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!debugConsoleVisible) {
+                return;
+            }
+            monitor.requestEvents();
+            renderDebugConsole();
+            Choreographer.getInstance().postFrameCallbackDelayed(this, DEBUG_CONSOLE_REFRESH_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        instance = this;
+        MonitorLog.refresh();
         setContentView(R.layout.activity_main);
 
         initializeViews();
         initializeComponents();
         checkPermissions();
+        showStatus(null); // Until the monitor process answers
         updateUI();
         setupApiClient();
     }
@@ -67,6 +90,9 @@ public class MainActivity extends AppCompatActivity {
         configIpButton.setOnClickListener(v -> showConfigIpDialog());
 
         serviceSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (showingStatus) {
+                return;
+            }
             if (isChecked) {
                 startMonitoringService();
             } else {
@@ -77,11 +103,13 @@ public class MainActivity extends AppCompatActivity {
 
         testButton.setOnClickListener(v -> testSMSFunctionality());
         testButton.setOnLongClickListener(v -> { testApiEndpoint(); return true; });
+        statusText.setOnLongClickListener(v -> { showMetricsDialog(); return true; });
     }
 
     private void initializeComponents() {
         dbHelper = new DatabaseHelper(this);
         smsManager = new SMSManager(this);
+        monitor = new MonitorStatusChannel.Client(this, debugEvents, new MonitorListener());
     }
 
     private void checkPermissions() {
@@ -130,6 +158,8 @@ public class MainActivity extends AppCompatActivity {
     private void startMonitoringService() {
         if (hasRequiredPermissions()) {
             Intent serviceIntent = new Intent(this, CriticalMonitorService.class);
+            serviceIntent.putExtra(CriticalMonitorService.EXTRA_API_BASE_URL,
+                    PreferenceManager.getDefaultSharedPreferences(this).getString("api_base_url", ""));
             try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                     startForegroundService(serviceIntent);
@@ -169,13 +199,25 @@ public class MainActivity extends AppCompatActivity {
         String currentTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date());
         lastCheckText.setText("Last Check: " + currentTime);
 
-        // Update sent count from preferences
-        int sentCount = getSharedPreferences("WristBudSMS", MODE_PRIVATE).getInt("sms_sent_count", 0);
-        sentCountText.setText("SMS Sent Today: " + sentCount);
+        // Status and count come from the monitor process when it runs, see showStatus()
+        if (!monitor.requestStatus()) {
+            // This process's copy of the preferences; the monitor's may be newer
+            int sentCount = getSharedPreferences("WristBudSMS", MODE_PRIVATE).getInt("sms_sent_count", 0);
+            sentCountText.setText("SMS Sent Today: " + sentCount);
+        }
+    }
 
-        // Update service status
-        boolean isServiceRunning = CriticalMonitorService.isServiceRunning();
+    /**
+     * Show the monitor's status, null when it is not running
+     */
+    private void showStatus(MonitorStatusChannel.Status status) {
+        boolean isServiceRunning = status != null;
+        if (isServiceRunning) {
+            sentCountText.setText("SMS Sent Today: " + status.smsSentCount);
+        }
+        showingStatus = true;
         serviceSwitch.setChecked(isServiceRunning);
+        showingStatus = false;
 
         if (isServiceRunning) {
             statusText.setText("Service Status: ACTIVE");
@@ -217,12 +259,23 @@ public class MainActivity extends AppCompatActivity {
             prefs.edit().putString("api_base_url", newUrl).apply();
             if (apiClient != null) apiClient.setBaseUrl(newUrl);
             appendDebug("API Base URL saved: " + newUrl);
-            Toast.makeText(this, "API Base URL saved! Restart app to apply.", Toast.LENGTH_LONG).show();
+            if (monitor.setApiBaseUrl(newUrl)) {
+                Toast.makeText(this, "API Base URL saved and applied to the monitor", Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(this, "API Base URL saved! Used when monitoring starts.", Toast.LENGTH_LONG).show();
+            }
         });
         builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
         builder.show();
     }
 
+    private void showMetricsDialog() {
+        // The metrics live in the monitor process; the dialog opens when they arrive
+        if (!monitor.requestMetrics()) {
+            Toast.makeText(this, "Monitoring is not running", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void testApiEndpoint() {
         if (apiClient == null) {
             appendDebug("APIClient not initialized.");
@@ -242,19 +295,42 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void appendDebug(String msg) {
-        runOnUiThread(() -> {
-            if (debugConsoleText != null) {
-                String prev = debugConsoleText.getText().toString();
-                String time = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                debugConsoleText.setText(prev + "\n[" + time + "] " + msg);
-            }
-        });
+        debugEvents.note(msg);
     }
 
-    public static void appendServiceDebug(String msg) {
-        if (instance != null) {
-            instance.appendDebug("[Service] " + msg);
+    /**
+     * Redraw the console from the newest events in the ring. Only the last
+     * DEBUG_CONSOLE_MAX_LINES events are rendered, and nothing is done when no
+     * new events arrived since the previous frame.
+     */
+    private void renderDebugConsole() {
+        long head = debugEvents.head();
+        if (debugConsoleText == null || head == renderedSequence) {
+            return;
         }
+        long window = Math.min(DEBUG_CONSOLE_MAX_LINES, debugEvents.capacity());
+        long start = Math.max(0, head - window);
+        debugConsoleBuffer.setLength(0);
+        long lastSecond = -1;
+        String time = "";
+        for (long sequence = start; sequence < head; sequence++) {
+            if (!debugEvents.read(sequence, debugEvent)) {
+                continue;
+            }
+            long second = debugEvent.timestamp / 1000;
+            if (second != lastSecond) {
+                debugTime.setTime(debugEvent.timestamp);
+                time = debugTimeFormat.format(debugTime);
+                lastSecond = second;
+            }
+            if (debugConsoleBuffer.length() > 0) {
+                debugConsoleBuffer.append('\n');
+            }
+            debugConsoleBuffer.append('[').append(time).append("] ");
+            DebugEventRing.format(debugEvent, debugConsoleBuffer);
+        }
+        debugConsoleText.setText(debugConsoleBuffer);
+        renderedSequence = head;
     }
 
     private boolean hasRequiredPermissions() {
@@ -265,7 +341,18 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        monitor.bind();
         updateUI();
+        debugConsoleVisible = true;
+        Choreographer.getInstance().postFrameCallback(debugConsoleRefresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        debugConsoleVisible = false;
+        Choreographer.getInstance().removeFrameCallback(debugConsoleRefresh);
+        monitor.unbind();
     }
 
     @Override
@@ -274,6 +361,9 @@ public class MainActivity extends AppCompatActivity {
         if (dbHelper != null) {
             dbHelper.close();
         }
+        if (smsManager != null) {
+            smsManager.shutdown();
+        }
     }
 
     private void setupApiClient() {
@@ -282,4 +372,23 @@ public class MainActivity extends AppCompatActivity {
         apiClient = new APIClient(this, baseUrl);
         appendDebug("API Base URL: " + baseUrl);
     }
-}
\ No newline at end of file
+
+    /**
+     * Replies from the monitor process, on the main thread
+     */
+    private final class MonitorListener implements MonitorStatusChannel.Listener {
+        @Override
+        public void onStatus(MonitorStatusChannel.Status status) {
+            showStatus(status);
+        }
+
+        @Override
+        public void onMetrics(String text) {
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle("Alert Pipeline Metrics")
+                    .setMessage(text)
+                    .setPositiveButton("Close", (dialog, which) -> dialog.cancel())
+                    .show();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AlertStore kept in memory, for simulations and harnesses that run engines on a plain
+ * JVM without a database. Nothing survives the process.
+ */
+public class MemoryAlertStore implements AlertStore {
+    private final Set<Long> sent = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, PendingEscalation> escalations = new HashMap<>(); // Guarded by this
+    private int smsCount; // Guarded by this
+
+    private static long alertKey(int userId, int alertId) {
+        return ((long) userId << 32) | (alertId & 0xffffffffL);
+    }
+
+    @Override
+    public boolean hasSMSBeenSent(int userId, int alertId) {
+        return sent.contains(alertKey(userId, alertId));
+    }
+
+    @Override
+    public synchronized void markSMSAsSent(int userId, int alertId, int contactSlot, String phoneNumber, AlertMessage message) {
+        sent.add(alertKey(userId, alertId));
+        smsCount++;
+    }
+
+    @Override
+    public synchronized void saveEscalation(PendingEscalation escalation) {
+        escalations.put(escalation.getUserId(), escalation);
+    }
+
+    @Override
+    public synchronized void deleteEscalation(int userId) {
+        escalations.remove(userId);
+    }
+
+    @Override
+    public synchronized List<PendingEscalation> getPendingEscalations() {
+        List<PendingEscalation> pending = new ArrayList<>(escalations.values());
+        Collections.sort(pending, (a, b) -> Long.compare(a.getDueAtMillis(), b.getDueAtMillis()));
+        return pending;
+    }
+
+    /**
+     * Every (user, alert) pair recorded, as (userId << 32 | alertId) keys
+     */
+    public Set<Long> sentAlerts() {
+        return new HashSet<>(sent);
+    }
+
+    /**
+     * SMS recorded, one per contact and alert
+     */
+    public synchronized int smsCount() {
+        return smsCount;
+    }
+}
@@ -0,0 +1,109 @@
+package angelo.collins.smssender;
+
+
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Logging for the monitor hot path.
+ *
+ * Debug logging is guarded by the compile-time DEBUG flag, so in release builds the
+ * guarded statements, and the strings they would build, are stripped entirely.
+ * Structured events always go to the preallocated DebugEventRing and only reach
+ * logcat in debug builds. Full HTTP bodies and SMS text are logged only when payload
+ * logging is switched on with: adb shell setprop log.tag.WristBudPayload VERBOSE
+ *
+ * The engine classes log through EngineLog; refresh() points it at logcat and hands
+ * it these flags. It also makes SpanTracer spans android.os.Trace sections, so they
+ * appear in system traces taken while span tracing is on.
+ */
+public final class MonitorLog {
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
+    private static final String PAYLOAD_TAG = "WristBudPayload";
+
+    private MonitorLog() {}
+
+    /**
+     * Whether full request/response bodies and SMS text may be logged
+     */
+    public static boolean verbosePayloads() {
+        return EngineLog.verbosePayloads();
+    }
+
+    /**
+     * Route EngineLog to logcat and re-read the payload logging property, e.g. when
+     * the service starts
+     */
+    public static void refresh() {
+        EngineLog.setSink(LogcatSink.INSTANCE);
+        EngineLog.setDebug(DEBUG);
+        EngineLog.setVerbosePayloads(checkVerbosePayloads());
+        SpanTracer.shared().setHook(TraceSectionHook.INSTANCE);
+    }
+
+    /**
+     * Record a structured event in the debug ring; echoed to logcat in debug builds only
+     */
+    public static void event(int type, int userId, int alertId, long value) {
+        EngineLog.event(type, userId, alertId, value, null);
+    }
+
+    public static void event(int type, int userId, int alertId, long value, String text) {
+        EngineLog.event(type, userId, alertId, value, text);
+    }
+
+    /**
+     * Mask a phone number for logs, keeping only the last three digits
+     */
+    public static String maskPhone(String phoneNumber) {
+        return EngineLog.maskPhone(phoneNumber);
+    }
+
+    private static boolean checkVerbosePayloads() {
+        try {
+            return Log.isLoggable(PAYLOAD_TAG, Log.VERBOSE);
+        } catch (RuntimeException e) {
+            return false; // Not running on a device
+        }
+    }
+
+    private static final class LogcatSink implements EngineLog.Sink {
+        static final LogcatSink INSTANCE = new LogcatSink();
+
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            switch (level) {
+                case EngineLog.VERBOSE:
+                    Log.v(tag, message, error);
+                    break;
+                case EngineLog.DEBUG:
+                    Log.d(tag, message, error);
+                    break;
+                case EngineLog.INFO:
+                    Log.i(tag, message, error);
+                    break;
+                case EngineLog.WARN:
+                    Log.w(tag, message, error);
+                    break;
+                default:
+                    Log.e(tag, message, error);
+                    break;
+            }
+        }
+    }
+
+    private static final class TraceSectionHook implements SpanTracer.Hook {
+        static final TraceSectionHook INSTANCE = new TraceSectionHook();
+
+        @Override
+        public void begin(String name) {
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void end() {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package angelo.collins.smssender;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide latency histograms and counters for the alert pipeline.
+ *
+ * The service periodically dumps a snapshot to files/monitor_metrics.json and
+ * files/monitor_metrics.txt, which can be pulled from a production phone with
+ * adb shell run-as angelo.collins.smssender cat files/monitor_metrics.json
+ */
+public class MonitorMetrics {
+    public static final String JSON_DUMP_FILE = "monitor_metrics.json";
+    public static final String TEXT_DUMP_FILE = "monitor_metrics.txt";
+
+    private static final MonitorMetrics SHARED = new MonitorMetrics();
+
+    // Per-stage latencies
+    public final LatencyHistogram poll = new LatencyHistogram("poll_round_trip");
+    public final LatencyHistogram parse = new LatencyHistogram("parse");
+    public final LatencyHistogram diff = new LatencyHistogram("snapshot_diff");
+    public final LatencyHistogram dedup = new LatencyHistogram("dedup");
+    public final LatencyHistogram location = new LatencyHistogram("location");
+    public final LatencyHistogram render = new LatencyHistogram("render");
+    public final LatencyHistogram send = new LatencyHistogram("send");
+    public final LatencyHistogram dbWrite = new LatencyHistogram("db_write");
+    public final LatencyHistogram cycle = new LatencyHistogram("cycle");
+    // Server marking the patient critical to the first SMS leaving the phone (wall clock, includes clock skew)
+    public final LatencyHistogram criticalToFirstSms = new LatencyHistogram("critical_to_first_sms");
+
+    // Counters
+    public final AtomicLong polls = new AtomicLong();
+    public final AtomicLong emptyPolls = new AtomicLong();
+    public final AtomicLong unchangedPolls = new AtomicLong();
+    public final AtomicLong pollFailures = new AtomicLong();
+    public final AtomicLong smsSent = new AtomicLong();
+    public final AtomicLong smsFailed = new AtomicLong();
+    public final AtomicLong skippedTicks = new AtomicLong();
+    public final AtomicLong coalescedAlerts = new AtomicLong(); // Alerts that rode along in another SMS
+    public final AtomicLong escalations = new AtomicLong();
+    public final AtomicLong journalFolded = new AtomicLong(); // Journal records copied into sms_log
+    public final AtomicLong smsFailovers = new AtomicLong(); // Sends retried on another SIM or transport
+    public final AtomicLong claimsDenied = new AtomicLong(); // Alerts another node sent or is sending
+    public final AtomicLong leaseChanges = new AtomicLong(); // Shard sets taken up after a rebalance or lapse
+    public final AtomicLong workerStalls = new AtomicLong(); // Worker tasks past the watchdog's threshold
+    public final AtomicLong workerRestarts = new AtomicLong(); // Stalls the worker was moved to a fresh thread for
+
+    // Startup gauges, set once per service start; 0 if not started from BootReceiver
+    public final AtomicLong bootToFirstCheckMs = new AtomicLong();
+    public final AtomicLong bootReceiverToFirstCheckMs = new AtomicLong();
+    public final AtomicLong startToFirstCheckMs = new AtomicLong();
+
+    private final long startedAtMillis = System.currentTimeMillis();
+
+    public static MonitorMetrics get() {
+        return SHARED;
+    }
+
+    private LatencyHistogram[] histograms() {
+        return new LatencyHistogram[] {
+                poll, parse, diff, dedup, location, render, send, dbWrite, cycle, criticalToFirstSms
+        };
+    }
+
+    private String[] counterNames() {
+        return new String[] {"polls", "empty_polls", "unchanged_polls", "poll_failures", "sms_sent", "sms_failed", "skipped_ticks", "coalesced_alerts", "escalations", "journal_folded", "sms_failovers", "claims_denied", "lease_changes", "worker_stalls", "worker_restarts",
+                "boot_to_first_check_ms", "boot_receiver_to_first_check_ms", "start_to_first_check_ms"};
+    }
+
+    private AtomicLong[] counters() {
+        return new AtomicLong[] {polls, emptyPolls, unchangedPolls, pollFailures, smsSent, smsFailed, skippedTicks, coalescedAlerts, escalations, journalFolded, smsFailovers, claimsDenied, leaseChanges, workerStalls, workerRestarts,
+                bootToFirstCheckMs, bootReceiverToFirstCheckMs, startToFirstCheckMs};
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * Snapshot of all metrics as JSON, latencies in microseconds
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"started_at\":").append(startedAtMillis);
+        json.append(",\"dumped_at\":").append(System.currentTimeMillis());
+        json.append(",\"counters\":{");
+        String[] names = counterNames();
+        AtomicLong[] values = counters();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) json.append(',');
+            json.append('"').append(names[i]).append("\":").append(values[i].get());
+        }
+        json.append("},\"latency_us\":{");
+        LatencyHistogram[] histograms = histograms();
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            if (i > 0) json.append(',');
+            json.append('"').append(histogram.getName()).append("\":{")
+                    .append("\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(histogram.getMeanMicros())
+                    .append(",\"p50\":").append(histogram.getPercentileMicros(50))
+                    .append(",\"p90\":").append(histogram.getPercentileMicros(90))
+                    .append(",\"p99\":").append(histogram.getPercentileMicros(99))
+                    .append(",\"max\":").append(histogram.getMaxMicros())
+                    .append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Human-readable snapshot, latencies in milliseconds
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder(1024);
+        String[] names = counterNames();
+        AtomicLong[] values = counters();
+        for (int i = 0; i < names.length; i++) {
+            text.append(names[i]).append(": ").append(values[i].get()).append('\n');
+        }
+        text.append('\n').append("stage  count  p50  p99  max (ms)").append('\n');
+        for (LatencyHistogram histogram : histograms()) {
+            text.append(histogram.getName())
+                    .append("  ").append(histogram.getCount())
+                    .append("  ").append(formatMillis(histogram.getPercentileMicros(50)))
+                    .append("  ").append(formatMillis(histogram.getPercentileMicros(99)))
+                    .append("  ").append(formatMillis(histogram.getMaxMicros()))
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Write JSON and text snapshots into the given directory
+     */
+    public void dump(File directory) throws IOException {
+        writeAtomically(new File(directory, JSON_DUMP_FILE), toJson());
+        writeAtomically(new File(directory, TEXT_DUMP_FILE), toText());
+    }
+
+    /**
+     * Replace a file with the content, so a reader never sees it half written
+     */
+    static void writeAtomically(File target, String content) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not replace " + target);
+        }
+    }
+
+    private static String formatMillis(long micros) {
+        return (micros / 1000) + "." + ((micros % 1000) / 100);
+    }
+}
@@ -0,0 +1,274 @@
+package angelo.collins.smssender;
+
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the monitor's warm state: the dedup index, the last
+ * critical snapshot and the contact directory.
+ *
+ * Restoring it at startup is a single memory-mapped read, so the first poll after a
+ * boot diffs against what the service knew before and needs no contact refresh or
+ * dedup queries. Saves write a temporary file through a mapping and rename it over
+ * the old one; a torn or corrupt file fails its CRC and is ignored.
+ */
+public class MonitorStateFile {
+    private static final String TAG = "MonitorStateFile";
+    public static final String FILE_NAME = "monitor_state.bin";
+
+    private static final int MAGIC = 0x57425354; // "WBST"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8; // magic, version, saved at, length, crc
+    private static final int MAX_FILE_BYTES = 16 * 1024 * 1024;
+
+    private final File file;
+    private ByteBuffer scratch = ByteBuffer.allocate(16 * 1024);
+
+    public MonitorStateFile(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * What was restored; empty if there was no usable file
+     */
+    public static final class State {
+        public final long savedAtMillis;
+        public final long[] dedupKeys;
+        public final List<CriticalUser> users;
+        public final List<DirectoryEntry> directory;
+
+        State(long savedAtMillis, long[] dedupKeys, List<CriticalUser> users, List<DirectoryEntry> directory) {
+            this.savedAtMillis = savedAtMillis;
+            this.dedupKeys = dedupKeys;
+            this.users = users;
+            this.directory = directory;
+        }
+
+        static State empty() {
+            return new State(0, new long[0], new ArrayList<CriticalUser>(), new ArrayList<DirectoryEntry>());
+        }
+    }
+
+    public static final class DirectoryEntry {
+        public final int userId;
+        public final long version;
+        public final CriticalUser.Contact[] contacts;
+
+        DirectoryEntry(int userId, long version, CriticalUser.Contact[] contacts) {
+            this.userId = userId;
+            this.version = version;
+            this.contacts = contacts;
+        }
+    }
+
+    public State load() {
+        if (!file.exists()) {
+            return State.empty();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > MAX_FILE_BYTES) {
+                return State.empty();
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring state file with unknown format");
+                return State.empty();
+            }
+            long savedAt = in.getLong();
+            int length = in.getInt();
+            long crc = in.getLong();
+            if (length < 0 || length > in.remaining() || crcOf(in, in.position(), length) != crc) {
+                Log.w(TAG, "Ignoring corrupt state file");
+                return State.empty();
+            }
+            return readPayload(in, savedAt);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not read state file", e);
+            return State.empty();
+        }
+    }
+
+    /**
+     * Replace the state file. Call from a background thread.
+     */
+    public void save(long[] dedupKeys, Collection<CriticalUser> users, Map<Integer, ContactDirectory.Entry> directory) throws IOException {
+        ByteBuffer payload;
+        while (true) {
+            try {
+                scratch.clear();
+                writePayload(scratch, dedupKeys, users, directory);
+                payload = scratch;
+                break;
+            } catch (BufferOverflowException e) {
+                if (scratch.capacity() >= MAX_FILE_BYTES) {
+                    throw new IOException("State too large");
+                }
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+        payload.flip();
+        int length = payload.remaining();
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(HEADER_BYTES + length);
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + length);
+            out.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(System.currentTimeMillis()).putInt(length)
+                    .putLong(crcOf(payload, 0, length));
+            out.put(payload);
+            out.force();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void writePayload(ByteBuffer out, long[] dedupKeys, Collection<CriticalUser> users,
+                                     Map<Integer, ContactDirectory.Entry> directory) {
+        out.putInt(dedupKeys.length);
+        for (long key : dedupKeys) {
+            out.putLong(key);
+        }
+        out.putInt(users.size());
+        for (CriticalUser user : users) {
+            out.putInt(user.getUserId());
+            putString(out, user.getName());
+            putString(out, user.getEmail());
+            out.putInt(user.getAlertId());
+            out.putInt(user.getHeartRate());
+            out.putInt(user.getSystolic());
+            out.putInt(user.getDiastolic());
+            out.putInt(user.getSpo2());
+            out.putDouble(user.getTemperature());
+            putString(out, user.getAlertMessage());
+            out.putLong(user.getRecordedAtMillis());
+            out.putLong(user.getProfileVersion());
+            out.put((byte) ((user.isAcknowledged() ? 1 : 0) | (user.isContactsPending() ? 2 : 0)));
+            out.put((byte) user.getContactCount());
+            for (int i = 0; i < user.getContactCount(); i++) {
+                putContact(out, user.getContact(i));
+            }
+        }
+        out.putInt(directory.size());
+        for (Map.Entry<Integer, ContactDirectory.Entry> entry : directory.entrySet()) {
+            out.putInt(entry.getKey());
+            out.putLong(entry.getValue().version);
+            CriticalUser.Contact[] contacts = entry.getValue().contacts;
+            out.put((byte) contacts.length);
+            for (CriticalUser.Contact contact : contacts) {
+                putContact(out, contact);
+            }
+        }
+    }
+
+    private static State readPayload(ByteBuffer in, long savedAt) {
+        long[] dedupKeys = new long[checkedCount(in, 8)];
+        for (int i = 0; i < dedupKeys.length; i++) {
+            dedupKeys[i] = in.getLong();
+        }
+        int userCount = checkedCount(in, 4);
+        List<CriticalUser> users = new ArrayList<>(userCount);
+        CriticalUser.Builder builder = new CriticalUser.Builder();
+        for (int i = 0; i < userCount; i++) {
+            builder.reset()
+                    .setUserId(in.getInt())
+                    .setName(getString(in))
+                    .setEmail(getString(in))
+                    .setAlertId(in.getInt())
+                    .setHeartRate(in.getInt())
+                    .setBloodPressure(in.getInt(), in.getInt())
+                    .setSpo2(in.getInt())
+                    .setTemperature(in.getDouble())
+                    .setAlertMessage(getString(in))
+                    .setRecordedAtMillis(in.getLong())
+                    .setProfileVersion(in.getLong());
+            int flags = in.get();
+            builder.setAcknowledged((flags & 1) != 0).setContactsPending((flags & 2) != 0);
+            int contacts = in.get();
+            for (int c = 0; c < contacts; c++) {
+                builder.addContact(getContact(in));
+            }
+            users.add(builder.build());
+        }
+        int directoryCount = checkedCount(in, 12);
+        List<DirectoryEntry> directory = new ArrayList<>(directoryCount);
+        for (int i = 0; i < directoryCount; i++) {
+            int userId = in.getInt();
+            long version = in.getLong();
+            CriticalUser.Contact[] contacts = new CriticalUser.Contact[in.get()];
+            for (int c = 0; c < contacts.length; c++) {
+                contacts[c] = getContact(in);
+            }
+            directory.add(new DirectoryEntry(userId, version, contacts));
+        }
+        return new State(savedAt, dedupKeys, users, directory);
+    }
+
+    private static void putContact(ByteBuffer out, CriticalUser.Contact contact) {
+        out.put((byte) contact.getSlot());
+        putString(out, contact.getName());
+        putString(out, contact.getPhone());
+    }
+
+    private static CriticalUser.Contact getContact(ByteBuffer in) {
+        int slot = in.get();
+        return new CriticalUser.Contact(slot, getString(in), getString(in));
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putShort((short) -1);
+            return;
+        }
+        int length = Math.min(value.length(), Short.MAX_VALUE);
+        out.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            out.putChar(value.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.getChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Read a count and make sure the buffer could hold that many items of minBytes each
+     */
+    private static int checkedCount(ByteBuffer in, int minBytes) {
+        int count = in.getInt();
+        if (count < 0 || (long) count * minBytes > in.remaining()) {
+            throw new IllegalArgumentException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static long crcOf(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length).position(offset);
+        crc.update(view);
+        return crc.getValue();
+    }
+}
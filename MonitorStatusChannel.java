@@ -0,0 +1,360 @@
+package angelo.collins.smssender;
+
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Messenger channel between the UI and CriticalMonitorService, which runs in its own
+ * process (android:process=":monitor") so UI garbage collection, the debug console
+ * and leaked activities never touch the monitor's heap.
+ *
+ * Nothing crosses the process boundary but small Bundles on request: the monitor's
+ * status, its newest debug events in batches of parallel arrays, the metrics text,
+ * and the API base URL when the user changes it. The service answers on a thread of
+ * its own that only reads the lock-free event ring and atomic counters, so a slow
+ * or busy UI never holds up the monitor's worker.
+ *
+ * The UI binds without BIND_AUTO_CREATE: it attaches while the monitor runs and is
+ * never what keeps it alive. Connected means running.
+ */
+public final class MonitorStatusChannel {
+    private static final String TAG = "MonitorStatusChannel";
+
+    static final int MSG_GET_STATUS = 1;
+    static final int MSG_STATUS = 2;
+    static final int MSG_GET_EVENTS = 3;
+    static final int MSG_EVENTS = 4;
+    static final int MSG_GET_METRICS = 5;
+    static final int MSG_METRICS = 6;
+    static final int MSG_SET_API_BASE_URL = 7;
+
+    private static final String KEY_PID = "pid";
+    private static final String KEY_SMS_SENT_COUNT = "sms_sent_count";
+    private static final String KEY_FROM = "from";
+    private static final String KEY_NEXT = "next";
+    private static final String KEY_HEAD = "head";
+    private static final String KEY_TIMESTAMPS = "timestamps";
+    private static final String KEY_TYPES = "types";
+    private static final String KEY_USER_IDS = "user_ids";
+    private static final String KEY_ALERT_IDS = "alert_ids";
+    private static final String KEY_VALUES = "values";
+    private static final String KEY_TEXTS = "texts";
+    private static final String KEY_TEXT = "text";
+
+    private static final int MAX_EVENTS_PER_REPLY = 128; // A few KB per transaction
+
+    private MonitorStatusChannel() {}
+
+    /**
+     * What the service exposes to the channel; called on the channel's thread
+     */
+    public interface Host {
+        int getSmsSentCount();
+
+        void setApiBaseUrl(String baseUrl);
+    }
+
+    /**
+     * What the UI gets back; called on the main thread
+     */
+    public interface Listener {
+        /**
+         * The monitor's status, or null once it is no longer running
+         */
+        void onStatus(Status status);
+
+        void onMetrics(String text);
+    }
+
+    /**
+     * The monitor's status as last reported
+     */
+    public static final class Status {
+        public int pid;
+        public int smsSentCount;
+    }
+
+    /**
+     * Service side: answers requests on its own background-priority thread
+     */
+    public static final class Server implements Handler.Callback {
+        private final Host host;
+        private final DebugEventRing events;
+        private final MonitorMetrics metrics;
+        private final DebugEventRing.Event event = new DebugEventRing.Event();
+        private final HandlerThread thread;
+        private final Messenger messenger;
+
+        public Server(Host host, DebugEventRing events, MonitorMetrics metrics) {
+            this.host = host;
+            this.events = events;
+            this.metrics = metrics;
+            thread = new HandlerThread("wristbud-monitor-status", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            messenger = new Messenger(new Handler(thread.getLooper(), this));
+        }
+
+        /**
+         * What onBind() returns
+         */
+        public IBinder getBinder() {
+            return messenger.getBinder();
+        }
+
+        public void close() {
+            thread.quitSafely();
+        }
+
+        @Override
+        public boolean handleMessage(Message request) {
+            Bundle data = new Bundle();
+            int what;
+            switch (request.what) {
+                case MSG_GET_STATUS:
+                    data.putInt(KEY_SMS_SENT_COUNT, host.getSmsSentCount());
+                    what = MSG_STATUS;
+                    break;
+                case MSG_GET_EVENTS:
+                    Bundle from = request.getData();
+                    writeEvents(from.getInt(KEY_PID, 0), from.getLong(KEY_FROM, 0), data);
+                    what = MSG_EVENTS;
+                    break;
+                case MSG_GET_METRICS:
+                    data.putString(KEY_TEXT, metrics.toText());
+                    what = MSG_METRICS;
+                    break;
+                case MSG_SET_API_BASE_URL:
+                    host.setApiBaseUrl(request.getData().getString(KEY_TEXT));
+                    return true;
+                default:
+                    return false;
+            }
+            if (request.replyTo == null) {
+                return true;
+            }
+            data.putInt(KEY_PID, Process.myPid());
+            Message reply = Message.obtain(null, what);
+            reply.setData(data);
+            try {
+                request.replyTo.send(reply);
+            } catch (RemoteException e) {
+                if (MonitorLog.DEBUG) Log.d(TAG, "Client went away before the reply");
+            }
+            return true;
+        }
+
+        /**
+         * Copy up to MAX_EVENTS_PER_REPLY events from the given sequence on. A client
+         * that last read from another process starts over, as this ring's sequence did.
+         */
+        private void writeEvents(int clientPid, long from, Bundle data) {
+            long head = events.head();
+            long start = clientPid == Process.myPid() && from <= head ? from : 0;
+            start = Math.max(start, head - events.capacity());
+            long end = Math.min(head, start + MAX_EVENTS_PER_REPLY);
+            int size = (int) (end - start);
+            long[] timestamps = new long[size];
+            int[] types = new int[size];
+            int[] userIds = new int[size];
+            int[] alertIds = new int[size];
+            long[] values = new long[size];
+            String[] texts = new String[size];
+            int count = 0;
+            for (long sequence = start; sequence < end; sequence++) {
+                if (!events.read(sequence, event)) {
+                    continue; // Overwritten or still being written
+                }
+                timestamps[count] = event.timestamp;
+                types[count] = event.type;
+                userIds[count] = event.userId;
+                alertIds[count] = event.alertId;
+                values[count] = event.value;
+                texts[count] = event.text;
+                count++;
+            }
+            if (count < size) {
+                timestamps = Arrays.copyOf(timestamps, count);
+                types = Arrays.copyOf(types, count);
+                userIds = Arrays.copyOf(userIds, count);
+                alertIds = Arrays.copyOf(alertIds, count);
+                values = Arrays.copyOf(values, count);
+                texts = Arrays.copyOf(texts, count);
+            }
+            data.putLongArray(KEY_TIMESTAMPS, timestamps);
+            data.putIntArray(KEY_TYPES, types);
+            data.putIntArray(KEY_USER_IDS, userIds);
+            data.putIntArray(KEY_ALERT_IDS, alertIds);
+            data.putLongArray(KEY_VALUES, values);
+            data.putStringArray(KEY_TEXTS, texts);
+            data.putLong(KEY_NEXT, end);
+            data.putLong(KEY_HEAD, head);
+        }
+    }
+
+    /**
+     * UI side: binds to the running monitor and hands replies to the listener on the
+     * main thread. Requests made while the monitor is not running return false.
+     */
+    public static final class Client implements ServiceConnection, Handler.Callback {
+        private final Context context;
+        private final DebugEventRing events;
+        private final Listener listener;
+        private final Messenger replies;
+        private final DebugEventRing.Event event = new DebugEventRing.Event();
+        private Messenger service;
+        private boolean bound;
+        private boolean eventsRequested; // One batch in flight at a time
+        private int monitorPid;
+        private long nextSequence;
+
+        /**
+         * @param events ring the monitor's events are copied into, the one the console renders
+         */
+        public Client(Context context, DebugEventRing events, Listener listener) {
+            this.context = context;
+            this.events = events;
+            this.listener = listener;
+            this.replies = new Messenger(new Handler(Looper.getMainLooper(), this));
+        }
+
+        public void bind() {
+            if (!bound) {
+                bound = context.bindService(new Intent(context, CriticalMonitorService.class), this, 0);
+            }
+        }
+
+        public void unbind() {
+            if (bound) {
+                context.unbindService(this);
+                bound = false;
+            }
+            service = null;
+            eventsRequested = false;
+        }
+
+        public boolean isConnected() {
+            return service != null;
+        }
+
+        public boolean requestStatus() {
+            return send(MSG_GET_STATUS, null);
+        }
+
+        public boolean requestMetrics() {
+            return send(MSG_GET_METRICS, null);
+        }
+
+        /**
+         * Ask for the events recorded since the last batch, unless a batch is on its way
+         */
+        public void requestEvents() {
+            if (eventsRequested) {
+                return;
+            }
+            Bundle data = new Bundle();
+            data.putInt(KEY_PID, monitorPid);
+            data.putLong(KEY_FROM, nextSequence);
+            eventsRequested = send(MSG_GET_EVENTS, data);
+        }
+
+        public boolean setApiBaseUrl(String baseUrl) {
+            Bundle data = new Bundle();
+            data.putString(KEY_TEXT, baseUrl);
+            return send(MSG_SET_API_BASE_URL, data);
+        }
+
+        private boolean send(int what, Bundle data) {
+            if (service == null) {
+                return false;
+            }
+            Message request = Message.obtain(null, what);
+            request.replyTo = replies;
+            if (data != null) {
+                request.setData(data);
+            }
+            try {
+                service.send(request);
+                return true;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Monitor process is gone");
+                onServiceDisconnected(null);
+                return false;
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = new Messenger(binder);
+            eventsRequested = false;
+            requestStatus();
+            requestEvents();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            eventsRequested = false;
+            listener.onStatus(null);
+        }
+
+        @Override
+        public boolean handleMessage(Message reply) {
+            Bundle data = reply.getData();
+            switch (reply.what) {
+                case MSG_STATUS:
+                    Status status = new Status();
+                    status.pid = data.getInt(KEY_PID, 0);
+                    status.smsSentCount = data.getInt(KEY_SMS_SENT_COUNT, 0);
+                    listener.onStatus(status);
+                    return true;
+                case MSG_EVENTS:
+                    copyEvents(data);
+                    return true;
+                case MSG_METRICS:
+                    listener.onMetrics(data.getString(KEY_TEXT));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void copyEvents(Bundle data) {
+            eventsRequested = false;
+            long[] timestamps = data.getLongArray(KEY_TIMESTAMPS);
+            int[] types = data.getIntArray(KEY_TYPES);
+            int[] userIds = data.getIntArray(KEY_USER_IDS);
+            int[] alertIds = data.getIntArray(KEY_ALERT_IDS);
+            long[] values = data.getLongArray(KEY_VALUES);
+            String[] texts = data.getStringArray(KEY_TEXTS);
+            for (int i = 0; timestamps != null && i < timestamps.length; i++) {
+                event.timestamp = timestamps[i];
+                event.type = types[i];
+                event.userId = userIds[i];
+                event.alertId = alertIds[i];
+                event.value = values[i];
+                event.text = texts[i];
+                events.append(event);
+            }
+            monitorPid = data.getInt(KEY_PID, 0);
+            nextSequence = data.getLong(KEY_NEXT, 0);
+            if (nextSequence < data.getLong(KEY_HEAD, 0)) {
+                requestEvents(); // Still behind, e.g. right after attaching
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package angelo.collins.smssender;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Notices when the engine's worker stops making progress and gets it going again.
+ *
+ * A poll stuck in a 30 s OkHttp timeout, a blocked geocoder or a locked SQLite
+ * database would otherwise hold up every alert behind it without anyone noticing.
+ * The engine reports the stages it enters and leaves on the worker (SpanTracer
+ * kinds), which keeps a heartbeat per stage; check() runs every second on the
+ * scheduler. Once one worker task has run past the stall threshold it:
+ *
+ *   1. logs the worker's stack, the stages it is in and the age of every stage's
+ *      heartbeat, and runs the cancel hook, e.g. cancelling the in-flight poll;
+ *   2. if that same task still has not returned RESTART_GRACE_MS later, moves the
+ *      worker to a fresh thread (SupervisedWorker.restart) and tells the listener,
+ *      which retries whatever the abandoned task may have left unsent.
+ *
+ * Both count in MonitorMetrics (worker_stalls, worker_restarts). Heartbeats are
+ * volatile writes on the worker and allocate nothing; heartbeats from other threads,
+ * e.g. alerts prepared on the alert executor, are ignored.
+ */
+public final class MonitorWatchdog {
+    private static final String TAG = "MonitorWatchdog";
+    public static final long DEFAULT_STALL_THRESHOLD_MS = 20000;
+    public static final long CHECK_INTERVAL_MS = 1000;
+    public static final long RESTART_GRACE_MS = 5000;
+    /** Where hosts write getLastReport() next to the metrics dump */
+    public static final String STALL_REPORT_FILE = "monitor_stall.txt";
+    private static final int STAGE_KINDS = SpanTracer.ESCALATION + 1;
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Called on the scheduler thread after the worker moved to a fresh thread
+     */
+    public interface Listener {
+        void onWorkerRestarted();
+    }
+
+    private final SupervisedWorker worker;
+    private final long thresholdNanos;
+    private final Runnable cancelHook; // Null: nothing to cancel, only restart
+    private final Listener listener;
+    private final MonitorMetrics metrics = MonitorMetrics.get();
+    private final AtomicLongArray heartbeats = new AtomicLongArray(STAGE_KINDS); // nanoTime a stage was last entered, 0 never
+    private final int[] stages = new int[MAX_DEPTH]; // Worker writes, check() reads without locking; report only
+    private volatile int depth;
+    private long stalledTask = -1; // Scheduler thread only: the task the cancel hook ran for
+    private long stalledAtNanos;
+    private volatile String lastReport;
+
+    /**
+     * @param cancelHook run on the scheduler when a stall is detected; must not block
+     */
+    public MonitorWatchdog(SupervisedWorker worker, long stallThresholdMs, Runnable cancelHook, Listener listener) {
+        this.worker = worker;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(stallThresholdMs);
+        this.cancelHook = cancelHook;
+        this.listener = listener;
+    }
+
+    /**
+     * The worker entered a stage
+     */
+    public void enter(int stage) {
+        if (!worker.isWorkerThread()) {
+            return;
+        }
+        heartbeats.lazySet(stage, System.nanoTime());
+        int at = depth;
+        if (at < MAX_DEPTH) {
+            stages[at] = stage;
+        }
+        depth = at + 1;
+    }
+
+    /**
+     * The worker left a stage. On a thread the watchdog abandoned meanwhile this
+     * throws, so the task it was stuck in unwinds instead of carrying on beside the
+     * new worker.
+     */
+    public void leave(int stage) {
+        if (worker.isWorkerThread()) {
+            if (depth > 0) {
+                depth--;
+            }
+        } else if (SupervisedWorker.isAbandoned()) {
+            throw new SupervisedWorker.AbandonedError();
+        }
+    }
+
+    /**
+     * The stall report last logged, null if there was none
+     */
+    public String getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Look at the worker; runs every CHECK_INTERVAL_MS on the scheduler
+     */
+    public void check() {
+        long now = System.nanoTime();
+        long busy = worker.busyNanos(now);
+        long task = worker.tasksStarted();
+        if (busy < thresholdNanos) {
+            stalledTask = -1;
+            return;
+        }
+        if (stalledTask != task) {
+            stalledTask = task;
+            stalledAtNanos = now;
+            onStall(now, busy);
+        } else if (now - stalledAtNanos >= TimeUnit.MILLISECONDS.toNanos(RESTART_GRACE_MS)) {
+            stalledTask = -1;
+            restart(busy);
+        }
+    }
+
+    private void onStall(long now, long busyNanos) {
+        metrics.workerStalls.incrementAndGet();
+        String path = stagePath();
+        long busyMs = TimeUnit.NANOSECONDS.toMillis(busyNanos);
+        lastReport = report(now, busyMs, path);
+        EngineLog.e(TAG, lastReport);
+        EngineLog.event(DebugEventRing.WORKER_STALL, 0, 0, busyMs, path);
+        if (cancelHook != null) {
+            try {
+                cancelHook.run();
+            } catch (RuntimeException e) {
+                EngineLog.e(TAG, "Cancel hook failed", e);
+            }
+        }
+    }
+
+    private void restart(long busyNanos) {
+        depth = 0; // The new thread starts outside any stage
+        Thread abandoned = worker.restart();
+        if (abandoned == null) {
+            return; // Shut down meanwhile
+        }
+        metrics.workerRestarts.incrementAndGet();
+        EngineLog.e(TAG, "Worker still stuck after " + TimeUnit.NANOSECONDS.toMillis(busyNanos)
+                + " ms, abandoned " + abandoned.getName() + " and restarted on a fresh thread");
+        EngineLog.event(DebugEventRing.WORKER_RESTARTED, 0, 0, TimeUnit.NANOSECONDS.toMillis(busyNanos));
+        listener.onWorkerRestarted();
+    }
+
+    /**
+     * The stages the worker is in, outermost first, e.g. "cycle > poll"
+     */
+    private String stagePath() {
+        int at = Math.min(depth, MAX_DEPTH);
+        if (at == 0) {
+            return "no stage";
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < at; i++) {
+            if (i > 0) {
+                path.append(" > ");
+            }
+            path.append(SpanTracer.name(stages[i]));
+        }
+        return path.toString();
+    }
+
+    private String report(long now, long busyMs, String path) {
+        StringBuilder report = new StringBuilder(2048);
+        Thread thread = worker.getThread();
+        report.append("Worker stalled for ").append(busyMs).append(" ms in ").append(path);
+        report.append("\nLast heartbeat per stage:");
+        for (int stage = 0; stage < STAGE_KINDS; stage++) {
+            long beat = heartbeats.get(stage);
+            if (beat != 0) {
+                report.append(' ').append(SpanTracer.name(stage)).append(' ')
+                        .append(TimeUnit.NANOSECONDS.toMillis(now - beat)).append(" ms ago,");
+            }
+        }
+        report.setLength(report.length() - (report.charAt(report.length() - 1) == ',' ? 1 : 0));
+        if (thread != null) {
+            report.append("\n\"").append(thread.getName()).append("\" ").append(thread.getState());
+            for (StackTraceElement frame : thread.getStackTrace()) {
+                report.append("\n    at ").append(frame);
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,250 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives MultiSimSmsTransport over fake SIMs and checks how it spreads and fails over
+ * messages:
+ *
+ *   java -cp classes angelo.collins.smssender.MultiSimCheck
+ *
+ * RecordingSmsTransport stands in for a SIM that rejects, fails in its sent report or
+ * holds its results like a throttled queue; ThrottledSim reports one message at a
+ * time at a fixed rate, like a carrier's send limit, to measure how much a second SIM
+ * adds. Every message must get exactly one result. Exits 1 if a check fails.
+ */
+public final class MultiSimCheck {
+    private static final int MESSAGES = 300;
+    private static final long THROTTLE_MS = 5; // Per message and SIM, 200 SMS/s
+    private static final long RESULT_TIMEOUT_MS = 30000;
+
+    private static final List<String> failures = new ArrayList<>();
+
+    private MultiSimCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        checkRoundRobin();
+        checkFailoverOnReject();
+        checkFailoverOnFailedReport();
+        checkAllRoutesFail();
+        checkBlockedRoute();
+        checkBackpressure();
+        checkThroughput();
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Routes that all succeed take turns
+     */
+    private static void checkRoundRobin() {
+        RecordingSmsTransport[] sims = sims(3);
+        Results results = sendAll(new MultiSimSmsTransport(Arrays.asList(sims)), 99);
+        check("round robin: every message sent", results.sent.get(), 99);
+        check("round robin: messages per SIM", counts(sims), Arrays.asList(33, 33, 33));
+    }
+
+    private static void checkFailoverOnReject() {
+        RecordingSmsTransport[] sims = sims(2);
+        sims[0].setRejecting(true);
+        long failovers = MonitorMetrics.get().smsFailovers.get();
+        Results results = sendAll(new MultiSimSmsTransport(Arrays.asList(sims)), 10);
+        check("rejecting SIM: every message sent", results.sent.get(), 10);
+        check("rejecting SIM: all on the other SIM", counts(sims), Arrays.asList(0, 10));
+        check("rejecting SIM: failovers counted", MonitorMetrics.get().smsFailovers.get() - failovers > 0, true);
+    }
+
+    /**
+     * A message whose sent report says it failed is retried on the other SIM and
+     * reports only that second result
+     */
+    private static void checkFailoverOnFailedReport() {
+        RecordingSmsTransport[] sims = sims(2);
+        sims[0].setFailing(true);
+        Results results = sendAll(new MultiSimSmsTransport(Arrays.asList(sims)), 10);
+        check("failing SIM: every message sent", results.sent.get(), 10);
+        check("failing SIM: no failure reported", results.failed.get(), 0);
+        check("failing SIM: every message reached the good SIM", sims[1].sentCount(), 10);
+    }
+
+    private static void checkAllRoutesFail() {
+        RecordingSmsTransport[] sims = sims(2);
+        sims[0].setFailing(true);
+        sims[1].setFailing(true);
+        Results results = sendAll(new MultiSimSmsTransport(Arrays.asList(sims)), 5);
+        check("both SIMs failing: one failure per message", results.failed.get(), 5);
+        check("both SIMs failing: tried once on each", counts(sims), Arrays.asList(5, 5));
+
+        sims[0].setRejecting(true);
+        sims[1].setRejecting(true);
+        check("both SIMs rejecting: send refused",
+                new MultiSimSmsTransport(Arrays.asList(sims)).send("+639170000001", "Check", null), false);
+    }
+
+    /**
+     * A SIM whose success rate fell below half is skipped, even over a SIM with a long
+     * queue. The queued SIM is what keeps sending the failing one new messages until
+     * it is blocked; with both idle the failing one would simply lose on its score.
+     */
+    private static void checkBlockedRoute() {
+        RecordingSmsTransport[] sims = sims(2);
+        sims[0].setFailing(true);
+        sims[1].setHoldResults(true);
+        MultiSimSmsTransport transport = new MultiSimSmsTransport(Arrays.asList(sims));
+        Results results = sendAll(transport, 10);
+        check("blocked SIM: described", transport.describe().contains("blocked"), true);
+        sims[0].setFailing(false);
+        int before = sims[0].sentCount();
+        sendAll(transport, 20, results);
+        check("blocked SIM: skipped", sims[0].sentCount() - before, 0);
+        sims[1].completeAll(true);
+        check("blocked SIM: every message sent", results.sent.get(), 30);
+    }
+
+    /**
+     * A SIM sitting on unreported messages gets fewer new ones than one that reports
+     */
+    private static void checkBackpressure() {
+        RecordingSmsTransport[] sims = sims(2);
+        sims[0].setHoldResults(true);
+        MultiSimSmsTransport transport = new MultiSimSmsTransport(Arrays.asList(sims));
+        Results results = new Results();
+        for (int i = 0; i < 100; i++) {
+            transport.send(phone(i), "Check " + i, results);
+        }
+        check("throttled SIM: messages queued on it", sims[0].heldCount() <= 2, true);
+        check("throttled SIM: the rest on the other SIM", sims[1].sentCount() >= 98, true);
+        sims[0].completeAll(true);
+        check("throttled SIM: every message reported once", results.sent.get(), 100);
+    }
+
+    /**
+     * Time for MESSAGES through one throttled SIM against two behind the balancer
+     */
+    private static void checkThroughput() throws InterruptedException {
+        double one = throughput(1);
+        double two = throughput(2);
+        System.out.println(String.format(Locale.US, "throughput: 1 SIM %.0f SMS/s, 2 SIMs %.0f SMS/s (x%.2f), %d ms per SMS and SIM",
+                one, two, two / one, THROTTLE_MS));
+        check("two SIMs at least 1.8x one", two / one >= 1.8, true);
+    }
+
+    private static double throughput(int simCount) throws InterruptedException {
+        List<ThrottledSim> sims = new ArrayList<>();
+        for (int i = 0; i < simCount; i++) {
+            sims.add(new ThrottledSim("sim" + (i + 1)));
+        }
+        SmsTransport transport = simCount == 1 ? sims.get(0) : new MultiSimSmsTransport(sims);
+        CountDownLatch done = new CountDownLatch(MESSAGES);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            transport.send(phone(i), "Check " + i, sent -> done.countDown());
+        }
+        if (!done.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            failures.add(simCount + " SIM(s): " + done.getCount() + " result(s) never reported");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        transport.close();
+        return MESSAGES / seconds;
+    }
+
+    private static Results sendAll(SmsTransport transport, int messages) {
+        return sendAll(transport, messages, new Results());
+    }
+
+    private static Results sendAll(SmsTransport transport, int messages, Results results) {
+        for (int i = 0; i < messages; i++) {
+            if (!transport.send(phone(i), "Check " + i, results)) {
+                results.failed.incrementAndGet();
+            }
+        }
+        return results;
+    }
+
+    private static RecordingSmsTransport[] sims(int count) {
+        RecordingSmsTransport[] sims = new RecordingSmsTransport[count];
+        for (int i = 0; i < count; i++) {
+            sims[i] = new RecordingSmsTransport("sim" + (i + 1));
+        }
+        return sims;
+    }
+
+    private static List<Integer> counts(RecordingSmsTransport[] sims) {
+        List<Integer> counts = new ArrayList<>();
+        for (RecordingSmsTransport sim : sims) {
+            counts.add(sim.sentCount());
+        }
+        return counts;
+    }
+
+    private static String phone(int i) {
+        return String.format(Locale.US, "+63917%07d", i);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Counts results; a message reported twice shows up as more results than messages
+     */
+    private static final class Results implements SmsTransport.Callback {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        @Override
+        public void onResult(boolean ok) {
+            (ok ? sent : failed).incrementAndGet();
+        }
+    }
+
+    /**
+     * A SIM that sends one message every THROTTLE_MS and then reports it sent
+     */
+    private static final class ThrottledSim implements SmsTransport {
+        private final String name;
+        private final ScheduledExecutorService radio;
+        private long nextFreeNanos; // Guarded by this
+
+        ThrottledSim(String name) {
+            this.name = name;
+            this.radio = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "check-" + name));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean send(String phone, String message, Callback callback) {
+            long delayNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                nextFreeNanos = Math.max(nextFreeNanos, now) + TimeUnit.MILLISECONDS.toNanos(THROTTLE_MS);
+                delayNanos = nextFreeNanos - now;
+            }
+            radio.schedule(() -> callback.onResult(true), delayNanos, TimeUnit.NANOSECONDS);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            radio.shutdown();
+        }
+    }
+}
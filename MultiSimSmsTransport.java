@@ -0,0 +1,170 @@
+package angelo.collins.smssender;
+
+
+import java.util.List;
+
+/**
+ * Spreads sends across several transports, normally one per SIM, so that one
+ * carrier's send throttle no longer caps how fast a phone can alert contacts.
+ *
+ * Each send goes to the route with the best recent success rate per message still
+ * waiting for its sent report; equal routes take turns. A message the carrier
+ * rejects, right away or in its sent report, is retried once on every other route
+ * before it counts as failed. A route whose success rate drops below BLOCK_BELOW is
+ * skipped for BLOCK_MS, unless every route is blocked. Android-free, so it runs on a
+ * plain JVM with RecordingSmsTransport routes.
+ */
+public class MultiSimSmsTransport implements SmsTransport {
+    private static final String TAG = "MultiSimSmsTransport";
+    private static final double SUCCESS_WEIGHT = 0.2; // EWMA weight of the newest result
+    private static final double BLOCK_BELOW = 0.5;
+    private static final int MIN_SAMPLES = 3;
+    private static final long BLOCK_MS = 60_000;
+    private static final int MAX_ROUTES = 31; // Tried routes are tracked in an int
+
+    private final Route[] routes;
+    private int nextRoute;
+
+    public MultiSimSmsTransport(List<? extends SmsTransport> transports) {
+        if (transports.isEmpty() || transports.size() > MAX_ROUTES) {
+            throw new IllegalArgumentException("Need 1 to " + MAX_ROUTES + " transports, got " + transports.size());
+        }
+        routes = new Route[transports.size()];
+        for (int i = 0; i < routes.length; i++) {
+            routes[i] = new Route(transports.get(i), i);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "multi-sim(" + routes.length + ")";
+    }
+
+    @Override
+    public boolean send(String phone, String message, Callback callback) {
+        return attempt(phone, message, callback, 0);
+    }
+
+    @Override
+    public void close() {
+        for (Route route : routes) {
+            route.transport.close();
+        }
+    }
+
+    /**
+     * Per-route state for logs and the metrics dialog, e.g. "sim1 ok=0.98 queued=2"
+     */
+    public synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (Route route : routes) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(route.transport.getName())
+                    .append(" ok=").append(String.format("%.2f", route.successRate))
+                    .append(" queued=").append(route.inFlight);
+            if (route.blockedUntil > now) {
+                text.append(" blocked");
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Send on the best route not tried yet for this message; returns false once every
+     * route has rejected it
+     */
+    private boolean attempt(String phone, String message, Callback callback, int tried) {
+        while (true) {
+            Route route = pick(tried);
+            if (route == null) {
+                return false;
+            }
+            int triedWithRoute = tried | route.bit;
+            if (tried != 0) {
+                MonitorMetrics.get().smsFailovers.incrementAndGet();
+                EngineLog.w(TAG, "Failing over to " + route.transport.getName() + " for " + EngineLog.maskPhone(phone));
+            }
+            if (route.transport.send(phone, message, sent -> onResult(route, sent, phone, message, callback, triedWithRoute))) {
+                return true;
+            }
+            synchronized (this) {
+                route.inFlight--;
+                record(route, false);
+            }
+            tried = triedWithRoute;
+        }
+    }
+
+    private void onResult(Route route, boolean sent, String phone, String message, Callback callback, int tried) {
+        synchronized (this) {
+            route.inFlight--;
+            record(route, sent);
+        }
+        if (!sent && attempt(phone, message, callback, tried)) {
+            return; // The next route reports the final result
+        }
+        if (callback != null) {
+            callback.onResult(sent);
+        }
+    }
+
+    /**
+     * Highest success rate per queued message wins; ties go round-robin. Blocked
+     * routes are used only if nothing else is left.
+     */
+    private synchronized Route pick(int tried) {
+        long now = System.currentTimeMillis();
+        Route best = null;
+        double bestScore = -1;
+        boolean bestBlocked = true;
+        for (int i = 0; i < routes.length; i++) {
+            Route route = routes[(nextRoute + i) % routes.length];
+            if ((tried & route.bit) != 0) {
+                continue;
+            }
+            boolean blocked = route.blockedUntil > now;
+            double score = route.successRate / (1 + route.inFlight);
+            if (best == null || (bestBlocked && !blocked) || (blocked == bestBlocked && score > bestScore)) {
+                best = route;
+                bestScore = score;
+                bestBlocked = blocked;
+            }
+        }
+        if (best != null) {
+            best.inFlight++;
+            nextRoute = (best.index + 1) % routes.length;
+        }
+        return best;
+    }
+
+    private void record(Route route, boolean sent) {
+        route.successRate += SUCCESS_WEIGHT * ((sent ? 1 : 0) - route.successRate);
+        route.samples++;
+        if (sent) {
+            route.blockedUntil = 0;
+        } else if (route.samples >= MIN_SAMPLES && route.successRate < BLOCK_BELOW
+                && route.blockedUntil <= System.currentTimeMillis()) {
+            route.blockedUntil = System.currentTimeMillis() + BLOCK_MS;
+            EngineLog.w(TAG, route.transport.getName() + " is rejecting sends, skipping it for " + BLOCK_MS + " ms");
+        }
+    }
+
+    private static final class Route {
+        final SmsTransport transport;
+        final int index;
+        final int bit;
+        double successRate = 1;
+        int samples;
+        int inFlight;
+        long blockedUntil;
+
+        Route(SmsTransport transport, int index) {
+            this.transport = transport;
+            this.index = index;
+            this.bit = 1 << index;
+        }
+    }
+}
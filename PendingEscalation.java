@@ -0,0 +1,41 @@
+package angelo.collins.smssender;
+
+/**
+ * A reminder that is due for an alert nobody has acknowledged yet, as persisted in
+ * the local database
+ */
+public class PendingEscalation {
+    private final int userId;
+    private final int alertId;
+    private final int step;
+    private final long dueAtMillis;
+
+    public PendingEscalation(int userId, int alertId, int step, long dueAtMillis) {
+        this.userId = userId;
+        this.alertId = alertId;
+        this.step = step;
+        this.dueAtMillis = dueAtMillis;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public int getAlertId() {
+        return alertId;
+    }
+
+    /**
+     * 1 for the first reminder, 2 for the second, ...
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * Wall-clock due time, so it survives a reboot
+     */
+    public long getDueAtMillis() {
+        return dueAtMillis;
+    }
+}
@@ -0,0 +1,188 @@
+package angelo.collins.smssender;
+
+
+/**
+ * Single-pass phone number normalization.
+ *
+ * Replaces the regex passes SMSManager used to run on every send. Numbers from the
+ * contact directory are normalized to E.164 once, when a profile version is first
+ * seen; the send path then only checks that a number is already in that form.
+ */
+public final class PhoneNumbers {
+    /** E.164 allows at most 15 digits after the '+' */
+    public static final int MAX_DIGITS = 15;
+    /** Country calling code for national numbers when none is configured */
+    public static final String DEFAULT_COUNTRY_CODE = "63";
+    private static final int MIN_DIGITS = 8;
+    // Longest national number without its trunk prefix in the plans the app serves
+    // (+63, +1); a bare number with more digits already carries a country code
+    private static final int MAX_NATIONAL_DIGITS = 10;
+
+    private static final ThreadLocal<char[]> SCRATCH = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_DIGITS + 8];
+        }
+    };
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * Normalize a user-entered number to E.164 ("+639171234567"), or return null if it
+     * cannot be a valid number. Separators are dropped, a "00" international prefix
+     * becomes '+', and a national number with a leading trunk '0' gets the default
+     * country code. A bare number longer than a national one, such as "14155551234",
+     * is read as already international. The only allocation is the returned string.
+     *
+     * @param defaultCountryCode country calling code digits without '+', e.g. "63"
+     */
+    public static String toE164(CharSequence raw, String defaultCountryCode) {
+        if (raw == null) {
+            return null;
+        }
+        char[] digits = SCRATCH.get();
+        int count = 0;
+        boolean plus = false;
+        for (int i = 0, n = raw.length(); i < n; i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (count == digits.length) {
+                    return null;
+                }
+                digits[count++] = c;
+            } else if (c == '+' && count == 0) {
+                plus = true;
+            }
+        }
+        int start = 0;
+        if (!plus && count > 2 && digits[0] == '0' && digits[1] == '0') {
+            // 00 international access prefix
+            start = 2;
+            plus = true;
+        }
+        boolean national = start < count && digits[start] == '0';
+        if (national) {
+            // Trunk prefix: "0917..." or a mistyped "+0917..."
+            start++;
+        } else if (!plus && defaultCountryCode != null && !startsWith(digits, start, count, defaultCountryCode)
+                && count - start <= MAX_NATIONAL_DIGITS) {
+            national = true;
+        }
+        int countryLength = national && defaultCountryCode != null ? defaultCountryCode.length() : 0;
+        if (national && countryLength == 0) {
+            return null;
+        }
+        int total = countryLength + count - start;
+        if (total < MIN_DIGITS || total > MAX_DIGITS) {
+            return null;
+        }
+        char[] out = new char[total + 1];
+        out[0] = '+';
+        for (int i = 0; i < countryLength; i++) {
+            out[1 + i] = defaultCountryCode.charAt(i);
+        }
+        System.arraycopy(digits, start, out, 1 + countryLength, count - start);
+        if (out[1] == '0') {
+            return null;
+        }
+        return new String(out);
+    }
+
+    /**
+     * True if the number is already '+' followed by 8-15 digits, so it can be sent as is
+     */
+    public static boolean isE164(CharSequence number) {
+        int n = number != null ? number.length() : 0;
+        if (n < MIN_DIGITS + 1 || n > MAX_DIGITS + 1 || number.charAt(0) != '+' || number.charAt(1) == '0') {
+            return false;
+        }
+        for (int i = 1; i < n; i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop every character except digits and a leading '+', in one pass. Returns the
+     * input itself when there is nothing to drop.
+     */
+    public static String strip(String number) {
+        if (number == null) {
+            return null;
+        }
+        int n = number.length();
+        int keep = 0;
+        boolean dirty = false;
+        for (int i = 0; i < n; i++) {
+            if (isKept(number.charAt(i), keep)) {
+                keep++;
+            } else {
+                dirty = true;
+            }
+        }
+        if (!dirty) {
+            return number;
+        }
+        char[] out = new char[keep];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            char c = number.charAt(i);
+            if (isKept(c, j)) {
+                out[j++] = c;
+            }
+        }
+        return new String(out);
+    }
+
+    /**
+     * The number as the SMS path sends it: directory numbers are already E.164 and
+     * are returned untouched, anything else is stripped
+     */
+    public static String clean(String number) {
+        return isE164(number) ? number : strip(number);
+    }
+
+    /**
+     * Basic validation: at least 10 digits
+     */
+    public static boolean isValid(String number) {
+        if (number == null || number.trim().isEmpty()) {
+            return false;
+        }
+        return countDigits(number) >= 10;
+    }
+
+    /**
+     * Number of decimal digits in the number
+     */
+    public static int countDigits(CharSequence number) {
+        int digits = 0;
+        for (int i = 0, n = number != null ? number.length() : 0; i < n; i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            }
+        }
+        return digits;
+    }
+
+    private static boolean isKept(char c, int position) {
+        return (c >= '0' && c <= '9') || (c == '+' && position == 0);
+    }
+
+    private static boolean startsWith(char[] digits, int start, int count, String prefix) {
+        if (count - start <= prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (digits[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
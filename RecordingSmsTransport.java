@@ -0,0 +1,126 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * SmsTransport that records messages instead of sending them, so the sending
+ * pipeline (balancing, failover, coalescing) can be exercised on a plain JVM.
+ *
+ * By default every accepted message reports success at once. setRejecting makes
+ * send() refuse messages, setFailing makes accepted messages report failure (a carrier
+ * rejecting in its sent report), and setHoldResults keeps results back until
+ * completeNext() or completeAll(), which simulates a throttled queue.
+ */
+public class RecordingSmsTransport implements SmsTransport {
+
+    /**
+     * One message handed to this transport
+     */
+    public static final class Sent {
+        public final String phone;
+        public final String message;
+        public final long atNanos;
+
+        Sent(String phone, String message) {
+            this.phone = phone;
+            this.message = message;
+            this.atNanos = System.nanoTime();
+        }
+    }
+
+    private final String name;
+    private final List<Sent> sent = new ArrayList<>();
+    private final Deque<Callback> held = new ArrayDeque<>();
+    private volatile boolean rejecting;
+    private volatile boolean failing;
+    private volatile boolean holdResults;
+    private volatile boolean closed;
+
+    public RecordingSmsTransport(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean send(String phone, String message, Callback callback) {
+        if (rejecting || closed) {
+            return false;
+        }
+        boolean hold;
+        synchronized (this) {
+            sent.add(new Sent(phone, message));
+            hold = holdResults;
+            if (hold) {
+                held.add(callback != null ? callback : ignored -> { });
+            }
+        }
+        if (!hold && callback != null) {
+            callback.onResult(!failing);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    public void setRejecting(boolean rejecting) {
+        this.rejecting = rejecting;
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public void setHoldResults(boolean holdResults) {
+        this.holdResults = holdResults;
+    }
+
+    /**
+     * Report the oldest held result; returns false if nothing was held
+     */
+    public boolean completeNext(boolean sentOk) {
+        Callback callback;
+        synchronized (this) {
+            callback = held.poll();
+        }
+        if (callback == null) {
+            return false;
+        }
+        callback.onResult(sentOk);
+        return true;
+    }
+
+    public int completeAll(boolean sentOk) {
+        int completed = 0;
+        while (completeNext(sentOk)) {
+            completed++;
+        }
+        return completed;
+    }
+
+    public synchronized int heldCount() {
+        return held.size();
+    }
+
+    public synchronized List<Sent> sent() {
+        return new ArrayList<>(sent);
+    }
+
+    public synchronized int sentCount() {
+        return sent.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
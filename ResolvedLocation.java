@@ -0,0 +1,83 @@
+package angelo.collins.smssender;
+
+
+import java.util.Locale;
+
+/**
+ * Location text for an emergency message, as resolved within a deadline
+ */
+public final class ResolvedLocation {
+    private final boolean hasCoordinates;
+    private final double latitude;
+    private final double longitude;
+    private final String address;
+    private final String description;
+    private final AddressLookup pendingLookup;
+
+    ResolvedLocation(String description) {
+        this.hasCoordinates = false;
+        this.latitude = 0;
+        this.longitude = 0;
+        this.address = null;
+        this.description = description;
+        this.pendingLookup = null;
+    }
+
+    ResolvedLocation(double latitude, double longitude, String address, AddressLookup pendingLookup) {
+        this.hasCoordinates = true;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.address = address;
+        this.description = address != null
+                ? address
+                : formatCoordinates(latitude, longitude) + " (" + mapsLink(latitude, longitude) + ")";
+        this.pendingLookup = pendingLookup;
+    }
+
+    static String formatCoordinates(double latitude, double longitude) {
+        return String.format(Locale.US, "%.6f, %.6f", latitude, longitude);
+    }
+
+    static String mapsLink(double latitude, double longitude) {
+        return String.format(Locale.US, "https://maps.google.com/?q=%.6f,%.6f", latitude, longitude);
+    }
+
+    /**
+     * Address if it was resolved in time, otherwise coordinates with a maps link
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Compact form of the description for stored messages, see AlertMessage
+     */
+    public String getReference() {
+        return hasCoordinates && address == null
+                ? AlertMessage.coordinateReference(latitude, longitude)
+                : AlertMessage.locationReference(description);
+    }
+
+    public boolean hasAddress() {
+        return address != null;
+    }
+
+    public boolean hasCoordinates() {
+        return hasCoordinates;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * The geocoder request still running after the deadline, or null
+     */
+    public AddressLookup getPendingLookup() {
+        return pendingLookup;
+    }
+}
@@ -6,6 +6,7 @@ public class SMSLogEntry {
     private int alertId;
     private String phoneNumber;
     private String message;
+    private AlertMessage storedMessage;
     private String sentAt;
     private String status;
 
@@ -54,6 +55,9 @@ public class SMSLogEntry {
     }
 
     public String getMessage() {
+        if (message == null && storedMessage != null) {
+            message = storedMessage.render();
+        }
         return message;
     }
 
@@ -61,6 +65,14 @@ public class SMSLogEntry {
         this.message = message;
     }
 
+    /**
+     * Template and parameters as stored in sms_log; rendered by the first getMessage()
+     */
+    public void setStoredMessage(AlertMessage storedMessage) {
+        this.storedMessage = storedMessage;
+        this.message = null;
+    }
+
     public String getSentAt() {
         return sentAt;
     }
@@ -84,7 +96,7 @@ public class SMSLogEntry {
                 ", userId=" + userId +
                 ", alertId=" + alertId +
                 ", phoneNumber='" + phoneNumber + '\'' +
-                ", message='" + message + '\'' +
+                ", message='" + getMessage() + '\'' +
                 ", sentAt='" + sentAt + '\'' +
                 ", status='" + status + '\'' +
                 '}';
@@ -2,31 +2,86 @@ package angelo.collins.smssender;
 
 
 import android.content.Context;
-import android.telephony.SmsManager;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.List;
 
-public class SMSManager {
+public class SMSManager implements SmsTransport {
     private static final String TAG = "SMSManager";
-    private static final int MAX_SMS_LENGTH = 160;
     
     private Context context;
-    private SmsManager smsManager;
+    private final SmsTransport transport;
     
     public SMSManager(Context context) {
+        this(context, createTransport(context));
+    }
+    
+    public SMSManager(Context context, SmsTransport transport) {
         this.context = context;
-        this.smsManager = SmsManager.getDefault();
+        this.transport = transport;
+    }
+    
+    /**
+     * Transport chosen for this deployment by the "sms_transport" preference:
+     * "carrier" (default) sends through the phone's SIMs; "gateway" posts batches to
+     * sms_gateway_url, falling back to the SIMs unless sms_gateway_fallback is off
+     */
+    private static SmsTransport createTransport(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String gatewayUrl = prefs.getString("sms_gateway_url", "");
+        if (!"gateway".equals(prefs.getString("sms_transport", "carrier"))) {
+            return createCarrierTransport(context);
+        }
+        if (gatewayUrl.isEmpty()) {
+            Log.w(TAG, "sms_transport is gateway but sms_gateway_url is not set, using the SIM");
+            return createCarrierTransport(context);
+        }
+        SmsTransport gateway = new HttpGatewaySmsTransport(gatewayUrl,
+                prefs.getString("sms_gateway_key", null),
+                prefs.getInt("sms_gateway_batch", HttpGatewaySmsTransport.DEFAULT_MAX_BATCH),
+                prefs.getLong("sms_gateway_linger_ms", HttpGatewaySmsTransport.DEFAULT_LINGER_MS));
+        return prefs.getBoolean("sms_gateway_fallback", true)
+                ? new FallbackSmsTransport(gateway, createCarrierTransport(context))
+                : gateway;
+    }
+    
+    /**
+     * Every active SIM behind a balancer, or the only SIM directly
+     */
+    private static SmsTransport createCarrierTransport(Context context) {
+        List<CarrierSmsTransport> sims = CarrierSmsTransport.forActiveSubscriptions(context);
+        return sims.size() == 1 ? sims.get(0) : new MultiSimSmsTransport(sims);
+    }
+    
+    public SmsTransport getTransport() {
+        return transport;
+    }
+    
+    @Override
+    public String getName() {
+        return transport.getName();
     }
     
     /**
-     * Send SMS message to the specified phone number
-     * Handles long messages by splitting them into multiple parts
+     * Send SMS message to the specified phone number.
+     * Returns true once a transport accepted it; a carrier rejection reported later is
+     * failed over to another SIM by the transport and otherwise only logged.
      */
     public boolean sendSMS(String phoneNumber, String message) {
+        return send(phoneNumber, message, null);
+    }
+    
+    /**
+     * Validate and clean the number, then hand the message to the transport. Failures
+     * reported later are logged before the callback hears of them.
+     */
+    @Override
+    public boolean send(String phoneNumber, String message, Callback callback) {
         try {
-            Log.d(TAG, "Attempting to send SMS to: " + phoneNumber);
-            Log.d(TAG, "Message: " + message);
+            if (MonitorLog.DEBUG) Log.d(TAG, "Attempting to send SMS to: " + MonitorLog.maskPhone(phoneNumber));
+            if (MonitorLog.verbosePayloads()) Log.v(TAG, "Message: " + message);
             
             // Validate phone number
             if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
@@ -43,19 +98,16 @@ public class SMSManager {
                 return false;
             }
             
-            // Check if message needs to be split
-            if (message.length() <= MAX_SMS_LENGTH) {
-                // Send single SMS
-                smsManager.sendTextMessage(phoneNumber, null, message, null, null);
-                Log.i(TAG, "Single SMS sent successfully to: " + phoneNumber);
-            } else {
-                // Split long message into multiple parts
-                ArrayList<String> messageParts = smsManager.divideMessage(message);
-                smsManager.sendMultipartTextMessage(phoneNumber, null, messageParts, null, null);
-                Log.i(TAG, "Multi-part SMS (" + messageParts.size() + " parts) sent successfully to: " + phoneNumber);
-            }
-            
-            return true;
+            // Long messages are split into parts by the transport
+            String maskedPhone = MonitorLog.maskPhone(phoneNumber);
+            return transport.send(phoneNumber, message, sent -> {
+                if (!sent) {
+                    Log.e(TAG, "SMS to " + maskedPhone + " was not sent by any transport");
+                }
+                if (callback != null) {
+                    callback.onResult(sent);
+                }
+            });
             
         } catch (SecurityException e) {
             Log.e(TAG, "SMS permission not granted", e);
@@ -67,77 +119,37 @@ public class SMSManager {
     }
     
     /**
-     * Clean phone number by removing non-digit characters except + at the beginning
+     * Release the transport's receivers or connections
+     */
+    public void shutdown() {
+        transport.close();
+    }
+    
+    @Override
+    public void close() {
+        shutdown();
+    }
+    
+    /**
+     * Clean phone number by removing non-digit characters except + at the beginning.
+     * Directory contacts are already E.164 and are returned untouched.
      */
     private String cleanPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null) return null;
-        
-        // Remove all non-digit characters except + at the beginning
-        String cleaned = phoneNumber.replaceAll("[^+\\d]", "");
-        
-        // If it starts with +, keep it, otherwise remove any + in the middle
-        if (cleaned.startsWith("+")) {
-            cleaned = "+" + cleaned.substring(1).replaceAll("\\+", "");
-        } else {
-            cleaned = cleaned.replaceAll("\\+", "");
-        }
-        
-        Log.d(TAG, "Cleaned phone number: " + phoneNumber + " -> " + cleaned);
-        return cleaned;
+        return PhoneNumbers.clean(phoneNumber);
     }
     
     /**
      * Validate if phone number format is acceptable
      */
     public boolean isValidPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            return false;
-        }
-        
-        String cleaned = cleanPhoneNumber(phoneNumber);
-        
-        // Basic validation: should have at least 10 digits
-        String digitsOnly = cleaned.replaceAll("[^\\d]", "");
-        return digitsOnly.length() >= 10;
+        return PhoneNumbers.isValid(phoneNumber);
     }
     
     /**
      * Format emergency message with proper length limits
      */
     public String formatEmergencyMessage(String userName, String location, CriticalUser user) {
-        StringBuilder message = new StringBuilder();
-        
-        // Core message
-        message.append("WRISTBUD EMERGENCY: Critical vitals detected for ");
-        message.append(userName.toUpperCase());
-        message.append(". Location: ").append(location);
-        
-        // Add vital signs if space allows
-        if (user != null) {
-            StringBuilder vitals = new StringBuilder();
-            
-            if (user.getHeartRate() > 0) {
-                vitals.append(" HR:").append(user.getHeartRate());
-            }
-            if (user.getBloodPressure() != null && !user.getBloodPressure().isEmpty()) {
-                vitals.append(" BP:").append(user.getBloodPressure());
-            }
-            if (user.getSpo2() > 0) {
-                vitals.append(" O2:").append(user.getSpo2()).append("%");
-            }
-            if (user.getTemperature() > 0) {
-                vitals.append(" T:").append(String.format("%.1f", user.getTemperature())).append("F");
-            }
-            
-            // Only add vitals if total message length is reasonable
-            if (message.length() + vitals.length() < 300) {
-                message.append(vitals);
-            }
-        }
-        
-        message.append(". Please check immediately!");
-        
-        return message.toString();
+        return AlertMessage.plainEmergency(userName, location, user);
     }
     
     /**
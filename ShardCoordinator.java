@@ -0,0 +1,61 @@
+package angelo.collins.smssender;
+
+
+import java.io.IOException;
+
+/**
+ * Coordination service that lets several sender nodes split the monitored users.
+ *
+ * Users are split into shardCount shards by user id modulo shardCount. A node holds
+ * time-bounded leases on some shards and renews them with heartbeats; the coordinator
+ * gives every live node a fair share and hands a silent node's shards to the others
+ * once its leases run out. Before sending an alert the owner claims it. A claim is
+ * granted to one node only, and is released to the next owner if that node lost
+ * the shard without confirming the send, so every alert is sent once across the fleet.
+ *
+ * Alerts are identified by ShardLeases.alertKey(userId, alertId).
+ */
+public interface ShardCoordinator {
+    /** Send it: this node now holds the claim */
+    int CLAIM_GRANTED = 0;
+    /** Another node confirmed sending it */
+    int CLAIM_SENT = 1;
+    /** Another node claimed it and may still be sending; ask again later */
+    int CLAIM_HELD = 2;
+    /** The user's shard is not leased to this node */
+    int CLAIM_NOT_OWNER = 3;
+
+    /**
+     * Shards leased to a node by one heartbeat
+     */
+    final class Grant {
+        public final int shardCount;
+        public final long leaseMs;
+        public final int[] shards;
+        public final int liveNodes;
+
+        public Grant(int shardCount, long leaseMs, int[] shards, int liveNodes) {
+            this.shardCount = shardCount;
+            this.leaseMs = leaseMs;
+            this.shards = shards;
+            this.liveNodes = liveNodes;
+        }
+    }
+
+    /**
+     * Renew this node's leases and take up free shards to its fair share, giving back
+     * any above it. Also confirms the alerts in sent.
+     */
+    Grant heartbeat(String nodeId, long[] sent) throws IOException;
+
+    /**
+     * Claim alerts before sending them; returns one CLAIM_* status per alert. Also
+     * confirms the alerts in sent.
+     */
+    int[] claim(String nodeId, long[] alerts, long[] sent) throws IOException;
+
+    /**
+     * Give up every lease, e.g. on shutdown, after confirming the alerts in sent
+     */
+    void release(String nodeId, long[] sent) throws IOException;
+}
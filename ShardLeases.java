@@ -0,0 +1,210 @@
+package angelo.collins.smssender;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This node's share of the fleet: the shards it holds leases on, kept alive by
+ * heartbeats on a thread of its own, plus the claims and send confirmations it
+ * exchanges with the ShardCoordinator.
+ *
+ * A lease counts as held only until a safety margin (a second, or a fifth of short
+ * leases) before the coordinator would let it expire, measured from when the heartbeat
+ * was sent, so a node that loses contact stops sending before another node may take
+ * its shards over.
+ */
+public class ShardLeases {
+    private static final String TAG = "ShardLeases";
+    private static final long SAFETY_MARGIN_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final String nodeId;
+    private final ShardCoordinator coordinator;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wristbud-shard-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentLinkedQueue<Long> unconfirmed = new ConcurrentLinkedQueue<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Lease lease; // Null until the first grant
+    private volatile boolean stopped;
+
+    public ShardLeases(String nodeId, ShardCoordinator coordinator) {
+        this.nodeId = nodeId;
+        this.coordinator = coordinator;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public static long alertKey(int userId, int alertId) {
+        return ((long) userId << 32) | (alertId & 0xffffffffL);
+    }
+
+    static int userIdOf(long alertKey) {
+        return (int) (alertKey >>> 32);
+    }
+
+    static int shardOf(int userId, int shardCount) {
+        return ((userId % shardCount) + shardCount) % shardCount;
+    }
+
+    /**
+     * Send the first heartbeat now and keep renewing every third of the lease
+     */
+    public void start() {
+        heartbeats.execute(this::heartbeat);
+    }
+
+    /**
+     * Stop renewing and hand every shard back, confirming what was sent. Blocks on the
+     * coordinator, so call it after the last send.
+     */
+    public void stop() {
+        stopped = true;
+        heartbeats.shutdownNow();
+        lease = null;
+        long[] sent = drainUnconfirmed();
+        try {
+            coordinator.release(nodeId, sent);
+        } catch (IOException | RuntimeException e) {
+            EngineLog.w(TAG, "Could not release shards, they expire on their own: " + e);
+        }
+    }
+
+    /**
+     * Whether this node currently holds the lease for the user's shard
+     */
+    public boolean owns(int userId) {
+        Lease lease = this.lease;
+        return lease != null && System.nanoTime() - lease.validUntilNanos < 0
+                && lease.owned[shardOf(userId, lease.owned.length)];
+    }
+
+    /**
+     * Bumped whenever the set of shards this node may send for changes
+     */
+    public long generation() {
+        Lease lease = this.lease;
+        if (lease != null && lease.valid && System.nanoTime() - lease.validUntilNanos >= 0) {
+            lease.valid = false; // Lapsed without a renewal
+            generation.incrementAndGet();
+            EngineLog.w(TAG, nodeId + " lost contact with the coordinator, not sending until leases are renewed");
+        }
+        return generation.get();
+    }
+
+    public int ownedShardCount() {
+        Lease lease = this.lease;
+        return lease != null && System.nanoTime() - lease.validUntilNanos < 0 ? lease.shards.length : 0;
+    }
+
+    /**
+     * Claim the users' current alerts; returns a ShardCoordinator.CLAIM_* status per
+     * user, or null if the coordinator could not be reached
+     */
+    public int[] claim(List<CriticalUser> users) {
+        long[] alerts = new long[users.size()];
+        for (int i = 0; i < alerts.length; i++) {
+            alerts[i] = alertKey(users.get(i).getUserId(), users.get(i).getAlertId());
+        }
+        long[] sent = drainUnconfirmed();
+        try {
+            return coordinator.claim(nodeId, alerts, sent);
+        } catch (IOException | RuntimeException e) {
+            requeue(sent);
+            EngineLog.w(TAG, "Could not claim " + alerts.length + " alerts", e);
+            return null;
+        }
+    }
+
+    /**
+     * Queue a confirmation that the alert was sent; it rides on the next heartbeat or claim
+     */
+    public void confirmSent(int userId, int alertId) {
+        unconfirmed.add(alertKey(userId, alertId));
+    }
+
+    private void heartbeat() {
+        if (stopped) {
+            return;
+        }
+        long requestedAt = System.nanoTime();
+        long[] sent = drainUnconfirmed();
+        long nextDelayMs = RETRY_DELAY_MS;
+        try {
+            ShardCoordinator.Grant grant = coordinator.heartbeat(nodeId, sent);
+            update(grant, requestedAt);
+            nextDelayMs = Math.max(1, grant.leaseMs / 3);
+        } catch (IOException | RuntimeException e) {
+            requeue(sent);
+            EngineLog.w(TAG, "Heartbeat failed for " + nodeId + ": " + e);
+        }
+        try {
+            heartbeats.schedule(this::heartbeat, nextDelayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private void update(ShardCoordinator.Grant grant, long requestedAt) {
+        Lease previous = lease;
+        long validMs = grant.leaseMs - Math.min(SAFETY_MARGIN_MS, grant.leaseMs / 5);
+        Lease next = new Lease(grant, requestedAt + TimeUnit.MILLISECONDS.toNanos(validMs));
+        lease = next;
+        if (previous == null || !previous.valid || !Arrays.equals(previous.shards, next.shards)
+                || System.nanoTime() - previous.validUntilNanos >= 0) {
+            generation.incrementAndGet();
+            MonitorMetrics.get().leaseChanges.incrementAndGet();
+            EngineLog.i(TAG, nodeId + " holds " + next.shards.length + " of " + grant.shardCount
+                    + " shards, " + grant.liveNodes + " node(s) live");
+        }
+    }
+
+    private long[] drainUnconfirmed() {
+        List<Long> drained = new ArrayList<>();
+        Long key;
+        while ((key = unconfirmed.poll()) != null) {
+            drained.add(key);
+        }
+        long[] keys = new long[drained.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = drained.get(i);
+        }
+        return keys;
+    }
+
+    private void requeue(long[] keys) {
+        for (long key : keys) {
+            unconfirmed.add(key);
+        }
+    }
+
+    private static final class Lease {
+        final int[] shards;
+        final boolean[] owned;
+        final long validUntilNanos;
+        volatile boolean valid = true;
+
+        Lease(ShardCoordinator.Grant grant, long validUntilNanos) {
+            this.shards = grant.shards.clone();
+            Arrays.sort(this.shards);
+            this.owned = new boolean[grant.shardCount];
+            for (int shard : shards) {
+                owned[shard] = true;
+            }
+            this.validUntilNanos = validUntilNanos;
+        }
+    }
+}
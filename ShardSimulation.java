@@ -0,0 +1,288 @@
+package angelo.collins.smssender;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a fleet of alert engines in one JVM against a LocalShardCoordinator and checks
+ * that every alert is sent exactly once across the fleet while nodes join and crash:
+ *
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar angelo.collins.smssender.ShardSimulation
+ *
+ * 1. Three nodes split the shards; every user gets an alert.
+ * 2. One node has claimed its share of a new round of alerts but cannot send them
+ *    (its SIM rejects everything) when it crashes. The others take its shards over
+ *    once its leases expire and send those alerts, since it never confirmed them.
+ * 3. A fourth node joins, gets a fair share of the shards and sends a third round.
+ *
+ * Prints what each node sent and exits with status 1 if an alert was sent twice,
+ * not at all, or a phase did not finish in time.
+ */
+public final class ShardSimulation {
+    private static final String TAG = "ShardSimulation";
+    private static final int USERS = 300;
+    private static final int SHARDS = 16;
+    private static final long LEASE_MS = 1500;
+    private static final long CHECK_INTERVAL_MS = 50;
+    private static final long PHASE_TIMEOUT_MS = 15000;
+
+    private static volatile List<CriticalUser> criticalUsers = new ArrayList<>();
+
+    private ShardSimulation() {}
+
+    public static void main(String[] args) throws Exception {
+        LocalShardCoordinator coordinator = new LocalShardCoordinator(SHARDS, LEASE_MS);
+        List<Node> nodes = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        for (String name : new String[] {"node-a", "node-b", "node-c"}) {
+            nodes.add(new Node(name, coordinator));
+        }
+        for (Node node : nodes) {
+            node.engine.start();
+        }
+        awaitBalanced(coordinator, 3, failures);
+
+        publish(1);
+        awaitRound(nodes, 1, failures);
+
+        Node crashed = nodes.get(0);
+        int grantedInRound1 = crashed.link.granted.get();
+        crashed.transport.setRejecting(true);
+        publish(2);
+        Thread.sleep(CHECK_INTERVAL_MS * 6); // Long enough for it to claim its share
+        crashed.crash();
+        awaitRound(nodes, 2, failures);
+        if (crashed.link.granted.get() == grantedInRound1) {
+            failures.add(crashed.name + " claimed no alert of round 2 before crashing");
+        }
+        if (crashed.sentInRound(2) > 0) {
+            failures.add(crashed.name + " sent " + crashed.sentInRound(2) + " alerts after crashing");
+        }
+
+        Node joined = new Node("node-d", coordinator);
+        nodes.add(joined);
+        joined.engine.start();
+        awaitBalanced(coordinator, 3, failures);
+        publish(3);
+        awaitRound(nodes, 3, failures);
+        if (joined.sentInRound(3) == 0) {
+            failures.add(joined.name + " joined but sent nothing");
+        }
+
+        for (Node node : nodes) {
+            node.engine.stop();
+        }
+        for (Node node : nodes) {
+            node.engine.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        checkExactlyOnce(nodes, failures);
+
+        System.out.println(String.format("%-8s %8s %8s %8s %8s %8s", "node", "granted", "round 1", "round 2", "round 3", "sms"));
+        for (Node node : nodes) {
+            System.out.println(String.format("%-8s %8d %8d %8d %8d %8d", node.name, node.link.granted.get(),
+                    node.sentInRound(1), node.sentInRound(2), node.sentInRound(3), node.transport.sentCount()));
+        }
+        MonitorMetrics metrics = MonitorMetrics.get();
+        System.out.println("claims denied " + metrics.claimsDenied.get() + ", lease changes " + metrics.leaseChanges.get());
+        if (failures.isEmpty()) {
+            System.out.println("OK: " + 3 * USERS + " alerts sent exactly once by " + nodes.size() + " nodes");
+            System.exit(0);
+        }
+        for (String failure : failures) {
+            System.out.println("FAIL: " + failure);
+        }
+        System.exit(1);
+    }
+
+    /**
+     * Every user critical with alert id round
+     */
+    private static void publish(int round) {
+        List<CriticalUser> users = new ArrayList<>(USERS);
+        CriticalUser.Builder builder = new CriticalUser.Builder();
+        for (int userId = 1; userId <= USERS; userId++) {
+            users.add(builder.reset()
+                    .setUserId(userId)
+                    .setName("User " + userId)
+                    .setAlertId(round)
+                    .setHeartRate(150)
+                    .setBloodPressure(180, 110)
+                    .setSpo2(88)
+                    .setTemperature(39.5)
+                    .addContact(new CriticalUser.Contact(1, "Contact " + userId, String.format("+63917%07d", userId)))
+                    .build());
+        }
+        criticalUsers = users;
+        EngineLog.i(TAG, "Round " + round + ": " + USERS + " users critical");
+    }
+
+    private static void awaitBalanced(LocalShardCoordinator coordinator, int expectedNodes, List<String> failures)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PHASE_TIMEOUT_MS);
+        while (System.nanoTime() - deadline < 0) {
+            Map<String, Integer> shares = new HashMap<>();
+            boolean allOwned = true;
+            for (String owner : coordinator.owners()) {
+                if (owner == null) {
+                    allOwned = false;
+                } else {
+                    Integer share = shares.get(owner);
+                    shares.put(owner, share == null ? 1 : share + 1);
+                }
+            }
+            int fairShare = (SHARDS + expectedNodes - 1) / expectedNodes;
+            boolean fair = shares.size() == expectedNodes;
+            for (int share : shares.values()) {
+                fair &= share <= fairShare;
+            }
+            if (allOwned && fair) {
+                EngineLog.i(TAG, "Shards balanced: " + shares);
+                return;
+            }
+            Thread.sleep(CHECK_INTERVAL_MS);
+        }
+        failures.add("Shards not balanced over " + expectedNodes + " nodes in time");
+    }
+
+    private static void awaitRound(List<Node> nodes, int round, List<String> failures) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PHASE_TIMEOUT_MS);
+        int sent = 0;
+        while (System.nanoTime() - deadline < 0) {
+            Set<Integer> users = new HashSet<>();
+            for (Node node : nodes) {
+                for (long key : node.store.sentAlerts()) {
+                    if ((int) key == round) {
+                        users.add(ShardLeases.userIdOf(key));
+                    }
+                }
+            }
+            sent = users.size();
+            if (sent == USERS) {
+                return;
+            }
+            Thread.sleep(CHECK_INTERVAL_MS);
+        }
+        failures.add("Round " + round + ": only " + sent + " of " + USERS + " alerts sent in time");
+    }
+
+    private static void checkExactlyOnce(List<Node> nodes, List<String> failures) {
+        Map<Long, String> senders = new HashMap<>();
+        int duplicates = 0;
+        for (Node node : nodes) {
+            for (long key : node.store.sentAlerts()) {
+                String previous = senders.put(key, node.name);
+                if (previous != null) {
+                    duplicates++;
+                    if (duplicates <= 10) {
+                        failures.add("User " + ShardLeases.userIdOf(key) + " alert " + (int) key
+                                + " sent by " + previous + " and " + node.name);
+                    }
+                }
+            }
+            // One contact per user, so one SMS per alert
+            if (node.transport.sentCount() != node.store.smsCount()) {
+                failures.add(node.name + " sent " + node.transport.sentCount() + " SMS for "
+                        + node.store.smsCount() + " recorded alerts");
+            }
+        }
+        if (duplicates > 10) {
+            failures.add((duplicates - 10) + " more duplicates");
+        }
+    }
+
+    /**
+     * One sender: an engine with its own store and SIM, reaching the coordinator through
+     * a link that can be cut
+     */
+    private static final class Node {
+        final String name;
+        final MemoryAlertStore store = new MemoryAlertStore();
+        final RecordingSmsTransport transport;
+        final FlakyCoordinator link;
+        final AlertEngine engine;
+
+        Node(String name, ShardCoordinator coordinator) {
+            this.name = name;
+            this.transport = new RecordingSmsTransport(name);
+            this.link = new FlakyCoordinator(coordinator);
+            this.engine = new AlertEngine.Builder()
+                    .setFeed(() -> criticalUsers)
+                    .setStore(store)
+                    .setLocation(new FixedLocationSource(14.5995, 120.9842, "Manila"))
+                    .setTransport(transport)
+                    .setShardLeases(new ShardLeases(name, link))
+                    .setCheckIntervalMs(CHECK_INTERVAL_MS)
+                    .setAddressFollowUp(false)
+                    .setCoalescing(0, 1)
+                    .setEscalation(0, 0)
+                    .build();
+        }
+
+        /**
+         * The phone dies: it reaches neither the coordinator nor the SMS network again
+         */
+        void crash() {
+            link.down = true;
+            transport.setRejecting(true);
+            EngineLog.i(TAG, name + " crashed");
+        }
+
+        int sentInRound(int round) {
+            int sent = 0;
+            for (long key : store.sentAlerts()) {
+                if ((int) key == round) {
+                    sent++;
+                }
+            }
+            return sent;
+        }
+    }
+
+    private static final class FlakyCoordinator implements ShardCoordinator {
+        private final ShardCoordinator coordinator;
+        final AtomicInteger granted = new AtomicInteger(); // Claims this node won
+        volatile boolean down;
+
+        FlakyCoordinator(ShardCoordinator coordinator) {
+            this.coordinator = coordinator;
+        }
+
+        @Override
+        public Grant heartbeat(String nodeId, long[] sent) throws IOException {
+            check();
+            return coordinator.heartbeat(nodeId, sent);
+        }
+
+        @Override
+        public int[] claim(String nodeId, long[] alerts, long[] sent) throws IOException {
+            check();
+            int[] statuses = coordinator.claim(nodeId, alerts, sent);
+            for (int status : statuses) {
+                if (status == CLAIM_GRANTED) {
+                    granted.incrementAndGet();
+                }
+            }
+            return statuses;
+        }
+
+        @Override
+        public void release(String nodeId, long[] sent) throws IOException {
+            check();
+            coordinator.release(nodeId, sent);
+        }
+
+        private void check() throws IOException {
+            if (down) {
+                throw new IOException("coordinator unreachable");
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts batches through HttpGatewaySmsTransport to the stub gateway in LoadTestServer
+ * and checks the result reported for every message:
+ *
+ *   java -cp classes:okhttp.jar:okio.jar:kotlin-stdlib.jar:json.jar angelo.collins.smssender.SmsGatewayCheck
+ *
+ * Covers batching, a gateway that fails some messages of a batch, HTTP errors and a
+ * wrong key, close() flushing the queue, and an engine whose only transport is the
+ * gateway riding out an outage: nothing is recorded as sent while the gateway is down,
+ * and every alert goes out once it is back. Exits 1 if a check fails.
+ */
+public final class SmsGatewayCheck {
+    private static final String KEY = "check-key";
+    private static final long RESULT_TIMEOUT_MS = 10000;
+
+    private static final List<String> failures = new ArrayList<>();
+
+    private SmsGatewayCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        LoadTestServer server = new LoadTestServer(new SyntheticFeed(20, 2, 42), 0).setGatewayKey(KEY);
+        server.start();
+        try {
+            checkBatching(server);
+            checkPartialFailure(server);
+            checkHttpErrors(server);
+            checkClose(server);
+            checkEngineOutage(server);
+        } finally {
+            server.close();
+        }
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " check(s) failed");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void checkBatching(LoadTestServer server) throws InterruptedException {
+        HttpGatewaySmsTransport transport = new HttpGatewaySmsTransport(server.getGatewayUrl(), KEY, 50, 50);
+        long batches = server.gatewayBatches.get();
+        String[] phones = new String[120];
+        for (int i = 0; i < phones.length; i++) {
+            phones[i] = SyntheticFeed.contactPhone(i + 1, 1);
+        }
+        Boolean[] results = sendAll(transport, phones);
+        transport.close();
+        check("batched messages sent", count(results, true), phones.length);
+        check("120 messages in batches of 50", server.gatewayBatches.get() - batches, 3L);
+    }
+
+    private static void checkPartialFailure(LoadTestServer server) throws InterruptedException {
+        String failing = SyntheticFeed.contactPhone(7, 2);
+        server.failGatewayPhone(failing);
+        HttpGatewaySmsTransport transport = new HttpGatewaySmsTransport(server.getGatewayUrl(), KEY, 50, 50);
+        Boolean[] results = sendAll(transport, SyntheticFeed.contactPhone(7, 1), failing, "12-34",
+                SyntheticFeed.contactPhone(8, 1));
+        transport.close();
+        check("results of a partly failed batch", Arrays.asList(results), Arrays.asList(true, false, false, true));
+    }
+
+    private static void checkHttpErrors(LoadTestServer server) throws InterruptedException {
+        String phone = SyntheticFeed.contactPhone(9, 1);
+        HttpGatewaySmsTransport transport = new HttpGatewaySmsTransport(server.getGatewayUrl(), KEY, 50, 50);
+        server.setGatewayStatus(503);
+        check("batch answered 503", Arrays.asList(sendAll(transport, phone, phone)), Arrays.asList(false, false));
+        server.setGatewayStatus(200);
+        check("batch after the gateway recovered", Arrays.asList(sendAll(transport, phone)), Arrays.asList(true));
+        transport.close();
+
+        HttpGatewaySmsTransport wrongKey = new HttpGatewaySmsTransport(server.getGatewayUrl(), "wrong", 50, 50);
+        check("batch with a wrong key", Arrays.asList(sendAll(wrongKey, phone)), Arrays.asList(false));
+        wrongKey.close();
+
+        HttpGatewaySmsTransport unreachable = new HttpGatewaySmsTransport("http://127.0.0.1:1/sms", KEY, 50, 50);
+        check("batch to an unreachable gateway", Arrays.asList(sendAll(unreachable, phone)), Arrays.asList(false));
+        unreachable.close();
+    }
+
+    /**
+     * close() posts what is queued right away instead of waiting out the linger
+     */
+    private static void checkClose(LoadTestServer server) throws InterruptedException {
+        HttpGatewaySmsTransport transport = new HttpGatewaySmsTransport(server.getGatewayUrl(), KEY, 50, 60000);
+        CountDownLatch done = new CountDownLatch(2);
+        boolean[] sent = new boolean[2];
+        for (int i = 0; i < sent.length; i++) {
+            int index = i;
+            transport.send(SyntheticFeed.contactPhone(10 + i, 1), "Check message", ok -> {
+                sent[index] = ok;
+                done.countDown();
+            });
+        }
+        long start = System.nanoTime();
+        transport.close();
+        boolean finished = done.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        check("queued messages posted on close", finished && sent[0] && sent[1], true);
+        check("close did not wait for the linger",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < RESULT_TIMEOUT_MS, true);
+        check("send after close rejected", transport.send(SyntheticFeed.contactPhone(12, 1), "Check message", null), false);
+    }
+
+    /**
+     * The engine's only transport is the gateway, as with sms_gateway_fallback off
+     */
+    private static void checkEngineOutage(LoadTestServer server) throws InterruptedException {
+        int users = 20;
+        SyntheticFeed feed = new SyntheticFeed(users, 2, 42);
+        CriticalFeedDecoder decoder = new CriticalFeedDecoder();
+        MemoryAlertStore store = new MemoryAlertStore();
+        server.setGatewayStatus(503);
+        AlertEngine engine = new AlertEngine.Builder()
+                .setFeed(() -> decoder.decode(feed.criticalUsersJson(false)))
+                .setStore(store)
+                .setLocation(new FixedLocationSource(14.5995, 120.9842, "Manila"))
+                .setTransport(new HttpGatewaySmsTransport(server.getGatewayUrl(), KEY, 50, 20))
+                .setCheckIntervalMs(100)
+                .setCoalescing(0, AlertEngine.DEFAULT_COALESCE_MAX_ALERTS)
+                .build();
+        MonitorMetrics metrics = MonitorMetrics.get();
+        metrics.reset();
+        try {
+            engine.start();
+            Thread.sleep(1000);
+            check("nothing recorded while the gateway is down", store.smsCount(), 0);
+            check("nothing counted sent while the gateway is down", metrics.smsSent.get(), 0L);
+            check("failures counted while the gateway is down", metrics.smsFailed.get() > 0, true);
+
+            server.setGatewayStatus(200);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESULT_TIMEOUT_MS);
+            while (store.sentAlerts().size() < users && System.nanoTime() - deadline < 0) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(500); // Let stragglers show up
+            // An alert counts as delivered once one contact has it, so a contact whose SMS fell
+            // in the batch that straddled the recovery is left to the reminders
+            check("every alert sent once the gateway is back", store.sentAlerts().size(), users);
+            check("at most one SMS per contact recorded", store.smsCount() >= users && store.smsCount() <= users * 2, true);
+            check("sms_sent matches what was recorded", metrics.smsSent.get(), (long) store.smsCount());
+        } finally {
+            engine.stop();
+            engine.awaitTermination(10, TimeUnit.SECONDS);
+            server.setGatewayStatus(200);
+        }
+    }
+
+    /**
+     * Send one message to each phone and wait for every result; null where none came
+     */
+    private static Boolean[] sendAll(SmsTransport transport, String... phones) throws InterruptedException {
+        Boolean[] results = new Boolean[phones.length];
+        CountDownLatch done = new CountDownLatch(phones.length);
+        for (int i = 0; i < phones.length; i++) {
+            int index = i;
+            boolean accepted = transport.send(phones[i], "Check message " + i, sent -> {
+                results[index] = sent;
+                done.countDown();
+            });
+            if (!accepted) {
+                results[index] = false;
+                done.countDown();
+            }
+        }
+        if (!done.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            failures.add(transport.getName() + ": " + done.getCount() + " result(s) never reported");
+        }
+        return results;
+    }
+
+    private static int count(Boolean[] results, boolean value) {
+        int count = 0;
+        for (Boolean result : results) {
+            if (result != null && result == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            failures.add(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
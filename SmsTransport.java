@@ -0,0 +1,33 @@
+package angelo.collins.smssender;
+
+/**
+ * Something that can deliver an SMS: one SIM, several SIMs or a gateway.
+ *
+ * send() only hands the message over and says whether it was accepted. The final
+ * result arrives later through the callback, exactly once for each accepted message,
+ * possibly on another thread. Implementations must be thread-safe and must not call
+ * the callback for a message they rejected.
+ */
+public interface SmsTransport {
+
+    interface Callback {
+        void onResult(boolean sent);
+    }
+
+    /**
+     * Short name for logs and metrics, e.g. "sim1"
+     */
+    String getName();
+
+    /**
+     * @param phone    E.164 or otherwise cleaned destination number
+     * @param callback told the final result, may be null
+     * @return false if the message was rejected right away
+     */
+    boolean send(String phone, String message, Callback callback);
+
+    /**
+     * Release receivers or connections; results still outstanding may be lost
+     */
+    void close();
+}
@@ -0,0 +1,71 @@
+package angelo.collins.smssender;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two critical snapshots and reports what changed per user
+ */
+public final class SnapshotDiff {
+
+    public enum ChangeType {
+        NEWLY_CRITICAL,
+        ALERT_CHANGED,
+        VITALS_UPDATED,
+        CLEARED
+    }
+
+    /**
+     * One user's change between two polls. For CLEARED the user is the last known state.
+     */
+    public static final class Change {
+        private final ChangeType type;
+        private final CriticalUser user;
+
+        Change(ChangeType type, CriticalUser user) {
+            this.type = type;
+            this.user = user;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public CriticalUser getUser() {
+            return user;
+        }
+    }
+
+    private SnapshotDiff() {}
+
+    /**
+     * List the changes from previous to current; empty without walking the users
+     * when both snapshots have the same fingerprint
+     */
+    public static List<Change> diff(CriticalSnapshot previous, CriticalSnapshot current) {
+        if (current.sameAs(previous)) {
+            return Collections.emptyList();
+        }
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<Integer, CriticalUser> entry : current.getUsers().entrySet()) {
+            int userId = entry.getKey();
+            CriticalUser before = previous.get(userId);
+            if (before == null) {
+                changes.add(new Change(ChangeType.NEWLY_CRITICAL, entry.getValue()));
+            } else if (previous.alertHashOf(userId) != current.alertHashOf(userId)) {
+                changes.add(new Change(ChangeType.ALERT_CHANGED, entry.getValue()));
+            } else if (previous.vitalsHashOf(userId) != current.vitalsHashOf(userId)) {
+                changes.add(new Change(ChangeType.VITALS_UPDATED, entry.getValue()));
+            }
+        }
+        for (Map.Entry<Integer, CriticalUser> entry : previous.getUsers().entrySet()) {
+            if (current.get(entry.getKey()) == null) {
+                changes.add(new Change(ChangeType.CLEARED, entry.getValue()));
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,278 @@
+package angelo.collins.smssender;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timed spans through the alert pipeline, for finding which stage held up one slow
+ * alert when the latency histograms only show that some alert was slow.
+ *
+ * Spans go into a preallocated lock-free ring like DebugEventRing, with the same
+ * seqlock over atomic arrays per slot, and are exported
+ * on demand as Chrome trace JSON, which Perfetto (ui.perfetto.dev) and
+ * chrome://tracing open directly; spans on one thread nest by time. On the phone
+ * MonitorLog installs a hook that also opens an android.os.Trace section per span,
+ * so they show up in a system trace next to the binder and SMS work they wait on.
+ *
+ * The shared ring keeps the newest 8192 spans (-Dwristbud.spans=N on a JVM), about
+ * half an hour of idle polling or a burst of some 1000 alerts.
+ *
+ * Off by default. While off, begin() is one volatile read and end() returns at once;
+ * while on, recording allocates nothing.
+ *
+ *   long span = SpanTracer.shared().begin(SpanTracer.GEOCODE);
+ *   ...
+ *   SpanTracer.shared().end(SpanTracer.GEOCODE, span, userId, alertId, 0);
+ */
+public final class SpanTracer {
+    public static final int CYCLE = 0;
+    public static final int POLL = 1;
+    public static final int PARSE = 2;
+    public static final int CONTACTS = 3;
+    public static final int DIFF = 4;
+    public static final int USER = 5;
+    public static final int DEDUP = 6;
+    public static final int GEOCODE = 7;
+    public static final int RENDER = 8;
+    public static final int SEND = 9;
+    public static final int DB_WRITE = 10;
+    public static final int ESCALATION = 11;
+
+    public static final String TRACE_FILE = "wristbud-trace.json";
+    public static final long DEFAULT_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final String[] NAMES = {"cycle", "poll", "parse", "contacts", "diff", "user", "dedup",
+            "geocode", "render", "sms.send", "db.write", "escalation"};
+    // What the value of a span counts, null if it has none
+    private static final String[] VALUE_NAMES = {"users", null, "users", "users", "changes", null, null,
+            null, null, "contact", "alerts", "step"};
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final SpanTracer SHARED = new SpanTracer(Integer.getInteger("wristbud.spans", DEFAULT_CAPACITY));
+
+    /**
+     * Called around every span on the thread that records it, e.g. to open an
+     * android.os.Trace section; must be set before tracing is switched on
+     */
+    public interface Hook {
+        void begin(String name);
+
+        void end();
+    }
+
+    private final int mask;
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicLongArray published;
+    private final AtomicLongArray startNanos;
+    private final AtomicLongArray durationNanos;
+    private final AtomicIntegerArray kinds;
+    private final AtomicIntegerArray userIds;
+    private final AtomicIntegerArray alertIds;
+    private final AtomicLongArray values;
+    private final AtomicLongArray threadIds;
+    private final AtomicReferenceArray<String> threadNames;
+    private volatile boolean enabled;
+    private volatile Hook hook;
+
+    /**
+     * @param capacity number of spans kept, rounded up to a power of two
+     */
+    public SpanTracer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        startNanos = new AtomicLongArray(size);
+        durationNanos = new AtomicLongArray(size);
+        kinds = new AtomicIntegerArray(size);
+        userIds = new AtomicIntegerArray(size);
+        alertIds = new AtomicIntegerArray(size);
+        values = new AtomicLongArray(size);
+        threadIds = new AtomicLongArray(size);
+        threadNames = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Process-wide tracer used by the engine
+     */
+    public static SpanTracer shared() {
+        return SHARED;
+    }
+
+    /**
+     * Name of a span kind as it appears in the trace, e.g. "sms.send"
+     */
+    public static String name(int kind) {
+        return NAMES[kind];
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setHook(Hook hook) {
+        this.hook = hook;
+    }
+
+    /**
+     * Start a span; returns its start time to pass to end(), or 0 while tracing is off
+     */
+    public long begin(int kind) {
+        if (!enabled) {
+            return 0;
+        }
+        Hook hook = this.hook;
+        if (hook != null) {
+            hook.begin(NAMES[kind]);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish a span started by begin() on the same thread. The value is what
+     * VALUE_NAMES says for the kind, e.g. the contact slot of an SMS.
+     */
+    public void end(int kind, long start, int userId, int alertId, long value) {
+        if (start == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        Hook hook = this.hook;
+        if (hook != null) {
+            hook.end();
+        }
+        Thread thread = Thread.currentThread();
+        long sequence = writeSequence.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        // Mark the slot as being written so readers skip it until it is published
+        published.set(slot, -1);
+        startNanos.lazySet(slot, start);
+        durationNanos.lazySet(slot, duration);
+        kinds.lazySet(slot, kind);
+        userIds.lazySet(slot, userId);
+        alertIds.lazySet(slot, alertId);
+        values.lazySet(slot, value);
+        threadIds.lazySet(slot, thread.getId());
+        threadNames.lazySet(slot, thread.getName());
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * Forget every recorded span
+     */
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * The spans that started within the last windowMs as a Chrome trace JSON document,
+     * timestamped in wall-clock microseconds
+     */
+    public String toChromeTrace(long windowMs) {
+        long nowNanos = System.nanoTime();
+        long epochOffsetMicros = System.currentTimeMillis() * 1000 - nowNanos / 1000;
+        long fromNanos = nowNanos - TimeUnit.MILLISECONDS.toNanos(windowMs);
+        StringBuilder json = new StringBuilder(64 * 1024);
+        json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        Map<Long, String> threads = new HashMap<>();
+        boolean first = true;
+        long head = writeSequence.get();
+        for (long sequence = Math.max(0, head - mask - 1); sequence < head; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence) {
+                continue;
+            }
+            long start = startNanos.get(slot);
+            long duration = durationNanos.get(slot);
+            int kind = kinds.get(slot);
+            int userId = userIds.get(slot);
+            int alertId = alertIds.get(slot);
+            long value = values.get(slot);
+            long threadId = threadIds.get(slot);
+            String threadName = threadNames.get(slot);
+            // A writer may have lapped us while copying
+            if (published.get(slot) != sequence || start - fromNanos < 0) {
+                continue;
+            }
+            threads.put(threadId, threadName);
+            if (!first) json.append(',');
+            first = false;
+            json.append("{\"name\":\"").append(NAMES[kind])
+                    .append("\",\"cat\":\"wristbud\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(threadId)
+                    .append(",\"ts\":").append(start / 1000 + epochOffsetMicros)
+                    .append(",\"dur\":").append(duration / 1000)
+                    .append(",\"args\":{");
+            int args = 0;
+            if (userId != 0) {
+                json.append("\"user\":").append(userId);
+                args++;
+            }
+            if (alertId != 0) {
+                json.append(args++ > 0 ? "," : "").append("\"alert\":").append(alertId);
+            }
+            if (VALUE_NAMES[kind] != null) {
+                json.append(args > 0 ? "," : "").append('"').append(VALUE_NAMES[kind]).append("\":").append(value);
+            }
+            json.append("}}");
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread.getKey())
+                    .append(",\"args\":{\"name\":\"");
+            appendEscaped(json, thread.getValue());
+            json.append("\"}}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Write the last windowMs of spans to TRACE_FILE in the directory, replacing the
+     * previous export; returns the file
+     */
+    public File export(File directory, long windowMs) throws IOException {
+        File target = new File(directory, TRACE_FILE);
+        File temp = new File(target.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(toChromeTrace(windowMs));
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not replace " + target);
+        }
+        return target;
+    }
+
+    private static void appendEscaped(StringBuilder json, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package angelo.collins.smssender;
+
+
+/**
+ * Bounded intern pool for strings decoded from the critical feed.
+ *
+ * Lookups hash and compare characters in place, so a name or phone number that was
+ * seen on an earlier poll is returned as the existing String without allocating.
+ * Not thread-safe; each decoder owns its own pool.
+ */
+public final class StringPool {
+    private final int maxSlots;
+    private String[] table;
+    private int[] hashes;
+    private int mask;
+    private int maxEntries;
+    private int size;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two; the pool is
+     *                 cleared once it is half full
+     */
+    public StringPool(int capacity) {
+        this(capacity, capacity);
+    }
+
+    /**
+     * @param capacity    initial number of slots, rounded up to a power of two
+     * @param maxCapacity slots the pool may grow to when half full; only beyond that
+     *                    is it cleared, so a feed with more distinct strings than the
+     *                    initial capacity does not start over on every poll
+     */
+    public StringPool(int capacity, int maxCapacity) {
+        int slots = roundUp(capacity);
+        maxSlots = Math.max(slots, roundUp(maxCapacity));
+        allocate(slots);
+    }
+
+    private static int roundUp(int capacity) {
+        return Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+    }
+
+    private void allocate(int slots) {
+        table = new String[slots];
+        hashes = new int[slots];
+        mask = slots - 1;
+        maxEntries = slots / 2;
+    }
+
+    public String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+        int slot = spread(hash) & mask;
+        String existing;
+        while ((existing = table[slot]) != null) {
+            if (hashes[slot] == hash && regionEquals(existing, chars, offset, length)) {
+                return existing;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size >= maxEntries) {
+            if (table.length < maxSlots) {
+                grow();
+            } else {
+                clear();
+            }
+            slot = spread(hash) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        String value = new String(chars, offset, length);
+        table[slot] = value;
+        hashes[slot] = hash;
+        size++;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = null;
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        String[] oldTable = table;
+        int[] oldHashes = hashes;
+        allocate(table.length * 2);
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != null) {
+                int slot = spread(oldHashes[i]) & mask;
+                while (table[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = oldTable[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static boolean regionEquals(String value, char[] chars, int offset, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,201 @@
+package angelo.collins.smssender;
+
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-thread executor for the engine's worker that MonitorWatchdog can move to a
+ * fresh thread when the current one is stuck.
+ *
+ * Runs tasks in order on one thread like Executors.newSingleThreadExecutor() and
+ * notes when the running task started. restart() abandons the thread: the queued
+ * tasks go on in the same order on a new one, and the old thread is interrupted and
+ * marked, so that once whatever blocked it returns it stops at the next stage
+ * boundary (MonitorWatchdog.leave) instead of touching engine state again.
+ */
+public final class SupervisedWorker extends AbstractExecutorService {
+    private static final long IDLE = Long.MIN_VALUE;
+
+    /**
+     * Thrown on an abandoned worker thread to unwind the task it was stuck in; never
+     * reaches the host's uncaught exception handler
+     */
+    static final class AbandonedError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        AbandonedError() {
+            super("Worker thread abandoned by the watchdog", null, false, false);
+        }
+    }
+
+    private static final class WorkerThread extends Thread {
+        volatile boolean abandoned;
+
+        WorkerThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    private final String name;
+    private final Object lock = new Object();
+    private final AtomicLong tasksStarted = new AtomicLong();
+    private ThreadPoolExecutor executor; // Guarded by lock
+    private boolean shutdown; // Guarded by lock
+    private volatile WorkerThread thread; // Null until the current executor starts its thread
+    private volatile long taskStartNanos = IDLE;
+
+    public SupervisedWorker(String name) {
+        this.name = name;
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Whether the calling thread is one restart() gave up on
+     */
+    public static boolean isAbandoned() {
+        Thread current = Thread.currentThread();
+        return current instanceof WorkerThread && ((WorkerThread) current).abandoned;
+    }
+
+    /**
+     * Whether the calling thread is the current worker thread
+     */
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * The current worker thread, null if it has not started yet
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * How long the running task has been running, 0 while idle
+     */
+    public long busyNanos(long nowNanos) {
+        long start = taskStartNanos;
+        return start == IDLE ? 0 : nowNanos - start;
+    }
+
+    /**
+     * Number of tasks started so far; tells one long task from several short ones
+     */
+    public long tasksStarted() {
+        return tasksStarted.get();
+    }
+
+    /**
+     * Give up on the current thread and run the queued tasks on a new one. The
+     * abandoned thread is interrupted; returns it, or null if there was none.
+     */
+    public Thread restart() {
+        synchronized (lock) {
+            if (shutdown) {
+                return null;
+            }
+            WorkerThread abandoned = thread;
+            if (abandoned != null) {
+                abandoned.abandoned = true;
+            }
+            thread = null;
+            taskStartNanos = IDLE;
+            ThreadPoolExecutor old = executor;
+            executor = newExecutor();
+            List<Runnable> queued = old.shutdownNow();
+            for (Runnable task : queued) {
+                executor.execute(task);
+            }
+            return abandoned;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (lock) {
+            executor.execute(task);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (lock) {
+            shutdown = true;
+            return executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (lock) {
+            return executor.isTerminated();
+        }
+    }
+
+    /**
+     * Waits for the current thread only; an abandoned one may never come back
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        ThreadPoolExecutor current;
+        synchronized (lock) {
+            current = executor;
+        }
+        return current.awaitTermination(timeout, unit);
+    }
+
+    private ThreadPoolExecutor newExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            WorkerThread worker = new WorkerThread(r, name);
+            Thread.UncaughtExceptionHandler fallback = Thread.getDefaultUncaughtExceptionHandler();
+            worker.setUncaughtExceptionHandler((t, e) -> {
+                if (e instanceof AbandonedError) {
+                    return; // The abandoned thread unwound as intended
+                }
+                if (fallback != null) {
+                    fallback.uncaughtException(t, e);
+                } else {
+                    t.getThreadGroup().uncaughtException(t, e);
+                }
+            });
+            thread = worker;
+            return worker;
+        }) {
+            @Override
+            protected void beforeExecute(Thread worker, Runnable task) {
+                if (worker == thread) {
+                    tasksStarted.incrementAndGet();
+                    taskStartNanos = System.nanoTime();
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable task, Throwable failure) {
+                if (Thread.currentThread() == thread) {
+                    taskStartNanos = IDLE;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,256 @@
+package angelo.collins.smssender;
+
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * A made-up population of monitored users for benchmarks and load tests, rendered as
+ * the server's /api/critical-users and /api/contacts responses.
+ *
+ * Every user starts critical with alert 1. churn() moves a share of the users on:
+ * a critical user gets a new alert or recovers, a recovered one turns critical again
+ * with a new alert. raiseAlert() does the same for one user, and can change their
+ * contacts on the way. Deterministic for a given seed, except for recorded_at, which is
+ * the wall-clock time the user's current alert started so that the engine's
+ * critical-to-first-SMS latency is meaningful.
+ */
+public final class SyntheticFeed {
+    private final int[] alertIds;
+    private final boolean[] critical;
+    private final long[] recordedAt;
+    private final int[] contactEdits;
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    private final int contactsPerUser;
+    private final Random random;
+
+    /**
+     * @param contactsPerUser 0 to 3 emergency contacts per user
+     */
+    public SyntheticFeed(int userCount, int contactsPerUser, long seed) {
+        this.alertIds = new int[userCount];
+        this.critical = new boolean[userCount];
+        this.recordedAt = new long[userCount];
+        this.contactEdits = new int[userCount];
+        this.contactsPerUser = Math.max(0, Math.min(3, contactsPerUser));
+        this.random = new Random(seed);
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < userCount; i++) {
+            alertIds[i] = 1;
+            critical[i] = true;
+            recordedAt[i] = now;
+        }
+    }
+
+    public int userCount() {
+        return alertIds.length;
+    }
+
+    /**
+     * Move each user on with the given probability; returns how many changed
+     */
+    public synchronized int churn(double rate) {
+        long now = System.currentTimeMillis();
+        int changed = 0;
+        for (int i = 0; i < alertIds.length; i++) {
+            if (random.nextDouble() >= rate) {
+                continue;
+            }
+            if (critical[i] && random.nextBoolean()) {
+                critical[i] = false;
+            } else {
+                critical[i] = true;
+                alertIds[i]++;
+                recordedAt[i] = now;
+            }
+            changed++;
+        }
+        return changed;
+    }
+
+    /**
+     * Give one user a new alert now, optionally after changing their contacts so the
+     * profile version moves on
+     */
+    public synchronized void raiseAlert(int userId, boolean newContacts) {
+        int i = userId - 1;
+        critical[i] = true;
+        alertIds[i]++;
+        recordedAt[i] = System.currentTimeMillis();
+        if (newContacts) {
+            contactEdits[i]++;
+        }
+    }
+
+    public synchronized int criticalCount() {
+        int count = 0;
+        for (boolean isCritical : critical) {
+            if (isCritical) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The current alert of every critical user, as ShardLeases.alertKey(userId, alertId)
+     */
+    public synchronized long[] criticalAlerts() {
+        long[] keys = new long[criticalCount()];
+        int count = 0;
+        for (int i = 0; i < alertIds.length; i++) {
+            if (critical[i]) {
+                keys[count++] = ShardLeases.alertKey(userId(i), alertIds[i]);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * The /api/critical-users body; contactsByRef sends profile_version in place of the
+     * contact columns, like ?contacts=ref
+     */
+    public synchronized String criticalUsersJson(boolean contactsByRef) {
+        StringBuilder json = new StringBuilder(256 + alertIds.length * (contactsByRef ? 260 : 400));
+        json.append("{\"users\":[");
+        int count = 0;
+        for (int i = 0; i < alertIds.length; i++) {
+            if (!critical[i]) {
+                continue;
+            }
+            if (count++ > 0) {
+                json.append(',');
+            }
+            int userId = userId(i);
+            json.append("{\"user_id\":").append(userId)
+                    .append(",\"name\":\"Patient ").append(userId)
+                    .append("\",\"email\":\"patient").append(userId).append("@example.com\"");
+            if (contactsByRef) {
+                json.append(",\"profile_version\":").append(profileVersion(userId));
+            } else {
+                appendContacts(json, userId);
+            }
+            json.append(",\"health_data_id\":").append(alertIds[i])
+                    .append(",\"heart_rate\":").append(140 + userId % 40)
+                    .append(",\"systolic\":").append(170 + userId % 30)
+                    .append(",\"diastolic\":").append(100 + userId % 20)
+                    .append(",\"spo2\":").append(85 + userId % 6)
+                    .append(",\"temperature\":").append(101 + userId % 3).append(".4")
+                    .append(",\"status\":\"critical\",\"recorded_at\":\"").append(timestampFormat.format(new Date(recordedAt[i])))
+                    .append("\",\"acknowledged_at\":null}");
+        }
+        json.append("],\"count\":").append(count).append(",\"timestamp\":\"")
+                .append(timestampFormat.format(new Date())).append("\"}");
+        return json.toString();
+    }
+
+    /**
+     * The /api/contacts body for the given users
+     */
+    public synchronized String contactsJson(List<Integer> userIds) {
+        StringBuilder json = new StringBuilder(64 + userIds.size() * 200);
+        json.append("{\"contacts\":[");
+        int count = 0;
+        for (int userId : userIds) {
+            if (userId < 1 || userId > alertIds.length) {
+                continue;
+            }
+            if (count++ > 0) {
+                json.append(',');
+            }
+            json.append("{\"user_id\":").append(userId)
+                    .append(",\"profile_version\":").append(profileVersion(userId));
+            appendContacts(json, userId);
+            json.append('}');
+        }
+        json.append("],\"count\":").append(count).append('}');
+        return json.toString();
+    }
+
+    /**
+     * The critical users as the decoder would build them, for benchmarks that skip JSON
+     */
+    public synchronized List<CriticalUser> criticalUsers() {
+        List<CriticalUser> users = new ArrayList<>(alertIds.length);
+        CriticalUser.Builder builder = new CriticalUser.Builder();
+        for (int i = 0; i < alertIds.length; i++) {
+            if (!critical[i]) {
+                continue;
+            }
+            int userId = userId(i);
+            builder.reset()
+                    .setUserId(userId)
+                    .setName("Patient " + userId)
+                    .setEmail("patient" + userId + "@example.com")
+                    .setAlertId(alertIds[i])
+                    .setHeartRate(140 + userId % 40)
+                    .setBloodPressure(170 + userId % 30, 100 + userId % 20)
+                    .setSpo2(85 + userId % 6)
+                    .setTemperature(101.4 + userId % 3)
+                    .setRecordedAtMillis(recordedAt[i])
+                    .setProfileVersion(profileVersion(userId));
+            for (int slot = 1; slot <= contactsPerUser; slot++) {
+                builder.addContact(new CriticalUser.Contact(slot, contactName(userId, slot), contactPhone(userId, slot)));
+            }
+            users.add(builder.build());
+        }
+        return users;
+    }
+
+    /**
+     * The phone of a user's contact; every contact has a phone of its own
+     */
+    public static String contactPhone(int userId, int slot) {
+        return String.format("+63917%d%06d", slot, userId % 1000000);
+    }
+
+    /**
+     * The user a contactPhone belongs to, 0 if it is not one
+     */
+    public static int userOfPhone(String phone) {
+        if (phone == null || phone.length() < 6) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(phone.substring(phone.length() - 6));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void appendContacts(StringBuilder json, int userId) {
+        for (int slot = 1; slot <= 3; slot++) {
+            json.append(",\"emergency_contact").append(slot).append("\":");
+            if (slot <= contactsPerUser) {
+                json.append('"').append(contactName(userId, slot)).append('"');
+            } else {
+                json.append("null");
+            }
+            json.append(",\"emergency_phone").append(slot).append("\":");
+            if (slot <= contactsPerUser) {
+                json.append('"').append(contactPhone(userId, slot)).append('"');
+            } else {
+                json.append("null");
+            }
+        }
+    }
+
+    private String contactName(int userId, int slot) {
+        int edits = contactEdits[userId - 1];
+        return "Contact " + slot + " of " + userId + (edits > 0 ? " v" + (edits + 1) : "");
+    }
+
+    private long profileVersion(int userId) {
+        return (userId * 2654435761L + contactEdits[userId - 1] * 40503L) & 0xffffffffL;
+    }
+
+    private static int userId(int index) {
+        return index + 1;
+    }
+}
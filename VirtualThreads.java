@@ -0,0 +1,32 @@
+package angelo.collins.smssender;
+
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads where the runtime has them (Java 21+), looked up reflectively so the
+ * sources still build for Android and older JVMs
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /**
+     * Executor starting one named virtual thread per task, e.g. "wristbud-alert-12",
+     * or null if the runtime has no virtual threads
+     */
+    static ExecutorService newPerTaskExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+-- Migration: Add acknowledged_at to health_data so caregivers can acknowledge
+-- critical readings and stop SMS reminders (queried by /api/critical-users)
+ALTER TABLE health_data
+  ADD COLUMN acknowledged_at TIMESTAMP NULL DEFAULT NULL AFTER recorded_at;
@@ -29,6 +29,9 @@ CREATE TABLE health_data (
     location_longitude DECIMAL(11, 8) NULL,
     location_address TEXT NULL,
     recorded_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    -- Set when a caregiver acknowledges a critical reading; stops SMS reminders
+    -- Existing databases: run migrate_acknowledged_at.sql (the server also adds it at startup)
+    acknowledged_at TIMESTAMP NULL,
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
     INDEX idx_user_recorded (user_id, recorded_at),
     INDEX idx_status (status),
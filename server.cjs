@@ -91,8 +91,15 @@ app.get("/api", (req, res) => {
         userHealth: "GET /api/admin/user/:userId/health",
         userAlerts: "GET /api/admin/user/:userId/alerts",
         criticalUsers: "GET /api/critical-users",
+        contacts: "GET /api/contacts?user_ids=1,2",
+        acknowledge: "POST /api/admin/user/:userId/acknowledge",
         smsStatus: "POST /api/sms-status",
       },
+      shards: {
+        heartbeat: "POST /api/shards/heartbeat",
+        claims: "POST /api/shards/claims",
+        release: "POST /api/shards/release",
+      },
     },
     timestamp: new Date().toISOString(),
   });
@@ -561,26 +568,40 @@ setInterval(async () => {
   }
 }, MS_PER_SECOND);
 
+// Changes whenever any emergency contact of the user changes, so clients can cache
+// contacts per (user_id, profile_version) and refetch only on a bump
+const PROFILE_VERSION_SQL = `CRC32(CONCAT_WS('|',
+  u.emergency_contact1, u.emergency_phone1,
+  u.emergency_contact2, u.emergency_phone2,
+  u.emergency_contact3, u.emergency_phone3))`;
+
 app.get("/api/critical-users", async (req, res) => {
   try {
+    // ?contacts=ref sends profile_version instead of the contact columns
+    const contactColumns = req.query.contacts === "ref"
+      ? ""
+      : `u.emergency_contact1,
+             u.emergency_phone1,
+             u.emergency_contact2,
+             u.emergency_phone2,
+             u.emergency_contact3,
+             u.emergency_phone3,`;
     // Get latest health_data for each user
     const [criticalUsers] = await pool.execute(`
       SELECT u.id as user_id,
              u.name,
              u.email,
-             u.emergency_contact1,
-             u.emergency_phone1,
-             u.emergency_contact2,
-             u.emergency_phone2,
-             u.emergency_contact3,
-             u.emergency_phone3,
+             ${contactColumns}
+             ${PROFILE_VERSION_SQL} as profile_version,
              hd.id as health_data_id,
              hd.heart_rate,
-             CONCAT(hd.systolic, '/', hd.diastolic) as blood_pressure,
+             hd.systolic,
+             hd.diastolic,
              hd.spo2,
              hd.temperature,
              hd.status,
              hd.recorded_at,
+             hd.acknowledged_at,
              hd.context_tag,
              hd.activity
       FROM users u
@@ -608,6 +629,55 @@ app.get("/api/critical-users", async (req, res) => {
   }
 });
 
+// Most users per /api/contacts request; clients split longer lists into batches
+const MAX_CONTACT_IDS = 500;
+
+app.get("/api/contacts", async (req, res) => {
+  try {
+    const userIds = String(req.query.user_ids || "")
+      .split(",")
+      .map((id) => parseInt(id, 10))
+      .filter((id) => Number.isInteger(id) && id > 0);
+    if (userIds.length === 0) {
+      return res.status(400).json({ error: "user_ids is required" });
+    }
+    if (userIds.length > MAX_CONTACT_IDS) {
+      return res.status(400).json({ error: `At most ${MAX_CONTACT_IDS} user_ids per request` });
+    }
+    const placeholders = userIds.map(() => "?").join(",");
+    const [contacts] = await pool.execute(
+      `SELECT u.id as user_id,
+              ${PROFILE_VERSION_SQL} as profile_version,
+              u.emergency_contact1, u.emergency_phone1,
+              u.emergency_contact2, u.emergency_phone2,
+              u.emergency_contact3, u.emergency_phone3
+       FROM users u
+       WHERE u.id IN (${placeholders})`,
+      userIds
+    );
+    res.json({ contacts, count: contacts.length });
+  } catch (error) {
+    console.error("Get contacts error:", error);
+    res.status(500).json({ error: "Internal server error" });
+  }
+});
+
+// Acknowledge the user's current critical reading so the monitor stops sending reminders
+app.post("/api/admin/user/:userId/acknowledge", async (req, res) => {
+  try {
+    const [result] = await pool.execute(
+      `UPDATE health_data SET acknowledged_at = NOW()
+       WHERE user_id = ? AND status = 'critical' AND acknowledged_at IS NULL
+       ORDER BY recorded_at DESC LIMIT 1`,
+      [req.params.userId]
+    );
+    res.json({ message: "Alert acknowledged", acknowledged: result.affectedRows });
+  } catch (error) {
+    console.error("Acknowledge error:", error);
+    res.status(500).json({ error: "Internal server error" });
+  }
+});
+
 app.post("/api/sms-status", async (req, res) => {
   try {
     const {
@@ -628,6 +698,133 @@ app.post("/api/sms-status", async (req, res) => {
   }
 });
 
+// Shard leases and send claims for a fleet of sender phones (fleet_mode). Users are
+// split into SHARD_COUNT shards by user_id % SHARD_COUNT; each live node leases a fair
+// share and renews it with heartbeats, and a silent node's shards go to the others once
+// its leases expire. Every alert is claimed before it is sent and confirmed after, so
+// it goes out from one phone only. A shard handed over is fenced for one lease so an
+// unconfirmed claim of its previous owner is only granted again once that owner must
+// have stopped. Same rules as LocalShardCoordinator.java.
+// Claims live in memory: restarting the server forgets them, and phones then fall back
+// on their own sms_log for alerts they sent themselves.
+const SHARD_COUNT = Number(process.env.SHARD_COUNT || 64);
+const SHARD_LEASE_MS = Number(process.env.SHARD_LEASE_MS || 15000);
+const SENT_CLAIM_RETENTION_MS = 24 * 60 * 60 * 1000;
+const shardOwners = new Array(SHARD_COUNT).fill(null);
+const shardExpiresAt = new Array(SHARD_COUNT).fill(0);
+const shardFencedUntil = new Array(SHARD_COUNT).fill(0);
+const shardNodesLastSeen = new Map();
+const alertClaims = new Map(); // "user:alert" -> { nodeId, at, sent }
+let lastClaimPrune = 0;
+
+const shardOf = (userId) => ((userId % SHARD_COUNT) + SHARD_COUNT) % SHARD_COUNT;
+const claimKey = (alert) => `${alert.user_id}:${alert.alert_id}`;
+
+const confirmSent = (nodeId, sent, now) => {
+  for (const alert of Array.isArray(sent) ? sent : []) {
+    alertClaims.set(claimKey(alert), { nodeId, at: now, sent: true });
+  }
+};
+
+const shardNodeId = (req, res) => {
+  const nodeId = req.body && req.body.node_id;
+  if (!nodeId || typeof nodeId !== "string") {
+    res.status(400).json({ error: "node_id is required" });
+    return null;
+  }
+  return nodeId;
+};
+
+app.post("/api/shards/heartbeat", (req, res) => {
+  const nodeId = shardNodeId(req, res);
+  if (!nodeId) return;
+  const now = Date.now();
+  confirmSent(nodeId, req.body.sent, now);
+  shardNodesLastSeen.set(nodeId, now);
+  for (const [node, seen] of shardNodesLastSeen) {
+    if (seen + SHARD_LEASE_MS <= now) shardNodesLastSeen.delete(node);
+  }
+  const fairShare = Math.ceil(SHARD_COUNT / shardNodesLastSeen.size);
+  const held = [];
+  for (let shard = 0; shard < SHARD_COUNT; shard++) {
+    if (shardOwners[shard] === nodeId && shardExpiresAt[shard] > now) held.push(shard);
+  }
+  // Give back shards above the fair share so that a node that just joined gets some
+  while (held.length > fairShare) {
+    const shard = held.pop();
+    shardOwners[shard] = null;
+    shardExpiresAt[shard] = 0;
+    shardFencedUntil[shard] = now + SHARD_LEASE_MS;
+  }
+  for (let shard = 0; shard < SHARD_COUNT && held.length < fairShare; shard++) {
+    if (shardOwners[shard] === null || shardExpiresAt[shard] <= now) {
+      if (shardOwners[shard] !== null) {
+        // The old owner stopped sending by the time its lease ran out
+        shardFencedUntil[shard] = Math.max(shardFencedUntil[shard], shardExpiresAt[shard]);
+      }
+      shardOwners[shard] = nodeId;
+      held.push(shard);
+    }
+  }
+  for (const shard of held) shardExpiresAt[shard] = now + SHARD_LEASE_MS;
+  if (now - lastClaimPrune > 60000) {
+    lastClaimPrune = now;
+    for (const [key, claim] of alertClaims) {
+      if (claim.sent && now - claim.at > SENT_CLAIM_RETENTION_MS) alertClaims.delete(key);
+    }
+  }
+  res.json({
+    shard_count: SHARD_COUNT,
+    lease_ms: SHARD_LEASE_MS,
+    shards: held,
+    live_nodes: shardNodesLastSeen.size,
+  });
+});
+
+app.post("/api/shards/claims", (req, res) => {
+  const nodeId = shardNodeId(req, res);
+  if (!nodeId) return;
+  const claims = Array.isArray(req.body.claims) ? req.body.claims : null;
+  if (!claims) {
+    return res.status(400).json({ error: "claims array is required" });
+  }
+  const now = Date.now();
+  confirmSent(nodeId, req.body.sent, now);
+  const results = claims.map((alert) => {
+    const shard = shardOf(Number(alert.user_id));
+    let status;
+    if (shardOwners[shard] !== nodeId || shardExpiresAt[shard] <= now) {
+      status = "not_owner";
+    } else {
+      const claim = alertClaims.get(claimKey(alert));
+      if (claim && claim.sent) {
+        status = "sent";
+      } else if (!claim || claim.nodeId === nodeId || now >= shardFencedUntil[shard]) {
+        alertClaims.set(claimKey(alert), { nodeId, at: now, sent: false });
+        status = "granted";
+      } else {
+        status = "held";
+      }
+    }
+    return { user_id: alert.user_id, alert_id: alert.alert_id, status };
+  });
+  res.json({ results });
+});
+
+app.post("/api/shards/release", (req, res) => {
+  const nodeId = shardNodeId(req, res);
+  if (!nodeId) return;
+  confirmSent(nodeId, req.body.sent, Date.now());
+  shardNodesLastSeen.delete(nodeId);
+  for (let shard = 0; shard < SHARD_COUNT; shard++) {
+    if (shardOwners[shard] === nodeId) {
+      shardOwners[shard] = null;
+      shardExpiresAt[shard] = 0;
+    }
+  }
+  res.json({ message: "Shards released" });
+});
+
 app.get("/api/profile", authenticateToken, async (req, res) => {
   try {
     const userId = req.user.userId,
@@ -787,7 +984,22 @@ app.use((req, res) => {
   res.status(404).json({ error: "Endpoint not found" });
 });
 
-app.listen(PORT, HOST, () => {
+// Adds columns that newer endpoints query to databases created before them, so an
+// unmigrated database doesn't fail /api/critical-users (see migrate_acknowledged_at.sql)
+const ensureSchema = async () => {
+  const [columns] = await pool.execute(
+    `SELECT COLUMN_NAME FROM information_schema.COLUMNS
+     WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'health_data' AND COLUMN_NAME = 'acknowledged_at'`
+  );
+  if (columns.length === 0) {
+    await pool.execute(
+      "ALTER TABLE health_data ADD COLUMN acknowledged_at TIMESTAMP NULL DEFAULT NULL AFTER recorded_at"
+    );
+    console.log("🛠️ Added health_data.acknowledged_at");
+  }
+};
+
+const startServer = () => app.listen(PORT, HOST, () => {
   const interfaces = os.networkInterfaces();
   const lanIps = [];
   for (const name of Object.keys(interfaces)) {
@@ -808,6 +1020,12 @@ app.listen(PORT, HOST, () => {
   console.log(`👨‍💼 Admin API: http://localhost:${PORT}/api/admin/`);
 });
 
+ensureSchema()
+  .catch((error) => {
+    console.error("Schema check failed; run migrate_acknowledged_at.sql:", error);
+  })
+  .then(startServer);
+
 process.on("SIGTERM", async () => {
   console.log("SIGTERM received, shutting down gracefully");
   await pool.end();